@@ -32,6 +32,7 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 
 import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSInputChecker;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.protocol.DataTransferProtocol;
@@ -40,6 +41,7 @@ import org.apache.hadoop.hdfs.protocol.DataTransferProtocol.PacketHeader;
 import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
 import org.apache.hadoop.hdfs.security.token.block.InvalidBlockTokenException;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants;
+import org.apache.hadoop.hdfs.util.ChunkedChecksum;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.token.Token;
@@ -78,10 +80,26 @@ public class BlockReader extends FSInputChecker {
   private final long bytesNeededToFinish;
 
   private boolean gotEOS = false;
+  /** Whether the status of the read has been sent to the datanode */
+  private boolean sentStatusCode = false;
   
   byte[] skipBuf = null;
   ByteBuffer checksumBytes = null;
   int dataLeft = 0;
+
+  /**
+   * Set once the reader reads whole packets for {@link #read(ByteBuffer)},
+   * which bypasses the chunk buffers of {@link FSInputChecker}.
+   */
+  private boolean packetMode = false;
+  /** The checksums and the data of the current packet in packet mode */
+  private byte[] packetBuf = null;
+  /** The verified data of the current packet not read yet */
+  private ByteBuffer curDataSlice = null;
+  /** Buffer for reads into a direct buffer when not in packet mode */
+  private byte[] bounceBuf = null;
+  /** Verifies the checksums of whole packets in packet mode */
+  private ChunkedChecksum chunkedChecksum = null;
   
   /* FSInputChecker interface */
   
@@ -95,6 +113,9 @@ public class BlockReader extends FSInputChecker {
   @Override
   public synchronized int read(byte[] buf, int off, int len) 
                                throws IOException {
+    if (packetMode) {
+      return readPackets(ByteBuffer.wrap(buf, off, len));
+    }
     
     // This has to be set here, *before* the skip, since we can
     // hit EOS during the skip, in the case that our entire read
@@ -116,14 +137,156 @@ public class BlockReader extends FSInputChecker {
     
     int nRead = super.read(buf, off, len);
     
-    // if gotEOS was set in the previous read and checksum is enabled :
-    if (gotEOS && !eosBefore && nRead >= 0 && needChecksum()) {
-      //checksum is verified and there are no errors.
-      checksumOk(dnSock);
+    // if gotEOS was set in the previous read, tell the datanode whether
+    // the checksums have been verified; after that it can serve
+    // another op on the same connection.
+    if (gotEOS && !eosBefore && nRead >= 0) {
+      sendReadResult(dnSock, needChecksum()? CHECKSUM_OK : SUCCESS);
     }
     return nRead;
   }
 
+  /**
+   * Read into the remaining space of a buffer, which may be a direct buffer.
+   *
+   * If nothing has been read from this reader with
+   * {@link #read(byte[], int, int)} yet, the reader switches to reading
+   * whole packets: the checksums of a packet are verified in one pass
+   * over the packet, and its data is copied straight into the buffer
+   * without going through the chunk buffers of {@link FSInputChecker}.
+   * Later reads into byte arrays are served from the packets as well.
+   *
+   * @return the number of bytes read, or -1 at the end of the range
+   */
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    if (!packetMode && in != null && lastChunkLen < 0) {
+      packetMode = true;
+    }
+    if (packetMode) {
+      return readPackets(buf);
+    }
+
+    // the chunk buffers are in use, read through them
+    if (buf.hasArray()) {
+      final int n = read(buf.array(), buf.arrayOffset() + buf.position(),
+          buf.remaining());
+      if (n > 0) {
+        buf.position(buf.position() + n);
+      }
+      return n;
+    }
+    if (bounceBuf == null) {
+      bounceBuf = new byte[Math.max(bytesPerChecksum, 64 * 1024)];
+    }
+    final int n = read(bounceBuf, 0, Math.min(bounceBuf.length,
+        buf.remaining()));
+    if (n > 0) {
+      buf.put(bounceBuf, 0, n);
+    }
+    return n;
+  }
+
+  /**
+   * Fill the buffer from the packets of the datanode, reading
+   * and verifying more packets as needed.
+   */
+  private int readPackets(ByteBuffer buf) throws IOException {
+    int nRead = 0;
+    while (buf.hasRemaining()) {
+      if (curDataSlice == null || !curDataSlice.hasRemaining()) {
+        if (gotEOS || !readNextPacket()) {
+          break;
+        }
+        continue;
+      }
+      final int n = Math.min(curDataSlice.remaining(), buf.remaining());
+      final ByteBuffer src = curDataSlice.duplicate();
+      src.limit(src.position() + n);
+      buf.put(src);
+      curDataSlice.position(curDataSlice.position() + n);
+      nRead += n;
+    }
+    return nRead == 0 && buf.hasRemaining()? -1: nRead;
+  }
+
+  /**
+   * Read the next packet of the block and verify all its checksums
+   * in one pass over the packet.
+   * @return false if the datanode sent the end of the range
+   */
+  private boolean readNextPacket() throws IOException {
+    final PacketHeader header = new PacketHeader();
+    header.readFields(in);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("DFSClient readNextPacket got header " + header);
+    }
+    if (!header.sanityCheck(lastSeqNo)) {
+      throw new IOException("BlockReader: error in packet header " + header);
+    }
+    lastSeqNo = header.getSeqno();
+
+    final int dataLen = header.getDataLen();
+    if (dataLen <= 0) {
+      setEndOfRead();
+      return false;
+    }
+    final int checksumsLen =
+        ((dataLen + bytesPerChecksum - 1) / bytesPerChecksum) * checksumSize;
+    if (packetBuf == null || packetBuf.length < checksumsLen + dataLen) {
+      packetBuf = new byte[checksumsLen + dataLen];
+    }
+    IOUtils.readFully(in, packetBuf, 0, checksumsLen + dataLen);
+
+    final long offsetInBlock = header.getOffsetInBlock();
+    if (needChecksum() && checksumSize > 0) {
+      verifyPacketSums(packetBuf, checksumsLen, dataLen, offsetInBlock);
+    }
+    curDataSlice = ByteBuffer.wrap(packetBuf, checksumsLen, dataLen);
+    if (offsetInBlock < startOffset) {
+      // the first packet starts at the chunk boundary before startOffset
+      curDataSlice.position(checksumsLen
+          + (int)Math.min(startOffset - offsetInBlock, dataLen));
+    }
+
+    // the datanode sends an empty packet after the last data packet
+    // of the range; read it now so that the connection can be reused
+    if (offsetInBlock + dataLen >= firstChunkOffset + bytesNeededToFinish) {
+      final PacketHeader end = new PacketHeader();
+      end.readFields(in);
+      if (!end.isLastPacketInBlock() || end.getDataLen() != 0) {
+        throw new IOException("Expected empty end-of-read packet! Header: "
+            + end);
+      }
+      setEndOfRead();
+    }
+    return true;
+  }
+
+  /** The whole range has been received, report it to the datanode. */
+  private void setEndOfRead() {
+    if (!gotEOS) {
+      gotEOS = true;
+      sendReadResult(dnSock, needChecksum()? CHECKSUM_OK : SUCCESS);
+    }
+  }
+
+  /**
+   * Verify the checksums of all the chunks of a packet,
+   * whose checksums are followed by its data in the buffer.
+   */
+  private void verifyPacketSums(byte[] packet, int dataOff, int dataLen,
+      long offsetInBlock) throws ChecksumException {
+    if (chunkedChecksum == null) {
+      chunkedChecksum = new ChunkedChecksum(checksum);
+    }
+    final int failed = chunkedChecksum.verify(packet, dataOff, dataLen,
+        packet, 0);
+    if (failed >= 0) {
+      throw new ChecksumException("Checksum error: " + file + " at "
+          + (offsetInBlock + failed), offsetInBlock + failed);
+    }
+  }
+
   @Override
   public synchronized long skip(long n) throws IOException {
     /* How can we make sure we don't throw a ChecksumException, at least
@@ -346,6 +509,26 @@ public class BlockReader extends FSInputChecker {
     checksumSize = this.checksum.getChecksumSize();
   }
 
+  /**
+   * Constructor for subclasses which do not read from a data-node,
+   * and which take care of the chunk alignment of the read themselves.
+   */
+  protected BlockReader(Path file, int numRetries, DataChecksum checksum,
+      boolean verifyChecksum) {
+    super(file, numRetries, verifyChecksum,
+          checksum.getChecksumSize() > 0? checksum : null,
+          checksum.getBytesPerChecksum(),
+          checksum.getChecksumSize());
+    this.dnSock = null;
+    this.in = null;
+    this.checksum = checksum;
+    this.startOffset = 0;
+    this.firstChunkOffset = 0;
+    this.bytesNeededToFinish = 0;
+    bytesPerChecksum = checksum.getBytesPerChecksum();
+    checksumSize = checksum.getChecksumSize();
+  }
+
   public static BlockReader newBlockReader(Socket sock, String file,
       ExtendedBlock block, Token<BlockTokenIdentifier> blockToken, 
       long startOffset, long len, int bufferSize) throws IOException {
@@ -435,13 +618,16 @@ public class BlockReader extends FSInputChecker {
   
   /* When the reader reaches end of the read and there are no checksum
    * errors, we send OP_STATUS_CHECKSUM_OK to datanode to inform that 
-   * checksum was verified and there was no error.
+   * checksum was verified and there was no error, or OP_STATUS_SUCCESS
+   * if the checksums were not verified.
    */ 
-  void checksumOk(Socket sock) {
+  void sendReadResult(Socket sock, DataTransferProtocol.Status statusCode) {
+    assert !sentStatusCode : "already sent status code to " + sock;
     try {
       OutputStream out = NetUtils.getOutputStream(sock, HdfsConstants.WRITE_TIMEOUT);
-      CHECKSUM_OK.writeOutputStream(out);
+      statusCode.writeOutputStream(out);
       out.flush();
+      sentStatusCode = true;
     } catch (IOException e) {
       // its ok not to be able to send this.
       if(LOG.isDebugEnabled()) {
@@ -451,6 +637,15 @@ public class BlockReader extends FSInputChecker {
     }
   }
   
+  /**
+   * @return true if the whole requested range has been read and its
+   *         status sent to the datanode, so that the socket can be
+   *         used for another op
+   */
+  boolean hasSentStatusCode() {
+    return sentStatusCode;
+  }
+
   /**
    * File name to print when accessing a block directly (from servlets)
    * @param s Address of the block location
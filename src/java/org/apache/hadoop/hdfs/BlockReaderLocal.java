@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
+import org.apache.hadoop.hdfs.protocol.ClientDatanodeProtocol;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.security.token.block.BlockTokenIdentifier;
+import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * A {@link BlockReader} which reads a finalized replica directly from the
+ * local file system, when the client runs on the same host as the
+ * data-node storing the replica.
+ *
+ * The paths of the block file and the meta file are obtained from the
+ * data-node with {@link ClientDatanodeProtocol#getBlockLocalPathInfo},
+ * which checks that the user is allowed to read the files directly,
+ * and are cached so that reopening the same replica does not need
+ * another RPC.
+ * The reader never talks to the data-node otherwise,
+ * so it saves the data transfer through the socket and the copies
+ * made by the data-node.
+ */
+class BlockReaderLocal extends BlockReader {
+  /** The maximum number of cached replica paths. */
+  private static final int PATH_CACHE_SIZE = 10000;
+
+  /** Replica paths in access order, keyed by {@link #getCacheKey}. */
+  private static final Map<String, BlockLocalPathInfo> pathCache
+      = new LinkedHashMap<String, BlockLocalPathInfo>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(
+        Map.Entry<String, BlockLocalPathInfo> eldest) {
+      return size() > PATH_CACHE_SIZE;
+    }
+  };
+
+  private final FileInputStream dataIn;     // reader for the data file
+  private final FileInputStream checksumIn; // reader for the meta file,
+                                            // null if checksums are skipped
+  private final int bytesPerChecksum;
+  private final int checksumSize;
+  private final long blockLength;
+  /** offset in block of the first chunk read from the data file */
+  private final long firstChunkOffset;
+  /** bytes at the front of the first chunk not requested by the user */
+  private int bytesToSkip;
+
+  private BlockReaderLocal(String file, ExtendedBlock block,
+      DataChecksum checksum, boolean verifyChecksum,
+      FileInputStream dataIn, FileInputStream checksumIn,
+      long startOffset, long firstChunkOffset) {
+    super(new Path("/blk_" + block.getBlockId() + ":"
+        + block.getBlockPoolId() + ":of:" + file),
+        1, checksum, verifyChecksum);
+    this.dataIn = dataIn;
+    this.checksumIn = checksumIn;
+    this.bytesPerChecksum = checksum.getBytesPerChecksum();
+    this.checksumSize = checksum.getChecksumSize();
+    this.blockLength = block.getNumBytes();
+    this.firstChunkOffset = firstChunkOffset;
+    this.bytesToSkip = (int)(startOffset - firstChunkOffset);
+  }
+
+  /**
+   * Open a reader of a local replica.
+   *
+   * @param conf configuration for the RPC to the data-node
+   * @param file the file name, for error and debug messages
+   * @param block the block to read
+   * @param token the block access token
+   * @param node the local data-node storing the replica
+   * @param socketTimeout timeout of the RPC to the data-node
+   * @param startOffset offset in the block of the first byte to read
+   * @param verifyChecksum whether to verify the checksums of the data
+   * @return the reader
+   * @throws AccessControlException if the user is not allowed
+   *         to read the replica files directly
+   * @throws IOException if the replica cannot be read locally
+   */
+  static BlockReaderLocal newBlockReader(Configuration conf, String file,
+      ExtendedBlock block, Token<BlockTokenIdentifier> token,
+      DatanodeInfo node, int socketTimeout, long startOffset,
+      boolean verifyChecksum) throws IOException {
+    final BlockLocalPathInfo pathinfo = getBlockPathInfo(conf, block, token,
+        node, socketTimeout);
+    FileInputStream dataIn = null;
+    FileInputStream checksumIn = null;
+    boolean success = false;
+    try {
+      dataIn = new FileInputStream(pathinfo.getBlockPath());
+      checksumIn = new FileInputStream(pathinfo.getMetaPath());
+      final BlockMetadataHeader header = BlockMetadataHeader.readHeader(
+          new DataInputStream(checksumIn));
+      if (header.getVersion() != FSDataset.METADATA_VERSION) {
+        LOG.warn("Wrong version (" + header.getVersion() + ") for metadata"
+            + " file " + pathinfo.getMetaPath() + ", ignoring ...");
+      }
+      final DataChecksum checksum = header.getChecksum();
+      final int checksumSize = checksum.getChecksumSize();
+
+      final long firstChunkOffset;
+      if (verifyChecksum && checksumSize > 0) {
+        // start at a chunk boundary so that the checksums can be verified
+        final int bytesPerChecksum = checksum.getBytesPerChecksum();
+        final long chunk = startOffset / bytesPerChecksum;
+        firstChunkOffset = chunk * bytesPerChecksum;
+        checksumIn.getChannel().position(
+            BlockMetadataHeader.getHeaderSize() + chunk * checksumSize);
+      } else {
+        firstChunkOffset = startOffset;
+        IOUtils.closeStream(checksumIn);
+        checksumIn = null;
+        verifyChecksum = false;
+      }
+      dataIn.getChannel().position(firstChunkOffset);
+
+      final BlockReaderLocal reader = new BlockReaderLocal(file, block,
+          checksum, verifyChecksum, dataIn, checksumIn,
+          startOffset, firstChunkOffset);
+      success = true;
+      return reader;
+    } catch (IOException e) {
+      // the replica may have been moved or deleted since it was cached
+      removeBlockPathInfo(node, block);
+      throw e;
+    } finally {
+      if (!success) {
+        IOUtils.closeStream(dataIn);
+        IOUtils.closeStream(checksumIn);
+      }
+    }
+  }
+
+  private static String getCacheKey(DatanodeInfo node, ExtendedBlock block) {
+    // ExtendedBlock#equals is not usable as a key, use the block string
+    return node.getIpcPort() + ":" + block.getBlockPoolId() + ":"
+        + block.getLocalBlock();
+  }
+
+  private static BlockLocalPathInfo getBlockPathInfo(Configuration conf,
+      ExtendedBlock block, Token<BlockTokenIdentifier> token,
+      DatanodeInfo node, int socketTimeout) throws IOException {
+    final String key = getCacheKey(node, block);
+    synchronized (pathCache) {
+      final BlockLocalPathInfo cached = pathCache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    ClientDatanodeProtocol proxy = null;
+    final BlockLocalPathInfo pathinfo;
+    try {
+      proxy = DFSClient.createClientDatanodeProtocolProxy(node, conf,
+          socketTimeout);
+      pathinfo = proxy.getBlockLocalPathInfo(block, token);
+    } catch (RemoteException re) {
+      throw re.unwrapRemoteException(AccessControlException.class);
+    } finally {
+      if (proxy != null) {
+        RPC.stopProxy(proxy);
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Cached location of block " + block + " as " + pathinfo);
+    }
+    synchronized (pathCache) {
+      pathCache.put(key, pathinfo);
+    }
+    return pathinfo;
+  }
+
+  private static void removeBlockPathInfo(DatanodeInfo node,
+      ExtendedBlock block) {
+    synchronized (pathCache) {
+      pathCache.remove(getCacheKey(node, block));
+    }
+  }
+
+  @Override
+  public synchronized int read(byte[] buf, int off, int len)
+      throws IOException {
+    //for the first read, skip the extra bytes at the front.
+    if (bytesToSkip > 0 && len > 0) {
+      final int toSkip = bytesToSkip;
+      bytesToSkip = 0;
+      if (skipBuf == null || skipBuf.length < toSkip) {
+        skipBuf = new byte[toSkip];
+      }
+      if (super.read(skipBuf, 0, toSkip) != toSkip) {
+        // should never happen
+        throw new IOException("Could not skip required number of bytes");
+      }
+    }
+    return super.read(buf, off, len);
+  }
+
+  @Override
+  protected synchronized int readChunk(long pos, byte[] buf, int offset,
+      int len, byte[] checksumBuf) throws IOException {
+    // pos is relative to the start of the first chunk of the read.
+    final long remaining = blockLength - (firstChunkOffset + pos);
+    if (remaining <= 0) {
+      return -1;
+    }
+
+    final int bytesToRead;
+    if (checksumIn != null) {
+      // read whole chunks, except for the last chunk of the block
+      final int chunksCanFit = Math.min(len / bytesPerChecksum,
+                                        checksumBuf.length / checksumSize);
+      bytesToRead = (int)Math.min(remaining,
+                                  (long)chunksCanFit * bytesPerChecksum);
+      final int checksumsToRead = (bytesToRead - 1) / bytesPerChecksum + 1;
+      IOUtils.readFully(dataIn, buf, offset, bytesToRead);
+      IOUtils.readFully(checksumIn, checksumBuf, 0,
+                        checksumsToRead * checksumSize);
+    } else {
+      bytesToRead = (int)Math.min(remaining, len);
+      IOUtils.readFully(dataIn, buf, offset, bytesToRead);
+    }
+    return bytesToRead;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    IOUtils.closeStream(dataIn);
+    IOUtils.closeStream(checksumIn);
+    super.close();
+  }
+}
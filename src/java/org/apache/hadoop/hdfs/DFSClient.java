@@ -29,9 +29,14 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -39,7 +44,11 @@ import java.util.Map;
 import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
 
@@ -133,11 +142,26 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   long defaultBlockSize;
   private short defaultReplication;
   SocketFactory socketFactory;
+  /** Idle connections to the datanodes, reused by the block readers */
+  final SocketCache socketCache;
   int socketTimeout;
   final int writePacketSize;
   final DataTransferProtocol.ReplaceDatanodeOnFailure dtpReplaceDatanodeOnFailure;
   final FileSystem.Statistics stats;
   final int hdfsTimeout;    // timeout value for a DFS operation.
+  /** Whether to read the replicas on this host from the local file system */
+  private volatile boolean shortCircuitLocalReads;
+  /** Whether to skip the checksums of the replicas read locally */
+  final boolean shortCircuitSkipChecksum;
+  /** Whether positional reads are hedged */
+  private final boolean hedgedReadsEnabled;
+  /** Wait time for a data-node before a positional read is hedged */
+  final long hedgedReadThresholdMillis;
+  /** Threads of the hedged reads, shared by all the clients of the JVM */
+  private static ThreadPoolExecutor HEDGED_READ_THREAD_POOL;
+  /** Counters of the hedged reads, shared like the thread pool */
+  static final DFSHedgedReadMetrics HEDGED_READ_METRIC =
+    new DFSHedgedReadMetrics();
   final LeaseChecker leasechecker;
 
   /**
@@ -191,14 +215,31 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       DatanodeID datanodeid, Configuration conf, int socketTimeout,
       LocatedBlock locatedBlock)
       throws IOException {
+    UserGroupInformation ticket = UserGroupInformation
+        .createRemoteUser(locatedBlock.getBlock().getLocalBlock().toString());
+    ticket.addToken(locatedBlock.getBlockToken());
+    return createClientDatanodeProtocolProxy(datanodeid, conf, socketTimeout,
+        ticket);
+  }
+
+  /**
+   * Create a proxy to the data-node which authenticates as the current user.
+   */
+  static ClientDatanodeProtocol createClientDatanodeProtocolProxy(
+      DatanodeID datanodeid, Configuration conf, int socketTimeout)
+      throws IOException {
+    return createClientDatanodeProtocolProxy(datanodeid, conf, socketTimeout,
+        UserGroupInformation.getCurrentUser());
+  }
+
+  private static ClientDatanodeProtocol createClientDatanodeProtocolProxy(
+      DatanodeID datanodeid, Configuration conf, int socketTimeout,
+      UserGroupInformation ticket) throws IOException {
     InetSocketAddress addr = NetUtils.createSocketAddr(
       datanodeid.getHost() + ":" + datanodeid.getIpcPort());
     if (ClientDatanodeProtocol.LOG.isDebugEnabled()) {
       ClientDatanodeProtocol.LOG.debug("ClientDatanodeProtocol addr=" + addr);
     }
-    UserGroupInformation ticket = UserGroupInformation
-        .createRemoteUser(locatedBlock.getBlock().getLocalBlock().toString());
-    ticket.addToken(locatedBlock.getBlockToken());
     return (ClientDatanodeProtocol)RPC.getProxy(ClientDatanodeProtocol.class,
         ClientDatanodeProtocol.versionID, addr, ticket, conf, NetUtils
         .getDefaultSocketFactory(conf), socketTimeout);
@@ -246,6 +287,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       conf.getInt(DFSConfigKeys.DFS_CLIENT_SOCKET_TIMEOUT_KEY, 
                   HdfsConstants.READ_TIMEOUT);
     this.socketFactory = NetUtils.getSocketFactory(conf, ClientProtocol.class);
+    this.socketCache = new SocketCache(
+        conf.getInt(DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_CAPACITY_KEY,
+            DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_CAPACITY_DEFAULT),
+        conf.getLong(DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_EXPIRY_MSEC_KEY,
+            DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_EXPIRY_MSEC_DEFAULT));
     // dfs.write.packet.size is an internal config variable
     this.writePacketSize = 
       conf.getInt(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_KEY, 
@@ -257,6 +303,32 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     this.leasechecker = new LeaseChecker(hdfsTimeout);
 
     this.ugi = UserGroupInformation.getCurrentUser();
+
+    this.shortCircuitLocalReads = conf.getBoolean(
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_KEY,
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_DEFAULT);
+    this.shortCircuitSkipChecksum = conf.getBoolean(
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_DEFAULT);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Short circuit read is " + shortCircuitLocalReads);
+    }
+
+    this.hedgedReadThresholdMillis = conf.getLong(
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY,
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_DEFAULT);
+    if (hedgedReadThresholdMillis < 0) {
+      throw new HadoopIllegalArgumentException(
+          DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY
+          + " = " + hedgedReadThresholdMillis + " < 0");
+    }
+    final int hedgedReadThreads = conf.getInt(
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY,
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_DEFAULT);
+    this.hedgedReadsEnabled = hedgedReadThreads > 0;
+    if (hedgedReadsEnabled) {
+      initThreadsNumForHedgedReads(hedgedReadThreads);
+    }
     
     String taskId = conf.get("mapred.task.id", "NONMAPREDUCE");
     this.clientName = "DFSClient_" + taskId + "_" +
@@ -288,6 +360,108 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                        DFSConfigKeys.DFS_CLIENT_MAX_BLOCK_ACQUIRE_FAILURES_DEFAULT);
   }
 
+  /**
+   * Whether the replicas on the given data-node should be read
+   * directly from the local file system.
+   */
+  boolean shouldTryShortCircuitRead(InetSocketAddress targetAddr) {
+    return shortCircuitLocalReads && isLocalAddress(targetAddr);
+  }
+
+  /**
+   * Stop reading local replicas directly,
+   * e.g. because this user is not allowed to.
+   */
+  void disableShortCircuit() {
+    shortCircuitLocalReads = false;
+  }
+
+  /**
+   * Create the hedged read thread pool if no client of the JVM has
+   * created it yet.  A read which finds all the threads busy runs
+   * in the reading thread instead.
+   */
+  private static synchronized void initThreadsNumForHedgedReads(int num) {
+    if (HEDGED_READ_THREAD_POOL != null) {
+      return;
+    }
+    HEDGED_READ_THREAD_POOL = new ThreadPoolExecutor(1, num, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,
+                "hedgedRead-" + threadIndex.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy() {
+          @Override
+          public void rejectedExecution(Runnable runnable,
+              ThreadPoolExecutor e) {
+            LOG.info("Execution rejected, executing in current thread");
+            HEDGED_READ_METRIC.incHedgedReadOpsInCurThread();
+            super.rejectedExecution(runnable, e);
+          }
+        });
+    HEDGED_READ_THREAD_POOL.allowCoreThreadTimeOut(true);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Using hedged reads; pool threads=" + num);
+    }
+  }
+
+  /** @return the thread pool of the hedged reads, or null if disabled */
+  static synchronized ThreadPoolExecutor getHedgedReadsThreadPool() {
+    return HEDGED_READ_THREAD_POOL;
+  }
+
+  /** @return true if positional reads should be hedged */
+  boolean isHedgedReadsEnabled() {
+    return hedgedReadsEnabled;
+  }
+
+  /**
+   * @return the counters of the hedged reads,
+   *         which are shared by all the clients of the JVM
+   */
+  public DFSHedgedReadMetrics getHedgedReadMetrics() {
+    return HEDGED_READ_METRIC;
+  }
+
+  /** Addresses already checked by {@link #isLocalAddress}. */
+  private static final Map<InetAddress, Boolean> localAddrMap
+      = Collections.synchronizedMap(new HashMap<InetAddress, Boolean>());
+
+  /** @return true if the address belongs to this host. */
+  static boolean isLocalAddress(InetSocketAddress targetAddr) {
+    final InetAddress addr = targetAddr.getAddress();
+    if (addr == null) {
+      return false;
+    }
+    Boolean cached = localAddrMap.get(addr);
+    if (cached != null) {
+      return cached;
+    }
+
+    boolean local = addr.isAnyLocalAddress() || addr.isLoopbackAddress();
+    if (!local) {
+      try {
+        local = NetworkInterface.getByInetAddress(addr) != null;
+      } catch (SocketException e) {
+        local = false;
+      }
+    }
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("Address " + targetAddr + (local ? " is" : " is not")
+          + " local");
+    }
+    localAddrMap.put(addr, local);
+    return local;
+  }
+
   /**
    * Return the timeout that clients should use when writing to datanodes.
    * @param numNodes the number of nodes in the pipeline.
@@ -327,6 +501,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       } catch (InterruptedException ie) {
       }
   
+      // close the idle connections to the datanodes
+      socketCache.clear();
+
       // close connections to the namenode
       RPC.stopProxy(rpcNamenode);
     }
@@ -1602,6 +1779,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     public long getVisibleLength() throws IOException {
       return ((DFSInputStream)in).getFileLength();
     }
+
+    /**
+     * Read into the remaining space of a buffer, which may be a direct
+     * buffer, without copying the data through a byte array.
+     * @return the number of bytes read, or -1 at the end of the file
+     */
+    public int read(ByteBuffer buf) throws IOException {
+      return ((DFSInputStream)in).read(buf);
+    }
   }
 
   void reportChecksumFailure(String file, ExtendedBlock blk, DatanodeInfo dn) {
@@ -18,13 +18,26 @@
 package org.apache.hadoop.hdfs;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.fs.ChecksumException;
@@ -42,6 +55,7 @@ import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.ipc.RPC;
 import org.apache.hadoop.ipc.RemoteException;
 import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.util.StringUtils;
 
@@ -352,15 +366,7 @@ public class DFSInputStream extends FSInputStream {
       throw new IOException("Attempted to read past end of file");
     }
 
-    if ( blockReader != null ) {
-      blockReader.close(); 
-      blockReader = null;
-    }
-    
-    if (s != null) {
-      s.close();
-      s = null;
-    }
+    closeBlockReader();
 
     //
     // Connect to best DataNode for desired Block, with potential offset
@@ -380,17 +386,21 @@ public class DFSInputStream extends FSInputStream {
       chosenNode = retval.info;
       InetSocketAddress targetAddr = retval.addr;
 
+      if (dfsClient.shouldTryShortCircuitRead(targetAddr)) {
+        blockReader = getLocalBlockReader(targetBlock, chosenNode,
+            offsetIntoBlock);
+        if (blockReader != null) {
+          return chosenNode;
+        }
+      }
+
       try {
-        s = dfsClient.socketFactory.createSocket();
-        NetUtils.connect(s, targetAddr, dfsClient.socketTimeout);
-        s.setSoTimeout(dfsClient.socketTimeout);
         ExtendedBlock blk = targetBlock.getBlock();
         Token<BlockTokenIdentifier> accessToken = targetBlock.getBlockToken();
         
-        blockReader = BlockReader.newBlockReader(s, src, blk,
-            accessToken, 
-            offsetIntoBlock, blk.getNumBytes() - offsetIntoBlock,
-            buffersize, verifyChecksum, dfsClient.clientName);
+        blockReader = getBlockReader(targetAddr, blk, accessToken,
+            offsetIntoBlock, blk.getNumBytes() - offsetIntoBlock);
+        s = blockReader.dnSock;
         return chosenNode;
       } catch (IOException ex) {
         if (ex instanceof InvalidBlockTokenException && refetchToken > 0) {
@@ -415,17 +425,106 @@ public class DFSInputStream extends FSInputStream {
           // Put chosen node into dead list, continue
           addToDeadNodes(chosenNode);
         }
-        if (s != null) {
-          try {
-            s.close();
-          } catch (IOException iex) {
-          }                        
+      }
+    }
+  }
+
+  /**
+   * Create a block reader on a connection to the datanode.
+   * Idle connections from the socket cache are tried first;
+   * the datanode may have closed them already, in which case they are
+   * dropped and a new connection is made.
+   */
+  private BlockReader getBlockReader(InetSocketAddress dnAddr,
+      ExtendedBlock blk, Token<BlockTokenIdentifier> blockToken,
+      long offsetIntoBlock, long len) throws IOException {
+    for (Socket sock = dfsClient.socketCache.get(dnAddr); sock != null;
+         sock = dfsClient.socketCache.get(dnAddr)) {
+      try {
+        return BlockReader.newBlockReader(sock, src, blk, blockToken,
+            offsetIntoBlock, len, buffersize, verifyChecksum,
+            dfsClient.clientName);
+      } catch (IOException e) {
+        IOUtils.closeSocket(sock);
+        if (e instanceof InvalidBlockTokenException) {
+          throw e;
+        }
+        if (DFSClient.LOG.isDebugEnabled()) {
+          DFSClient.LOG.debug("Failed to reuse the connection to " + dnAddr
+              + ", will try another one : " + e);
         }
+      }
+    }
+
+    final Socket sock = dfsClient.socketFactory.createSocket();
+    try {
+      NetUtils.connect(sock, dnAddr, dfsClient.socketTimeout);
+      sock.setSoTimeout(dfsClient.socketTimeout);
+      return BlockReader.newBlockReader(sock, src, blk, blockToken,
+          offsetIntoBlock, len, buffersize, verifyChecksum,
+          dfsClient.clientName);
+    } catch (IOException e) {
+      IOUtils.closeSocket(sock);
+      throw e;
+    }
+  }
+
+  /**
+   * Close the current block reader.  Its connection goes to the socket
+   * cache if the datanode can serve another op on it, which is the case
+   * when the whole requested range has been read.
+   */
+  private synchronized void closeBlockReader() throws IOException {
+    if (blockReader != null) {
+      if (s != null && blockReader.hasSentStatusCode()) {
+        dfsClient.socketCache.put(s);
         s = null;
       }
+      blockReader.close();
+      blockReader = null;
+    }
+
+    if (s != null) {
+      s.close();
+      s = null;
     }
   }
 
+  /**
+   * Try to read a replica directly from the local file system.
+   * Only finalized replicas can be read locally,
+   * so the block being written is always read from the data-node.
+   *
+   * @return the reader, or null if the replica should be read
+   *         from the data-node instead
+   */
+  private BlockReader getLocalBlockReader(LocatedBlock block,
+      DatanodeInfo chosenNode, long offsetIntoBlock) {
+    if (isBlockBeingWritten(block)) {
+      return null;
+    }
+    try {
+      return BlockReaderLocal.newBlockReader(dfsClient.conf, src,
+          block.getBlock(), block.getBlockToken(), chosenNode,
+          dfsClient.socketTimeout, offsetIntoBlock,
+          verifyChecksum && !dfsClient.shortCircuitSkipChecksum);
+    } catch (AccessControlException e) {
+      DFSClient.LOG.warn("Short circuit access failed, reading all blocks"
+          + " from the data-nodes from now on", e);
+      dfsClient.disableShortCircuit();
+    } catch (IOException e) {
+      DFSClient.LOG.info("Failed to read " + block.getBlock() + " locally"
+          + " from " + chosenNode.getName() + ", reading it from the"
+          + " data-node instead : " + e);
+    }
+    return null;
+  }
+
+  private synchronized boolean isBlockBeingWritten(LocatedBlock block) {
+    return !locatedBlocks.isLastBlockComplete()
+        && block.getStartOffset() >= locatedBlocks.getFileLength();
+  }
+
   /**
    * Close it down!
    */
@@ -436,15 +535,7 @@ public class DFSInputStream extends FSInputStream {
     }
     dfsClient.checkOpen();
     
-    if ( blockReader != null ) {
-      blockReader.close();
-      blockReader = null;
-    }
-    
-    if (s != null) {
-      s.close();
-      s = null;
-    }
+    closeBlockReader();
     super.close();
     closed = true;
   }
@@ -459,7 +550,7 @@ public class DFSInputStream extends FSInputStream {
    * name readBuffer() is chosen to imply similarity to readBuffer() in
    * ChecksuFileSystem
    */ 
-  private synchronized int readBuffer(byte buf[], int off, int len) 
+  private synchronized int readBuffer(ReaderStrategy reader, int len)
                                                   throws IOException {
     IOException ioe;
     
@@ -474,7 +565,7 @@ public class DFSInputStream extends FSInputStream {
     while (true) {
       // retry as many times as seekToNewSource allows.
       try {
-        return blockReader.read(buf, off, len);
+        return reader.doRead(blockReader, len);
       } catch ( ChecksumException ce ) {
         DFSClient.LOG.warn("Found Checksum error for " + currentBlock + " from " +
                  currentNode.getName() + " at " + ce.getPos());          
@@ -507,11 +598,86 @@ public class DFSInputStream extends FSInputStream {
     }
   }
 
+  /**
+   * How a read copies the data of the block reader to the user,
+   * into a byte array or into a ByteBuffer.
+   */
+  private interface ReaderStrategy {
+    /**
+     * Read at most len bytes from the block reader.
+     * @return the number of bytes read, or -1 at the end of the range
+     */
+    int doRead(BlockReader blockReader, int len) throws IOException;
+  }
+
+  /** Reads into a byte array. */
+  private static class ByteArrayStrategy implements ReaderStrategy {
+    private final byte[] buf;
+    private final int off;
+
+    ByteArrayStrategy(byte[] buf, int off) {
+      this.buf = buf;
+      this.off = off;
+    }
+
+    @Override
+    public int doRead(BlockReader blockReader, int len) throws IOException {
+      return blockReader.read(buf, off, len);
+    }
+  }
+
+  /**
+   * Reads into a ByteBuffer, which may be a direct buffer.
+   * The buffer position is left unchanged if the read fails,
+   * so that the read can be retried from another datanode.
+   */
+  private static class ByteBufferStrategy implements ReaderStrategy {
+    private final ByteBuffer buf;
+
+    ByteBufferStrategy(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int doRead(BlockReader blockReader, int len) throws IOException {
+      final int oldPosition = buf.position();
+      final int oldLimit = buf.limit();
+      boolean success = false;
+      buf.limit(oldPosition + len);
+      try {
+        final int n = blockReader.read(buf);
+        success = true;
+        return n;
+      } finally {
+        if (!success) {
+          buf.position(oldPosition);
+        }
+        buf.limit(oldLimit);
+      }
+    }
+  }
+
   /**
    * Read the entire buffer.
    */
   @Override
   public synchronized int read(byte buf[], int off, int len) throws IOException {
+    return readWithStrategy(new ByteArrayStrategy(buf, off), len);
+  }
+
+  /**
+   * Read into the remaining space of a buffer, which may be a direct buffer.
+   * The data of a block read from a datanode is copied into the buffer
+   * straight from the received packets, whose checksums are verified
+   * in bulk.
+   * @return the number of bytes read, or -1 at the end of the file
+   */
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    return readWithStrategy(new ByteBufferStrategy(buf), buf.remaining());
+  }
+
+  private synchronized int readWithStrategy(ReaderStrategy strategy, int len)
+      throws IOException {
     dfsClient.checkOpen();
     if (closed) {
       throw new IOException("Stream closed");
@@ -525,7 +691,7 @@ public class DFSInputStream extends FSInputStream {
             currentNode = blockSeekTo(pos);
           }
           int realLen = (int) Math.min((long) len, (blockEnd - pos + 1L));
-          int result = readBuffer(buf, off, realLen);
+          int result = readBuffer(strategy, realLen);
           
           if (result >= 0) {
             pos += result;
@@ -604,41 +770,64 @@ public class DFSInputStream extends FSInputStream {
       
   private void fetchBlockByteRange(LocatedBlock block, long start,
                                    long end, byte[] buf, int offset) throws IOException {
-    //
-    // Connect to best DataNode for desired Block, with potential offset
-    //
-    Socket dn = null;
-    int refetchToken = 1; // only need to get a new access token once
-    
     while (true) {
       // cached block locations may have been updated by chooseDataNode()
       // or fetchBlockAt(). Always get the latest list of locations at the 
       // start of the loop.
       block = getBlockAt(block.getStartOffset(), false);
       DNAddrPair retval = chooseDataNode(block);
-      DatanodeInfo chosenNode = retval.info;
-      InetSocketAddress targetAddr = retval.addr;
+      if (fetchBlockByteRange(retval, block, start, end, buf, offset)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Read a byte range of a block from the given datanode.
+   *
+   * @return true if the range has been read; false if the read failed
+   *         and the datanode has been added to the dead nodes
+   */
+  private boolean fetchBlockByteRange(DNAddrPair datanode, LocatedBlock block,
+      long start, long end, byte[] buf, int offset) throws IOException {
+    //
+    // Connect to the DataNode for desired Block, with potential offset
+    //
+    final DatanodeInfo chosenNode = datanode.info;
+    final InetSocketAddress targetAddr = datanode.addr;
+    int refetchToken = 1; // only need to get a new access token once
+    boolean tryLocal = true; // until a local read fails
+
+    while (true) {
+      Socket dn = null;
       BlockReader reader = null;
-          
+      boolean local = false;
+
+      if (tryLocal && dfsClient.shouldTryShortCircuitRead(targetAddr)) {
+        reader = getLocalBlockReader(block, chosenNode, start);
+        local = reader != null;
+      }
+
       try {
-        dn = dfsClient.socketFactory.createSocket();
-        NetUtils.connect(dn, targetAddr, dfsClient.socketTimeout);
-        dn.setSoTimeout(dfsClient.socketTimeout);
-        Token<BlockTokenIdentifier> blockToken = block.getBlockToken();
-            
         int len = (int) (end - start + 1);
-            
-        reader = BlockReader.newBlockReader(dn, src, 
-                                            block.getBlock(),
-                                            blockToken,
-                                            start, len, buffersize, 
-                                            verifyChecksum, dfsClient.clientName);
+
+        if (reader == null) {
+          Token<BlockTokenIdentifier> blockToken = block.getBlockToken();
+          reader = getBlockReader(targetAddr, block.getBlock(), blockToken,
+                                  start, len);
+          dn = reader.dnSock;
+        }
         int nread = reader.readAll(buf, offset, len);
         if (nread != len) {
           throw new IOException("truncated return from reader.read(): " +
                                 "excpected " + len + ", got " + nread);
         }
-        return;
+        if (dn != null && reader.hasSentStatusCode()) {
+          // keep the connection for the next read from this datanode
+          dfsClient.socketCache.put(dn);
+          dn = null;
+        }
+        return true;
       } catch (ChecksumException e) {
         DFSClient.LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
                  src + " at " + block.getBlock() + ":" + 
@@ -651,6 +840,15 @@ public class DFSInputStream extends FSInputStream {
               + " : " + e);
           refetchToken--;
           fetchBlockAt(block.getStartOffset());
+          block = getBlockAt(block.getStartOffset(), false);
+          continue;
+        } else if (local) {
+          // the replica files may have been moved or deleted under us,
+          // which says nothing about the datanode itself
+          DFSClient.LOG.info("Failed to read " + block.getBlock() + " locally"
+              + " from " + chosenNode.getName() + ", reading it from the"
+              + " data-node instead : " + e);
+          tryLocal = false;
           continue;
         } else {
           DFSClient.LOG.warn("Failed to connect to " + targetAddr + " for file " + src
@@ -663,9 +861,119 @@ public class DFSInputStream extends FSInputStream {
       }
       // Put chosen node into dead list, continue
       addToDeadNodes(chosenNode);
+      return false;
     }
   }
 
+  /**
+   * Like {@link #fetchBlockByteRange(LocatedBlock, long, long, byte[], int)},
+   * but if the datanode has not returned the data within the hedged read
+   * threshold, read the same range from another replica in parallel
+   * and use the data which arrives first.
+   * Every read goes to a private buffer, which is copied to the user
+   * buffer only by the winner.
+   */
+  private void hedgedFetchBlockByteRange(LocatedBlock block, long start,
+      long end, byte[] buf, int offset) throws IOException {
+    final int len = (int) (end - start + 1);
+    final CompletionService<byte[]> hedgedService =
+      new ExecutorCompletionService<byte[]>(
+          DFSClient.getHedgedReadsThreadPool());
+    // the reads in progress and the datanodes they read from
+    final Map<Future<byte[]>, DatanodeInfo> running =
+      new HashMap<Future<byte[]>, DatanodeInfo>();
+    final Set<Future<byte[]>> hedgedReads = new HashSet<Future<byte[]>>();
+    try {
+      while (true) {
+        block = getBlockAt(block.getStartOffset(), false);
+        final DNAddrPair chosen;
+        if (running.isEmpty()) {
+          chosen = chooseDataNode(block);
+        } else {
+          chosen = chooseHedgedDataNode(block, running.values());
+        }
+        if (chosen != null) {
+          final Future<byte[]> read = hedgedService.submit(
+              newFetchBlockByteRangeCall(chosen, block, start, end, len));
+          if (!running.isEmpty()) {
+            hedgedReads.add(read);
+            DFSClient.HEDGED_READ_METRIC.incHedgedReadOps();
+          }
+          running.put(read, chosen.info);
+        }
+
+        // only wait for the threshold if another replica can be tried
+        final Future<byte[]> done = chosen == null? hedgedService.take()
+            : hedgedService.poll(dfsClient.hedgedReadThresholdMillis,
+                                 TimeUnit.MILLISECONDS);
+        if (done == null) {
+          if (DFSClient.LOG.isDebugEnabled()) {
+            DFSClient.LOG.debug("Waited " + dfsClient.hedgedReadThresholdMillis
+                + "ms to read " + block.getBlock() + " from "
+                + chosen.info.getName() + "; trying another replica");
+          }
+          continue;
+        }
+        final DatanodeInfo node = running.remove(done);
+        try {
+          final byte[] data = done.get();
+          System.arraycopy(data, 0, buf, offset, len);
+          if (hedgedReads.contains(done)) {
+            DFSClient.HEDGED_READ_METRIC.incHedgedReadOpsWin();
+          }
+          return;
+        } catch (ExecutionException e) {
+          DFSClient.LOG.info("Failed to read " + block.getBlock() + " from "
+              + node.getName() + " : " + e.getCause());
+          // make sure that the next attempt goes to another datanode
+          addToDeadNodes(node);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading "
+          + block.getBlock() + " of file " + src);
+    } finally {
+      // the slower reads complete in the background, their data is dropped
+      for (Future<byte[]> read : running.keySet()) {
+        read.cancel(false);
+      }
+    }
+  }
+
+  private Callable<byte[]> newFetchBlockByteRangeCall(final DNAddrPair datanode,
+      final LocatedBlock block, final long start, final long end,
+      final int len) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        final byte[] data = new byte[len];
+        if (!fetchBlockByteRange(datanode, block, start, end, data, 0)) {
+          throw new IOException("Failed to read " + block.getBlock()
+              + " from " + datanode.info.getName());
+        }
+        return data;
+      }
+    };
+  }
+
+  /**
+   * @return a live datanode of the block which is not one of the busy
+   *         nodes, or null if there is no such node
+   */
+  private DNAddrPair chooseHedgedDataNode(LocatedBlock block,
+      Collection<DatanodeInfo> busyNodes) {
+    final DatanodeInfo[] nodes = block.getLocations();
+    if (nodes != null) {
+      for (DatanodeInfo node : nodes) {
+        if (!deadNodes.containsKey(node) && !busyNodes.contains(node)) {
+          return new DNAddrPair(node, NetUtils.createSocketAddr(node.getName()));
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Read bytes starting from the specified position.
    * 
@@ -701,8 +1009,13 @@ public class DFSInputStream extends FSInputStream {
     for (LocatedBlock blk : blockRange) {
       long targetStart = position - blk.getStartOffset();
       long bytesToRead = Math.min(remaining, blk.getBlockSize() - targetStart);
-      fetchBlockByteRange(blk, targetStart, 
-                          targetStart + bytesToRead - 1, buffer, offset);
+      if (dfsClient.isHedgedReadsEnabled()) {
+        hedgedFetchBlockByteRange(blk, targetStart,
+                                  targetStart + bytesToRead - 1, buffer, offset);
+      } else {
+        fetchBlockByteRange(blk, targetStart, 
+                            targetStart + bytesToRead - 1, buffer, offset);
+      }
       remaining -= bytesToRead;
       position += bytesToRead;
       offset += bytesToRead;
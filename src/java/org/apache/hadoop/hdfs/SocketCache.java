@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * A cache of idle connections to datanodes, so that a client can send
+ * the next op to a datanode without a new TCP connection.
+ *
+ * The cache holds at most capacity sockets; the socket which has been
+ * idle for the longest time is closed to make room for a new one.
+ * Sockets idle for longer than the expiry time are closed,
+ * since the datanode closes its side after a keep-alive timeout.
+ */
+class SocketCache {
+  static final Log LOG = LogFactory.getLog(SocketCache.class);
+
+  /** An idle socket and the time it was returned to the cache. */
+  private static class Entry {
+    final Socket sock;
+    final long time;
+
+    Entry(Socket sock, long time) {
+      this.sock = sock;
+      this.time = time;
+    }
+  }
+
+  private final int capacity;
+  private final long expiryMs;
+  /** The idle sockets of each datanode, the most recently used last. */
+  private final Map<SocketAddress, LinkedList<Entry>> sockets
+      = new HashMap<SocketAddress, LinkedList<Entry>>();
+  /** All the idle sockets, the least recently used first. */
+  private final LinkedList<Entry> lru = new LinkedList<Entry>();
+
+  /**
+   * @param capacity the maximum number of idle sockets; 0 disables caching
+   * @param expiryMs how long a socket may stay idle in the cache
+   */
+  SocketCache(int capacity, long expiryMs) {
+    this.capacity = capacity;
+    this.expiryMs = expiryMs;
+  }
+
+  /**
+   * Take an idle socket connected to the given address out of the cache.
+   * @return the socket, or null if there is none
+   */
+  synchronized Socket get(SocketAddress remote) {
+    evictExpired(System.currentTimeMillis());
+    final LinkedList<Entry> list = sockets.get(remote);
+    while (list != null && !list.isEmpty()) {
+      final Entry e = list.removeLast();
+      lru.remove(e);
+      if (list.isEmpty()) {
+        sockets.remove(remote);
+      }
+      if (!e.sock.isClosed() && e.sock.isConnected()) {
+        return e.sock;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Give a socket back to the cache.  The caller must not use the
+   * socket any more; it is closed if the cache does not keep it.
+   */
+  synchronized void put(Socket sock) {
+    if (capacity <= 0 || sock.isClosed() || !sock.isConnected()
+        || sock.getRemoteSocketAddress() == null) {
+      IOUtils.closeSocket(sock);
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    evictExpired(now);
+    if (lru.size() >= capacity) {
+      evict(lru.getFirst());
+    }
+
+    final Entry e = new Entry(sock, now);
+    final SocketAddress remote = sock.getRemoteSocketAddress();
+    LinkedList<Entry> list = sockets.get(remote);
+    if (list == null) {
+      list = new LinkedList<Entry>();
+      sockets.put(remote, list);
+    }
+    list.addLast(e);
+    lru.addLast(e);
+  }
+
+  /** @return the number of idle sockets in the cache */
+  synchronized int size() {
+    return lru.size();
+  }
+
+  /** Close all the idle sockets. */
+  synchronized void clear() {
+    for (Entry e : lru) {
+      IOUtils.closeSocket(e.sock);
+    }
+    lru.clear();
+    sockets.clear();
+  }
+
+  private void evictExpired(long now) {
+    for (Iterator<Entry> i = lru.iterator(); i.hasNext(); ) {
+      final Entry e = i.next();
+      if (now - e.time < expiryMs) {
+        break;
+      }
+      i.remove();
+      removeFromSockets(e);
+      IOUtils.closeSocket(e.sock);
+    }
+  }
+
+  private void evict(Entry e) {
+    lru.remove(e);
+    removeFromSockets(e);
+    IOUtils.closeSocket(e.sock);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Closed the idle socket " + e.sock + " for a new one");
+    }
+  }
+
+  private void removeFromSockets(Entry e) {
+    final SocketAddress remote = e.sock.getRemoteSocketAddress();
+    final LinkedList<Entry> list = sockets.get(remote);
+    if (list != null) {
+      list.remove(e);
+      if (list.isEmpty()) {
+        sockets.remove(remote);
+      }
+    }
+  }
+}
@@ -54,8 +54,11 @@ public interface DataTransferProtocol {
    * Version 23:
    *    Changed the protocol methods to use ExtendedBlock instead
    *    of Block.
+   * Version 24:
+   *    The client sends a status code after reading the entire range
+   *    of a block, and a datanode serves several ops on one connection.
    */
-  public static final int DATA_TRANSFER_VERSION = 23;
+  public static final int DATA_TRANSFER_VERSION = 24;
 
   /** Operation */
   public enum Op {
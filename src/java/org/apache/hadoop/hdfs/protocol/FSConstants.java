@@ -88,7 +88,9 @@ public interface FSConstants {
   // Version is reflected in the data storage file.
   // Versions are negative.
   // Decrement LAYOUT_VERSION to define a new version.
-  public static final int LAYOUT_VERSION = -31;
-  // Current version: 
+  public static final int LAYOUT_VERSION = -33;
+  // Current version:
+  // -33: Edit log records with numeric fields in binary
+  // -32: Image stored in separately compressed sections
   // -31: Adding support for block pools and multiple namenodes
 }
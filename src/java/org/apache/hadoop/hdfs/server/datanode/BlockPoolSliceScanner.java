@@ -18,26 +18,26 @@
 
 package org.apache.hadoop.hdfs.server.datanode;
 
-import java.io.BufferedReader;
-import java.io.Closeable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,256 +45,150 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
-import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.common.HdfsConstants.ReplicaState;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.StringUtils;
 
 /**
- * Performs two types of scanning:
- * <li> Gets block files from the data directories and reconciles the
- * difference between the blocks on the disk and in memory in
- * {@link FSDataset}</li>
- * <li> Scans the data directories for block files under a block pool
- * and verifies that the files are not corrupt</li>
- * This keeps track of blocks and their last verification times.
- * Currently it does not modify the metadata for block.
+ * Verifies the finalized replicas of a block pool on every volume, so that
+ * corrupt replicas are reported to the namenode before a client reads them.
+ *
+ * Every volume is scanned by its own thread, in passes of one scan period.
+ * A pass verifies the replicas of the volume in the order of their block
+ * ids, so its progress is a single cursor, the last block id verified.
+ * The cursor is saved in a small file in the block pool directory of the
+ * volume and survives datanode restarts.  Replicas written after a pass
+ * started are remembered, up to a limit, and verified ahead of the pass.
+ *
+ * The scan rate of a volume adapts to its load: the scanner reads at
+ * the maximum rate while the volume has no foreground reads or writes,
+ * and backs off to the rate needed to finish the pass in time while it has.
  */
-
 class BlockPoolSliceScanner {
-  
+
   public static final Log LOG = LogFactory.getLog(BlockPoolSliceScanner.class);
-  
+
   private static final int MAX_SCAN_RATE = 8 * 1024 * 1024; // 8MB per sec
   private static final int MIN_SCAN_RATE = 1 * 1024 * 1024; // 1MB per sec
-  
+
   static final long DEFAULT_SCAN_PERIOD_HOURS = 21*24L; // three weeks
-  private final String blockPoolId;
-  
+
+  /** The file in the block pool directory of a volume with the scan state. */
+  static final String SCAN_STATE_FILE = "scanner.cursor";
+  private static final int SCAN_STATE_VERSION = 1;
+  /** How often the scan state of a volume is saved while scanning. */
+  private static final long SAVE_STATE_INTERVAL = 60 * 1000L;
+  /** The maximum number of new replicas per volume waiting for a scan. */
+  static final int MAX_NEW_BLOCKS = 1024;
+  /** The number of the latest verifications per volume in the report. */
+  static final int NUM_RECENT_SCANS = 64;
+  /** The interval over which the scan rate is measured. */
+  private static final long SCAN_RATE_INTERVAL = 60 * 1000L;
+
   private static final String dateFormatString = "yyyy-MM-dd HH:mm:ss,SSS";
-  
-  static final String verificationLogFile = "dncp_block_verification.log";
-  static final int verficationLogLimit = 5; // * numBlocks.
-
-  private long scanPeriod = DEFAULT_SCAN_PERIOD_HOURS * 3600 * 1000;
-  private DataNode datanode;
-  private FSDataset dataset;
-  
-  // sorted set
-  private TreeSet<BlockScanInfo> blockInfoSet;
-  private HashMap<Block, BlockScanInfo> blockMap;
-  
-  // processedBlocks keeps track of which blocks are scanned
-  // since the last run.
-  private HashMap<Long, Integer> processedBlocks;
-  
-  private long totalScans = 0;
-  private long totalScanErrors = 0;
-  private long totalTransientErrors = 0;
-  private long totalBlocksScannedInLastRun = 0; // Used for test only
-  
-  private long currentPeriodStart = System.currentTimeMillis();
-  private long bytesLeft = 0; // Bytes to scan in this period
-  private long totalBytesToScan = 0;
-  
-  private LogFileHandler verificationLog;
-  
-  private Random random = new Random();
-  
-  private DataTransferThrottler throttler = null;
-  
-  private static enum ScanType {
-    VERIFICATION_SCAN,     // scanned as part of periodic verfication
-    NONE,
-  }
-  
-  static class BlockScanInfo implements Comparable<BlockScanInfo> {
-    Block block;
-    long lastScanTime = 0;
-    ScanType lastScanType = ScanType.NONE; 
-    boolean lastScanOk = true;
-    
-    BlockScanInfo(Block block) {
-      this.block = block;
-    }
-    
-    public int hashCode() {
-      return block.hashCode();
-    }
-    
-    public boolean equals(Object other) {
-      return other instanceof BlockScanInfo &&
-             compareTo((BlockScanInfo)other) == 0;
-    }
-    
-    long getLastScanTime() {
-      return (lastScanType == ScanType.NONE) ? 0 : lastScanTime;
-    }
-    
-    public int compareTo(BlockScanInfo other) {
-      long t1 = lastScanTime;
-      long t2 = other.lastScanTime;
-      return ( t1 < t2 ) ? -1 : 
-                          (( t1 > t2 ) ? 1 : block.compareTo(other.block)); 
+
+  private final String blockPoolId;
+  private final long scanPeriod;
+  private final DataNode datanode;
+  private final FSDataset dataset;
+
+  private volatile boolean running = true;
+  /** The scanner of each volume, null until {@link #init()}. */
+  private Map<FSVolume, VolumeScanner> volumeScanners;
+
+  /** A verification of a replica. */
+  private static class ScanRecord {
+    final long blockId;
+    final long genStamp;
+    final long time;
+    final boolean ok;
+
+    ScanRecord(long blockId, long genStamp, long time, boolean ok) {
+      this.blockId = blockId;
+      this.genStamp = genStamp;
+      this.time = time;
+      this.ok = ok;
     }
   }
-  
+
   BlockPoolSliceScanner(DataNode datanode, FSDataset dataset, Configuration conf,
       String bpid) {
     this.datanode = datanode;
     this.dataset = dataset;
     this.blockPoolId  = bpid;
-    scanPeriod = conf.getInt(DFSConfigKeys.DFS_DATANODE_SCAN_PERIOD_HOURS_KEY, 
+    long hours = conf.getInt(DFSConfigKeys.DFS_DATANODE_SCAN_PERIOD_HOURS_KEY,
                              DFSConfigKeys.DFS_DATANODE_SCAN_PERIOD_HOURS_DEFAULT);
-    if ( scanPeriod <= 0 ) {
-      scanPeriod = DEFAULT_SCAN_PERIOD_HOURS;
+    if ( hours <= 0 ) {
+      hours = DEFAULT_SCAN_PERIOD_HOURS;
     }
-    scanPeriod *= 3600 * 1000;
+    scanPeriod = hours * 3600 * 1000;
     LOG.info("Periodic Block Verification scan initialized with interval " + scanPeriod + ".");
   }
-  
+
   String getBlockPoolId() {
     return blockPoolId;
   }
-  
+
   synchronized boolean isInitialized() {
-    return throttler != null;
-  }
-  
-  private void updateBytesToScan(long len, long lastScanTime) {
-    // len could be negative when a block is deleted.
-    totalBytesToScan += len;
-    if ( lastScanTime < currentPeriodStart ) {
-      bytesLeft += len;
-    }
-    // Should we change throttler bandwidth every time bytesLeft changes?
-    // not really required.
+    return volumeScanners != null;
   }
-  
-  private synchronized void addBlockInfo(BlockScanInfo info) {
-    boolean added = blockInfoSet.add(info);
-    blockMap.put(info.block, info);
-    
-    if (added) {
-      updateBytesToScan(info.block.getNumBytes(), info.lastScanTime);
-    }
-  }
-  
-  private synchronized void delBlockInfo(BlockScanInfo info) {
-    boolean exists = blockInfoSet.remove(info);
-    blockMap.remove(info.block);
 
-    if (exists) {
-      updateBytesToScan(-info.block.getNumBytes(), info.lastScanTime);
-    }
-  }
-  
-  /** Update blockMap by the given LogEntry */
-  private synchronized void updateBlockInfo(LogEntry e) {
-    BlockScanInfo info = blockMap.get(new Block(e.blockId, 0, e.genStamp));
-    
-    if(info != null && e.verificationTime > 0 && 
-        info.lastScanTime < e.verificationTime) {
-      delBlockInfo(info);
-      info.lastScanTime = e.verificationTime;
-      info.lastScanType = ScanType.VERIFICATION_SCAN;
-      addBlockInfo(info);
+  void init() throws IOException {
+    synchronized (this) {
+      volumeScanners = new HashMap<FSVolume, VolumeScanner>();
     }
+    getVolumeScanners();
   }
 
-  void init() throws IOException {
-    // get the list of blocks and arrange them in random order
-    List<Block> arr = dataset.getFinalizedBlocks(blockPoolId);
-    Collections.shuffle(arr);
-    
-    blockInfoSet = new TreeSet<BlockScanInfo>();
-    blockMap = new HashMap<Block, BlockScanInfo>();
-    
-    long scanTime = -1;
-    for (Block block : arr) {
-      BlockScanInfo info = new BlockScanInfo( block );
-      info.lastScanTime = scanTime--; 
-      //still keep 'info.lastScanType' to NONE.
-      addBlockInfo(info);
-    }
-
-    /* Pick the first directory that has any existing scanner log.
-     * otherwise, pick the first directory.
-     */
-    File dir = null;
-    List<FSVolume> volumes = dataset.volumes.getVolumes();
-    for (FSDataset.FSVolume vol : dataset.volumes.getVolumes()) {
-      File bpDir = vol.getBlockPoolSlice(blockPoolId).getDirectory();
-      if (LogFileHandler.isFilePresent(bpDir, verificationLogFile)) {
-        dir = bpDir;
-        break;
+  /**
+   * @return the scanners of the current volumes, adding the scanners of
+   *         new volumes and dropping those of failed volumes
+   */
+  private synchronized List<VolumeScanner> getVolumeScanners() {
+    final List<FSVolume> volumes = dataset.volumes.getVolumes();
+    volumeScanners.keySet().retainAll(volumes);
+    for (FSVolume vol : volumes) {
+      if (!volumeScanners.containsKey(vol)) {
+        try {
+          volumeScanners.put(vol, new VolumeScanner(vol));
+        } catch (IOException e) {
+          LOG.warn("Cannot scan block pool " + blockPoolId + " on " + vol, e);
+        }
       }
     }
-    if (dir == null) {
-      dir = volumes.get(0).getBlockPoolSlice(blockPoolId).getDirectory();
-    }
-    
-    try {
-      // max lines will be updated later during initialization.
-      verificationLog = new LogFileHandler(dir, verificationLogFile, 100);
-    } catch (IOException e) {
-      LOG.warn("Could not open verfication log. " +
-               "Verification times are not stored.");
-    }
-    
-    synchronized (this) {
-      throttler = new DataTransferThrottler(200, MAX_SCAN_RATE);
-    }
+    return new ArrayList<VolumeScanner>(volumeScanners.values());
   }
 
-  private synchronized long getNewBlockScanTime() {
-    /* If there are a lot of blocks, this returns a random time with in 
-     * the scan period. Otherwise something sooner.
-     */
-    long period = Math.min(scanPeriod, 
-                           Math.max(blockMap.size(),1) * 600 * 1000L);
-    return System.currentTimeMillis() - scanPeriod + 
-           random.nextInt((int)period);    
+  private synchronized VolumeScanner getVolumeScanner(FSVolume vol) {
+    return volumeScanners == null ? null : volumeScanners.get(vol);
   }
 
-  /** Adds block to list of blocks */
-  synchronized void addBlock(ExtendedBlock block) {
+  /** Adds a new block to be verified ahead of the current pass */
+  void addBlock(ExtendedBlock block) {
     if (!isInitialized()) {
       return;
     }
-    
-    BlockScanInfo info = blockMap.get(block.getLocalBlock());
-    if ( info != null ) {
-      LOG.warn("Adding an already existing block " + block);
-      delBlockInfo(info);
-    }
-    
-    info = new BlockScanInfo(block.getLocalBlock());    
-    info.lastScanTime = getNewBlockScanTime();
-    
-    addBlockInfo(info);
-    adjustThrottler();
-  }
-  
-  /** Deletes the block from internal structures */
-  synchronized void deleteBlock(Block block) {
-    if (!isInitialized()) {
+    final ReplicaInfo replica = dataset.fetchReplicaInfo(blockPoolId,
+        block.getBlockId());
+    if (replica == null || replica.getState() != ReplicaState.FINALIZED) {
       return;
     }
-    BlockScanInfo info = blockMap.get(block);
-    if ( info != null ) {
-      delBlockInfo(info);
+    final VolumeScanner scanner = getVolumeScanner(replica.getVolume());
+    if (scanner != null) {
+      scanner.addNewBlock(block.getBlockId());
     }
   }
 
-  /** @return the last scan time */
-  synchronized long getLastScanTime(Block block) {
+  /** Deletes the block from internal structures */
+  void deleteBlock(Block block) {
     if (!isInitialized()) {
-      return 0;
+      return;
+    }
+    for (VolumeScanner scanner : getVolumeScanners()) {
+      scanner.deleteNewBlock(block.getBlockId());
     }
-    BlockScanInfo info = blockMap.get(block);
-    return info == null? 0: info.lastScanTime;
   }
 
   /** Deletes blocks from internal structures */
@@ -303,39 +197,111 @@ class BlockPoolSliceScanner {
       deleteBlock(b);
     }
   }
-  
-  private synchronized void updateScanStatus(Block block, 
-                                             ScanType type,
-                                             boolean scanOk) {
+
+  /**
+   * Used for tests only.
+   * @return the number of blocks verified in the current scan period
+   */
+  long getBlocksScannedInLastRun() {
+    long n = 0;
+    for (VolumeScanner scanner : getVolumeScanners()) {
+      n += scanner.getBlocksVerifiedInPass();
+    }
+    return n;
+  }
+
+  /** @return the bytes per second verified recently on the volume */
+  long getScanRate(String volume) {
+    long rate = 0;
+    for (VolumeScanner scanner : getVolumeScanners()) {
+      if (scanner.volume.toString().equals(volume)) {
+        rate += scanner.getScanRate();
+      }
+    }
+    return rate;
+  }
+
+  /** @return the bytes left to verify in the current pass of the volume */
+  long getScanBacklog(String volume) {
+    long bytes = 0;
+    for (VolumeScanner scanner : getVolumeScanners()) {
+      if (scanner.volume.toString().equals(volume)) {
+        bytes += scanner.getBytesLeft();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Stop the scan after the replicas being verified, and save the scan
+   * state of every volume.
+   */
+  void shutdown() {
+    running = false;
     if (!isInitialized()) {
       return;
     }
-    BlockScanInfo info = blockMap.get(block);
-    
-    if ( info != null ) {
-      delBlockInfo(info);
-    } else {
-      // It might already be removed. Thats ok, it will be caught next time.
-      info = new BlockScanInfo(block);
-    }
-    
-    long now = System.currentTimeMillis();
-    info.lastScanType = type;
-    info.lastScanTime = now;
-    info.lastScanOk = scanOk;
-    addBlockInfo(info);
-        
-    // Don't update meta data if the verification failed.
-    if (!scanOk) {
-      return;
+    for (VolumeScanner scanner : getVolumeScanners()) {
+      scanner.saveState();
     }
-    
-    LogFileHandler log = verificationLog;
-    if (log != null) {
-      log.appendLine(now, block.getGenerationStamp(), block.getBlockId());
+  }
+
+  private boolean isRunning() {
+    return running && datanode.shouldRun
+        && !Thread.currentThread().isInterrupted()
+        && datanode.isBPServiceAlive(blockPoolId);
+  }
+
+  /**
+   * Verify the replicas which are due on all the volumes in parallel,
+   * and return when none is due.
+   */
+  void scanBlockPoolSlice() {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Starting to scan blockpool: " + blockPoolId);
+    }
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (final VolumeScanner scanner : getVolumeScanners()) {
+      threads.add(new Thread("Block scanner of " + blockPoolId + " on "
+          + scanner.volume) {
+        @Override
+        public void run() {
+          try {
+            scanner.scan();
+          } catch (RuntimeException e) {
+            LOG.warn("RuntimeException during BlockPoolScanner.scan() : " +
+                StringUtils.stringifyException(e));
+          }
+        }
+      });
+    }
+    for (Thread t : threads) {
+      t.setDaemon(true);
+      t.start();
+    }
+    try {
+      for (Thread t : threads) {
+        t.join();
+      }
+    } catch (InterruptedException e) {
+      running = false;
+      for (Thread t : threads) {
+        t.interrupt();
+      }
+      // wait for the volume scanners to save their state
+      for (Thread t : threads) {
+        try {
+          t.join();
+        } catch (InterruptedException ignored) {
+        }
+      }
+      Thread.currentThread().interrupt();
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Done scanning block pool: " + blockPoolId);
     }
   }
-  
+
   private void handleScanFailure(ExtendedBlock block) {
     LOG.info("Reporting bad block " + block);
     try {
@@ -345,594 +311,423 @@ class BlockPoolSliceScanner {
       LOG.warn("Cannot report bad block=" + block.getBlockId());
     }
   }
-  
-  static private class LogEntry {
-    long blockId = -1;
-    long verificationTime = -1;
-    long genStamp = GenerationStamp.GRANDFATHER_GENERATION_STAMP;
-    
+
+  /** The scan of the block pool on one volume. */
+  private class VolumeScanner {
+    private final FSVolume volume;
+    private final File stateFile;
+    private final DataTransferThrottler throttler;
+
+    /** The time the current pass started. */
+    private long passStart;
+    /** The last block id verified by the current pass. */
+    private long cursor = Long.MIN_VALUE;
+    private boolean passDone = false;
+    /** The replicas verified since the pass started, new ones included. */
+    private long blocksVerifiedInPass = 0;
+    /** New replicas to be verified ahead of the pass. */
+    private final LinkedHashSet<Long> newBlocks = new LinkedHashSet<Long>();
+    /** The latest verifications, the oldest first. */
+    private final LinkedList<ScanRecord> recentScans =
+      new LinkedList<ScanRecord>();
+
     /**
-     * The format consists of single line with multiple entries. each 
-     * entry is in the form : name="value".
-     * This simple text and easily extendable and easily parseable with a
-     * regex.
+     * The sorted ids of the replicas after the cursor when the pass
+     * started or resumed, null until then.  Only the scan thread uses it.
      */
-    private static Pattern entryPattern = 
-      Pattern.compile("\\G\\s*([^=\\p{Space}]+)=\"(.*?)\"\\s*");
-    
-    static LogEntry parseEntry(String line) {
-      LogEntry entry = new LogEntry();
-      
-      Matcher matcher = entryPattern.matcher(line);
-      while (matcher.find()) {
-        String name = matcher.group(1);
-        String value = matcher.group(2);
-        
-        try {
-          if (name.equals("id")) {
-            entry.blockId = Long.valueOf(value);
-          } else if (name.equals("time")) {
-            entry.verificationTime = Long.valueOf(value);
-          } else if (name.equals("genstamp")) {
-            entry.genStamp = Long.valueOf(value);
-          }
-        } catch(NumberFormatException nfe) {
-          LOG.warn("Cannot parse line: " + line, nfe);
-          return null;
-        }
-      }
-      
-      return entry;
-    }
-  }
-  
-  private synchronized void adjustThrottler() {
-    long timeLeft = currentPeriodStart+scanPeriod - System.currentTimeMillis();
-    long bw = Math.max(bytesLeft*1000/timeLeft, MIN_SCAN_RATE);
-    throttler.setBandwidth(Math.min(bw, MAX_SCAN_RATE));
-  }
-  
-  private void verifyBlock(ExtendedBlock block) {
-    BlockSender blockSender = null;
+    private long[] passBlocks = null;
+    private int passIndex = 0;
+    /** The bytes of the replicas of the pass which are not verified yet. */
+    private long bytesLeft = 0;
+    private long lastSaveTime = 0;
 
-    /* In case of failure, attempt to read second time to reduce
-     * transient errors. How do we flush block data from kernel 
-     * buffers before the second read? 
-     */
-    for (int i=0; i<2; i++) {
-      boolean second = (i > 0);
-      
-      try {
-        adjustThrottler();
-        
-        blockSender = new BlockSender(block, 0, -1, false, false, true,
-            datanode);
-
-        DataOutputStream out = 
-                new DataOutputStream(new IOUtils.NullOutputStream());
-        
-        blockSender.sendBlock(out, null, throttler);
-
-        LOG.info((second ? "Second " : "") +
-                 "Verification succeeded for " + block);
-        
-        if ( second ) {
-          totalTransientErrors++;
-        }
-        
-        updateScanStatus(block.getLocalBlock(), ScanType.VERIFICATION_SCAN, true);
+    private long totalScans = 0;
+    private long totalScanErrors = 0;
+    private long totalTransientErrors = 0;
+    private long rateStart = System.currentTimeMillis();
+    private long rateBytes = 0;
+    private long scanRate = 0;
 
-        return;
-      } catch (IOException e) {
-        updateScanStatus(block.getLocalBlock(), ScanType.VERIFICATION_SCAN, false);
-
-        // If the block does not exists anymore, then its not an error
-        if ( dataset.getFile(block.getBlockPoolId(), block.getLocalBlock()) == null ) {
-          LOG.info("Verification failed for " + block + ". Its ok since " +
-          "it not in datanode dataset anymore.");
-          deleteBlock(block.getLocalBlock());
-          return;
+    VolumeScanner(FSVolume volume) throws IOException {
+      this.volume = volume;
+      this.stateFile = new File(
+          volume.getBlockPoolSlice(blockPoolId).getDirectory(),
+          SCAN_STATE_FILE);
+      this.passStart = System.currentTimeMillis();
+      this.throttler = new DataTransferThrottler(200, MAX_SCAN_RATE) {
+        @Override
+        public void throttle(long numOfBytes) {
+          // adapt to the foreground load of the volume before every packet
+          setBandwidth(getScanBandwidth());
+          super.throttle(numOfBytes);
         }
+      };
+      loadState();
+    }
 
-        LOG.warn((second ? "Second " : "First ") + 
-                 "Verification failed for " + block + ". Exception : " +
-                 StringUtils.stringifyException(e));
-        
-        if (second) {
-          totalScanErrors++;
-          datanode.getMetrics().blockVerificationFailures.inc(); 
-          handleScanFailure(block);
-          return;
-        } 
-      } finally {
-        IOUtils.closeStream(blockSender);
-        datanode.getMetrics().blocksVerified.inc();
-        totalScans++;
+    /**
+     * @return the maximum scan rate while the volume has no foreground
+     *         reads or writes, otherwise the rate which finishes the pass
+     *         in time
+     */
+    private synchronized long getScanBandwidth() {
+      if (volume.getForegroundIo() == 0) {
+        return MAX_SCAN_RATE;
       }
+      final long timeLeft = Math.max(
+          passStart + scanPeriod - System.currentTimeMillis(), 1000L);
+      final long needed = bytesLeft * 1000 / timeLeft;
+      return Math.min(Math.max(needed, MIN_SCAN_RATE), MAX_SCAN_RATE);
     }
-  }
-  
-  private synchronized long getEarliestScanTime() {
-    if ( blockInfoSet.size() > 0 ) {
-      return blockInfoSet.first().lastScanTime;
-    }
-    return Long.MAX_VALUE; 
-  }
-  
-  private synchronized boolean isFirstBlockProcessed() {
-    if (blockInfoSet.size() > 0 ) {
-      long blockId = blockInfoSet.first().block.getBlockId();
-      if ((processedBlocks.get(blockId) != null)
-          && (processedBlocks.get(blockId) == 1)) {
-        return true;
+
+    synchronized void addNewBlock(long blockId) {
+      if (newBlocks.size() < MAX_NEW_BLOCKS) {
+        newBlocks.add(blockId);
       }
     }
-    return false;
-  }
-  
-  // Picks one block and verifies it
-  private void verifyFirstBlock() {
-    Block block = null;
-    synchronized (this) {
-      if ( blockInfoSet.size() > 0 ) {
-        block = blockInfoSet.first().block;
-      }
+
+    synchronized void deleteNewBlock(long blockId) {
+      newBlocks.remove(blockId);
     }
-    if ( block != null ) {
-      verifyBlock(new ExtendedBlock(blockPoolId, block));
-      processedBlocks.put(block.getBlockId(), 1);
+
+    synchronized long getBlocksVerifiedInPass() {
+      return blocksVerifiedInPass;
     }
-  }
-  
-  // Used for tests only
-  long getBlocksScannedInLastRun() {
-    return totalBlocksScannedInLastRun;
-  }
 
-  /**
-   * Reads the current and previous log files (if any) and marks the blocks
-   * processed if they were processed within last scan period. Copies the log
-   * records of recently scanned blocks from previous to current file. 
-   * Returns false if the process was interrupted because the thread is marked 
-   * to exit.
-   */
-  private boolean assignInitialVerificationTimes() {
-    int numBlocks = 1;
-    LogFileHandler log = null;
-    synchronized (this) {
-      log = verificationLog;
-      numBlocks = Math.max(blockMap.size(), 1);
+    synchronized long getScanRate() {
+      return scanRate;
     }
 
-    long now = System.currentTimeMillis();
-    LogFileHandler.Reader logReader[] = new LogFileHandler.Reader[2];
-    try {
-      if (log != null) {
-        logReader[0] = log.getCurrentFileReader();
-        logReader[1] = log.getPreviousFileReader();
-      }
-    } catch (IOException e) {
-      LOG.warn("Could not read previous verification times : " +
-               StringUtils.stringifyException(e));
+    synchronized long getBytesLeft() {
+      return bytesLeft;
     }
-    
-    try {
-      for (LogFileHandler.Reader reader : logReader) {
-      // update verification times from the verificationLog.
-        while (logReader != null && reader.hasNext()) {
-          if (!datanode.shouldRun
-              || datanode.blockScanner.blockScannerThread.isInterrupted()) {
-            return false;
-          }
-          LogEntry entry = LogEntry.parseEntry(reader.next());
-          if (entry != null) {
-            updateBlockInfo(entry);
-            if (now - entry.verificationTime < scanPeriod) {
-              BlockScanInfo info = blockMap.get(new Block(entry.blockId, 0,
-                  entry.genStamp));
-              if (info != null) {
-                if (processedBlocks.get(entry.blockId) == null) {
-                  updateBytesLeft(-info.block.getNumBytes());
-                  processedBlocks.put(entry.blockId, 1);
-                }
-                if (reader.file == log.prevFile) {
-                  // write the log entry to current file
-                  // so that the entry is preserved for later runs.
-                  log.appendLine(entry.verificationTime, entry.genStamp,
-                      entry.blockId);
-                }
+
+    /**
+     * Verify the replicas of the volume which are due, the new replicas
+     * first, and return when none is due or the scanner is to stop.
+     */
+    void scan() {
+      try {
+        while (isRunning()) {
+          long blockId = 0;
+          boolean inPass = false;
+          synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (passDone && now >= passStart + scanPeriod) {
+              startNewPass(now);
+            }
+            if (!newBlocks.isEmpty()) {
+              final Iterator<Long> i = newBlocks.iterator();
+              blockId = i.next();
+              i.remove();
+            } else if (passDone) {
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("All blocks on " + volume + " were processed "
+                    + "recently, so this run is complete");
               }
+              return;
+            } else {
+              inPass = true;
             }
           }
+          if (inPass) {
+            if (passBlocks == null) {
+              resumePass();
+            }
+            if (passIndex == passBlocks.length) {
+              endPass();
+              continue;
+            }
+            blockId = passBlocks[passIndex++];
+          }
+
+          final long bytes = verifyBlock(blockId);
+          synchronized (this) {
+            if (inPass) {
+              cursor = blockId;
+              bytesLeft = Math.max(bytesLeft - Math.max(bytes, 0), 0);
+            }
+            if (bytes >= 0) {
+              blocksVerifiedInPass++;
+            }
+          }
+          if (System.currentTimeMillis() - lastSaveTime
+              >= SAVE_STATE_INTERVAL) {
+            saveState();
+          }
         }
-      }
-    } finally {
-      IOUtils.closeStream(logReader[0]);
-      IOUtils.closeStream(logReader[1]);
-    }
-    
-    /* Initially spread the block reads over half of 
-     * MIN_SCAN_PERIOD so that we don't keep scanning the 
-     * blocks too quickly when restarted.
-     */
-    long verifyInterval = (long) (Math.min( scanPeriod/2.0/numBlocks,
-                                            10*60*1000 ));
-    long lastScanTime = System.currentTimeMillis() - scanPeriod;
-    
-    /* Before this loop, entries in blockInfoSet that are not
-     * updated above have lastScanTime of <= 0 . Loop until first entry has
-     * lastModificationTime > 0.
-     */    
-    synchronized (this) {
-      if (blockInfoSet.size() > 0 ) {
-        BlockScanInfo info;
-        while ((info =  blockInfoSet.first()).lastScanTime < 0) {
-          delBlockInfo(info);        
-          info.lastScanTime = lastScanTime;
-          lastScanTime += verifyInterval;
-          addBlockInfo(info);
-        }
+      } finally {
+        saveState();
       }
     }
-    
-    return true;
-  }
-  
-  private synchronized void updateBytesLeft(long len) {
-    bytesLeft += len;
-  }
 
-  static File getCurrentFile(FSVolume vol, String bpid) throws IOException {
-    return LogFileHandler.getCurrentFile(vol.getBlockPoolSlice(bpid).getDirectory(),
-        BlockPoolSliceScanner.verificationLogFile);
-  }
-  
-  private synchronized void startNewPeriod() {
-    LOG.info("Starting a new period : work left in prev period : "
-        + String.format("%.2f%%", totalBytesToScan == 0 ? 0
-            : (bytesLeft * 100.0) / totalBytesToScan));
-
-    // reset the byte counts :
-    bytesLeft = totalBytesToScan;
-    currentPeriodStart = System.currentTimeMillis();
-  }
-  
-  void scanBlockPoolSlice() {
-    startNewPeriod();
-    if (processedBlocks != null) {
-      totalBlocksScannedInLastRun = processedBlocks.size();
+    private synchronized void startNewPass(long now) {
+      LOG.info("Starting a new pass on " + volume + " : verified "
+          + blocksVerifiedInPass + " blocks in the previous pass");
+      passStart = now;
+      cursor = Long.MIN_VALUE;
+      passDone = false;
+      blocksVerifiedInPass = 0;
     }
-    // Create a new processedBlocks structure
-    processedBlocks = new HashMap<Long, Integer>();
-    if (verificationLog != null) {
-      try {
-        verificationLog.openCurFile();
-      } catch (FileNotFoundException ex) {
-        LOG.warn("Could not open current file");
+
+    private void endPass() {
+      synchronized (this) {
+        passDone = true;
+        bytesLeft = 0;
       }
+      passBlocks = null;
+      LOG.info("Completed the pass on " + volume + " : verified "
+          + getBlocksVerifiedInPass() + " blocks");
+      saveState();
     }
-    if (!assignInitialVerificationTimes()) {
-      return;
-    }
-    // Start scanning
-    scan();
-  }
-  
-  public void scan() {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Starting to scan blockpool: " + blockPoolId);
-    }
-    try {
-      adjustThrottler();
-        
-      while (datanode.shouldRun && !Thread.interrupted()
-          && datanode.isBPServiceAlive(blockPoolId)) {
-        long now = System.currentTimeMillis();
-        synchronized (this) {
-          if ( now >= (currentPeriodStart + scanPeriod)) {
-            startNewPeriod();
-          }
-        }
-        if (((now - getEarliestScanTime()) >= scanPeriod)
-            || (!(this.isFirstBlockProcessed()))) {
-          verifyFirstBlock();
-        } else {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("All remaining blocks were processed recently, "
-                + "so this run is complete");
+
+    /** Collect the ids of the finalized replicas after the cursor. */
+    private void resumePass() {
+      final long after;
+      synchronized (this) {
+        after = cursor;
+      }
+      long[] ids = new long[1024];
+      int n = 0;
+      long bytes = 0;
+      synchronized (dataset.volumeMap.getMutext()) {
+        final Collection<ReplicaInfo> replicas =
+          dataset.volumeMap.replicas(blockPoolId);
+        if (replicas != null) {
+          for (ReplicaInfo r : replicas) {
+            if (r.getVolume() == volume && r.getBlockId() > after
+                && r.getState() == ReplicaState.FINALIZED) {
+              if (n == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * n);
+              }
+              ids[n++] = r.getBlockId();
+              bytes += r.getNumBytes();
+            }
           }
-          break;
         }
       }
-    } catch (RuntimeException e) {
-      LOG.warn("RuntimeException during BlockPoolScanner.scan() : " +
-               StringUtils.stringifyException(e));
-      throw e;
-    } finally {
-      cleanUp();
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("Done scanning block pool: " + blockPoolId);
-      }
-    }
-  }
-  
-  private synchronized void cleanUp() {
-    if (verificationLog != null) {
-      try {
-        verificationLog.roll();
-      } catch (IOException ex) {
-        LOG.warn("Received exception: ", ex);
-        verificationLog.close();
+      Arrays.sort(ids, 0, n);
+      passBlocks = Arrays.copyOf(ids, n);
+      passIndex = 0;
+      synchronized (this) {
+        bytesLeft = bytes;
       }
     }
-  }
 
-  
-  synchronized void printBlockReport(StringBuilder buffer, 
-                                     boolean summaryOnly) {
-    long oneHour = 3600*1000;
-    long oneDay = 24*oneHour;
-    long oneWeek = 7*oneDay;
-    long fourWeeks = 4*oneWeek;
-    
-    int inOneHour = 0;
-    int inOneDay = 0;
-    int inOneWeek = 0;
-    int inFourWeeks = 0;
-    int inScanPeriod = 0;
-    int neverScanned = 0;
-    
-    DateFormat dateFormat = new SimpleDateFormat(dateFormatString);
-    
-    int total = blockInfoSet.size();
-    
-    long now = System.currentTimeMillis();
-    
-    Date date = new Date();
-    
-    for(Iterator<BlockScanInfo> it = blockInfoSet.iterator(); it.hasNext();) {
-      BlockScanInfo info = it.next();
-      
-      long scanTime = info.getLastScanTime();
-      long diff = now - scanTime;
-      
-      if (diff <= oneHour) inOneHour++;
-      if (diff <= oneDay) inOneDay++;
-      if (diff <= oneWeek) inOneWeek++;
-      if (diff <= fourWeeks) inFourWeeks++;
-      if (diff <= scanPeriod) inScanPeriod++;      
-      if (scanTime <= 0) neverScanned++;
-      
-      if (!summaryOnly) {
-        date.setTime(scanTime);
-        String scanType = 
-          (info.lastScanType == ScanType.VERIFICATION_SCAN) ? "local" : "none"; 
-        buffer.append(String.format("%-26s : status : %-6s type : %-6s" +
-                                    " scan time : " +
-                                    "%-15d %s\n", info.block, 
-                                    (info.lastScanOk ? "ok" : "failed"),
-                                    scanType, scanTime,
-                                    (scanTime <= 0) ? "not yet verified" : 
-                                      dateFormat.format(date)));
-      }
-    }
-    
-    double pctPeriodLeft = (scanPeriod + currentPeriodStart - now)
-                           *100.0/scanPeriod;
-    double pctProgress = (totalBytesToScan == 0) ? 100 :
-                         (totalBytesToScan-bytesLeft)*100.0/totalBytesToScan;
-                         
-    buffer.append(String.format("\nTotal Blocks                 : %6d" +
-                                "\nVerified in last hour        : %6d" +
-                                "\nVerified in last day         : %6d" +
-                                "\nVerified in last week        : %6d" +
-                                "\nVerified in last four weeks  : %6d" +
-                                "\nVerified in SCAN_PERIOD      : %6d" +
-                                "\nNot yet verified             : %6d" +
-                                "\nVerified since restart       : %6d" +
-                                "\nScans since restart          : %6d" +
-                                "\nScan errors since restart    : %6d" +
-                                "\nTransient scan errors        : %6d" +
-                                "\nCurrent scan rate limit KBps : %6d" +
-                                "\nProgress this period         : %6.0f%%" +
-                                "\nTime left in cur period      : %6.2f%%" +
-                                "\n", 
-                                total, inOneHour, inOneDay, inOneWeek,
-                                inFourWeeks, inScanPeriod, neverScanned,
-                                totalScans, totalScans, 
-                                totalScanErrors, totalTransientErrors, 
-                                Math.round(throttler.getBandwidth()/1024.0),
-                                pctProgress, pctPeriodLeft));
-  }
-  
-  /**
-   * This class takes care of log file used to store the last verification
-   * times of the blocks. It rolls the current file when it is too big etc.
-   * If there is an error while writing, it stops updating with an error
-   * message.
-   */
-  private static class LogFileHandler {
-    
-    private static final String curFileSuffix = ".curr";
-    private static final String prevFileSuffix = ".prev";
-    private final DateFormat dateFormat = new SimpleDateFormat(dateFormatString);
-    
-    static File getCurrentFile(File dir, String filePrefix) {
-      return new File(dir, filePrefix + curFileSuffix);
-    }
-    
-    public Reader getPreviousFileReader() throws IOException {
-      return new Reader(prevFile);
-    }
-    
-    public Reader getCurrentFileReader() throws IOException {
-      return new Reader(curFile);
-    }
-
-    static boolean isFilePresent(File dir, String filePrefix) {
-      return new File(dir, filePrefix + curFileSuffix).exists() ||
-             new File(dir, filePrefix + prevFileSuffix).exists();
-    }
-    private File curFile;
-    private File prevFile;
-    
-    private PrintStream out;
-        
-    /**
-     * Opens the log file for appending.
-     * Note that rolling will happen only after "updateLineCount()" is 
-     * called. This is so that line count could be updated in a separate
-     * thread without delaying start up.
-     * 
-     * @param dir where the logs files are located.
-     * @param filePrefix prefix of the file.
-     * @param maxNumLines max lines in a file (its a soft limit).
-     * @throws IOException
-     */
-    LogFileHandler(File dir, String filePrefix, int maxNumLines) 
-                                                throws IOException {
-      curFile = new File(dir, filePrefix + curFileSuffix);
-      prevFile = new File(dir, filePrefix + prevFileSuffix);
-    }
-    
     /**
-     * Append "\n" + line.
-     * If the log file need to be rolled, it will done after 
-     * appending the text.
-     * This does not throw IOException when there is an error while 
-     * appending. Currently does not throw an error even if rolling 
-     * fails (may be it should?).
-     * return true if append was successful.
+     * Verify a replica, reading it a second time on failure to rule out
+     * transient errors.
+     * @return the length of the replica, or -1 if it is no longer a
+     *         finalized replica on this volume
      */
-    synchronized boolean appendLine(String line) {
-      if (out == null) {
-        return false;
-      }
-      out.println();
-      out.print(line);
-      return true;
-    }
-    
-    boolean appendLine(long verificationTime, long genStamp, long blockId) {
-      return appendLine("date=\""
-          + dateFormat.format(new Date(verificationTime)) + "\"\t " + "time=\""
-          + verificationTime + "\"\t " + "genstamp=\"" + genStamp + "\"\t "
-          + "id=\"" + blockId + "\"");
-    }
-    
-    private synchronized void openCurFile() throws FileNotFoundException {
-      close();
-      out = new PrintStream(new FileOutputStream(curFile, true));
-    }
-    
-    private void roll() throws IOException {
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("Rolling current file: " + curFile.getAbsolutePath()
-            + " to previous file: " + prevFile.getAbsolutePath());
+    private long verifyBlock(long blockId) {
+      final ReplicaInfo replica = dataset.fetchReplicaInfo(blockPoolId,
+          blockId);
+      if (replica == null || replica.getState() != ReplicaState.FINALIZED
+          || replica.getVolume() != volume) {
+        return -1;
       }
+      final ExtendedBlock block = new ExtendedBlock(blockPoolId, replica);
 
-      if (!prevFile.delete() && prevFile.exists()) {
-        throw new IOException("Could not delete " + prevFile);
-      }
-      
-      close();
+      /* How do we flush block data from kernel buffers before the
+       * second read?
+       */
+      for (int i=0; i<2; i++) {
+        boolean second = (i > 0);
+        BlockSender blockSender = null;
+        try {
+          blockSender = new BlockSender(block, 0, -1, false, false, true,
+              datanode);
+
+          DataOutputStream out =
+                  new DataOutputStream(new IOUtils.NullOutputStream());
+
+          blockSender.sendBlock(out, null, throttler);
+
+          LOG.info((second ? "Second " : "") +
+                   "Verification succeeded for " + block);
+
+          recordScan(block, true, second);
+          return block.getNumBytes();
+        } catch (IOException e) {
+          // If the block does not exists anymore, then its not an error
+          if ( dataset.getFile(blockPoolId, block.getLocalBlock()) == null ) {
+            LOG.info("Verification failed for " + block + ". Its ok since " +
+            "it not in datanode dataset anymore.");
+            return -1;
+          }
+
+          LOG.warn((second ? "Second " : "First ") +
+                   "Verification failed for " + block + ". Exception : " +
+                   StringUtils.stringifyException(e));
 
-      if (!curFile.renameTo(prevFile)) {
-        throw new IOException("Could not rename " + curFile + 
-                              " to " + prevFile);
+          if (second) {
+            recordScan(block, false, false);
+            datanode.getMetrics().blockVerificationFailures.inc();
+            handleScanFailure(block);
+            return block.getNumBytes();
+          }
+        } finally {
+          IOUtils.closeStream(blockSender);
+          datanode.getMetrics().blocksVerified.inc();
+        }
       }
+      return -1;
     }
-    
-    synchronized void close() {
-      if (out != null) {
-        out.close();
-        out = null;
+
+    private synchronized void recordScan(ExtendedBlock block, boolean ok,
+        boolean transientError) {
+      final long now = System.currentTimeMillis();
+      totalScans++;
+      if (!ok) {
+        totalScanErrors++;
+      } else if (transientError) {
+        totalTransientErrors++;
+      }
+      recentScans.addLast(new ScanRecord(block.getBlockId(),
+          block.getGenerationStamp(), now, ok));
+      if (recentScans.size() > NUM_RECENT_SCANS) {
+        recentScans.removeFirst();
+      }
+      rateBytes += block.getNumBytes();
+      if (now - rateStart >= SCAN_RATE_INTERVAL) {
+        scanRate = rateBytes * 1000 / (now - rateStart);
+        rateStart = now;
+        rateBytes = 0;
       }
     }
-    
+
     /**
-     * This is used to read the lines in order.
-     * If the data is not read completely (i.e, untill hasNext() returns
-     * false), it needs to be explicitly 
+     * Read the scan state saved by {@link #saveState()}.  Without a saved
+     * state, a new pass starts.
      */
-    private static class Reader implements Iterator<String>, Closeable {
-      
-      BufferedReader reader;
-      File file;
-      String line;
-      boolean closed = false;
-      
-      private Reader(File file) throws IOException {
-        reader = null;
-        this.file = file;
-        readNext();        
-      }
-      
-      private boolean openFile() throws IOException {
-        if (file == null) {
-          return false;
-        }       
-        if (reader != null ) {
-          reader.close();
-          reader = null;
-        }
-        if (file.exists()) {
-          reader = new BufferedReader(new FileReader(file));
-          return true;
-        } else {
-          return false;
-        }
+    private synchronized void loadState() {
+      if (!stateFile.exists()) {
+        return;
       }
-      
-      // read next line if possible.
-      private void readNext() throws IOException {
-        line = null;
-        if (reader == null) {
-          openFile();
-        }
+      try {
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(stateFile)));
         try {
-          if (reader != null && (line = reader.readLine()) != null) {
-            return;
+          final int version = in.readInt();
+          if (version != SCAN_STATE_VERSION) {
+            throw new IOException("Unexpected version " + version);
           }
-        } finally {
-          if (!hasNext()) {
-            close();
+          passStart = in.readLong();
+          cursor = in.readLong();
+          passDone = in.readBoolean();
+          blocksVerifiedInPass = in.readLong();
+          for (int n = in.readInt(); n > 0; n--) {
+            addNewBlock(in.readLong());
           }
+          for (int n = in.readInt(); n > 0; n--) {
+            recentScans.addLast(new ScanRecord(in.readLong(), in.readLong(),
+                in.readLong(), in.readBoolean()));
+          }
+        } finally {
+          in.close();
         }
+        LOG.info("Resuming the scan of " + volume + " after block "
+            + cursor + (passDone ? ", the pass is done" : ""));
+      } catch (IOException e) {
+        LOG.warn("Failed to read " + stateFile + ", starting a new pass", e);
+        passStart = System.currentTimeMillis();
+        cursor = Long.MIN_VALUE;
+        passDone = false;
+        blocksVerifiedInPass = 0;
+        newBlocks.clear();
+        recentScans.clear();
       }
-      
-      public boolean hasNext() {
-        return line != null;
-      }
+    }
 
-      public String next() {
-        String curLine = line;
+    /**
+     * Save the scan state, which is a few hundred bytes to a few kilobytes:
+     * the cursor of the pass, the new replicas waiting for a scan and the
+     * latest verifications.
+     */
+    synchronized void saveState() {
+      final File tmp = new File(stateFile.getPath() + ".tmp");
+      try {
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
         try {
-          readNext();
-        } catch (IOException e) {
-          LOG.info("Could not reade next line in LogHandler : " +
-                   StringUtils.stringifyException(e));
+          out.writeInt(SCAN_STATE_VERSION);
+          out.writeLong(passStart);
+          out.writeLong(cursor);
+          out.writeBoolean(passDone);
+          out.writeLong(blocksVerifiedInPass);
+          out.writeInt(newBlocks.size());
+          for (long id : newBlocks) {
+            out.writeLong(id);
+          }
+          out.writeInt(recentScans.size());
+          for (ScanRecord r : recentScans) {
+            out.writeLong(r.blockId);
+            out.writeLong(r.genStamp);
+            out.writeLong(r.time);
+            out.writeBoolean(r.ok);
+          }
+        } finally {
+          out.close();
         }
-        return curLine;
-      }
-
-      public void remove() {
-        throw new RuntimeException("remove() is not supported.");
+        if (!tmp.renameTo(stateFile)) {
+          if (!stateFile.delete() || !tmp.renameTo(stateFile)) {
+            throw new IOException("Could not rename " + tmp + " to "
+                + stateFile);
+          }
+        }
+        lastSaveTime = System.currentTimeMillis();
+      } catch (IOException e) {
+        LOG.warn("Failed to save the scan state of " + volume, e);
       }
+    }
 
-      public void close() throws IOException {
-        if (!closed) {
-          try {
-            if (reader != null) {
-              reader.close();
-            }
-          } finally {
-            file = null;
-            reader = null;
-            closed = true;
-          }
+    synchronized void printBlockReport(StringBuilder buffer,
+        boolean summaryOnly) {
+      final long now = System.currentTimeMillis();
+      if (!summaryOnly) {
+        final DateFormat dateFormat = new SimpleDateFormat(dateFormatString);
+        for (ScanRecord r : recentScans) {
+          buffer.append(String.format("%-26s : status : %-6s type : %-6s" +
+                                      " scan time : " +
+                                      "%-15d %s\n",
+                                      new Block(r.blockId, 0, r.genStamp),
+                                      (r.ok ? "ok" : "failed"),
+                                      "local", r.time,
+                                      dateFormat.format(new Date(r.time))));
         }
       }
-    } 
+      final double pctPeriodLeft = passDone ? 0
+          : Math.max(scanPeriod + passStart - now, 0) * 100.0 / scanPeriod;
+      buffer.append(String.format("\nVolume                       : %s" +
+                                  "\nVerified in SCAN_PERIOD      : %6d" +
+                                  "\nNew blocks waiting           : %6d" +
+                                  "\nPass cursor                  : %s" +
+                                  "\nBytes left in pass           : %6d" +
+                                  "\nScans since restart          : %6d" +
+                                  "\nScan errors since restart    : %6d" +
+                                  "\nTransient scan errors        : %6d" +
+                                  "\nCurrent scan rate KBps       : %6d" +
+                                  "\nCurrent scan rate limit KBps : %6d" +
+                                  "\nTime left in cur period      : %6.2f%%" +
+                                  "\n",
+                                  volume, blocksVerifiedInPass,
+                                  newBlocks.size(),
+                                  passDone ? "done" : String.valueOf(cursor),
+                                  bytesLeft, totalScans, totalScanErrors,
+                                  totalTransientErrors,
+                                  Math.round(scanRate/1024.0),
+                                  Math.round(throttler.getBandwidth()/1024.0),
+                                  pctPeriodLeft));
+    }
+  }
+
+  synchronized void printBlockReport(StringBuilder buffer,
+                                     boolean summaryOnly) {
+    buffer.append(String.format("Total Blocks                 : %6d\n",
+        dataset.volumeMap.size(blockPoolId)));
+    for (VolumeScanner scanner : getVolumeScanners()) {
+      scanner.printBlockReport(buffer, summaryOnly);
+    }
   }
 }
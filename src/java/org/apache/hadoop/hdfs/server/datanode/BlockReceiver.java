@@ -46,6 +46,7 @@ import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeProtocol;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
+import org.apache.hadoop.hdfs.util.ChunkedChecksum;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Daemon;
@@ -63,6 +64,7 @@ class BlockReceiver implements Closeable, FSConstants {
   
   private DataInputStream in = null; // from where data are read
   private DataChecksum checksum; // from where chunks of a block can be read
+  private ChunkedChecksum chunkedChecksum; // verifies whole packets
   private OutputStream out = null; // to block file at local disk
   private OutputStream cout = null; // output stream for cehcksum file
   private DataOutputStream checksumOut = null; // to crc file at local disk
@@ -95,6 +97,8 @@ class BlockReceiver implements Closeable, FSConstants {
   /** pipeline stage */
   private final BlockConstructionStage stage;
   private final boolean isTransfer;
+  /** The volume of the replica until the receiver is closed. */
+  private FSDataset.FSVolume foregroundVolume;
 
   BlockReceiver(final ExtendedBlock block, final DataInputStream in,
       final String inAddr, final String myAddr,
@@ -169,10 +173,17 @@ class BlockReceiver implements Closeable, FSConstants {
               " while receiving block " + block + " from " + inAddr);
         }
       }
+      if (replicaInfo instanceof ReplicaInfo) {
+        foregroundVolume = ((ReplicaInfo)replicaInfo).getVolume();
+        if (foregroundVolume != null) {
+          foregroundVolume.beginForegroundIo();
+        }
+      }
       // read checksum meta information
       this.checksum = DataChecksum.newDataChecksum(in);
       this.bytesPerChecksum = checksum.getBytesPerChecksum();
       this.checksumSize = checksum.getChecksumSize();
+      this.chunkedChecksum = new ChunkedChecksum(checksum);
       
       final boolean isCreate = isDatanode || isTransfer 
           || stage == BlockConstructionStage.PIPELINE_SETUP_CREATE;
@@ -214,10 +225,19 @@ class BlockReceiver implements Closeable, FSConstants {
   /** Return the datanode object. */
   DataNode getDataNode() {return datanode;}
 
+  /** The responder thread may close the receiver as well. */
+  private synchronized void endForegroundIo() {
+    if (foregroundVolume != null) {
+      foregroundVolume.endForegroundIo();
+      foregroundVolume = null;
+    }
+  }
+
   /**
    * close files.
    */
   public void close() throws IOException {
+    endForegroundIo();
 
     IOException ioe = null;
     // close checksum file
@@ -286,38 +306,29 @@ class BlockReceiver implements Closeable, FSConstants {
   }
   
   /**
-   * Verify multiple CRC chunks. 
+   * Verify multiple CRC chunks in one pass over the packet.
    */
   private void verifyChunks( byte[] dataBuf, int dataOff, int len, 
                              byte[] checksumBuf, int checksumOff ) 
                              throws IOException {
-    DatanodeProtocol nn = datanode.getBPNamenode(block.getBlockPoolId());
-    while (len > 0) {
-      int chunkLen = Math.min(len, bytesPerChecksum);
-      
-      checksum.update(dataBuf, dataOff, chunkLen);
-
-      if (!checksum.compare(checksumBuf, checksumOff)) {
-        if (srcDataNode != null) {
-          try {
-            LOG.info("report corrupt block " + block + " from datanode " +
-                      srcDataNode + " to namenode");
-            LocatedBlock lb = new LocatedBlock(block, 
-                                            new DatanodeInfo[] {srcDataNode});
-            nn.reportBadBlocks(new LocatedBlock[] {lb});
-          } catch (IOException e) {
-            LOG.warn("Failed to report bad block " + block + 
-                      " from datanode " + srcDataNode + " to namenode");
-          }
+    if (chunkedChecksum.verify(dataBuf, dataOff, len,
+                               checksumBuf, checksumOff) >= 0) {
+      if (srcDataNode != null) {
+        try {
+          LOG.info("report corrupt block " + block + " from datanode " +
+                    srcDataNode + " to namenode");
+          LocatedBlock lb = new LocatedBlock(block, 
+                                          new DatanodeInfo[] {srcDataNode});
+          DatanodeProtocol nn =
+            datanode.getBPNamenode(block.getBlockPoolId());
+          nn.reportBadBlocks(new LocatedBlock[] {lb});
+        } catch (IOException e) {
+          LOG.warn("Failed to report bad block " + block + 
+                    " from datanode " + srcDataNode + " to namenode");
         }
-        throw new IOException("Unexpected checksum mismatch " + 
-                              "while writing " + block + " from " + inAddr);
       }
-
-      checksum.reset();
-      dataOff += chunkLen;
-      checksumOff += checksumSize;
-      len -= chunkLen;
+      throw new IOException("Unexpected checksum mismatch " + 
+                            "while writing " + block + " from " + inAddr);
     }
   }
 
@@ -34,6 +34,7 @@ import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.protocol.DataTransferProtocol.PacketHeader;
+import org.apache.hadoop.hdfs.util.ChunkedChecksum;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.net.SocketOutputStream;
@@ -60,6 +61,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
   private long blockInPosition = -1; // updated while using transferTo().
   private DataInputStream checksumIn; // checksum datastream
   private DataChecksum checksum; // checksum stream
+  private ChunkedChecksum chunkedChecksum; // verifies whole packets
   private long offset; // starting position to read
   private long endOffset; // ending position
   private int bytesPerChecksum; // chunk size
@@ -70,9 +72,12 @@ class BlockSender implements java.io.Closeable, FSConstants {
 
   private boolean transferToAllowed = true;
   private boolean blockReadFully; //set when the whole block is read
+  private boolean sentEntireByteRange; //set when the whole range is sent
   private boolean verifyChecksum; //if true, check is verified while reading
   private DataTransferThrottler throttler;
   private final String clientTraceFmt; // format of client trace log message
+  /** The volume of the replica while this is a foreground read of it. */
+  private FSDataset.FSVolume foregroundVolume;
 
   /**
    * Minimum buffer used while sending data to clients. Used only if
@@ -96,14 +101,12 @@ class BlockSender implements java.io.Closeable, FSConstants {
       throws IOException {
     try {
       this.block = block;
-      synchronized(datanode.data) { 
-        this.replica = datanode.data.getReplica(block.getBlockPoolId(), 
-            block.getBlockId());
-        if (replica == null) {
-          throw new ReplicaNotFoundException(block);
-        }
-        this.replicaVisibleLength = replica.getVisibleLength();
+      this.replica = datanode.data.getReplica(block.getBlockPoolId(), 
+          block.getBlockId());
+      if (replica == null) {
+        throw new ReplicaNotFoundException(block);
       }
+      this.replicaVisibleLength = replica.getVisibleLength();
       long minEndOffset = startOffset + length;
       // if this is a write in progress
       ChunkChecksum chunkChecksum = null;
@@ -184,6 +187,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
         bytesPerChecksum = checksum.getBytesPerChecksum();        
       }
       checksumSize = checksum.getChecksumSize();
+      chunkedChecksum = new ChunkedChecksum(checksum);
 
       if (length < 0) {
         length = replicaVisibleLength;
@@ -239,6 +243,15 @@ class BlockSender implements java.io.Closeable, FSConstants {
       }
 
       blockIn = datanode.data.getBlockInputStream(block, offset); // seek to offset
+
+      // only the block scanner verifies the checksums while reading,
+      // which is background I/O
+      if (!verifyChecksum && replica instanceof ReplicaInfo) {
+        foregroundVolume = ((ReplicaInfo)replica).getVolume();
+        if (foregroundVolume != null) {
+          foregroundVolume.beginForegroundIo();
+        }
+      }
     } catch (IOException ioe) {
       IOUtils.closeStream(this);
       IOUtils.closeStream(blockIn);
@@ -250,6 +263,10 @@ class BlockSender implements java.io.Closeable, FSConstants {
    * close opened files.
    */
   public void close() throws IOException {
+    if (foregroundVolume != null) {
+      foregroundVolume.endForegroundIo();
+      foregroundVolume = null;
+    }
     IOException ioe = null;
     // close checksum file
     if(checksumIn!=null) {
@@ -360,22 +377,12 @@ class BlockSender implements java.io.Closeable, FSConstants {
       IOUtils.readFully(blockIn, buf, dataOff, len);
 
       if (verifyChecksum) {
-        int dOff = dataOff;
-        int cOff = checksumOff;
-        int dLeft = len;
-
-        for (int i=0; i<numChunks; i++) {
-          checksum.reset();
-          int dLen = Math.min(dLeft, bytesPerChecksum);
-          checksum.update(buf, dOff, dLen);
-          if (!checksum.compare(buf, cOff)) {
-            long failedPos = offset + len -dLeft;
-            throw new ChecksumException("Checksum failed at " + 
-                                        failedPos, failedPos);
-          }
-          dLeft -= dLen;
-          dOff += dLen;
-          cOff += checksumSize;
+        final int failed = chunkedChecksum.verify(buf, dataOff, len,
+                                                  buf, checksumOff);
+        if (failed >= 0) {
+          long failedPos = offset + failed;
+          throw new ChecksumException("Checksum failed at " + 
+                                      failedPos, failedPos);
         }
       }
       //writing is done below (mainly to handle IOException)
@@ -490,6 +497,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
         // send an empty packet to mark the end of the block
         sendChunks(pktBuf, maxChunksPerPacket, streamForSendChunks);        
         out.flush();
+        sentEntireByteRange = true;
       } catch (IOException e) { //socket error
         throw ioeToSocketException(e);
       }
@@ -509,4 +517,12 @@ class BlockSender implements java.io.Closeable, FSConstants {
   boolean isBlockReadFully() {
     return blockReadFully;
   }
+
+  /**
+   * @return true if the whole requested range, including the empty
+   *         packet marking its end, has been sent
+   */
+  boolean didSendEntireByteRange() {
+    return sentEntireByteRange;
+  }
 }
@@ -18,9 +18,7 @@
 
 package org.apache.hadoop.hdfs.server.datanode;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.TreeMap;
 
 import javax.servlet.http.HttpServlet;
@@ -116,12 +114,10 @@ public class DataBlockScanner implements Runnable {
   }
   
   /**
-   * Find next block pool id to scan. There should be only one current
-   * verification log file. Find which block pool contains the current
-   * verification log file and that is used as the starting block pool id. If no
-   * current files are found start with first block-pool in the blockPoolSet.
-   * However, if more than one current files are found, the one with latest 
-   * modification time is used to find the next block pool id.
+   * Find next block pool id to scan.  The block pools are scanned in the
+   * order of their ids, starting with the first one; the scan of every
+   * volume resumes from its saved cursor, so the block pool scanned last
+   * before a restart need not be scanned first.
    */
   private BlockPoolSliceScanner getNextBPScanner(String currentBpId) {
     
@@ -131,38 +127,12 @@ public class DataBlockScanner implements Runnable {
       waitForInit(currentBpId);
       synchronized (this) {
         if (getBlockPoolSetSize() > 0) {          
-          // Find nextBpId by finding the last modified current log file, if any
-          long lastScanTime = -1;
-          Iterator<String> bpidIterator = blockPoolScannerMap.keySet()
-              .iterator();
-          while (bpidIterator.hasNext()) {
-            String bpid = bpidIterator.next();
-            for (FSDataset.FSVolume vol : dataset.volumes.getVolumes()) {
-              try {
-                File currFile = BlockPoolSliceScanner.getCurrentFile(vol, bpid);
-                if (currFile.exists()) {
-                  long lastModified = currFile.lastModified();
-                  if (lastScanTime < lastModified) {
-                    lastScanTime = lastModified;
-                    nextBpId = bpid;
-                  }
-                }
-              } catch (IOException e) {
-                LOG.warn("Received exception: ", e);
-              }
-            }
-          }
-          
-          // nextBpId can still be null if no current log is found,
-          // find nextBpId sequentially.
-          if (nextBpId == null) {
-            if ("".equals(currentBpId)) {
+          if ("".equals(currentBpId)) {
+            nextBpId = blockPoolScannerMap.firstKey();
+          } else {
+            nextBpId = blockPoolScannerMap.higherKey(currentBpId);
+            if (nextBpId == null) {
               nextBpId = blockPoolScannerMap.firstKey();
-            } else {
-              nextBpId = blockPoolScannerMap.higherKey(currentBpId);
-              if (nextBpId == null) {
-                nextBpId = blockPoolScannerMap.firstKey();
-              }
             }
           }
           if (nextBpId != null) {
@@ -249,9 +219,22 @@ public class DataBlockScanner implements Runnable {
     }
   }
   
-  public synchronized void shutdown() {
-    if (blockScannerThread != null) {
-      blockScannerThread.interrupt();
+  public void shutdown() {
+    final Thread t;
+    synchronized (this) {
+      for (BlockPoolSliceScanner bpScanner : blockPoolScannerMap.values()) {
+        bpScanner.shutdown();
+      }
+      t = blockScannerThread;
+    }
+    if (t != null) {
+      t.interrupt();
+      // the scan threads save their cursors before they exit
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
 
@@ -273,7 +256,10 @@ public class DataBlockScanner implements Runnable {
   }
   
   public synchronized void removeBlockPool(String blockPoolId) {
-    blockPoolScannerMap.remove(blockPoolId);
+    BlockPoolSliceScanner bpScanner = blockPoolScannerMap.remove(blockPoolId);
+    if (bpScanner != null) {
+      bpScanner.shutdown();
+    }
     LOG.info("Removed bpid="+blockPoolId+" from blockPoolScannerMap");
   }
   
@@ -287,6 +273,24 @@ public class DataBlockScanner implements Runnable {
     }
   }
 
+  /** @return the bytes per second verified recently on the volume */
+  synchronized long getScanRate(String volume) {
+    long rate = 0;
+    for (BlockPoolSliceScanner bpScanner : blockPoolScannerMap.values()) {
+      rate += bpScanner.getScanRate(volume);
+    }
+    return rate;
+  }
+
+  /** @return the bytes left to verify in the current passes on the volume */
+  synchronized long getScanBacklog(String volume) {
+    long bytes = 0;
+    for (BlockPoolSliceScanner bpScanner : blockPoolScannerMap.values()) {
+      bytes += bpScanner.getScanBacklog(volume);
+    }
+    return bytes;
+  }
+
   public void start() {
     blockScannerThread = new Thread(this);
     blockScannerThread.setDaemon(true);
@@ -45,8 +45,10 @@ import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -72,6 +74,7 @@ import org.apache.hadoop.hdfs.HDFSPolicyProvider;
 import org.apache.hadoop.hdfs.HdfsConfiguration;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
 import org.apache.hadoop.hdfs.protocol.ClientDatanodeProtocol;
 import org.apache.hadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.hadoop.hdfs.protocol.DataTransferProtocol.BlockConstructionStage;
@@ -110,6 +113,7 @@ import org.apache.hadoop.hdfs.server.protocol.DisallowedDatanodeException;
 import org.apache.hadoop.hdfs.server.protocol.InterDatanodeProtocol;
 import org.apache.hadoop.hdfs.server.protocol.KeyUpdateCommand;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
+import org.apache.hadoop.hdfs.server.protocol.ReceivedDeletedBlockInfo;
 import org.apache.hadoop.hdfs.server.protocol.ReplicaRecoveryInfo;
 import org.apache.hadoop.hdfs.server.protocol.UpgradeCommand;
 import org.apache.hadoop.http.HttpServer;
@@ -120,6 +124,7 @@ import org.apache.hadoop.ipc.RemoteException;
 import org.apache.hadoop.ipc.Server;
 import org.apache.hadoop.net.DNS;
 import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.SecurityUtil;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.authorize.AccessControlList;
@@ -367,6 +372,9 @@ public class DataNode extends Configured
   boolean isBlockTokenEnabled;
   BlockPoolTokenSecretManager blockPoolTokenSecretManager;
   boolean syncOnClose;
+  /** Users allowed to get the local paths of replicas, see
+   * {@link #getBlockLocalPathInfo(ExtendedBlock, Token)}. */
+  private Set<String> blockLocalPathAccessUsers = Collections.emptySet();
   
   public DataBlockScanner blockScanner = null;
   private DirectoryScanner directoryScanner = null;
@@ -461,6 +469,12 @@ public class DataNode extends Configured
     // do we need to sync block file contents to disk when blockfile is closed?
     this.syncOnClose = conf.getBoolean(DFS_DATANODE_SYNCONCLOSE_KEY, 
                                        DFS_DATANODE_SYNCONCLOSE_DEFAULT);
+
+    final Collection<String> localPathUsers =
+      conf.getTrimmedStringCollection(DFS_BLOCK_LOCAL_PATH_ACCESS_USER_KEY);
+    if (!localPathUsers.isEmpty()) {
+      this.blockLocalPathAccessUsers = new HashSet<String>(localPathUsers);
+    }
   }
   
   private void startInfoServer(Configuration conf) throws IOException {
@@ -671,8 +685,11 @@ public class DataNode extends Configured
     private String blockPoolId;
     private long lastHeartbeat = 0;
     private volatile boolean initialized = false;
-    private final LinkedList<Block> receivedBlockList = new LinkedList<Block>();
-    private final LinkedList<String> delHints = new LinkedList<String>();
+    /** Replicas received or deleted since the previous block report. */
+    private final LinkedList<ReceivedDeletedBlockInfo> receivedAndDeletedBlockList
+      = new LinkedList<ReceivedDeletedBlockInfo>();
+    /** Number of received replicas in receivedAndDeletedBlockList. */
+    private int pendingReceivedRequests = 0;
     private volatile boolean shouldServiceRun = true;
     private boolean isBlockTokenInitialized = false;
     UpgradeManagerDatanode upgradeManager = null;
@@ -805,7 +822,12 @@ public class DataNode extends Configured
         bpRegistration.setStorageInfo(storage.getBPStorage(blockPoolId));
         initFsDataSet(conf, dataDirs);
       }
+      // loads the replicas of the block pool from every volume
+      long startTime = now();
       data.addBlockPool(blockPoolId, conf);
+      long loadTime = now() - startTime;
+      myMetrics.addBlockPool.inc(loadTime);
+      LOG.info("Added block pool " + blockPoolId + " in " + loadTime + " msecs");
     }
 
     /**
@@ -839,42 +861,32 @@ public class DataNode extends Configured
     }
     
     /**
-     * Report received blocks and delete hints to the Namenode
+     * Report received and deleted blocks to the Namenode
      * @throws IOException
      */
-    private void reportReceivedBlocks() throws IOException {
-      //check if there are newly received blocks
-      Block [] blockArray=null;
-      String [] delHintArray=null;
-      synchronized(receivedBlockList) {
-        synchronized(delHints){
-          int numBlocks = receivedBlockList.size();
-          if (numBlocks > 0) {
-            if(numBlocks!=delHints.size()) {
-              LOG.warn("Panic: receiveBlockList and delHints are not of " +
-              "the same length" );
-            }
-            //
-            // Send newly-received blockids to namenode
-            //
-            blockArray = receivedBlockList.toArray(new Block[numBlocks]);
-            delHintArray = delHints.toArray(new String[numBlocks]);
-          }
+    private void reportReceivedDeletedBlocks() throws IOException {
+      // check if there are newly received or deleted blocks
+      ReceivedDeletedBlockInfo[] receivedAndDeletedBlockArray = null;
+      int currentReceivedRequestsCounter;
+      synchronized (receivedAndDeletedBlockList) {
+        currentReceivedRequestsCounter = pendingReceivedRequests;
+        int numBlocks = receivedAndDeletedBlockList.size();
+        if (numBlocks > 0) {
+          //
+          // Send newly-received and deleted blockids to namenode
+          //
+          receivedAndDeletedBlockArray = receivedAndDeletedBlockList
+              .toArray(new ReceivedDeletedBlockInfo[numBlocks]);
         }
       }
-      if (blockArray != null) {
-        if(delHintArray == null || delHintArray.length != blockArray.length ) {
-          LOG.warn("Panic: block array & delHintArray are not the same" );
-        }
-        bpNamenode.blockReceived(bpRegistration, blockPoolId, blockArray,
-            delHintArray);
-        synchronized(receivedBlockList) {
-          synchronized(delHints){
-            for(int i=0; i<blockArray.length; i++) {
-              receivedBlockList.remove(blockArray[i]);
-              delHints.remove(delHintArray[i]);
-            }
+      if (receivedAndDeletedBlockArray != null) {
+        bpNamenode.blockReceivedAndDeleted(bpRegistration, blockPoolId,
+            receivedAndDeletedBlockArray);
+        synchronized (receivedAndDeletedBlockList) {
+          for (int i = 0; i < receivedAndDeletedBlockArray.length; i++) {
+            receivedAndDeletedBlockList.remove(receivedAndDeletedBlockArray[i]);
           }
+          pendingReceivedRequests -= currentReceivedRequestsCounter;
         }
       }
     }
@@ -896,12 +908,33 @@ public class DataNode extends Configured
         return;
       }
       
-      synchronized (receivedBlockList) {
-        synchronized (delHints) {
-          receivedBlockList.add(block.getLocalBlock());
-          delHints.add(delHint);
-          receivedBlockList.notifyAll();
-        }
+      synchronized (receivedAndDeletedBlockList) {
+        receivedAndDeletedBlockList.add(new ReceivedDeletedBlockInfo(
+            block.getLocalBlock(), delHint));
+        pendingReceivedRequests++;
+        receivedAndDeletedBlockList.notifyAll();
+      }
+    }
+
+    /**
+     * Queue a deleted replica for the next incremental block report.
+     * Unlike a received replica, a deleted replica does not wake up
+     * the service thread; it is reported with the next heartbeat.
+     */
+    void notifyNamenodeDeletedBlock(ExtendedBlock block) {
+      if (block == null) {
+        throw new IllegalArgumentException("Block is null");
+      }
+
+      if (!block.getBlockPoolId().equals(blockPoolId)) {
+        LOG.warn("BlockPool mismatch " + block.getBlockPoolId() +
+            " vs. " + blockPoolId);
+        return;
+      }
+
+      synchronized (receivedAndDeletedBlockList) {
+        receivedAndDeletedBlockList.add(new ReceivedDeletedBlockInfo(
+            block.getLocalBlock(), ReceivedDeletedBlockInfo.TODELETE_HINT));
       }
     }
 
@@ -951,6 +984,23 @@ public class DataNode extends Configured
     }
     
     
+    /**
+     * Queue the replicas which are no longer stored after an invalidate
+     * command for the next incremental block report.
+     */
+    private void reportDeletedBlocks(String bpid, Block[] toDelete) {
+      for (Block b : toDelete) {
+        try {
+          if (data.getStoredBlock(bpid, b.getBlockId()) == null) {
+            notifyNamenodeDeletedBlock(new ExtendedBlock(bpid, b));
+          }
+        } catch (IOException e) {
+          // the next full block report will tell the namenode
+          LOG.warn("Failed to check if block " + b + " is deleted", e);
+        }
+      }
+    }
+
     DatanodeCommand [] sendHeartBeat() throws IOException {
       return bpNamenode.sendHeartbeat(bpRegistration,
           data.getCapacity(),
@@ -1041,7 +1091,7 @@ public class DataNode extends Configured
               continue;
           }
 
-          reportReceivedBlocks();
+          reportReceivedDeletedBlocks();
 
           DatanodeCommand cmd = blockReport();
           processCommand(cmd);
@@ -1057,10 +1107,10 @@ public class DataNode extends Configured
           //
           long waitTime = heartBeatInterval - 
           (System.currentTimeMillis() - lastHeartbeat);
-          synchronized(receivedBlockList) {
-            if (waitTime > 0 && receivedBlockList.size() == 0) {
+          synchronized(receivedAndDeletedBlockList) {
+            if (waitTime > 0 && pendingReceivedRequests == 0) {
               try {
-                receivedBlockList.wait(waitTime);
+                receivedAndDeletedBlockList.wait(waitTime);
               } catch (InterruptedException ie) {
                 LOG.warn("BPOfferService for block pool="
                     + this.getBlockPoolId() + " received exception:" + ie);
@@ -1275,6 +1325,9 @@ public class DataNode extends Configured
         } catch(IOException e) {
           checkDiskError();
           throw e;
+        } finally {
+          // also report the blocks deleted before an error, if any
+          reportDeletedBlocks(bcmd.getBlockPoolId(), toDelete);
         }
         myMetrics.blocksRemoved.inc(toDelete.length);
         break;
@@ -1854,14 +1907,16 @@ public class DataNode extends Configured
     
     The client reads data until it receives a packet with 
     "LastPacketInBlock" set to true or with a zero length. If there is 
-    no checksum error, it replies to DataNode with OP_STATUS_CHECKSUM_OK:
+    no checksum error, it replies to DataNode with OP_STATUS_CHECKSUM_OK,
+    or with OP_STATUS_SUCCESS if it did not verify the checksums:
     
-    Client optional response at the end of data transmission of any length:
-      +------------------------------+
-      | 2 byte OP_STATUS_CHECKSUM_OK |
-      +------------------------------+
-    The DataNode always checks OP_STATUS_CHECKSUM_OK. It will close the
-    client connection if it is absent.
+    Client response at the end of data transmission of any length:
+      +---------------------------------------------------+
+      | 2 byte OP_STATUS_CHECKSUM_OK or OP_STATUS_SUCCESS |
+      +---------------------------------------------------+
+    The DataNode always checks the response. It will close the
+    client connection if it is absent; otherwise it waits for the next
+    op on the same connection until the keep-alive timeout expires.
     
     PACKET : Contains a packet header, checksum and data. Amount of data
     ======== carried is set by BUFFER_SIZE.
@@ -2547,6 +2602,36 @@ public class DataNode extends Configured
     return data.getReplicaVisibleLength(block);
   }
 
+  /** {@inheritDoc} */
+  @Override // ClientDataNodeProtocol
+  public BlockLocalPathInfo getBlockLocalPathInfo(ExtendedBlock block,
+      Token<BlockTokenIdentifier> token) throws IOException {
+    checkBlockLocalPathAccess();
+    if (isBlockTokenEnabled) {
+      blockPoolTokenSecretManager.checkAccess(token, null, block,
+          BlockTokenSecretManager.AccessMode.READ);
+    }
+    final BlockLocalPathInfo info = data.getBlockLocalPathInfo(block);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("getBlockLocalPathInfo successful " + info);
+    }
+    myMetrics.blockLocalPathInfoRequests.inc();
+    return info;
+  }
+
+  /**
+   * Only the users listed in dfs.block.local-path-access.user
+   * may read the replica files directly.
+   */
+  private void checkBlockLocalPathAccess() throws IOException {
+    final String user = UserGroupInformation.getCurrentUser().getShortUserName();
+    if (!blockLocalPathAccessUsers.contains(user)) {
+      throw new AccessControlException("Can't continue with "
+          + "getBlockLocalPathInfo() since user " + user
+          + " is not allowed to access the local paths of blocks.");
+    }
+  }
+
   private void checkWriteAccess(final ExtendedBlock block) throws IOException {
     if (isBlockTokenEnabled) {
       Set<TokenIdentifier> tokenIds = UserGroupInformation.getCurrentUser()
@@ -2662,6 +2747,11 @@ public class DataNode extends Configured
       innerInfo.put("usedSpace", v.usedSpace);
       innerInfo.put("freeSpace", v.freeSpace);
       innerInfo.put("reservedSpace", v.reservedSpace);
+      if (blockScanner != null) {
+        innerInfo.put("blockScanRate", blockScanner.getScanRate(v.directory));
+        innerInfo.put("blockScanBacklog",
+            blockScanner.getScanBacklog(v.directory));
+      }
       info.put(v.directory, innerInfo);
     }
     return JSON.toString(info);
@@ -27,11 +27,16 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
 import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
@@ -108,27 +113,59 @@ class DataXceiver extends DataTransferProtocol.Receiver
 
   /**
    * Read/write data from/to the DataXceiveServer.
+   * After an op, the connection is kept open for the next op of the
+   * client until the keep-alive timeout expires.
    */
   public void run() {
-    updateCurrentThreadName("Waiting for operation");
-
+    int opsProcessed = 0;
     DataInputStream in=null; 
     try {
+      final int opTimeout = s.getSoTimeout();
+      final SocketInput socketIn = new SocketInput(
+          NetUtils.getInputStream(s),
+          NetUtils.getInputStream(s, dataXceiverServer.socketKeepaliveTimeout));
       in = new DataInputStream(
-          new BufferedInputStream(NetUtils.getInputStream(s), 
-                                  SMALL_BUFFER_SIZE));
-      final DataTransferProtocol.Op op = readOp(in);
-
-      // Make sure the xciver count is not exceeded
-      int curXceiverCount = datanode.getXceiverCount();
-      if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
-        throw new IOException("xceiverCount " + curXceiverCount
-                              + " exceeds the limit of concurrent xcievers "
-                              + dataXceiverServer.maxXceiverCount);
-      }
+          new BufferedInputStream(socketIn, SMALL_BUFFER_SIZE));
+      do {
+        updateCurrentThreadName("Waiting for operation #" + (opsProcessed + 1));
+        final DataTransferProtocol.Op op;
+        try {
+          if (opsProcessed != 0) {
+            socketIn.setIdle(true);
+            s.setSoTimeout(dataXceiverServer.socketKeepaliveTimeout);
+          }
+          op = readOp(in);
+        } catch (InterruptedIOException ignored) {
+          // the client did not send another op in time
+          break;
+        } catch (IOException err) {
+          // the client may close a reused connection at any time
+          if (opsProcessed > 0 && (err instanceof EOFException
+              || err instanceof ClosedChannelException)) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Closing " + s + " after " + opsProcessed + " ops");
+            }
+            break;
+          }
+          throw err;
+        }
+        if (opsProcessed != 0) {
+          socketIn.setIdle(false);
+          s.setSoTimeout(opTimeout);
+        }
+
+        // Make sure the xciver count is not exceeded
+        int curXceiverCount = datanode.getXceiverCount();
+        if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
+          throw new IOException("xceiverCount " + curXceiverCount
+                                + " exceeds the limit of concurrent xcievers "
+                                + dataXceiverServer.maxXceiverCount);
+        }
 
-      opStartTime = now();
-      processOp(op, in);
+        opStartTime = now();
+        processOp(op, in);
+        opsProcessed++;
+      } while (!s.isClosed() && dataXceiverServer.socketKeepaliveTimeout > 0);
     } catch (Throwable t) {
       LOG.error(datanode.getMachineName() + ":DataXceiver",t);
     } finally {
@@ -143,6 +180,27 @@ class DataXceiver extends DataTransferProtocol.Receiver
     }
   }
 
+  /**
+   * The input stream of the socket, which reads with the keep-alive
+   * timeout while the connection is idle between two ops.
+   * Both underlying streams read from the same socket without buffering,
+   * so switching between them does not lose any data.
+   */
+  private static class SocketInput extends FilterInputStream {
+    private final InputStream opIn;
+    private final InputStream idleIn;
+
+    SocketInput(InputStream opIn, InputStream idleIn) {
+      super(opIn);
+      this.opIn = opIn;
+      this.idleIn = idleIn;
+    }
+
+    void setIdle(boolean idle) {
+      in = idle? idleIn: opIn;
+    }
+  }
+
   /**
    * Read a block from the disk.
    */
@@ -182,12 +240,35 @@ class DataXceiver extends DataTransferProtocol.Receiver
 
       SUCCESS.write(out); // send op status
       long read = blockSender.sendBlock(out, baseStream, null); // send data
+
+      if (blockSender.didSendEntireByteRange()) {
+        // the client sends a status code after reading the entire range;
+        // the connection is kept open for its next op only if it does.
+        try {
+          final DataTransferProtocol.Status stat =
+              DataTransferProtocol.Status.read(in);
+          if (stat == null) {
+            LOG.warn("Client " + s.getInetAddress() + " did not send a valid"
+                + " status code after reading, closing the connection.");
+            IOUtils.closeStream(out);
+          }
+        } catch (IOException ioe) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Error reading the client status response,"
+                + " closing the connection.", ioe);
+          }
+          IOUtils.closeStream(out);
+        }
+      } else {
+        IOUtils.closeStream(out);
+      }
       
       datanode.myMetrics.bytesRead.inc((int) read);
       datanode.myMetrics.blocksRead.inc();
     } catch ( SocketException ignored ) {
       // Its ok for remote side to close the connection anytime.
       datanode.myMetrics.blocksRead.inc();
+      IOUtils.closeStream(out);
     } catch ( IOException ioe ) {
       /* What exactly should we do here?
        * Earlier version shutdown() datanode if there is disk error.
@@ -196,9 +277,9 @@ class DataXceiver extends DataTransferProtocol.Receiver
           block + " to " +
                 s.getInetAddress() + ":\n" + 
                 StringUtils.stringifyException(ioe) );
+      IOUtils.closeStream(out);
       throw ioe;
     } finally {
-      IOUtils.closeStream(out);
       IOUtils.closeStream(blockSender);
     }
 
@@ -58,6 +58,13 @@ class DataXceiverServer implements Runnable, FSConstants {
    */
   int maxXceiverCount = DFSConfigKeys.DFS_DATANODE_MAX_XCIEVERS_DEFAULT;
 
+  /**
+   * How long an xceiver waits for the next op on a connection
+   * once it has served an op; 0 closes the connection after each op.
+   */
+  int socketKeepaliveTimeout =
+      DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_DEFAULT;
+
   /** A manager to make sure that cluster balancing does not
    * take too much resources.
    * 
@@ -117,6 +124,10 @@ class DataXceiverServer implements Runnable, FSConstants {
     this.maxXceiverCount = 
       conf.getInt(DFSConfigKeys.DFS_DATANODE_MAX_XCIEVERS_KEY,
                   DFSConfigKeys.DFS_DATANODE_MAX_XCIEVERS_DEFAULT);
+
+    this.socketKeepaliveTimeout =
+      conf.getInt(DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_KEY,
+                  DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_DEFAULT);
     
     this.estimateBlockSize = 
       conf.getLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, DEFAULT_BLOCK_SIZE);
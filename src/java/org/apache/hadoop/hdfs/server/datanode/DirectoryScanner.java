@@ -17,13 +17,22 @@
  */
 package org.apache.hadoop.hdfs.server.datanode;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.concurrent.Callable;
@@ -41,6 +50,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.common.HdfsConstants.ReplicaState;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.BlockPoolSlice;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
 import org.apache.hadoop.hdfs.util.DaemonFactory;
 
@@ -48,11 +59,30 @@ import org.apache.hadoop.hdfs.util.DaemonFactory;
  * Periodically scans the data directories for block and block metadata files.
  * Reconciles the differences with block information maintained in
  * {@link FSDataset}
+ *
+ * In the incremental mode, the scanner keeps a digest of the replicas in
+ * every finalized directory as of its last listing, together with the
+ * modification time of the directory, and saves them in the block pool
+ * directory of each volume.  A directory is listed again only if its
+ * modification time changed or the replicas in memory no longer match
+ * the digest; only the replicas of the listed directories are compared
+ * with memory.
  */
 @InterfaceAudience.Private
 public class DirectoryScanner implements Runnable {
   private static final Log LOG = LogFactory.getLog(DirectoryScanner.class);
   private static final int DEFAULT_SCAN_INTERVAL = 21600;
+  /** The file in the block pool directory with the directory digests. */
+  static final String DIGEST_FILE = "dirscan.digests";
+  private static final int DIGEST_FILE_VERSION = 1;
+  /**
+   * The resolution of directory modification times.  The time of a
+   * directory modified as recently as that before it is listed is not
+   * trusted, since a later change may keep the same time.
+   */
+  private static final long MTIME_GRANULARITY = 2000L;
+  /** The number of replicas copied per lock of the replicas map. */
+  private static final int REPLICA_BATCH_SIZE = 10000;
 
   private final FSDataset dataset;
   private final ExecutorService reportCompileThreadPool;
@@ -60,6 +90,14 @@ public class DirectoryScanner implements Runnable {
   private final long scanPeriodMsecs;
   private volatile boolean shouldRun = false;
   private boolean retainDiffs = false;
+  private final boolean incremental;
+  /**
+   * The directory digests of the finalized directory of every block pool
+   * on every volume, used in the incremental mode.  A missing entry is
+   * read from the digest file.
+   */
+  private final Map<FSVolume, Map<String, DirDigest>> digests =
+    new HashMap<FSVolume, Map<String, DirDigest>>();
 
   ScanInfoPerBlockPool diffs = new ScanInfoPerBlockPool();
   Map<String, Stats> stats = new HashMap<String, Stats>();
@@ -80,6 +118,7 @@ public class DirectoryScanner implements Runnable {
     long missingBlockFile = 0;
     long missingMemoryBlocks = 0;
     long mismatchBlocks = 0;
+    long listedDirs = 0;
     
     public Stats(String bpid) {
       this.bpid = bpid;
@@ -90,7 +129,8 @@ public class DirectoryScanner implements Runnable {
       + " Total blocks: " + totalBlocks + ", missing metadata files:"
       + missingMetaFile + ", missing block files:" + missingBlockFile
       + ", missing blocks in memory:" + missingMemoryBlocks
-      + ", mismatched blocks:" + mismatchBlocks;
+      + ", mismatched blocks:" + mismatchBlocks
+      + ", listed directories:" + listedDirs;
     }
   }
   
@@ -216,6 +256,137 @@ public class DirectoryScanner implements Runnable {
       return metaFile != null ? Block.getGenerationStamp(metaFile.getName()) :
         GenerationStamp.GRANDFATHER_GENERATION_STAMP;
     }
+
+    /** @return the digest of the replica, as in memory if it were there */
+    long getDigest() {
+      return digest(blockId, getGenStamp(),
+          blockFile != null ? blockFile.length() : -1);
+    }
+  }
+
+  /** @return the digest of a replica, to be summed over a directory */
+  static long digest(long blockId, long genStamp, long numBytes) {
+    long h = blockId * 0x9E3779B97F4A7C15L;
+    h ^= (h >>> 32) ^ genStamp * 0xC2B2AE3D27D4EB4FL;
+    h ^= (h >>> 29) ^ numBytes * 0x165667B19E3779F9L;
+    return h ^ (h >>> 32);
+  }
+
+  /** The sum of the digests of the replicas in memory in a directory */
+  private static class DigestSum {
+    long sum = 0;
+    int count = 0;
+  }
+
+  /**
+   * The digest of the replicas in a finalized directory as of its last
+   * listing, with the digests of its subdirectories.
+   */
+  static class DirDigest {
+    private static final DirDigest[] NO_CHILDREN = new DirDigest[0];
+
+    final String name;
+    /** The modification time of the directory, 0 if it is not trusted. */
+    final long mtime;
+    /** The sum of the digests of the block and metadata files. */
+    final long digest;
+    /** The number of blocks, including metadata files without a block. */
+    final int numBlocks;
+    final DirDigest[] children;
+
+    DirDigest(String name, long mtime, long digest, int numBlocks,
+        List<DirDigest> children) {
+      this.name = name;
+      this.mtime = mtime;
+      this.digest = digest;
+      this.numBlocks = numBlocks;
+      this.children = children.isEmpty() ? NO_CHILDREN
+          : children.toArray(new DirDigest[children.size()]);
+    }
+
+    DirDigest getChild(String childName) {
+      for (DirDigest c : children) {
+        if (c.name.equals(childName)) {
+          return c;
+        }
+      }
+      return null;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeUTF(name);
+      out.writeLong(mtime);
+      out.writeLong(digest);
+      out.writeInt(numBlocks);
+      out.writeInt(children.length);
+      for (DirDigest c : children) {
+        c.write(out);
+      }
+    }
+
+    static DirDigest read(DataInputStream in) throws IOException {
+      final String name = in.readUTF();
+      final long mtime = in.readLong();
+      final long digest = in.readLong();
+      final int numBlocks = in.readInt();
+      final int n = in.readInt();
+      final List<DirDigest> children = new ArrayList<DirDigest>(n);
+      for (int i = 0; i < n; i++) {
+        children.add(read(in));
+      }
+      return new DirDigest(name, mtime, digest, numBlocks, children);
+    }
+  }
+
+  /** Read the directory digests saved in a block pool directory. */
+  static DirDigest loadDigests(File bpCurrentDir) {
+    final File f = new File(bpCurrentDir, DIGEST_FILE);
+    if (!f.exists()) {
+      return null;
+    }
+    try {
+      final DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(f)));
+      try {
+        final int version = in.readInt();
+        if (version != DIGEST_FILE_VERSION) {
+          throw new IOException("Unexpected version " + version);
+        }
+        return DirDigest.read(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read " + f + ", listing all the directories", e);
+      return null;
+    }
+  }
+
+  /** Save the directory digests in a block pool directory. */
+  static void saveDigests(File bpCurrentDir, DirDigest root) {
+    final File f = new File(bpCurrentDir, DIGEST_FILE);
+    if (root == null) {
+      f.delete();
+      return;
+    }
+    final File tmp = new File(bpCurrentDir, DIGEST_FILE + ".tmp");
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(DIGEST_FILE_VERSION);
+        root.write(out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(f)) {
+        if (!f.delete() || !tmp.renameTo(f)) {
+          throw new IOException("Could not rename " + tmp + " to " + f);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to save the directory digests in " + f, e);
+    }
   }
 
   DirectoryScanner(FSDataset dataset, Configuration conf) {
@@ -227,6 +398,10 @@ public class DirectoryScanner implements Runnable {
         conf.getInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THREADS_KEY,
                     DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THREADS_DEFAULT);
 
+    incremental = conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_KEY,
+        DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_DEFAULT);
+
     reportCompileThreadPool = Executors.newFixedThreadPool(threads, 
         new DaemonFactory());
     masterThread = new ScheduledThreadPoolExecutor(1, new DaemonFactory());
@@ -325,68 +500,297 @@ public class DirectoryScanner implements Runnable {
    */
   void scan() {
     clear();
+    if (incremental) {
+      scanIncremental();
+      return;
+    }
     Map<String, ScanInfo[]> diskReport = getDiskReport();
 
-    // Hold FSDataset lock to prevent further changes to the block map
-    synchronized(dataset) {
-      for (Entry<String, ScanInfo[]> entry : diskReport.entrySet()) {
-        String bpid = entry.getKey();
-        ScanInfo[] blockpoolReport = entry.getValue();
-        
-        Stats statsRecord = new Stats(bpid);
-        stats.put(bpid, statsRecord);
-        LinkedList<ScanInfo> diffRecord = new LinkedList<ScanInfo>();
-        diffs.put(bpid, diffRecord);
-        
-        statsRecord.totalBlocks = blockpoolReport.length;
-        List<Block> bl = dataset.getFinalizedBlocks(bpid);
-        Block[] memReport = bl.toArray(new Block[bl.size()]);
-        Arrays.sort(memReport); // Sort based on blockId
-  
-        int d = 0; // index for blockpoolReport
-        int m = 0; // index for memReprot
-        while (m < memReport.length && d < blockpoolReport.length) {
-          Block memBlock = memReport[Math.min(m, memReport.length - 1)];
-          ScanInfo info = blockpoolReport[Math.min(
-              d, blockpoolReport.length - 1)];
-          if (info.getBlockId() < memBlock.getBlockId()) {
-            // Block is missing in memory
-            statsRecord.missingMemoryBlocks++;
-            addDifference(diffRecord, statsRecord, info);
-            d++;
+    // getFinalizedBlocks() returns a snapshot of the replicas map, and
+    // checkAndUpdate() checks every difference again under the replica lock,
+    // so the dataset is not locked for the whole scan.
+    for (Entry<String, ScanInfo[]> entry : diskReport.entrySet()) {
+      String bpid = entry.getKey();
+      ScanInfo[] blockpoolReport = entry.getValue();
+      
+      Stats statsRecord = new Stats(bpid);
+      stats.put(bpid, statsRecord);
+      LinkedList<ScanInfo> diffRecord = new LinkedList<ScanInfo>();
+      diffs.put(bpid, diffRecord);
+      
+      statsRecord.totalBlocks = blockpoolReport.length;
+      List<Block> bl = dataset.getFinalizedBlocks(bpid);
+      Block[] memReport = bl.toArray(new Block[bl.size()]);
+      Arrays.sort(memReport); // Sort based on blockId
+
+      int d = 0; // index for blockpoolReport
+      int m = 0; // index for memReprot
+      while (m < memReport.length && d < blockpoolReport.length) {
+        Block memBlock = memReport[Math.min(m, memReport.length - 1)];
+        ScanInfo info = blockpoolReport[Math.min(
+            d, blockpoolReport.length - 1)];
+        if (info.getBlockId() < memBlock.getBlockId()) {
+          // Block is missing in memory
+          statsRecord.missingMemoryBlocks++;
+          addDifference(diffRecord, statsRecord, info);
+          d++;
+          continue;
+        }
+        if (info.getBlockId() > memBlock.getBlockId()) {
+          // Block is missing on the disk
+          addDifference(diffRecord, statsRecord, memBlock.getBlockId());
+          m++;
+          continue;
+        }
+        // Block file and/or metadata file exists on the disk
+        // Block exists in memory
+        if (info.getBlockFile() == null) {
+          // Block metadata file exits and block file is missing
+          addDifference(diffRecord, statsRecord, info);
+        } else if (info.getGenStamp() != memBlock.getGenerationStamp()
+            || info.getBlockFile().length() != memBlock.getNumBytes()) {
+          // Block metadata file is missing or has wrong generation stamp,
+          // or block file length is different than expected
+          statsRecord.mismatchBlocks++;
+          addDifference(diffRecord, statsRecord, info);
+        }
+        d++;
+        m++;
+      }
+      while (m < memReport.length) {
+        addDifference(diffRecord, statsRecord, memReport[m++].getBlockId());
+      }
+      while (d < blockpoolReport.length) {
+        statsRecord.missingMemoryBlocks++;
+        addDifference(diffRecord, statsRecord, blockpoolReport[d++]);
+      }
+      LOG.info(statsRecord.toString());
+    } //end for
+  }
+
+  /**
+   * Scan for the differences between disk and in-memory blocks in the
+   * finalized directories which changed since they were listed last.
+   */
+  private void scanIncremental() {
+    final String[] bpids = dataset.volumeMap.getBlockPoolList();
+    for (String bpid : bpids) {
+      stats.put(bpid, new Stats(bpid));
+      diffs.put(bpid, new LinkedList<ScanInfo>());
+    }
+    final Map<FSVolume, Map<String, Map<File, DigestSum>>> memory =
+      getMemoryDigests(bpids);
+
+    final List<FSVolume> volumes = dataset.volumes.getVolumes();
+    digests.keySet().retainAll(volumes);
+    final Map<FSVolume, Future<Map<String, IncrementalReport>>> compilers =
+      new HashMap<FSVolume, Future<Map<String, IncrementalReport>>>();
+    for (FSVolume vol : volumes) {
+      if (!dataset.volumes.isValid(vol)) {
+        continue;
+      }
+      Map<String, DirDigest> old = digests.get(vol);
+      if (old == null) {
+        old = new HashMap<String, DirDigest>();
+        digests.put(vol, old);
+      }
+      Map<String, Map<File, DigestSum>> mem = memory.get(vol);
+      if (mem == null) {
+        mem = new HashMap<String, Map<File, DigestSum>>();
+      }
+      compilers.put(vol, reportCompileThreadPool.submit(
+          new IncrementalReportCompiler(vol,
+              new HashMap<String, DirDigest>(old), mem)));
+    }
+
+    final Map<String, List<IncrementalReport>> reports =
+      new HashMap<String, List<IncrementalReport>>();
+    for (Entry<FSVolume, Future<Map<String, IncrementalReport>>> e :
+        compilers.entrySet()) {
+      final Map<String, IncrementalReport> volumeReports;
+      try {
+        volumeReports = e.getValue().get();
+      } catch (Exception ex) {
+        LOG.error("Error compiling report", ex);
+        // Propagate ex to DataBlockScanner to deal with
+        throw new RuntimeException(ex);
+      }
+      for (Entry<String, IncrementalReport> r : volumeReports.entrySet()) {
+        digests.get(e.getKey()).put(r.getKey(), r.getValue().root);
+        List<IncrementalReport> list = reports.get(r.getKey());
+        if (list == null) {
+          list = new ArrayList<IncrementalReport>();
+          reports.put(r.getKey(), list);
+        }
+        list.add(r.getValue());
+      }
+    }
+
+    for (Entry<String, List<IncrementalReport>> e : reports.entrySet()) {
+      final String bpid = e.getKey();
+      Stats statsRecord = stats.get(bpid);
+      LinkedList<ScanInfo> diffRecord = diffs.get(bpid);
+      if (statsRecord == null) {
+        // the block pool was added during the scan
+        continue;
+      }
+      compareIncremental(bpid, e.getValue(), statsRecord, diffRecord);
+      LOG.info(statsRecord.toString());
+    }
+  }
+
+  /**
+   * Sum the digests of the finalized replicas in memory per directory.
+   * The replicas are copied in batches, so that the replicas map is only
+   * locked for a batch at a time, and summed outside the lock.
+   * @return the sums per directory per block pool per volume
+   */
+  private Map<FSVolume, Map<String, Map<File, DigestSum>>> getMemoryDigests(
+      String[] bpids) {
+    final Map<FSVolume, Map<String, Map<File, DigestSum>>> memory =
+      new HashMap<FSVolume, Map<String, Map<File, DigestSum>>>();
+    final List<ReplicaInfo> batch =
+      new ArrayList<ReplicaInfo>(REPLICA_BATCH_SIZE);
+    for (String bpid : bpids) {
+      for (int position = 0; position >= 0; ) {
+        batch.clear();
+        position = dataset.volumeMap.copyReplicas(bpid, position,
+            REPLICA_BATCH_SIZE, batch);
+        for (ReplicaInfo r : batch) {
+          if (r.getState() != ReplicaState.FINALIZED) {
             continue;
           }
-          if (info.getBlockId() > memBlock.getBlockId()) {
-            // Block is missing on the disk
-            addDifference(diffRecord, statsRecord, memBlock.getBlockId());
-            m++;
-            continue;
+          Map<String, Map<File, DigestSum>> perBp = memory.get(r.getVolume());
+          if (perBp == null) {
+            perBp = new HashMap<String, Map<File, DigestSum>>();
+            memory.put(r.getVolume(), perBp);
           }
-          // Block file and/or metadata file exists on the disk
-          // Block exists in memory
-          if (info.getBlockFile() == null) {
-            // Block metadata file exits and block file is missing
-            addDifference(diffRecord, statsRecord, info);
-          } else if (info.getGenStamp() != memBlock.getGenerationStamp()
-              || info.getBlockFile().length() != memBlock.getNumBytes()) {
-            // Block metadata file is missing or has wrong generation stamp,
-            // or block file length is different than expected
-            statsRecord.mismatchBlocks++;
-            addDifference(diffRecord, statsRecord, info);
+          Map<File, DigestSum> perDir = perBp.get(bpid);
+          if (perDir == null) {
+            perDir = new HashMap<File, DigestSum>();
+            perBp.put(bpid, perDir);
           }
-          d++;
-          m++;
-        }
-        while (m < memReport.length) {
-          addDifference(diffRecord, statsRecord, memReport[m++].getBlockId());
+          final File dir = r.getDir();
+          DigestSum d = perDir.get(dir);
+          if (d == null) {
+            d = new DigestSum();
+            perDir.put(dir, d);
+          }
+          d.sum += digest(r.getBlockId(), r.getGenerationStamp(),
+              r.getNumBytes());
+          d.count++;
         }
-        while (d < blockpoolReport.length) {
+      }
+    }
+    return memory;
+  }
+
+  /**
+   * Compare the blocks found in the listed directories with memory, and
+   * the blocks in memory in the listed directories with the disk.  The
+   * replicas map is locked only to look up a block.
+   *
+   * The digests of the replicas in memory found on the disk are taken off
+   * the digests in memory of their directories.  Only if a listed
+   * directory is left with replicas in memory which were not found are
+   * the replicas of the block pool visited again, in batches, to find them.
+   */
+  private void compareIncremental(String bpid,
+      List<IncrementalReport> volumeReports, Stats statsRecord,
+      LinkedList<ScanInfo> diffRecord) {
+    final Set<Long> found = new HashSet<Long>();
+    final Map<FSVolume, Map<File, DigestSum>> listedDirs =
+      new HashMap<FSVolume, Map<File, DigestSum>>();
+    for (IncrementalReport r : volumeReports) {
+      statsRecord.totalBlocks += r.totalBlocks;
+      statsRecord.listedDirs += r.numListed;
+      if (!r.listedDirs.isEmpty()) {
+        listedDirs.put(r.volume, r.listedDirs);
+      }
+    }
+    for (IncrementalReport r : volumeReports) {
+      for (ScanInfo info : r.entries) {
+        found.add(info.getBlockId());
+        final ReplicaInfo memBlock = dataset.fetchReplicaInfo(bpid,
+            info.getBlockId());
+        if (memBlock == null
+            || memBlock.getState() != ReplicaState.FINALIZED) {
+          // Block is missing in memory
           statsRecord.missingMemoryBlocks++;
-          addDifference(diffRecord, statsRecord, blockpoolReport[d++]);
+          addDifference(diffRecord, statsRecord, info);
+          continue;
+        }
+        takeOff(listedDirs, memBlock);
+        if (info.getBlockFile() == null) {
+          // Block metadata file exits and block file is missing
+          addDifference(diffRecord, statsRecord, info);
+        } else if (info.getGenStamp() != memBlock.getGenerationStamp()
+            || info.getBlockFile().length() != memBlock.getNumBytes()) {
+          // Block metadata file is missing or has wrong generation stamp,
+          // or block file length is different than expected
+          statsRecord.mismatchBlocks++;
+          addDifference(diffRecord, statsRecord, info);
+        }
+      }
+    }
+
+    // the listed directories with replicas in memory not found on the disk
+    final Map<FSVolume, Set<File>> missingDirs =
+      new HashMap<FSVolume, Set<File>>();
+    for (Entry<FSVolume, Map<File, DigestSum>> e : listedDirs.entrySet()) {
+      for (Entry<File, DigestSum> d : e.getValue().entrySet()) {
+        final DigestSum rest = d.getValue();
+        if (rest != null && (rest.count != 0 || rest.sum != 0)) {
+          Set<File> dirs = missingDirs.get(e.getKey());
+          if (dirs == null) {
+            dirs = new HashSet<File>();
+            missingDirs.put(e.getKey(), dirs);
+          }
+          dirs.add(d.getKey());
         }
-        LOG.info(statsRecord.toString());
-      } //end for
-    } //end synchronized
+      }
+    }
+    if (missingDirs.isEmpty()) {
+      return;
+    }
+
+    final List<ReplicaInfo> batch =
+      new ArrayList<ReplicaInfo>(REPLICA_BATCH_SIZE);
+    final Set<Long> missing = new HashSet<Long>();
+    for (int position = 0; position >= 0; ) {
+      batch.clear();
+      position = dataset.volumeMap.copyReplicas(bpid, position,
+          REPLICA_BATCH_SIZE, batch);
+      for (ReplicaInfo r : batch) {
+        final Set<File> dirs = missingDirs.get(r.getVolume());
+        if (dirs != null && r.getState() == ReplicaState.FINALIZED
+            && !found.contains(r.getBlockId()) && dirs.contains(r.getDir())) {
+          missing.add(r.getBlockId());
+        }
+      }
+    }
+    for (long blockId : missing) {
+      // Block is missing on the disk
+      addDifference(diffRecord, statsRecord, blockId);
+    }
+  }
+
+  /**
+   * Take the digest of a replica found on the disk off the digest in
+   * memory of its directory, if the directory was listed.
+   */
+  private static void takeOff(Map<FSVolume, Map<File, DigestSum>> listedDirs,
+      ReplicaInfo memBlock) {
+    final Map<File, DigestSum> dirs = listedDirs.get(memBlock.getVolume());
+    if (dirs == null) {
+      return;
+    }
+    final DigestSum rest = dirs.get(memBlock.getDir());
+    if (rest != null) {
+      rest.sum -= digest(memBlock.getBlockId(),
+          memBlock.getGenerationStamp(), memBlock.getNumBytes());
+      rest.count--;
+    }
   }
 
   /**
@@ -479,44 +883,179 @@ public class DirectoryScanner implements Runnable {
     /** Compile list {@link ScanInfo} for the blocks in the directory <dir> */
     private LinkedList<ScanInfo> compileReport(FSVolume vol, File dir,
         LinkedList<ScanInfo> report) {
-      File[] files = dir.listFiles();
-      Arrays.sort(files);
-
-      /*
-       * Assumption: In the sorted list of files block file appears immediately
-       * before block metadata file. This is true for the current naming
-       * convention for block file blk_<blockid> and meta file
-       * blk_<blockid>_<genstamp>.meta
-       */
-      for (int i = 0; i < files.length; i++) {
-        if (files[i].isDirectory()) {
-          compileReport(vol, files[i], report);
-          continue;
+      final List<File> subdirs = new ArrayList<File>();
+      listDir(vol, dir, report, subdirs);
+      for (File subdir : subdirs) {
+        compileReport(vol, subdir, report);
+      }
+      return report;
+    }
+  }
+
+  /**
+   * List the blocks in a directory, without its subdirectories.
+   * @param report the list to add the blocks to
+   * @param subdirs the list to add the subdirectories to
+   */
+  private static void listDir(FSVolume vol, File dir, List<ScanInfo> report,
+      List<File> subdirs) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+
+    /*
+     * Assumption: In the sorted list of files block file appears immediately
+     * before block metadata file. This is true for the current naming
+     * convention for block file blk_<blockid> and meta file
+     * blk_<blockid>_<genstamp>.meta
+     */
+    for (int i = 0; i < files.length; i++) {
+      if (files[i].isDirectory()) {
+        subdirs.add(files[i]);
+        continue;
+      }
+      if (!Block.isBlockFilename(files[i])) {
+        if (isBlockMetaFile("blk_", files[i].getName())) {
+          long blockId = Block.getBlockId(files[i].getName());
+          report.add(new ScanInfo(blockId, null, files[i], vol));
         }
-        if (!Block.isBlockFilename(files[i])) {
-          if (isBlockMetaFile("blk_", files[i].getName())) {
-            long blockId = Block.getBlockId(files[i].getName());
-            report.add(new ScanInfo(blockId, null, files[i], vol));
-          }
-          continue;
+        continue;
+      }
+      File blockFile = files[i];
+      long blockId = Block.filename2id(blockFile.getName());
+      File metaFile = null;
+
+      // Skip all the files that start with block name until
+      // getting to the metafile for the block
+      while (i + 1 < files.length && files[i + 1].isFile()
+          && files[i + 1].getName().startsWith(blockFile.getName())) {
+        i++;
+        if (isBlockMetaFile(blockFile.getName(), files[i].getName())) {
+          metaFile = files[i];
+          break;
+        }
+      }
+      report.add(new ScanInfo(blockId, blockFile, metaFile, vol));
+    }
+  }
+
+  /** The blocks in the directories of a block pool listed by a scan */
+  private static class IncrementalReport {
+    final FSVolume volume;
+    /** The new digests of the finalized directory. */
+    DirDigest root = null;
+    /** The blocks in the listed directories. */
+    final LinkedList<ScanInfo> entries = new LinkedList<ScanInfo>();
+    /**
+     * The listed directories, and the directories of replicas in memory
+     * which are not on the disk, with the digests of their replicas in
+     * memory, or null if there are none.
+     */
+    final Map<File, DigestSum> listedDirs = new HashMap<File, DigestSum>();
+    long numListed = 0;
+    long totalBlocks = 0;
+
+    IncrementalReport(FSVolume volume) {
+      this.volume = volume;
+    }
+  }
+
+  /**
+   * Lists the finalized directories of a volume which changed since they
+   * were listed last, and saves the new digests.
+   */
+  private static class IncrementalReportCompiler
+  implements Callable<Map<String, IncrementalReport>> {
+    private final FSVolume volume;
+    private final Map<String, DirDigest> oldDigests;
+    private final Map<String, Map<File, DigestSum>> memory;
+
+    IncrementalReportCompiler(FSVolume volume,
+        Map<String, DirDigest> oldDigests,
+        Map<String, Map<File, DigestSum>> memory) {
+      this.volume = volume;
+      this.oldDigests = oldDigests;
+      this.memory = memory;
+    }
+
+    @Override
+    public Map<String, IncrementalReport> call() throws Exception {
+      String[] bpList = volume.getBlockPoolList();
+      Map<String, IncrementalReport> result =
+        new HashMap<String, IncrementalReport>(bpList.length);
+      for (String bpid : bpList) {
+        final BlockPoolSlice bp = volume.getBlockPoolSlice(bpid);
+        DirDigest old = oldDigests.get(bpid);
+        if (old == null) {
+          old = loadDigests(bp.getCurrentDir());
         }
-        File blockFile = files[i];
-        long blockId = Block.filename2id(blockFile.getName());
-        File metaFile = null;
-
-        // Skip all the files that start with block name until
-        // getting to the metafile for the block
-        while (i + 1 < files.length && files[i + 1].isFile()
-            && files[i + 1].getName().startsWith(blockFile.getName())) {
-          i++;
-          if (isBlockMetaFile(blockFile.getName(), files[i].getName())) {
-            metaFile = files[i];
-            break;
+        Map<File, DigestSum> mem = memory.get(bpid);
+        if (mem == null) {
+          mem = new HashMap<File, DigestSum>();
+        }
+        final IncrementalReport report = new IncrementalReport(volume);
+        report.root = walk(bp.getFinalizedDir(), old, mem, report);
+        // replicas in memory in directories which are not on the disk
+        report.listedDirs.putAll(mem);
+        saveDigests(bp.getCurrentDir(), report.root);
+        result.put(bpid, report);
+      }
+      return result;
+    }
+
+    /**
+     * List the directory if it changed since the old digest was taken,
+     * and walk its subdirectories.
+     * @param mem the digests of the directories in memory, from which the
+     *        directories walked are removed
+     * @return the new digest of the directory, null if it does not exist
+     */
+    private DirDigest walk(File dir, DirDigest old, Map<File, DigestSum> mem,
+        IncrementalReport report) {
+      final long now = System.currentTimeMillis();
+      final long mtime = dir.lastModified();
+      if (mtime == 0) {
+        return null;
+      }
+      final DigestSum memDigest = mem.remove(dir);
+      final List<DirDigest> children = new ArrayList<DirDigest>();
+      if (old != null && old.mtime == mtime
+          && old.digest == (memDigest == null ? 0 : memDigest.sum)) {
+        // neither the directory nor its replicas in memory changed
+        report.totalBlocks += old.numBlocks;
+        for (DirDigest c : old.children) {
+          final DirDigest d = walk(new File(dir, c.name), c, mem, report);
+          if (d != null) {
+            children.add(d);
           }
         }
-        report.add(new ScanInfo(blockId, blockFile, metaFile, vol));
+        return new DirDigest(old.name, old.mtime, old.digest, old.numBlocks,
+            children);
       }
-      return report;
+
+      final List<ScanInfo> entries = new ArrayList<ScanInfo>();
+      final List<File> subdirs = new ArrayList<File>();
+      listDir(volume, dir, entries, subdirs);
+      long digest = 0;
+      for (ScanInfo info : entries) {
+        digest += info.getDigest();
+      }
+      report.entries.addAll(entries);
+      report.listedDirs.put(dir, memDigest);
+      report.numListed++;
+      report.totalBlocks += entries.size();
+      for (File subdir : subdirs) {
+        final DirDigest d = walk(subdir,
+            old == null ? null : old.getChild(subdir.getName()), mem, report);
+        if (d != null) {
+          children.add(d);
+        }
+      }
+      return new DirDigest(dir.getName(),
+          now - mtime < MTIME_GRANULARITY ? 0 : mtime, digest, entries.size(),
+          children);
     }
   }
 }
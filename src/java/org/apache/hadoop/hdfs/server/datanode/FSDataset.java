@@ -18,14 +18,20 @@
 package org.apache.hadoop.hdfs.server.datanode;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
@@ -39,6 +45,10 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
@@ -47,11 +57,11 @@ import javax.management.StandardMBean;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.DF;
-import org.apache.hadoop.fs.DU;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.protocol.RecoveryInProgressException;
@@ -299,9 +309,18 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private final FSDir finalizedDir; // directory store Finalized replica
     private final File rbwDir; // directory store RBW replica
     private final File tmpDir; // directory store Temporary replica
-    
-    // TODO:FEDERATION scalability issue - a thread per DU is needed
-    private final DU dfsUsage;
+
+    /**
+     * The bytes used by the finalized replicas, kept up to date as the
+     * replicas are finalized and deleted instead of running du.
+     */
+    private final AtomicLong dfsUsed = new AtomicLong();
+    /** Whether dfsUsed is known, or is to be counted by the startup scan. */
+    private boolean dfsUsedKnown;
+    /** The time dfsUsed was saved if it was loaded, otherwise -1. */
+    private long dfsUsedSavedTime = -1;
+    /** Whether the finalized replicas are saved at shutdown. */
+    private final boolean replicaCacheEnabled;
 
     /**
      * 
@@ -343,8 +362,66 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           throw new IOException("Mkdirs failed to create " + tmpDir.toString());
         }
       }
-      this.dfsUsage = new DU(bpDir, conf);
-      this.dfsUsage.start();
+      this.replicaCacheEnabled = conf.getBoolean(
+          DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_ENABLED_KEY,
+          DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_ENABLED_DEFAULT);
+      this.dfsUsedKnown = loadDfsUsed(conf.getLong(
+          DFSConfigKeys.DFS_DATANODE_CACHED_DFSUSED_CHECK_INTERVAL_MS_KEY,
+          DFSConfigKeys.DFS_DATANODE_CACHED_DFSUSED_CHECK_INTERVAL_MS_DEFAULT));
+    }
+
+    /**
+     * Read the dfs usage saved at the last shutdown.  The file is removed,
+     * so that the value is not used again after a crash.
+     * @param maxAge the maximum age of a usable value in milliseconds
+     * @return true if dfsUsed was set from the saved value
+     */
+    private boolean loadDfsUsed(long maxAge) {
+      final File f = new File(currentDir, DFS_USED_FILE);
+      if (!f.exists()) {
+        return false;
+      }
+      try {
+        final BufferedReader in = new BufferedReader(new FileReader(f));
+        try {
+          final String[] fields = in.readLine().trim().split(" ");
+          final long used = Long.parseLong(fields[0]);
+          final long savedTime = Long.parseLong(fields[1]);
+          final long age = System.currentTimeMillis() - savedTime;
+          if (used >= 0 && age >= 0 && age < maxAge) {
+            dfsUsed.set(used);
+            dfsUsedSavedTime = savedTime;
+            DataNode.LOG.info("Cached dfsUsed found for " + currentDir
+                + ": " + used);
+            return true;
+          }
+        } finally {
+          in.close();
+        }
+      } catch (Exception e) {
+        DataNode.LOG.warn("Failed to read " + f, e);
+      } finally {
+        if (!f.delete()) {
+          DataNode.LOG.warn("Failed to delete " + f);
+        }
+      }
+      return false;
+    }
+
+    /** Save the dfs usage, to be used by the next startup. */
+    private void saveDfsUsed(long now) {
+      final File f = new File(currentDir, DFS_USED_FILE);
+      try {
+        final FileWriter out = new FileWriter(f);
+        try {
+          out.write(dfsUsed.get() + " " + now + "\n");
+        } finally {
+          out.close();
+        }
+      } catch (IOException e) {
+        DataNode.LOG.warn("Failed to write " + f, e);
+        f.delete();
+      }
     }
 
     File getDirectory() {
@@ -363,16 +440,16 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return rbwDir;
     }
     
+    void incDfsUsed(long value) {
+      dfsUsed.addAndGet(value);
+    }
+
     void decDfsUsed(long value) {
-      // The caller to this method (BlockFileDeleteTask.run()) does
-      // not have locked FSDataset.this yet.
-      synchronized(FSDataset.this) {
-        dfsUsage.decDfsUsed(value);
-      }
+      dfsUsed.addAndGet(-value);
     }
     
     long getDfsUsed() throws IOException {
-      return dfsUsage.getUsed();
+      return dfsUsed.get();
     }
     
     /**
@@ -394,9 +471,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
 
     File addBlock(Block b, File f) throws IOException {
-      File blockFile = finalizedDir.addBlock(b, f);
+      // The directory tree is shared by the replicas of the block pool
+      // on this volume, which are finalized in parallel.
+      File blockFile;
+      synchronized(finalizedDir) {
+        blockFile = finalizedDir.addBlock(b, f);
+      }
       File metaFile = getMetaFile(blockFile , b.getGenerationStamp());
-      dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
+      incDfsUsed(b.getNumBytes()+metaFile.length());
       return blockFile;
     }
       
@@ -408,9 +490,110 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       
     void getVolumeMap(ReplicasMap volumeMap) throws IOException {
       // add finalized replicas
-      finalizedDir.getVolumeMap(bpid, volumeMap, volume);
+      if (!loadReplicas(volumeMap)) {
+        finalizedDir.getVolumeMap(bpid, volumeMap, volume);
+      }
       // add rbw replicas
       addToReplicasMap(volumeMap, rbwDir, false);
+      // the scan has counted the usage if it was not saved
+      dfsUsedKnown = true;
+    }
+
+    /**
+     * Add the finalized replicas saved at the last shutdown to the volume
+     * map, instead of listing every directory of the finalized tree.
+     * The saved replicas are used only along with the dfs usage saved at
+     * the same time, see {@link #loadDfsUsed(long)}.  The file is removed,
+     * so that it is not used again once the replicas change.
+     * @return true if the saved replicas were added
+     */
+    private boolean loadReplicas(ReplicasMap volumeMap) {
+      final File f = new File(currentDir, REPLICA_CACHE_FILE);
+      if (!f.exists()) {
+        return false;
+      }
+      try {
+        if (dfsUsedSavedTime < 0) {
+          return false;
+        }
+        final List<ReplicaInfo> replicas = new ArrayList<ReplicaInfo>();
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+        try {
+          if (in.readInt() != REPLICA_CACHE_VERSION
+              || in.readLong() != dfsUsedSavedTime) {
+            return false;
+          }
+          for (int n = in.readInt(); n > 0; n--) {
+            final long blockId = in.readLong();
+            final long numBytes = in.readLong();
+            final long genStamp = in.readLong();
+            final String dir = in.readUTF();
+            replicas.add(new FinalizedReplica(blockId, numBytes, genStamp,
+                volume, dir.length() == 0 ? finalizedDir.dir
+                    : new File(finalizedDir.dir, dir)));
+          }
+        } finally {
+          in.close();
+        }
+        for (ReplicaInfo r : replicas) {
+          volumeMap.add(bpid, r);
+        }
+        DataNode.LOG.info("Loaded " + replicas.size()
+            + " finalized replicas from " + f);
+        return true;
+      } catch (IOException e) {
+        DataNode.LOG.warn("Failed to read " + f, e);
+        return false;
+      } finally {
+        if (!f.delete()) {
+          DataNode.LOG.warn("Failed to delete " + f);
+        }
+      }
+    }
+
+    /** Save the finalized replicas, to be loaded by the next startup. */
+    private void saveReplicas(long now) {
+      final File f = new File(currentDir, REPLICA_CACHE_FILE);
+      final String base = finalizedDir.dir.getPath();
+      final List<ReplicaInfo> replicas = new ArrayList<ReplicaInfo>();
+      synchronized (volumeMap.getMutext()) {
+        final Collection<ReplicaInfo> all = volumeMap.replicas(bpid);
+        if (all != null) {
+          for (ReplicaInfo r : all) {
+            if (r.getVolume() == volume
+                && r.getState() == ReplicaState.FINALIZED) {
+              replicas.add(r);
+            }
+          }
+        }
+      }
+      try {
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE));
+        try {
+          out.writeInt(REPLICA_CACHE_VERSION);
+          out.writeLong(now);
+          out.writeInt(replicas.size());
+          for (ReplicaInfo r : replicas) {
+            // the subdir path under the finalized directory
+            final String dir = r.getDir().getPath();
+            if (!dir.startsWith(base)) {
+              throw new IOException("Replica " + r + " is not under " + base);
+            }
+            out.writeLong(r.getBlockId());
+            out.writeLong(r.getNumBytes());
+            out.writeLong(r.getGenerationStamp());
+            out.writeUTF(dir.length() == base.length() ? ""
+                : dir.substring(base.length() + 1));
+          }
+        } finally {
+          out.close();
+        }
+      } catch (IOException e) {
+        DataNode.LOG.warn("Failed to write " + f, e);
+        f.delete();
+      }
     }
 
     /**
@@ -433,6 +616,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         if (isFinalized) {
           newReplica = new FinalizedReplica(blockId, 
               blockFile.length(), genStamp, volume, blockFile.getParentFile());
+          if (!dfsUsedKnown) {
+            incDfsUsed(newReplica.getNumBytes()
+                + getMetaFile(blockFile, genStamp).length());
+          }
         } else {
           newReplica = new ReplicaWaitingToBeRecovered(blockId,
               validateIntegrity(blockFile, genStamp), 
@@ -517,7 +704,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
       
     void clearPath(File f) {
-      finalizedDir.clearPath(f);
+      synchronized(finalizedDir) {
+        finalizedDir.clearPath(f);
+      }
     }
       
     public String toString() {
@@ -525,7 +714,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
     
     public void shutdown() {
-      dfsUsage.shutdown();
+      final long now = System.currentTimeMillis();
+      if (replicaCacheEnabled) {
+        saveReplicas(now);
+      }
+      saveDfsUsed(now);
     }
   }
   
@@ -534,6 +727,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private final File currentDir;    // <StorageDirectory>/current
     private final DF usage;           
     private final long reserved;
+    /** The number of client reads and writes in progress on the volume. */
+    private final AtomicInteger foregroundIo = new AtomicInteger();
     
     FSVolume(File currentDir, Configuration conf) throws IOException {
       this.reserved = conf.getLong(DFSConfigKeys.DFS_DATANODE_DU_RESERVED_KEY,
@@ -557,14 +752,29 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return bp.getRbwDir();
     }
     
+    void incDfsUsed(String bpid, long value) {
+      datasetLock.readLock().lock();
+      try {
+        BlockPoolSlice bp = map.get(bpid);
+        if (bp != null) {
+          bp.incDfsUsed(value);
+        }
+      } finally {
+        datasetLock.readLock().unlock();
+      }
+    }
+
     void decDfsUsed(String bpid, long value) {
       // The caller to this method (BlockFileDeleteTask.run()) does
-      // not have locked FSDataset.this yet.
-      synchronized(FSDataset.this) {
+      // not hold the dataset lock yet.
+      datasetLock.readLock().lock();
+      try {
         BlockPoolSlice bp = map.get(bpid);
         if (bp != null) {
           bp.decDfsUsed(value);
         }
+      } finally {
+        datasetLock.readLock().unlock();
       }
     }
     
@@ -604,6 +814,21 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     long getReserved(){
       return reserved;
     }
+
+    /** A client read or write of a replica on the volume starts. */
+    void beginForegroundIo() {
+      foregroundIo.incrementAndGet();
+    }
+
+    /** A read or write started by {@link #beginForegroundIo()} ends. */
+    void endForegroundIo() {
+      foregroundIo.decrementAndGet();
+    }
+
+    /** @return the number of client reads and writes in progress */
+    int getForegroundIo() {
+      return foregroundIo.get();
+    }
     
     String getMount() throws IOException {
       return usage.getMount();
@@ -621,8 +846,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
      * Make a deep copy of the list of currently active BPIDs
      */
     String[] getBlockPoolList() {
-      synchronized(FSDataset.this) {
+      datasetLock.readLock().lock();
+      try {
         return map.keySet().toArray(new String[map.keySet().size()]);   
+      } finally {
+        datasetLock.readLock().unlock();
       }
     }
       
@@ -680,8 +908,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private void addToReplicasMap(String bpid, ReplicasMap volumeMap, 
         File dir, boolean isFinalized) throws IOException {
       BlockPoolSlice bp = getBlockPoolSlice(bpid);
-      // TODO move this up
-      // dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
       bp.addToReplicasMap(volumeMap, dir, isFinalized);
     }
     
@@ -839,15 +1065,55 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       
     private void getVolumeMap(ReplicasMap volumeMap)
         throws IOException {
-      for (FSVolume vol : volumes) {
-        vol.getVolumeMap(volumeMap);
-      }
+      getVolumeMap(null, volumeMap);
     }
     
-    private void getVolumeMap(String bpid, ReplicasMap volumeMap)
+    /**
+     * Add the replicas of the given block pool, or of all the block pools
+     * if bpid is null, to the volume map.  The scan of a volume waits on
+     * the disk for every directory, so the volumes are scanned in
+     * parallel, one thread per volume.
+     */
+    private void getVolumeMap(final String bpid, final ReplicasMap volumeMap)
         throws IOException {
-      for (FSVolume vol : volumes) {
-        vol.getVolumeMap(bpid, volumeMap);
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      final List<Thread> scanners = new ArrayList<Thread>();
+      for (final FSVolume vol : volumes) {
+        scanners.add(new Thread("Replica scanner of " + vol) {
+          @Override
+          public void run() {
+            try {
+              if (bpid == null) {
+                vol.getVolumeMap(volumeMap);
+              } else {
+                vol.getVolumeMap(bpid, volumeMap);
+              }
+            } catch (Throwable t) {
+              DataNode.LOG.warn("Failed to scan " + vol, t);
+              synchronized (errors) {
+                errors.add(t);
+              }
+            }
+          }
+        });
+      }
+      for (Thread t : scanners) {
+        t.start();
+      }
+      try {
+        for (Thread t : scanners) {
+          t.join();
+        }
+      } catch (InterruptedException e) {
+        throw (IOException)new InterruptedIOException(
+            "Interrupted while scanning the volumes").initCause(e);
+      }
+      if (!errors.isEmpty()) {
+        final Throwable t = errors.get(0);
+        if (t instanceof IOException) {
+          throw (IOException)t;
+        }
+        throw new IOException("Failed to scan the volumes", t);
       }
     }
       
@@ -948,6 +1214,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   public static final String METADATA_EXTENSION = ".meta";
   public static final short METADATA_VERSION = 1;
   static final String UNLINK_BLOCK_SUFFIX = ".unlinked";
+  /** The file in a block pool directory with the saved dfs usage. */
+  static final String DFS_USED_FILE = "dfsUsed";
+  /** The file in a block pool directory with the saved finalized replicas. */
+  static final String REPLICA_CACHE_FILE = "replicas";
+  private static final int REPLICA_CACHE_VERSION = 1;
 
   private static boolean isUnlinkTmpFile(File f) {
     String name = f.getName();
@@ -1037,15 +1308,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized Block getStoredBlock(String bpid, long blkid)
+  public Block getStoredBlock(String bpid, long blkid)
       throws IOException {
-    File blockfile = findBlockFile(bpid, blkid);
-    if (blockfile == null) {
-      return null;
+    lockReplica(blkid);
+    try {
+      File blockfile = findBlockFile(bpid, blkid);
+      if (blockfile == null) {
+        return null;
+      }
+      File metafile = findMetaFile(blockfile);
+      return new Block(blkid, blockfile.length(),
+          parseGenerationStamp(blockfile, metafile));
+    } finally {
+      unlockReplica(blkid);
     }
-    File metafile = findMetaFile(blockfile);
-    return new Block(blkid, blockfile.length(),
-        parseGenerationStamp(blockfile, metafile));
   }
 
   /**
@@ -1122,6 +1398,28 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   // Used for synchronizing access to usage stats
   private final Object statsLock = new Object();
 
+  /**
+   * The number of replica locks.  Operations on the replicas of different
+   * blocks only contend when the block ids fall into the same stripe.
+   */
+  static final int REPLICA_LOCK_STRIPES = 256;
+
+  /**
+   * Lock of the dataset as a whole.  An operation on a single replica holds
+   * the read lock and the lock of the replica's stripe, see
+   * {@link #lockReplica(long)}, so operations on different blocks run in
+   * parallel.  Adding or removing a block pool and dropping the replicas of
+   * a failed volume hold the write lock, see {@link #lockDataset()}.
+   *
+   * The locks are taken in the order: the dataset lock, a replica lock,
+   * the {@link ReplicasMap} mutex, then the {@link FSVolumeSet} and the
+   * statsLock monitors.
+   */
+  private final ReentrantReadWriteLock datasetLock =
+    new ReentrantReadWriteLock();
+  private final ReentrantLock[] replicaLocks =
+    new ReentrantLock[REPLICA_LOCK_STRIPES];
+
   final boolean supportAppends;
 
   /**
@@ -1152,7 +1450,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       DataNode.LOG.info("FSDataset added volume - "
           + storage.getStorageDir(idx).getCurrentDir());
     }
-    volumeMap = new ReplicasMap(this);
+    for (int i = 0; i < replicaLocks.length; i++) {
+      replicaLocks[i] = new ReentrantLock();
+    }
+    volumeMap = new ReplicasMap(new Object());
 
     BlockVolumeChoosingPolicy blockChooserImpl =
       (BlockVolumeChoosingPolicy) ReflectionUtils.newInstance(
@@ -1171,6 +1472,40 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     registerMBean(storage.getStorageID());
   }
 
+  /**
+   * Lock the replicas of a block against other operations on the
+   * same block id.  Must be paired with {@link #unlockReplica(long)}.
+   */
+  void lockReplica(long blockId) {
+    datasetLock.readLock().lock();
+    getReplicaLock(blockId).lock();
+  }
+
+  void unlockReplica(long blockId) {
+    getReplicaLock(blockId).unlock();
+    datasetLock.readLock().unlock();
+  }
+
+  private ReentrantLock getReplicaLock(long blockId) {
+    final int h = (int)(blockId ^ (blockId >>> 32));
+    return replicaLocks[(h & Integer.MAX_VALUE) % replicaLocks.length];
+  }
+
+  /**
+   * Lock the whole dataset against the operations on any replica.
+   * Must be paired with {@link #unlockDataset()}.  A thread holding
+   * a replica lock must not call this method.
+   */
+  void lockDataset() {
+    assert datasetLock.getReadHoldCount() == 0 :
+      "Cannot lock the dataset while holding a replica lock";
+    datasetLock.writeLock().lock();
+  }
+
+  void unlockDataset() {
+    datasetLock.writeLock().unlock();
+  }
+
   /**
    * Return the total space used by dfs datanode
    */
@@ -1237,7 +1572,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Get File name for a given block.
    */
-  public synchronized File getBlockFile(String bpid, Block b)
+  public File getBlockFile(String bpid, Block b)
       throws IOException {
     File f = validateBlockFile(bpid, b);
     if(f == null) {
@@ -1250,13 +1585,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
   
   @Override // FSDatasetInterface
-  public synchronized InputStream getBlockInputStream(ExtendedBlock b)
+  public InputStream getBlockInputStream(ExtendedBlock b)
       throws IOException {
     return new FileInputStream(getBlockFile(b));
   }
 
   @Override // FSDatasetInterface
-  public synchronized InputStream getBlockInputStream(ExtendedBlock b,
+  public InputStream getBlockInputStream(ExtendedBlock b,
       long seekOffset) throws IOException {
     File blockFile = getBlockFile(b);
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
@@ -1307,21 +1642,26 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * Returns handles to the block file and its metadata file
    */
   @Override // FSDatasetInterface
-  public synchronized BlockInputStreams getTmpInputStreams(ExtendedBlock b, 
+  public BlockInputStreams getTmpInputStreams(ExtendedBlock b, 
                           long blkOffset, long ckoff) throws IOException {
-    ReplicaInfo info = getReplicaInfo(b);
-    File blockFile = info.getBlockFile();
-    RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
-    if (blkOffset > 0) {
-      blockInFile.seek(blkOffset);
-    }
-    File metaFile = info.getMetaFile();
-    RandomAccessFile metaInFile = new RandomAccessFile(metaFile, "r");
-    if (ckoff > 0) {
-      metaInFile.seek(ckoff);
+    lockReplica(b.getBlockId());
+    try {
+      ReplicaInfo info = getReplicaInfo(b);
+      File blockFile = info.getBlockFile();
+      RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
+      if (blkOffset > 0) {
+        blockInFile.seek(blkOffset);
+      }
+      File metaFile = info.getMetaFile();
+      RandomAccessFile metaInFile = new RandomAccessFile(metaFile, "r");
+      if (ckoff > 0) {
+        metaInFile.seek(ckoff);
+      }
+      return new BlockInputStreams(new FileInputStream(blockInFile.getFD()),
+                                  new FileInputStream(metaInFile.getFD()));
+    } finally {
+      unlockReplica(b.getBlockId());
     }
-    return new BlockInputStreams(new FileInputStream(blockInFile.getFD()),
-                                new FileInputStream(metaInFile.getFD()));
   }
     
   /**
@@ -1425,38 +1765,44 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override  // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface append(ExtendedBlock b,
+  public ReplicaInPipelineInterface append(ExtendedBlock b,
       long newGS, long expectedBlockLen) throws IOException {
-    // If the block was successfully finalized because all packets
-    // were successfully processed at the Datanode but the ack for
-    // some of the packets were not received by the client. The client 
-    // re-opens the connection and retries sending those packets.
-    // The other reason is that an "append" is occurring to this block.
+    lockReplica(b.getBlockId());
+    try {
+      // If the block was successfully finalized because all packets
+      // were successfully processed at the Datanode but the ack for
+      // some of the packets were not received by the client. The client 
+      // re-opens the connection and retries sending those packets.
+      // The other reason is that an "append" is occurring to this block.
     
-    // check the validity of the parameter
-    if (newGS < b.getGenerationStamp()) {
-      throw new IOException("The new generation stamp " + newGS + 
-          " should be greater than the replica " + b + "'s generation stamp");
-    }
-    ReplicaInfo replicaInfo = getReplicaInfo(b);
-    DataNode.LOG.info("Appending to replica " + replicaInfo);
-    if (replicaInfo.getState() != ReplicaState.FINALIZED) {
-      throw new ReplicaNotFoundException(
-          ReplicaNotFoundException.UNFINALIZED_REPLICA + b);
-    }
-    if (replicaInfo.getNumBytes() != expectedBlockLen) {
-      throw new IOException("Corrupted replica " + replicaInfo + 
-          " with a length of " + replicaInfo.getNumBytes() + 
-          " expected length is " + expectedBlockLen);
-    }
+      // check the validity of the parameter
+      if (newGS < b.getGenerationStamp()) {
+        throw new IOException("The new generation stamp " + newGS + 
+            " should be greater than the replica " + b + "'s generation stamp");
+      }
+      ReplicaInfo replicaInfo = getReplicaInfo(b);
+      DataNode.LOG.info("Appending to replica " + replicaInfo);
+      if (replicaInfo.getState() != ReplicaState.FINALIZED) {
+        throw new ReplicaNotFoundException(
+            ReplicaNotFoundException.UNFINALIZED_REPLICA + b);
+      }
+      if (replicaInfo.getNumBytes() != expectedBlockLen) {
+        throw new IOException("Corrupted replica " + replicaInfo + 
+            " with a length of " + replicaInfo.getNumBytes() + 
+            " expected length is " + expectedBlockLen);
+      }
 
-    return append(b.getBlockPoolId(), (FinalizedReplica)replicaInfo, newGS,
-        b.getNumBytes());
+      return append(b.getBlockPoolId(), (FinalizedReplica)replicaInfo, newGS,
+          b.getNumBytes());
+    } finally {
+      unlockReplica(b.getBlockId());
+    }
   }
   
   /** Append to a finalized replica
    * Change a finalized replica to be a RBW replica and 
-   * bump its generation stamp to be the newGS
+   * bump its generation stamp to be the newGS.
+   * The caller must hold the replica lock.
    * 
    * @param bpid block pool Id
    * @param replicaInfo a finalized replica
@@ -1466,7 +1812,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * @throws IOException if moving the replica from finalized directory 
    *         to rbw directory fails
    */
-  private synchronized ReplicaBeingWritten append(String bpid,
+  private ReplicaBeingWritten append(String bpid,
       FinalizedReplica replicaInfo, long newGS, long estimateBlockLen)
       throws IOException {
     // unlink the finalized replica
@@ -1510,6 +1856,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                               " Unable to move block file " + blkfile +
                               " to rbw dir " + newBlkFile);
     }
+    // the replica is counted again when it is finalized
+    v.decDfsUsed(bpid, replicaInfo.getNumBytes() + newmeta.length());
     
     // Replace finalized replica by a RBW replica in replicas map
     volumeMap.add(bpid, newReplicaInfo);
@@ -1566,34 +1914,44 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
   
   @Override  // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface recoverAppend(ExtendedBlock b,
+  public ReplicaInPipelineInterface recoverAppend(ExtendedBlock b,
       long newGS, long expectedBlockLen) throws IOException {
-    DataNode.LOG.info("Recover failed append to " + b);
+    lockReplica(b.getBlockId());
+    try {
+      DataNode.LOG.info("Recover failed append to " + b);
 
-    ReplicaInfo replicaInfo = recoverCheck(b, newGS, expectedBlockLen);
+      ReplicaInfo replicaInfo = recoverCheck(b, newGS, expectedBlockLen);
 
-    // change the replica's state/gs etc.
-    if (replicaInfo.getState() == ReplicaState.FINALIZED ) {
-      return append(b.getBlockPoolId(), (FinalizedReplica) replicaInfo, newGS, 
-          b.getNumBytes());
-    } else { //RBW
-      bumpReplicaGS(replicaInfo, newGS);
-      return (ReplicaBeingWritten)replicaInfo;
+      // change the replica's state/gs etc.
+      if (replicaInfo.getState() == ReplicaState.FINALIZED ) {
+        return append(b.getBlockPoolId(), (FinalizedReplica) replicaInfo, newGS, 
+            b.getNumBytes());
+      } else { //RBW
+        bumpReplicaGS(replicaInfo, newGS);
+        return (ReplicaBeingWritten)replicaInfo;
+      }
+    } finally {
+      unlockReplica(b.getBlockId());
     }
   }
 
   @Override // FSDatasetInterface
   public void recoverClose(ExtendedBlock b, long newGS,
       long expectedBlockLen) throws IOException {
-    DataNode.LOG.info("Recover failed close " + b);
-    // check replica's state
-    ReplicaInfo replicaInfo = recoverCheck(b, newGS,
-        expectedBlockLen);
-    // bump the replica's GS
-    bumpReplicaGS(replicaInfo, newGS);
-    // finalize the replica if RBW
-    if (replicaInfo.getState() == ReplicaState.RBW) {
-      finalizeReplica(b.getBlockPoolId(), replicaInfo);
+    lockReplica(b.getBlockId());
+    try {
+      DataNode.LOG.info("Recover failed close " + b);
+      // check replica's state
+      ReplicaInfo replicaInfo = recoverCheck(b, newGS,
+          expectedBlockLen);
+      // bump the replica's GS
+      bumpReplicaGS(replicaInfo, newGS);
+      // finalize the replica if RBW
+      if (replicaInfo.getState() == ReplicaState.RBW) {
+        finalizeReplica(b.getBlockPoolId(), replicaInfo);
+      }
+    } finally {
+      unlockReplica(b.getBlockId());
     }
   }
   
@@ -1625,149 +1983,169 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface createRbw(ExtendedBlock b)
+  public ReplicaInPipelineInterface createRbw(ExtendedBlock b)
       throws IOException {
-    ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
-        b.getBlockId());
-    if (replicaInfo != null) {
-      throw new ReplicaAlreadyExistsException("Block " + b +
-      " already exists in state " + replicaInfo.getState() +
-      " and thus cannot be created.");
-    }
-    // create a new block
-    FSVolume v = volumes.getNextVolume(b.getNumBytes());
-    // create a rbw file to hold block in the designated volume
-    File f = v.createRbwFile(b.getBlockPoolId(), b.getLocalBlock());
-    ReplicaBeingWritten newReplicaInfo = new ReplicaBeingWritten(b.getBlockId(), 
-        b.getGenerationStamp(), v, f.getParentFile());
-    volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
-    return newReplicaInfo;
+    lockReplica(b.getBlockId());
+    try {
+      ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
+          b.getBlockId());
+      if (replicaInfo != null) {
+        throw new ReplicaAlreadyExistsException("Block " + b +
+        " already exists in state " + replicaInfo.getState() +
+        " and thus cannot be created.");
+      }
+      // create a new block
+      FSVolume v = volumes.getNextVolume(b.getNumBytes());
+      // create a rbw file to hold block in the designated volume
+      File f = v.createRbwFile(b.getBlockPoolId(), b.getLocalBlock());
+      ReplicaBeingWritten newReplicaInfo = new ReplicaBeingWritten(b.getBlockId(), 
+          b.getGenerationStamp(), v, f.getParentFile());
+      volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
+      return newReplicaInfo;
+    } finally {
+      unlockReplica(b.getBlockId());
+    }
   }
   
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface recoverRbw(ExtendedBlock b,
+  public ReplicaInPipelineInterface recoverRbw(ExtendedBlock b,
       long newGS, long minBytesRcvd, long maxBytesRcvd)
       throws IOException {
-    DataNode.LOG.info("Recover the RBW replica " + b);
+    lockReplica(b.getBlockId());
+    try {
+      DataNode.LOG.info("Recover the RBW replica " + b);
 
-    ReplicaInfo replicaInfo = getReplicaInfo(b.getBlockPoolId(), b.getBlockId());
+      ReplicaInfo replicaInfo = getReplicaInfo(b.getBlockPoolId(), b.getBlockId());
     
-    // check the replica's state
-    if (replicaInfo.getState() != ReplicaState.RBW) {
-      throw new ReplicaNotFoundException(
-          ReplicaNotFoundException.NON_RBW_REPLICA + replicaInfo);
-    }
-    ReplicaBeingWritten rbw = (ReplicaBeingWritten)replicaInfo;
+      // check the replica's state
+      if (replicaInfo.getState() != ReplicaState.RBW) {
+        throw new ReplicaNotFoundException(
+            ReplicaNotFoundException.NON_RBW_REPLICA + replicaInfo);
+      }
+      ReplicaBeingWritten rbw = (ReplicaBeingWritten)replicaInfo;
     
-    DataNode.LOG.info("Recovering replica " + rbw);
+      DataNode.LOG.info("Recovering replica " + rbw);
 
-    // Stop the previous writer
-    rbw.stopWriter();
-    rbw.setWriter(Thread.currentThread());
+      // Stop the previous writer
+      rbw.stopWriter();
+      rbw.setWriter(Thread.currentThread());
 
-    // check generation stamp
-    long replicaGenerationStamp = rbw.getGenerationStamp();
-    if (replicaGenerationStamp < b.getGenerationStamp() ||
-        replicaGenerationStamp > newGS) {
-      throw new ReplicaNotFoundException(
-          ReplicaNotFoundException.UNEXPECTED_GS_REPLICA + b +
-          ". Expected GS range is [" + b.getGenerationStamp() + ", " + 
-          newGS + "].");
-    }
+      // check generation stamp
+      long replicaGenerationStamp = rbw.getGenerationStamp();
+      if (replicaGenerationStamp < b.getGenerationStamp() ||
+          replicaGenerationStamp > newGS) {
+        throw new ReplicaNotFoundException(
+            ReplicaNotFoundException.UNEXPECTED_GS_REPLICA + b +
+            ". Expected GS range is [" + b.getGenerationStamp() + ", " + 
+            newGS + "].");
+      }
     
-    // check replica length
-    if (rbw.getBytesAcked() < minBytesRcvd || rbw.getNumBytes() > maxBytesRcvd){
-      throw new ReplicaNotFoundException("Unmatched length replica " + 
-          replicaInfo + ": BytesAcked = " + rbw.getBytesAcked() + 
-          " BytesRcvd = " + rbw.getNumBytes() + " are not in the range of [" + 
-          minBytesRcvd + ", " + maxBytesRcvd + "].");
-    }
+      // check replica length
+      if (rbw.getBytesAcked() < minBytesRcvd || rbw.getNumBytes() > maxBytesRcvd){
+        throw new ReplicaNotFoundException("Unmatched length replica " + 
+            replicaInfo + ": BytesAcked = " + rbw.getBytesAcked() + 
+            " BytesRcvd = " + rbw.getNumBytes() + " are not in the range of [" + 
+            minBytesRcvd + ", " + maxBytesRcvd + "].");
+      }
 
-    // bump the replica's generation stamp to newGS
-    bumpReplicaGS(rbw, newGS);
+      // bump the replica's generation stamp to newGS
+      bumpReplicaGS(rbw, newGS);
     
-    return rbw;
+      return rbw;
+    } finally {
+      unlockReplica(b.getBlockId());
+    }
   }
   
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface convertTemporaryToRbw(
+  public ReplicaInPipelineInterface convertTemporaryToRbw(
       final ExtendedBlock b) throws IOException {
-    final long blockId = b.getBlockId();
-    final long expectedGs = b.getGenerationStamp();
-    final long visible = b.getNumBytes();
-    DataNode.LOG.info("Convert replica " + b
-        + " from Temporary to RBW, visible length=" + visible);
-
-    final ReplicaInPipeline temp;
-    {
-      // get replica
-      final ReplicaInfo r = volumeMap.get(b.getBlockPoolId(), blockId);
-      if (r == null) {
-        throw new ReplicaNotFoundException(
-            ReplicaNotFoundException.NON_EXISTENT_REPLICA + b);
+    lockReplica(b.getBlockId());
+    try {
+      final long blockId = b.getBlockId();
+      final long expectedGs = b.getGenerationStamp();
+      final long visible = b.getNumBytes();
+      DataNode.LOG.info("Convert replica " + b
+          + " from Temporary to RBW, visible length=" + visible);
+
+      final ReplicaInPipeline temp;
+      {
+        // get replica
+        final ReplicaInfo r = volumeMap.get(b.getBlockPoolId(), blockId);
+        if (r == null) {
+          throw new ReplicaNotFoundException(
+              ReplicaNotFoundException.NON_EXISTENT_REPLICA + b);
+        }
+        // check the replica's state
+        if (r.getState() != ReplicaState.TEMPORARY) {
+          throw new ReplicaAlreadyExistsException(
+              "r.getState() != ReplicaState.TEMPORARY, r=" + r);
+        }
+        temp = (ReplicaInPipeline)r;
       }
-      // check the replica's state
-      if (r.getState() != ReplicaState.TEMPORARY) {
+      // check generation stamp
+      if (temp.getGenerationStamp() != expectedGs) {
         throw new ReplicaAlreadyExistsException(
-            "r.getState() != ReplicaState.TEMPORARY, r=" + r);
+            "temp.getGenerationStamp() != expectedGs = " + expectedGs
+            + ", temp=" + temp);
       }
-      temp = (ReplicaInPipeline)r;
-    }
-    // check generation stamp
-    if (temp.getGenerationStamp() != expectedGs) {
-      throw new ReplicaAlreadyExistsException(
-          "temp.getGenerationStamp() != expectedGs = " + expectedGs
-          + ", temp=" + temp);
-    }
 
-    // TODO: check writer?
-    // set writer to the current thread
-    // temp.setWriter(Thread.currentThread());
+      // TODO: check writer?
+      // set writer to the current thread
+      // temp.setWriter(Thread.currentThread());
 
-    // check length
-    final long numBytes = temp.getNumBytes();
-    if (numBytes < visible) {
-      throw new IOException(numBytes + " = numBytes < visible = "
-          + visible + ", temp=" + temp);
-    }
-    // check volume
-    final FSVolume v = temp.getVolume();
-    if (v == null) {
-      throw new IOException("r.getVolume() = null, temp="  + temp);
-    }
+      // check length
+      final long numBytes = temp.getNumBytes();
+      if (numBytes < visible) {
+        throw new IOException(numBytes + " = numBytes < visible = "
+            + visible + ", temp=" + temp);
+      }
+      // check volume
+      final FSVolume v = temp.getVolume();
+      if (v == null) {
+        throw new IOException("r.getVolume() = null, temp="  + temp);
+      }
     
-    // move block files to the rbw directory
-    BlockPoolSlice bpslice = v.getBlockPoolSlice(b.getBlockPoolId());
-    final File dest = moveBlockFiles(b.getLocalBlock(), temp.getBlockFile(), 
-        bpslice.getRbwDir());
-    // create RBW
-    final ReplicaBeingWritten rbw = new ReplicaBeingWritten(
-        blockId, numBytes, expectedGs,
-        v, dest.getParentFile(), Thread.currentThread());
-    rbw.setBytesAcked(visible);
-    // overwrite the RBW in the volume map
-    volumeMap.add(b.getBlockPoolId(), rbw);
-    return rbw;
+      // move block files to the rbw directory
+      BlockPoolSlice bpslice = v.getBlockPoolSlice(b.getBlockPoolId());
+      final File dest = moveBlockFiles(b.getLocalBlock(), temp.getBlockFile(), 
+          bpslice.getRbwDir());
+      // create RBW
+      final ReplicaBeingWritten rbw = new ReplicaBeingWritten(
+          blockId, numBytes, expectedGs,
+          v, dest.getParentFile(), Thread.currentThread());
+      rbw.setBytesAcked(visible);
+      // overwrite the RBW in the volume map
+      volumeMap.add(b.getBlockPoolId(), rbw);
+      return rbw;
+    } finally {
+      unlockReplica(b.getBlockId());
+    }
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface createTemporary(ExtendedBlock b)
+  public ReplicaInPipelineInterface createTemporary(ExtendedBlock b)
       throws IOException {
-    ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), b.getBlockId());
-    if (replicaInfo != null) {
-      throw new ReplicaAlreadyExistsException("Block " + b +
-          " already exists in state " + replicaInfo.getState() +
-          " and thus cannot be created.");
-    }
+    lockReplica(b.getBlockId());
+    try {
+      ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), b.getBlockId());
+      if (replicaInfo != null) {
+        throw new ReplicaAlreadyExistsException("Block " + b +
+            " already exists in state " + replicaInfo.getState() +
+            " and thus cannot be created.");
+      }
     
-    FSVolume v = volumes.getNextVolume(b.getNumBytes());
-    // create a temporary file to hold block in the designated volume
-    File f = v.createTmpFile(b.getBlockPoolId(), b.getLocalBlock());
-    ReplicaInPipeline newReplicaInfo = new ReplicaInPipeline(b.getBlockId(), 
-        b.getGenerationStamp(), v, f.getParentFile());
-    volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
+      FSVolume v = volumes.getNextVolume(b.getNumBytes());
+      // create a temporary file to hold block in the designated volume
+      File f = v.createTmpFile(b.getBlockPoolId(), b.getLocalBlock());
+      ReplicaInPipeline newReplicaInfo = new ReplicaInPipeline(b.getBlockId(), 
+          b.getGenerationStamp(), v, f.getParentFile());
+      volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
     
-    return newReplicaInfo;
+      return newReplicaInfo;
+    } finally {
+      unlockReplica(b.getBlockId());
+    }
   }
 
   /**
@@ -1788,17 +2166,22 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     channel.position(newPos);
   }
 
-  synchronized File createTmpFile(FSVolume vol, String bpid, Block blk) throws IOException {
-    if ( vol == null ) {
-      ReplicaInfo replica = volumeMap.get(bpid, blk);
-      if (replica != null) {
-        vol = volumeMap.get(bpid, blk).getVolume();
-      }
+  File createTmpFile(FSVolume vol, String bpid, Block blk) throws IOException {
+    lockReplica(blk.getBlockId());
+    try {
       if ( vol == null ) {
-        throw new IOException("Could not find volume for block " + blk);
+        ReplicaInfo replica = volumeMap.get(bpid, blk);
+        if (replica != null) {
+          vol = volumeMap.get(bpid, blk).getVolume();
+        }
+        if ( vol == null ) {
+          throw new IOException("Could not find volume for block " + blk);
+        }
       }
+      return vol.createTmpFile(bpid, blk);
+    } finally {
+      unlockReplica(blk.getBlockId());
     }
-    return vol.createTmpFile(bpid, blk);
   }
 
   //
@@ -1813,17 +2196,23 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * Complete the block write!
    */
   @Override // FSDatasetInterface
-  public synchronized void finalizeBlock(ExtendedBlock b) throws IOException {
-    ReplicaInfo replicaInfo = getReplicaInfo(b);
-    if (replicaInfo.getState() == ReplicaState.FINALIZED) {
-      // this is legal, when recovery happens on a file that has
-      // been opened for append but never modified
-      return;
+  public void finalizeBlock(ExtendedBlock b) throws IOException {
+    lockReplica(b.getBlockId());
+    try {
+      ReplicaInfo replicaInfo = getReplicaInfo(b);
+      if (replicaInfo.getState() == ReplicaState.FINALIZED) {
+        // this is legal, when recovery happens on a file that has
+        // been opened for append but never modified
+        return;
+      }
+      finalizeReplica(b.getBlockPoolId(), replicaInfo);
+    } finally {
+      unlockReplica(b.getBlockId());
     }
-    finalizeReplica(b.getBlockPoolId(), replicaInfo);
   }
   
-  private synchronized FinalizedReplica finalizeReplica(String bpid,
+  /** Finalize a replica; the caller must hold the replica lock. */
+  private FinalizedReplica finalizeReplica(String bpid,
       ReplicaInfo replicaInfo) throws IOException {
     FinalizedReplica newReplicaInfo = null;
     if (replicaInfo.getState() == ReplicaState.RUR &&
@@ -1850,18 +2239,23 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * Remove the temporary block file (if any)
    */
   @Override // FSDatasetInterface
-  public synchronized void unfinalizeBlock(ExtendedBlock b) throws IOException {
-    ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
-        b.getLocalBlock());
-    if (replicaInfo != null && replicaInfo.getState() == ReplicaState.TEMPORARY) {
-      // remove from volumeMap
-      volumeMap.remove(b.getBlockPoolId(), b.getLocalBlock());
+  public void unfinalizeBlock(ExtendedBlock b) throws IOException {
+    lockReplica(b.getBlockId());
+    try {
+      ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
+          b.getLocalBlock());
+      if (replicaInfo != null && replicaInfo.getState() == ReplicaState.TEMPORARY) {
+        // remove from volumeMap
+        volumeMap.remove(b.getBlockPoolId(), b.getLocalBlock());
       
-      // delete the on-disk temp file
-      if (delBlockFromDisk(replicaInfo.getBlockFile(), 
-          replicaInfo.getMetaFile(), b.getLocalBlock())) {
-        DataNode.LOG.warn("Block " + b + " unfinalized and removed. " );
+        // delete the on-disk temp file
+        if (delBlockFromDisk(replicaInfo.getBlockFile(), 
+            replicaInfo.getMetaFile(), b.getLocalBlock())) {
+          DataNode.LOG.warn("Block " + b + " unfinalized and removed. " );
+        }
       }
+    } finally {
+      unlockReplica(b.getBlockId());
     }
   }
 
@@ -1903,7 +2297,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return new BlockListAsLongs(finalized, uc);
     }
     
-    synchronized(this) {
+    synchronized(volumeMap.getMutext()) {
       for (ReplicaInfo b : volumeMap.replicas(bpid)) {
         switch(b.getState()) {
         case FINALIZED:
@@ -1930,14 +2324,16 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Get the list of finalized blocks from in-memory blockmap for a block pool.
    */
-  synchronized List<Block> getFinalizedBlocks(String bpid) {
-    ArrayList<Block> finalized = new ArrayList<Block>(volumeMap.size(bpid));
-    for (ReplicaInfo b : volumeMap.replicas(bpid)) {
-      if(b.getState() == ReplicaState.FINALIZED) {
-        finalized.add(new Block(b));
+  List<Block> getFinalizedBlocks(String bpid) {
+    synchronized(volumeMap.getMutext()) {
+      ArrayList<Block> finalized = new ArrayList<Block>(volumeMap.size(bpid));
+      for (ReplicaInfo b : volumeMap.replicas(bpid)) {
+        if(b.getState() == ReplicaState.FINALIZED) {
+          finalized.add(new Block(b));
+        }
       }
+      return finalized;
     }
-    return finalized;
   }
 
   /**
@@ -1968,10 +2364,19 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   /**
    * Find the file corresponding to the block and return it if it exists.
+   * The caller must not hold a replica lock: if the file does not exist
+   * the disks are checked, which takes the dataset write lock to remove
+   * the replicas of a failed volume.
    */
   File validateBlockFile(String bpid, Block b) throws IOException {
     //Should we check for metadata file too?
-    File f = getFile(bpid, b);
+    File f;
+    lockReplica(b.getBlockId());
+    try {
+      f = getFile(bpid, b);
+    } finally {
+      unlockReplica(b.getBlockId());
+    }
     
     if(f != null ) {
       if(f.exists())
@@ -2021,7 +2426,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     for (int i = 0; i < invalidBlks.length; i++) {
       File f = null;
       FSVolume v;
-      synchronized (this) {
+      boolean finalized = false;
+      lockReplica(invalidBlks[i].getBlockId());
+      try {
         f = getFile(bpid, invalidBlks[i]);
         ReplicaInfo dinfo = volumeMap.get(bpid, invalidBlks[i]);
         if (dinfo == null || 
@@ -2063,11 +2470,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                 ((ReplicaUnderRecovery)dinfo).getOrignalReplicaState() == 
                   ReplicaState.FINALIZED)) {
           v.clearPath(bpid, parent);
+          finalized = true;
         }
         volumeMap.remove(bpid, invalidBlks[i]);
+      } finally {
+        unlockReplica(invalidBlks[i].getBlockId());
       }
       File metaFile = getMetaFile(f, invalidBlks[i].getGenerationStamp());
-      long dfsBytes = f.length() + metaFile.length();
+      // only the finalized replicas are counted in the dfs usage
+      long dfsBytes = finalized ? f.length() + metaFile.length() : 0;
       
       // Delete the block asynchronously to make sure we can do it fast enough
       asyncDiskService.deleteAsync(v, bpid, f, metaFile, dfsBytes,
@@ -2081,7 +2492,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Turn the block identifier into a filename; ignore generation stamp!!!
    */
-  public synchronized File getFile(String bpid, Block b) {
+  public File getFile(String bpid, Block b) {
     return getFile(bpid, b.getBlockId());
   }
 
@@ -2116,24 +2527,30 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     
     // Otherwise remove blocks for the failed volumes
     long mlsec = System.currentTimeMillis();
-    synchronized (this) {
-      for (FSVolume fv: failedVols) {
-        for (String bpid : fv.map.keySet()) {
-          Iterator<ReplicaInfo> ib = volumeMap.replicas(bpid).iterator();
-          while(ib.hasNext()) {
-            ReplicaInfo b = ib.next();
-            totalBlocks++;
-            // check if the volume block belongs to still valid
-            if(b.getVolume() == fv) {
-              DataNode.LOG.warn("Removing replica " + bpid + ":" + b.getBlockId()
-                  + " on failed volume " + fv.currentDir.getAbsolutePath());
-              ib.remove();
-              removedBlocks++;
+    lockDataset();
+    try {
+      // getBlockReport() iterates the replicas with only the mutex held
+      synchronized(volumeMap.getMutext()) {
+        for (FSVolume fv: failedVols) {
+          for (String bpid : fv.map.keySet()) {
+            Iterator<ReplicaInfo> ib = volumeMap.replicas(bpid).iterator();
+            while(ib.hasNext()) {
+              ReplicaInfo b = ib.next();
+              totalBlocks++;
+              // check if the volume block belongs to still valid
+              if(b.getVolume() == fv) {
+                DataNode.LOG.warn("Removing replica " + bpid + ":" + b.getBlockId()
+                    + " on failed volume " + fv.currentDir.getAbsolutePath());
+                ib.remove();
+                removedBlocks++;
+              }
             }
           }
         }
       }
-    } // end of sync
+    } finally {
+      unlockDataset();
+    }
     mlsec = System.currentTimeMillis() - mlsec;
     DataNode.LOG.warn("Removed " + removedBlocks + " out of " + totalBlocks +
         "(took " + mlsec + " millisecs)");
@@ -2228,7 +2645,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     DataNode datanode = DataNode.getDataNode();
     Block corruptBlock = null;
     ReplicaInfo memBlockInfo;
-    synchronized (this) {
+    lockReplica(blockId);
+    try {
       memBlockInfo = volumeMap.get(bpid, blockId);
       if (memBlockInfo != null && memBlockInfo.getState() != ReplicaState.FINALIZED) {
         // Block is not finalized - ignore the difference
@@ -2254,6 +2672,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           // Block is in memory and not on the disk
           // Remove the block from volumeMap
           volumeMap.remove(bpid, blockId);
+          memBlockInfo.getVolume().decDfsUsed(bpid, memBlockInfo.getNumBytes()
+              + (diskMetaFile != null ? diskMetaFile.length() : 0));
           if (datanode.blockScanner != null) {
             datanode.blockScanner.deleteBlock(bpid, new Block(blockId));
           }
@@ -2276,6 +2696,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         ReplicaInfo diskBlockInfo = new FinalizedReplica(blockId, 
             diskFile.length(), diskGS, vol, diskFile.getParentFile());
         volumeMap.add(bpid, diskBlockInfo);
+        vol.incDfsUsed(bpid, diskBlockInfo.getNumBytes()
+            + (diskMetaFile != null ? diskMetaFile.length() : 0));
         if (datanode.blockScanner != null) {
           datanode.blockScanner.addBlock(new ExtendedBlock(bpid, diskBlockInfo));
         }
@@ -2343,8 +2765,12 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         corruptBlock = new Block(memBlockInfo);
         DataNode.LOG.warn("Updating size of block " + blockId + " from "
             + memBlockInfo.getNumBytes() + " to " + memFile.length());
+        memBlockInfo.getVolume().incDfsUsed(bpid,
+            memFile.length() - memBlockInfo.getNumBytes());
         memBlockInfo.setNumBytes(memFile.length());
       }
+    } finally {
+      unlockReplica(blockId);
     }
 
     // Send corrupt block report outside the lock
@@ -2370,16 +2796,26 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override 
-  public synchronized String getReplicaString(String bpid, long blockId) {
-    final Replica r = volumeMap.get(bpid, blockId);
-    return r == null? "null": r.toString();
+  public String getReplicaString(String bpid, long blockId) {
+    lockReplica(blockId);
+    try {
+      final Replica r = volumeMap.get(bpid, blockId);
+      return r == null? "null": r.toString();
+    } finally {
+      unlockReplica(blockId);
+    }
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaRecoveryInfo initReplicaRecovery(
+  public ReplicaRecoveryInfo initReplicaRecovery(
       RecoveringBlock rBlock) throws IOException {
-    return initReplicaRecovery(rBlock.getBlock().getBlockPoolId(),
-        volumeMap, rBlock.getBlock().getLocalBlock(), rBlock.getNewGenerationStamp());
+    lockReplica(rBlock.getBlock().getBlockId());
+    try {
+      return initReplicaRecovery(rBlock.getBlock().getBlockPoolId(),
+          volumeMap, rBlock.getBlock().getLocalBlock(), rBlock.getNewGenerationStamp());
+    } finally {
+      unlockReplica(rBlock.getBlock().getBlockId());
+    }
   }
 
   /** static version of {@link #initReplicaRecovery(Block, long)}. */
@@ -2449,46 +2885,51 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaInfo updateReplicaUnderRecovery(
+  public ReplicaInfo updateReplicaUnderRecovery(
                                     final ExtendedBlock oldBlock,
                                     final long recoveryId,
                                     final long newlength) throws IOException {
-    //get replica
-    final ReplicaInfo replica = volumeMap.get(oldBlock.getBlockPoolId(), 
-        oldBlock.getBlockId());
-    DataNode.LOG.info("updateReplica: block=" + oldBlock
-        + ", recoveryId=" + recoveryId
-        + ", length=" + newlength
-        + ", replica=" + replica);
+    lockReplica(oldBlock.getBlockId());
+    try {
+      //get replica
+      final ReplicaInfo replica = volumeMap.get(oldBlock.getBlockPoolId(), 
+          oldBlock.getBlockId());
+      DataNode.LOG.info("updateReplica: block=" + oldBlock
+          + ", recoveryId=" + recoveryId
+          + ", length=" + newlength
+          + ", replica=" + replica);
 
-    //check replica
-    if (replica == null) {
-      throw new ReplicaNotFoundException(oldBlock);
-    }
+      //check replica
+      if (replica == null) {
+        throw new ReplicaNotFoundException(oldBlock);
+      }
 
-    //check replica state
-    if (replica.getState() != ReplicaState.RUR) {
-      throw new IOException("replica.getState() != " + ReplicaState.RUR
-          + ", replica=" + replica);
-    }
+      //check replica state
+      if (replica.getState() != ReplicaState.RUR) {
+        throw new IOException("replica.getState() != " + ReplicaState.RUR
+            + ", replica=" + replica);
+      }
 
-    //check replica's byte on disk
-    if (replica.getBytesOnDisk() != oldBlock.getNumBytes()) {
-      throw new IOException("THIS IS NOT SUPPOSED TO HAPPEN:"
-          + " replica.getBytesOnDisk() != block.getNumBytes(), block="
-          + oldBlock + ", replica=" + replica);
-    }
+      //check replica's byte on disk
+      if (replica.getBytesOnDisk() != oldBlock.getNumBytes()) {
+        throw new IOException("THIS IS NOT SUPPOSED TO HAPPEN:"
+            + " replica.getBytesOnDisk() != block.getNumBytes(), block="
+            + oldBlock + ", replica=" + replica);
+      }
 
-    //check replica files before update
-    checkReplicaFiles(replica);
+      //check replica files before update
+      checkReplicaFiles(replica);
 
-    //update replica
-    final FinalizedReplica finalized = updateReplicaUnderRecovery(oldBlock
-        .getBlockPoolId(), (ReplicaUnderRecovery) replica, recoveryId, newlength);
+      //update replica
+      final FinalizedReplica finalized = updateReplicaUnderRecovery(oldBlock
+          .getBlockPoolId(), (ReplicaUnderRecovery) replica, recoveryId, newlength);
 
-    //check replica files after update
-    checkReplicaFiles(finalized);
-    return finalized;
+      //check replica files after update
+      checkReplicaFiles(finalized);
+      return finalized;
+    } finally {
+      unlockReplica(oldBlock.getBlockId());
+    }
   }
 
   private FinalizedReplica updateReplicaUnderRecovery(
@@ -2513,7 +2954,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
     if (rur.getNumBytes() > newlength) {
       rur.unlinkBlock(1);
-      truncateBlock(replicafile, rur.getMetaFile(), rur.getNumBytes(), newlength);
+      final File metafile = rur.getMetaFile();
+      final long oldMetaLength = metafile.length();
+      truncateBlock(replicafile, metafile, rur.getNumBytes(), newlength);
+      if (rur.getOrignalReplicaState() == ReplicaState.FINALIZED) {
+        // the truncated replica stays in the finalized directory
+        rur.getVolume().decDfsUsed(bpid, rur.getNumBytes() - newlength
+            + oldMetaLength - metafile.length());
+      }
       // update RUR with the new length
       rur.setNumBytes(newlength);
    }
@@ -2523,30 +2971,67 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized long getReplicaVisibleLength(final ExtendedBlock block)
+  public long getReplicaVisibleLength(final ExtendedBlock block)
   throws IOException {
-    final Replica replica = getReplicaInfo(block.getBlockPoolId(), 
-        block.getBlockId());
-    if (replica.getGenerationStamp() < block.getGenerationStamp()) {
-      throw new IOException(
-          "replica.getGenerationStamp() < block.getGenerationStamp(), block="
-          + block + ", replica=" + replica);
+    lockReplica(block.getBlockId());
+    try {
+      final Replica replica = getReplicaInfo(block.getBlockPoolId(), 
+          block.getBlockId());
+      if (replica.getGenerationStamp() < block.getGenerationStamp()) {
+        throw new IOException(
+            "replica.getGenerationStamp() < block.getGenerationStamp(), block="
+            + block + ", replica=" + replica);
+      }
+      return replica.getVisibleLength();
+    } finally {
+      unlockReplica(block.getBlockId());
     }
-    return replica.getVisibleLength();
   }
   
-  public synchronized void addBlockPool(String bpid, Configuration conf)
+  @Override // FSDatasetInterface
+  public BlockLocalPathInfo getBlockLocalPathInfo(
+      ExtendedBlock block) throws IOException {
+    lockReplica(block.getBlockId());
+    try {
+      final ReplicaInfo replica = volumeMap.get(block.getBlockPoolId(),
+          block.getLocalBlock());
+      // only finalized replicas are stable enough to be read directly
+      if (replica == null || replica.getState() != ReplicaState.FINALIZED) {
+        throw new ReplicaNotFoundException(
+            ReplicaNotFoundException.NON_EXISTENT_REPLICA + block);
+      }
+      final File datafile = replica.getBlockFile();
+      final File metafile = getMetaFile(datafile, replica.getGenerationStamp());
+      return new BlockLocalPathInfo(block, datafile.getAbsolutePath(),
+          metafile.getAbsolutePath());
+    } finally {
+      unlockReplica(block.getBlockId());
+    }
+  }
+
+  public void addBlockPool(String bpid, Configuration conf)
       throws IOException {
-    DataNode.LOG.info("Adding block pool " + bpid);
-    volumes.addBlockPool(bpid, conf);
-    volumeMap.initBlockPool(bpid);
-    volumes.getVolumeMap(bpid, volumeMap);
+    lockDataset();
+    try {
+      DataNode.LOG.info("Adding block pool " + bpid);
+      volumes.addBlockPool(bpid, conf);
+      volumeMap.initBlockPool(bpid);
+      volumes.getVolumeMap(bpid, volumeMap);
+    } finally {
+      unlockDataset();
+    }
   }
   
-  public synchronized void shutdownBlockPool(String bpid) {
-    DataNode.LOG.info("Removing block pool " + bpid);
-    volumeMap.cleanUpBlockPool(bpid);
-    volumes.removeBlockPool(bpid);
+  public void shutdownBlockPool(String bpid) {
+    lockDataset();
+    try {
+      DataNode.LOG.info("Removing block pool " + bpid);
+      // the volumes save the replicas before they are cleaned up
+      volumes.removeBlockPool(bpid);
+      volumeMap.cleanUpBlockPool(bpid);
+    } finally {
+      unlockDataset();
+    }
   }
   
   /**
@@ -2595,20 +3080,25 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
   
   @Override //FSDatasetInterface
-  public synchronized void deleteBlockPool(String bpid, boolean force)
+  public void deleteBlockPool(String bpid, boolean force)
       throws IOException {
-    if (!force) {
-      for (FSVolume volume : volumes.volumes) {
-        if (!volume.isBPDirEmpty(bpid)) {
-          DataNode.LOG.warn(bpid
-              + " has some block files, cannot delete unless forced");
-          throw new IOException("Cannot delete block pool, "
-              + "it contains some block files");
+    lockDataset();
+    try {
+      if (!force) {
+        for (FSVolume volume : volumes.volumes) {
+          if (!volume.isBPDirEmpty(bpid)) {
+            DataNode.LOG.warn(bpid
+                + " has some block files, cannot delete unless forced");
+            throw new IOException("Cannot delete block pool, "
+                + "it contains some block files");
+          }
         }
       }
-    }
-    for (FSVolume volume : volumes.volumes) {
-      volume.deleteBPDirectories(bpid, force);
+      for (FSVolume volume : volumes.volumes) {
+        volume.deleteBPDirectories(bpid, force);
+      }
+    } finally {
+      unlockDataset();
     }
   }
 }
@@ -31,6 +31,7 @@ import org.apache.hadoop.hdfs.server.protocol.ReplicaRecoveryInfo;
 import org.apache.hadoop.hdfs.server.protocol.BlockRecoveryCommand.RecoveringBlock;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.DiskChecker.DiskErrorException;
@@ -353,6 +354,14 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   long getReplicaVisibleLength(final ExtendedBlock block) throws IOException;
 
+  /**
+   * Get the local paths of the block file and the meta file of a
+   * finalized replica.
+   * @throws IOException if there is no such finalized replica
+   */
+  BlockLocalPathInfo getBlockLocalPathInfo(ExtendedBlock block)
+      throws IOException;
+
   /**
    * Initialize a replica recovery.
    * @return actual state of the replica on this data-node or 
@@ -21,12 +21,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.HardLink;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.hdfs.util.LightWeightGSet;
 import org.apache.hadoop.io.IOUtils;
 
 /**
@@ -34,9 +37,26 @@ import org.apache.hadoop.io.IOUtils;
  * It provides a general interface for meta information of a replica.
  */
 @InterfaceAudience.Private
-abstract public class ReplicaInfo extends Block implements Replica {
+abstract public class ReplicaInfo extends Block
+    implements Replica, LightWeightGSet.LinkedElement {
+  private static final int[] NO_SUBDIRS = new int[0];
+  /**
+   * The base directories of the replicas, shared by all the replicas
+   * in the same base directory.
+   */
+  private static final Map<String, File> baseDirs = new HashMap<String, File>();
+
   private FSVolume volume;      // volume where the replica belongs
-  private File     dir;         // directory where block & meta files belong
+  /**
+   * The directory where block & meta files belong is baseDir followed by
+   * the subdir directories numbered in subDirs.  There are millions of
+   * replicas in a few directories, so a File per replica costs much more
+   * memory than the subdir numbers.
+   */
+  private File     baseDir;
+  private int[]    subDirs;
+  /** The next replica in the same bucket of the {@link ReplicasMap}. */
+  private LightWeightGSet.LinkedElement next;
 
   /**
    * Constructor for a zero length replica
@@ -72,7 +92,7 @@ abstract public class ReplicaInfo extends Block implements Replica {
       FSVolume vol, File dir) {
     super(blockId, len, genStamp);
     this.volume = vol;
-    this.dir = dir;
+    setDirInternal(dir);
   }
 
   /**
@@ -127,7 +147,17 @@ abstract public class ReplicaInfo extends Block implements Replica {
    * @return the parent directory path where this replica is located
    */
   File getDir() {
-    return dir;
+    if (subDirs == null || subDirs.length == 0) {
+      return baseDir;
+    }
+    final StringBuilder b = new StringBuilder();
+    for (int i = 0; i < subDirs.length; i++) {
+      if (i > 0) {
+        b.append(File.separatorChar);
+      }
+      b.append(DataStorage.BLOCK_SUBDIR_PREFIX).append(subDirs[i]);
+    }
+    return new File(baseDir, b.toString());
   }
 
   /**
@@ -135,7 +165,76 @@ abstract public class ReplicaInfo extends Block implements Replica {
    * @param dir the parent directory where the replica is located
    */
   void setDir(File dir) {
-    this.dir = dir;
+    setDirInternal(dir);
+  }
+
+  private void setDirInternal(File dir) {
+    if (dir == null) {
+      baseDir = null;
+      subDirs = null;
+      return;
+    }
+    // split the trailing subdir directories off
+    int depth = 0;
+    File base = dir;
+    for (; base != null && parseSubDir(base.getName()) >= 0;
+        base = base.getParentFile()) {
+      depth++;
+    }
+    if (base == null) {
+      // the whole path consists of subdirs
+      base = dir;
+      depth = 0;
+    }
+    final int[] subs = depth == 0 ? NO_SUBDIRS : new int[depth];
+    File d = dir;
+    for (int i = depth - 1; i >= 0; i--) {
+      subs[i] = parseSubDir(d.getName());
+      d = d.getParentFile();
+    }
+
+    final String path = base.getPath();
+    synchronized (baseDirs) {
+      File interned = baseDirs.get(path);
+      if (interned == null) {
+        interned = new File(path);
+        baseDirs.put(path, interned);
+      }
+      this.baseDir = interned;
+    }
+    this.subDirs = subs;
+  }
+
+  /**
+   * @return the number of a subdir directory,
+   *         or -1 if the name is not of a subdir directory
+   */
+  private static int parseSubDir(String name) {
+    final String prefix = DataStorage.BLOCK_SUBDIR_PREFIX;
+    final int n = name.length();
+    if (!name.startsWith(prefix) || n == prefix.length()
+        || n > prefix.length() + 9) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = prefix.length(); i < n; i++) {
+      final char c = name.charAt(i);
+      if (c < '0' || c > '9' || (c == '0' && i == prefix.length() && n > i + 1)) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  @Override // LightWeightGSet.LinkedElement
+  public LightWeightGSet.LinkedElement getNext() {
+    return next;
+  }
+
+  @Override // LightWeightGSet.LinkedElement
+  public void setNext(LightWeightGSet.LinkedElement next) {
+    this.next = next;
   }
 
   /**
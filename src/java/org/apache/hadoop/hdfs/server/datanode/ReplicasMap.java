@@ -17,23 +17,31 @@
  */
 package org.apache.hadoop.hdfs.server.datanode;
 
+import java.util.AbstractCollection;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.hadoop.HadoopIllegalArgumentException;
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.util.LightWeightResizableGSet;
 
 /**
  * Maintains the replicas map. 
+ *
+ * The replicas of a block pool are kept in a {@link LightWeightResizableGSet}
+ * keyed by block id, which links the replicas through the replicas
+ * themselves, so there is neither a map entry nor a boxed key per replica.
  */
 class ReplicasMap {
   // Object using which this class is synchronized
   private final Object mutex;
   
-  // Map of block pool Id to another map of block Id to ReplicaInfo.
-  private Map<String, Map<Long, ReplicaInfo>> map = 
-    new HashMap<String, Map<Long, ReplicaInfo>>();
+  // Map of block pool Id to the set of replicas keyed by block Id.
+  private Map<String, LightWeightResizableGSet<Block, ReplicaInfo>> map = 
+    new HashMap<String, LightWeightResizableGSet<Block, ReplicaInfo>>();
   
   ReplicasMap(Object mutex) {
     if (mutex == null) {
@@ -90,8 +98,8 @@ class ReplicasMap {
   ReplicaInfo get(String bpid, long blockId) {
     checkBlockPool(bpid);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
-      return m != null ? m.get(blockId) : null;
+      LightWeightResizableGSet<Block, ReplicaInfo> m = map.get(bpid);
+      return m != null ? m.get(new Block(blockId)) : null;
     }
   }
   
@@ -107,13 +115,13 @@ class ReplicasMap {
     checkBlockPool(bpid);
     checkBlock(replicaInfo);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      LightWeightResizableGSet<Block, ReplicaInfo> m = map.get(bpid);
       if (m == null) {
         // Add an entry for block pool if it does not exist already
-        m = new HashMap<Long, ReplicaInfo>();
+        m = new LightWeightResizableGSet<Block, ReplicaInfo>();
         map.put(bpid, m);
       }
-      return  m.put(replicaInfo.getBlockId(), replicaInfo);
+      return  m.put(replicaInfo);
     }
   }
   
@@ -129,13 +137,12 @@ class ReplicasMap {
     checkBlockPool(bpid);
     checkBlock(block);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      LightWeightResizableGSet<Block, ReplicaInfo> m = map.get(bpid);
       if (m != null) {
-        Long key = Long.valueOf(block.getBlockId());
-        ReplicaInfo replicaInfo = m.get(key);
+        ReplicaInfo replicaInfo = m.get(block);
         if (replicaInfo != null &&
             block.getGenerationStamp() == replicaInfo.getGenerationStamp()) {
-          return m.remove(key);
+          return m.remove(block);
         } 
       }
     }
@@ -152,9 +159,9 @@ class ReplicasMap {
   ReplicaInfo remove(String bpid, long blockId) {
     checkBlockPool(bpid);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      LightWeightResizableGSet<Block, ReplicaInfo> m = map.get(bpid);
       if (m != null) {
-        return m.remove(blockId);
+        return m.remove(new Block(blockId));
       }
     }
     return null;
@@ -166,7 +173,7 @@ class ReplicasMap {
    * @return the number of replicas in the map
    */
   int size(String bpid) {
-    Map<Long, ReplicaInfo> m = null;
+    LightWeightResizableGSet<Block, ReplicaInfo> m = null;
     synchronized(mutex) {
       m = map.get(bpid);
       return m != null ? m.size() : 0;
@@ -184,18 +191,51 @@ class ReplicasMap {
    * @return a collection of the replicas belonging to the block pool
    */
   Collection<ReplicaInfo> replicas(String bpid) {
-    Map<Long, ReplicaInfo> m = null;
-    m = map.get(bpid);
-    return m != null ? m.values() : null;
+    final LightWeightResizableGSet<Block, ReplicaInfo> m = map.get(bpid);
+    if (m == null) {
+      return null;
+    }
+    return new AbstractCollection<ReplicaInfo>() {
+      @Override
+      public Iterator<ReplicaInfo> iterator() {
+        return m.iterator();
+      }
+
+      @Override
+      public int size() {
+        return m.size();
+      }
+    };
+  }
+
+  /**
+   * Copy a batch of the replicas of a block pool, so that all the replicas
+   * can be visited without holding the mutex for more than a batch.
+   * Replicas added or removed between two batches may or may not be
+   * copied, and a replica may be copied twice.
+   *
+   * @param bpid block pool id
+   * @param position where to continue, 0 for the first batch
+   * @param max the number of replicas after which to stop
+   * @param out the list to which the replicas are added
+   * @return the position of the next batch, or -1 if there is none
+   */
+  int copyReplicas(String bpid, int position, int max,
+      List<ReplicaInfo> out) {
+    checkBlockPool(bpid);
+    synchronized(mutex) {
+      LightWeightResizableGSet<Block, ReplicaInfo> m = map.get(bpid);
+      return m != null ? m.copyElements(position, max, out) : -1;
+    }
   }
 
   void initBlockPool(String bpid) {
     checkBlockPool(bpid);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      LightWeightResizableGSet<Block, ReplicaInfo> m = map.get(bpid);
       if (m == null) {
         // Add an entry for block pool if it does not exist already
-        m = new HashMap<Long, ReplicaInfo>();
+        m = new LightWeightResizableGSet<Block, ReplicaInfo>();
         map.put(bpid, m);
       }
     }
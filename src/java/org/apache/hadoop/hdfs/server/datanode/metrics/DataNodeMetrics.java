@@ -77,6 +77,9 @@ public class DataNodeMetrics implements Updater {
   public MetricsTimeVaryingInt writesFromRemoteClient = 
               new MetricsTimeVaryingInt("writes_from_remote_client", registry);
 
+  public MetricsTimeVaryingInt blockLocalPathInfoRequests =
+    new MetricsTimeVaryingInt("block_local_path_info_requests", registry);
+
   public MetricsTimeVaryingInt volumesFailed =
     new MetricsTimeVaryingInt("volumes_failed", registry);
   
@@ -94,6 +97,8 @@ public class DataNodeMetrics implements Updater {
                     new MetricsTimeVaryingRate("heartBeats", registry);
   public MetricsTimeVaryingRate blockReports = 
                     new MetricsTimeVaryingRate("blockReports", registry);
+  public MetricsTimeVaryingRate addBlockPool = 
+                    new MetricsTimeVaryingRate("addBlockPool", registry);
 
     
   public DataNodeMetrics(Configuration conf, String datanodeName) {
@@ -17,7 +17,10 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import static org.apache.hadoop.hdfs.server.common.Util.now;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -29,7 +32,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.conf.Configuration;
@@ -37,11 +44,13 @@ import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.BlockUCState;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.ReplicaState;
 import org.apache.hadoop.hdfs.server.namenode.FSNamesystem.NumberReplicas;
-import org.apache.hadoop.hdfs.server.namenode.UnderReplicatedBlocks.BlockIterator;
+import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
+import org.apache.hadoop.hdfs.util.DaemonFactory;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 
 /**
@@ -76,22 +85,22 @@ public class BlockManager {
   CorruptReplicasMap corruptReplicas = new CorruptReplicasMap();
 
   //
-  // Keeps a Collection for every named machine containing
+  // Keeps a set for every named machine containing
   // blocks that have recently been invalidated and are thought to live
   // on the machine in question.
-  // Mapping: StorageID -> ArrayList<Block>
+  // Mapping: StorageID -> CompactBlockSet
   //
-  Map<String, Collection<Block>> recentInvalidateSets =
-    new TreeMap<String, Collection<Block>>();
+  Map<String, CompactBlockSet> recentInvalidateSets =
+    new TreeMap<String, CompactBlockSet>();
 
   //
-  // Keeps a TreeSet for every named node. Each treeset contains
-  // a list of the blocks that are "extra" at that location. We'll
+  // Keeps a set for every named node. Each set contains
+  // the blocks that are "extra" at that location. We'll
   // eventually remove these extras.
-  // Mapping: StorageID -> TreeSet<Block>
+  // Mapping: StorageID -> CompactBlockSet
   //
-  Map<String, Collection<Block>> excessReplicateMap =
-    new TreeMap<String, Collection<Block>>();
+  Map<String, CompactBlockSet> excessReplicateMap =
+    new TreeMap<String, CompactBlockSet>();
 
   //
   // Store set of Blocks that need to be replicated 1 or more times.
@@ -104,6 +113,10 @@ public class BlockManager {
   int maxReplication;
   //  How many outgoing replication streams a given node should have at one time
   int maxReplicationStreams;
+  //  How many threads choose the targets of the replication work
+  int replicationWorkThreads;
+  //  How many replications may be pending to a given node, 0 for no limit
+  int maxPendingReplicationsPerTarget;
   // Minimum copies needed or else write is disallowed
   int minReplication;
   // Default number of replicas
@@ -114,14 +127,12 @@ public class BlockManager {
   // variable to enable check for enough racks 
   boolean shouldCheckForEnoughRacks = true;
 
-  /**
-   * Last block index used for replication work.
-   */
-  private int replIndex = 0;
   Random r = new Random();
 
   // for block replicas placement
   BlockPlacementPolicy replicator;
+  // choose the replication targets in parallel
+  private ExecutorService replicationWorkers;
 
   BlockManager(FSNamesystem fsn, Configuration conf) throws IOException {
     this(fsn, conf, DEFAULT_INITIAL_MAP_CAPACITY);
@@ -135,6 +146,10 @@ public class BlockManager {
       DFSConfigKeys.DFS_NAMENODE_REPLICATION_PENDING_TIMEOUT_SEC_DEFAULT) * 1000L);
     setConfigurationParameters(conf);
     blocksMap = new BlocksMap(capacity, DEFAULT_MAP_LOAD_FACTOR);
+    if (replicationWorkThreads > 1) {
+      replicationWorkers = Executors.newFixedThreadPool(replicationWorkThreads,
+          new DaemonFactory());
+    }
   }
 
   void setConfigurationParameters(Configuration conf) throws IOException {
@@ -169,12 +184,26 @@ public class BlockManager {
                             + maxReplication);
     this.maxReplicationStreams = conf.getInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_MAX_STREAMS_KEY,
                                              DFSConfigKeys.DFS_NAMENODE_REPLICATION_MAX_STREAMS_DEFAULT);
+    this.replicationWorkThreads = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_WORK_THREADS_KEY,
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_WORK_THREADS_DEFAULT);
+    if (replicationWorkThreads <= 0)
+      throw new IOException(
+          "Unexpected configuration parameters: "
+          + DFSConfigKeys.DFS_NAMENODE_REPLICATION_WORK_THREADS_KEY + " = "
+          + replicationWorkThreads + " must be greater than 0");
+    this.maxPendingReplicationsPerTarget = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_MAX_PENDING_PER_TARGET_KEY,
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_MAX_PENDING_PER_TARGET_DEFAULT);
     this.shouldCheckForEnoughRacks = conf.get(DFSConfigKeys.NET_TOPOLOGY_SCRIPT_FILE_NAME_KEY) == null ? false
                                                                              : true;
     FSNamesystem.LOG.info("defaultReplication = " + defaultReplication);
     FSNamesystem.LOG.info("maxReplication = " + maxReplication);
     FSNamesystem.LOG.info("minReplication = " + minReplication);
     FSNamesystem.LOG.info("maxReplicationStreams = " + maxReplicationStreams);
+    FSNamesystem.LOG.info("replicationWorkThreads = " + replicationWorkThreads);
+    FSNamesystem.LOG.info("maxPendingReplicationsPerTarget = "
+        + maxPendingReplicationsPerTarget);
     FSNamesystem.LOG.info("shouldCheckForEnoughRacks = " + shouldCheckForEnoughRacks);
   }
 
@@ -184,6 +213,7 @@ public class BlockManager {
 
   void close() {
     if (pendingReplications != null) pendingReplications.stop();
+    if (replicationWorkers != null) replicationWorkers.shutdownNow();
     blocksMap.close();
   }
 
@@ -499,7 +529,7 @@ public class BlockManager {
   }
 
   void removeFromInvalidates(String storageID, Block block) {
-    Collection<Block> v = recentInvalidateSets.get(storageID);
+    CompactBlockSet v = recentInvalidateSets.get(storageID);
     if (v != null && v.remove(block)) {
       pendingDeletionBlocksCount--;
       if (v.isEmpty()) {
@@ -509,7 +539,7 @@ public class BlockManager {
   }
 
   boolean belongsToInvalidates(String storageID, Block block) {
-    Collection<Block> invalidateSet = recentInvalidateSets.get(storageID);
+    CompactBlockSet invalidateSet = recentInvalidateSets.get(storageID);
     return invalidateSet != null && invalidateSet.contains(block);
   }
 
@@ -522,10 +552,10 @@ public class BlockManager {
    * @param log true to create an entry in the log 
    */
   void addToInvalidates(Block b, DatanodeInfo dn, boolean log) {
-    Collection<Block> invalidateSet = recentInvalidateSets
+    CompactBlockSet invalidateSet = recentInvalidateSets
         .get(dn.getStorageID());
     if (invalidateSet == null) {
-      invalidateSet = new HashSet<Block>();
+      invalidateSet = new CompactBlockSet();
       recentInvalidateSets.put(dn.getStorageID(), invalidateSet);
     }
     if (invalidateSet.add(b)) {
@@ -576,8 +606,8 @@ public class BlockManager {
     if (size == 0) {
       return;
     }
-    for(Map.Entry<String,Collection<Block>> entry : recentInvalidateSets.entrySet()) {
-      Collection<Block> blocks = entry.getValue();
+    for(Map.Entry<String,CompactBlockSet> entry : recentInvalidateSets.entrySet()) {
+      CompactBlockSet blocks = entry.getValue();
       if (blocks.size() > 0) {
         out.println(namesystem.getDatanode(entry.getKey()).getName() + blocks);
       }
@@ -721,21 +751,70 @@ public class BlockManager {
    * The number of process blocks equals either twice the number of live
    * data-nodes or the number of under-replicated blocks whichever is less.
    *
+   * The work is computed in three steps.  The sources of the blocks are
+   * chosen under the read lock, then the targets are chosen by the
+   * replication work threads without the lock, and finally the work is
+   * scheduled under the write lock, after checking the blocks again.
+   *
    * @return number of blocks scheduled for replication during this iteration.
    */
   int computeReplicationWork(int blocksToProcess) throws IOException {
+    final long start = now();
     // Choose the blocks to be replicated
     List<List<Block>> blocksToReplicate =
       chooseUnderReplicatedBlocks(blocksToProcess);
+    long lockTime = now() - start;
 
-    // replicate blocks
+    // choose the sources
+    final List<ReplicationWork> work = new ArrayList<ReplicationWork>();
+    namesystem.readLock();
+    try {
+      for (int i=0; i<blocksToReplicate.size(); i++) {
+        for(Block block : blocksToReplicate.get(i)) {
+          ReplicationWork rw = chooseSourceForBlock(block, i);
+          if (rw != null) {
+            work.add(rw);
+          }
+        }
+      }
+    } finally {
+      namesystem.readUnlock();
+    }
+
+    // choose the targets: NOT HOLDING THE GLOBAL LOCK
+    final long chooseTargetStart = now();
+    chooseTargets(work);
+    final long chooseTargetTime = now() - chooseTargetStart;
+
+    // schedule the work
     int scheduledReplicationCount = 0;
-    for (int i=0; i<blocksToReplicate.size(); i++) {
-      for(Block block : blocksToReplicate.get(i)) {
-        if (computeReplicationWorkForBlock(block, i)) {
-          scheduledReplicationCount++;
+    final long scheduleStart = now();
+    namesystem.writeLock();
+    try {
+      synchronized (neededReplications) {
+        for (ReplicationWork rw : work) {
+          if (scheduleReplicationWork(rw)) {
+            scheduledReplicationCount++;
+          }
         }
       }
+    } finally {
+      namesystem.writeUnlock();
+    }
+    lockTime += now() - scheduleStart;
+
+    NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
+    if (metrics != null) {
+      metrics.replicationWorkScheduled.inc(scheduledReplicationCount);
+      metrics.replicationWorkLockTime.inc(lockTime);
+      metrics.replicationWorkChooseTargetTime.inc(chooseTargetTime);
+    }
+    if (FSNamesystem.LOG.isDebugEnabled()) {
+      FSNamesystem.LOG.debug("Scheduled " + scheduledReplicationCount
+          + " out of " + work.size() + " blocks for replication in "
+          + (now() - start) + " msec, holding the write lock for "
+          + lockTime + " msec and choosing targets for "
+          + chooseTargetTime + " msec");
     }
     return scheduledReplicationCount;
   }
@@ -749,211 +828,276 @@ public class BlockManager {
    *         represents its replication priority.
    */
   private List<List<Block>> chooseUnderReplicatedBlocks(int blocksToProcess) {
-    // initialize data structure for the return value
-    List<List<Block>> blocksToReplicate = new ArrayList<List<Block>>(
-        UnderReplicatedBlocks.LEVEL);
-    for (int i = 0; i < UnderReplicatedBlocks.LEVEL; i++) {
-      blocksToReplicate.add(new ArrayList<Block>());
-    }
     namesystem.writeLock();
     try {
-      synchronized (neededReplications) {
-        if (neededReplications.size() == 0) {
-          return blocksToReplicate;
-        }
-
-        // Go through all blocks that need replications.
-        BlockIterator neededReplicationsIterator = neededReplications
-            .iterator();
-        // skip to the first unprocessed block, which is at replIndex
-        for (int i = 0; i < replIndex && neededReplicationsIterator.hasNext(); i++) {
-          neededReplicationsIterator.next();
-        }
-        // # of blocks to process equals either twice the number of live
-        // data-nodes or the number of under-replicated blocks whichever is less
-        blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
-
-        for (int blkCnt = 0; blkCnt < blocksToProcess; blkCnt++, replIndex++) {
-          if (!neededReplicationsIterator.hasNext()) {
-            // start from the beginning
-            replIndex = 0;
-            blocksToProcess = Math.min(blocksToProcess, neededReplications
-                .size());
-            if (blkCnt >= blocksToProcess)
-              break;
-            neededReplicationsIterator = neededReplications.iterator();
-            assert neededReplicationsIterator.hasNext() : "neededReplications should not be empty.";
-          }
-
-          Block block = neededReplicationsIterator.next();
-          int priority = neededReplicationsIterator.getPriority();
-          if (priority < 0 || priority >= blocksToReplicate.size()) {
-            FSNamesystem.LOG.warn("Unexpected replication priority: "
-                + priority + " " + block);
-          } else {
-            blocksToReplicate.get(priority).add(block);
-          }
-        } // end for
-      } // end synchronized neededReplication
+      return neededReplications.chooseUnderReplicatedBlocks(blocksToProcess);
     } finally {
       namesystem.writeUnlock();
     }
+  }
 
-    return blocksToReplicate;
+  /**
+   * The replication work of a block, from choosing its source
+   * until it is scheduled.
+   */
+  private static class ReplicationWork {
+    final Block block;
+    /** a hint of its priority in the neededReplication queue */
+    final int priority;
+    /** null if the block no longer needs replication */
+    DatanodeDescriptor srcNode;
+    List<DatanodeDescriptor> containingNodes;
+    INodeFile fileINode;
+    int additionalReplRequired;
+    /** null until the targets are chosen */
+    DatanodeDescriptor[] targets;
+
+    ReplicationWork(Block block, int priority) {
+      this.block = block;
+      this.priority = priority;
+    }
   }
 
-  /** Replicate a block
+  /**
+   * Choose the source of a block to be replicated.
+   * Must be called with the read lock held.
    *
    * @param block block to be replicated
    * @param priority a hint of its priority in the neededReplication queue
-   * @return if the block gets replicated or not
+   * @return the replication work, whose source is null if the block should
+   *         be removed from {@link #neededReplications}, or null if the block
+   *         can not be replicated from any node
    */
-  private boolean computeReplicationWorkForBlock(Block block, int priority) {
-    int requiredReplication, numEffectiveReplicas;
-    List<DatanodeDescriptor> containingNodes;
-    DatanodeDescriptor srcNode;
-    INodeFile fileINode = null;
-    int additionalReplRequired;
+  private ReplicationWork chooseSourceForBlock(Block block, int priority) {
+    final ReplicationWork rw = new ReplicationWork(block, priority);
+    // block should belong to a file
+    INodeFile fileINode = blocksMap.getINode(block);
+    // abandoned block or block reopened for append
+    if(fileINode == null || fileINode.isUnderConstruction()) {
+      return rw;
+    }
 
-    namesystem.writeLock();
-    try {
-      synchronized (neededReplications) {
-        // block should belong to a file
-        fileINode = blocksMap.getINode(block);
-        // abandoned block or block reopened for append
-        if(fileINode == null || fileINode.isUnderConstruction()) {
-          neededReplications.remove(block, priority); // remove from neededReplications
-          replIndex--;
-          return false;
-        }
+    int requiredReplication = fileINode.getReplication();
 
-        requiredReplication = fileINode.getReplication();
+    // get a source data-node
+    List<DatanodeDescriptor> containingNodes =
+      new ArrayList<DatanodeDescriptor>();
+    NumberReplicas numReplicas = new NumberReplicas();
+    DatanodeDescriptor srcNode =
+      chooseSourceDatanode(block, containingNodes, numReplicas);
+    if(srcNode == null) // block can not be replicated from any node
+      return null;
 
-        // get a source data-node
-        containingNodes = new ArrayList<DatanodeDescriptor>();
-        NumberReplicas numReplicas = new NumberReplicas();
-        srcNode = chooseSourceDatanode(block, containingNodes, numReplicas);
-        if(srcNode == null) // block can not be replicated from any node
-          return false;
+    // do not schedule more if enough replicas is already pending
+    int numEffectiveReplicas = numReplicas.liveReplicas() +
+                               pendingReplications.getNumReplicas(block);
 
-        // do not schedule more if enough replicas is already pending
-        numEffectiveReplicas = numReplicas.liveReplicas() +
-                                pendingReplications.getNumReplicas(block);
-      
-        if (numEffectiveReplicas >= requiredReplication) {
-          if ( (pendingReplications.getNumReplicas(block) > 0) ||
-               (blockHasEnoughRacks(block)) ) {
-            neededReplications.remove(block, priority); // remove from neededReplications
-            replIndex--;
-            NameNode.stateChangeLog.info("BLOCK* "
-                + "Removing block " + block
-                + " from neededReplications as it has enough replicas.");
-            return false;
-          }
-        }
+    if (numEffectiveReplicas >= requiredReplication) {
+      if ( (pendingReplications.getNumReplicas(block) > 0) ||
+           (blockHasEnoughRacks(block)) ) {
+        return rw;
+      }
+    }
 
-        if (numReplicas.liveReplicas() < requiredReplication) {
-          additionalReplRequired = requiredReplication - numEffectiveReplicas;
-        } else {
-          additionalReplRequired = 1; //Needed on a new rack
+    if (numReplicas.liveReplicas() < requiredReplication) {
+      rw.additionalReplRequired = requiredReplication - numEffectiveReplicas;
+    } else {
+      rw.additionalReplRequired = 1; //Needed on a new rack
+    }
+    rw.srcNode = srcNode;
+    rw.containingNodes = containingNodes;
+    rw.fileINode = fileINode;
+    return rw;
+  }
+
+  /**
+   * Choose the targets of the replication work, in parallel if there are
+   * several replication work threads.
+   */
+  private void chooseTargets(List<ReplicationWork> work) throws IOException {
+    final int numTasks = Math.min(replicationWorkThreads, work.size());
+    final List<ChooseTargets> tasks = new ArrayList<ChooseTargets>(numTasks);
+    for (int t = 0; t < numTasks; t++) {
+      final ChooseTargets task = new ChooseTargets();
+      for (int i = t; i < work.size(); i += numTasks) {
+        if (work.get(i).srcNode != null) {
+          task.work.add(work.get(i));
         }
+      }
+      tasks.add(task);
+    }
 
+    if (tasks.size() <= 1 || replicationWorkers == null) {
+      for (ChooseTargets task : tasks) {
+        task.call();
+      }
+      return;
+    }
+    try {
+      for (Future<Void> f : replicationWorkers.invokeAll(tasks)) {
+        f.get();
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw (IOException)new InterruptedIOException(
+          "Interrupted while choosing replication targets").initCause(ie);
+    } catch (ExecutionException ee) {
+      final Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * @return whether a target has space for a block besides the blocks
+   * scheduled to it, as the placement policy requires of a good target
+   */
+  private static boolean hasSpaceForScheduledBlock(DatanodeDescriptor dn,
+      long blockSize) {
+    final long remaining = dn.getRemaining()
+        - (long)dn.getBlocksScheduled() * blockSize;
+    return blockSize * FSConstants.MIN_BLOCKS_FOR_WRITE <= remaining;
+  }
+
+  /** Choose the targets of a part of the replication work. */
+  private class ChooseTargets implements Callable<Void> {
+    private final List<ReplicationWork> work = new ArrayList<ReplicationWork>();
+
+    @Override
+    public Void call() {
+      for (ReplicationWork rw : work) {
+        // It is costly to extract the filename for which chooseTargets is
+        // called, so for now we pass in the Inode itself.
+        rw.targets = replicator.chooseTarget(rw.fileINode,
+            rw.additionalReplRequired, rw.srcNode, rw.containingNodes,
+            rw.block.getNumBytes());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Schedule the replication work of a block after checking it again,
+   * since the global lock was released.
+   * Must be called with the write lock held.
+   *
+   * @return if the block gets replicated or not
+   */
+  private boolean scheduleReplicationWork(ReplicationWork rw) {
+    final Block block = rw.block;
+    final int priority = rw.priority;
+    // block should belong to a file
+    INodeFile fileINode = blocksMap.getINode(block);
+    // abandoned block or block reopened for append
+    if(fileINode == null || fileINode.isUnderConstruction()) {
+      neededReplications.remove(block, priority); // remove from neededReplications
+      return false;
+    }
+    int requiredReplication = fileINode.getReplication();
+
+    // do not schedule more if enough replicas is already pending
+    NumberReplicas numReplicas = countNodes(block);
+    int numEffectiveReplicas = numReplicas.liveReplicas() +
+    pendingReplications.getNumReplicas(block);
+
+    if (numEffectiveReplicas >= requiredReplication) {
+      if ( (pendingReplications.getNumReplicas(block) > 0) ||
+           (blockHasEnoughRacks(block)) ) {
+        neededReplications.remove(block, priority); // remove from neededReplications
+        NameNode.stateChangeLog.info("BLOCK* "
+            + "Removing block " + block
+            + " from neededReplications as it has enough replicas.");
+        return false;
       }
-    } finally {
-      namesystem.writeUnlock();
     }
 
-    // choose replication targets: NOT HOLDING THE GLOBAL LOCK
-    // It is costly to extract the filename for which chooseTargets is called,
-    // so for now we pass in the Inode itself.
-    DatanodeDescriptor targets[] = 
-                       replicator.chooseTarget(fileINode, additionalReplRequired,
-                       srcNode, containingNodes, block.getNumBytes());
-    if(targets.length == 0)
+    DatanodeDescriptor targets[] = rw.targets;
+    if(rw.srcNode == null || targets == null || targets.length == 0)
       return false;
 
-    namesystem.writeLock();
-    try {
-      synchronized (neededReplications) {
-        // Recheck since global lock was released
-        // block should belong to a file
-        fileINode = blocksMap.getINode(block);
-        // abandoned block or block reopened for append
-        if(fileINode == null || fileINode.isUnderConstruction()) {
-          neededReplications.remove(block, priority); // remove from neededReplications
-          replIndex--;
+    // the targets were chosen in parallel, without the blocks scheduled to
+    // them by the work scheduled before in this iteration; choose them
+    // again, with these blocks counted, if one of them is now too full
+    for (DatanodeDescriptor dn : targets) {
+      if (!hasSpaceForScheduledBlock(dn, block.getNumBytes())) {
+        targets = replicator.chooseTarget(fileINode,
+            rw.additionalReplRequired, rw.srcNode, rw.containingNodes,
+            block.getNumBytes());
+        if (targets.length == 0)
           return false;
-        }
-        requiredReplication = fileINode.getReplication();
-
-        // do not schedule more if enough replicas is already pending
-        NumberReplicas numReplicas = countNodes(block);
-        numEffectiveReplicas = numReplicas.liveReplicas() +
-        pendingReplications.getNumReplicas(block);
-
-        if (numEffectiveReplicas >= requiredReplication) {
-          if ( (pendingReplications.getNumReplicas(block) > 0) ||
-               (blockHasEnoughRacks(block)) ) {
-            neededReplications.remove(block, priority); // remove from neededReplications
-            replIndex--;
-            NameNode.stateChangeLog.info("BLOCK* "
-                + "Removing block " + block
-                + " from neededReplications as it has enough replicas.");
-            return false;
-          }
-        }
+        break;
+      }
+    }
 
-        if ( (numReplicas.liveReplicas() >= requiredReplication) &&
-             (!blockHasEnoughRacks(block)) ) {
-          if (srcNode.getNetworkLocation().equals(targets[0].getNetworkLocation())) {
-            //No use continuing, unless a new rack in this case
-            return false;
-          }
+    // do not overload a target which has enough replications pending
+    if (maxPendingReplicationsPerTarget > 0) {
+      for (DatanodeDescriptor dn : targets) {
+        if (pendingReplications.getNumPendingTo(dn)
+            >= maxPendingReplicationsPerTarget) {
+          return false;
         }
+      }
+    }
 
-        // Add block to the to be replicated list
-        srcNode.addBlockToBeReplicated(block, targets);
+    // the source may have reached its replication limit with the work
+    // scheduled before in this iteration
+    DatanodeDescriptor srcNode = rw.srcNode;
+    if (srcNode.getNumberOfBlocksToBeReplicated() >= maxReplicationStreams) {
+      srcNode = chooseSourceDatanode(block,
+          new ArrayList<DatanodeDescriptor>(), new NumberReplicas());
+      if (srcNode == null)
+        return false;
+    }
 
-        for (DatanodeDescriptor dn : targets) {
-          dn.incBlocksScheduled();
-        }
+    if ( (numReplicas.liveReplicas() >= requiredReplication) &&
+         (!blockHasEnoughRacks(block)) ) {
+      if (srcNode.getNetworkLocation().equals(targets[0].getNetworkLocation())) {
+        //No use continuing, unless a new rack in this case
+        return false;
+      }
+    }
 
-        // Move the block-replication into a "pending" state.
-        // The reason we use 'pending' is so we can retry
-        // replications that fail after an appropriate amount of time.
-        pendingReplications.add(block, targets.length);
-        if(NameNode.stateChangeLog.isDebugEnabled()) {
-          NameNode.stateChangeLog.debug(
-              "BLOCK* block " + block
-              + " is moved from neededReplications to pendingReplications");
-        }
+    // Add block to the to be replicated list
+    srcNode.addBlockToBeReplicated(block, targets);
 
-        // remove from neededReplications
-        if(numEffectiveReplicas + targets.length >= requiredReplication) {
-          neededReplications.remove(block, priority); // remove from neededReplications
-          replIndex--;
-        }
-        if (NameNode.stateChangeLog.isInfoEnabled()) {
-          StringBuilder targetList = new StringBuilder("datanode(s)");
-          for (int k = 0; k < targets.length; k++) {
-            targetList.append(' ');
-            targetList.append(targets[k].getName());
-          }
-          NameNode.stateChangeLog.info(
-                    "BLOCK* ask "
-                    + srcNode.getName() + " to replicate "
-                    + block + " to " + targetList);
-          if(NameNode.stateChangeLog.isDebugEnabled()) {
-            NameNode.stateChangeLog.debug(
-                "BLOCK* neededReplications = " + neededReplications.size()
-                + " pendingReplications = " + pendingReplications.size());
-          }
-        }
-      }
-    } finally {
-      namesystem.writeUnlock();
+    for (DatanodeDescriptor dn : targets) {
+      dn.incBlocksScheduled();
+    }
+
+    // Move the block-replication into a "pending" state.
+    // The reason we use 'pending' is so we can retry
+    // replications that fail after an appropriate amount of time.
+    pendingReplications.add(block, targets);
+    if(NameNode.stateChangeLog.isDebugEnabled()) {
+      NameNode.stateChangeLog.debug(
+          "BLOCK* block " + block
+          + " is moved from neededReplications to pendingReplications");
     }
 
+    // remove from neededReplications
+    if(numEffectiveReplicas + targets.length >= requiredReplication) {
+      neededReplications.remove(block, priority); // remove from neededReplications
+    }
+    if (NameNode.stateChangeLog.isInfoEnabled()) {
+      StringBuilder targetList = new StringBuilder("datanode(s)");
+      for (int k = 0; k < targets.length; k++) {
+        targetList.append(' ');
+        targetList.append(targets[k].getName());
+      }
+      NameNode.stateChangeLog.info(
+                "BLOCK* ask "
+                + srcNode.getName() + " to replicate "
+                + block + " to " + targetList);
+      if(NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug(
+            "BLOCK* neededReplications = " + neededReplications.size()
+            + " pendingReplications = " + pendingReplications.size());
+      }
+    }
     return true;
   }
 
@@ -984,7 +1128,7 @@ public class BlockManager {
     Collection<DatanodeDescriptor> nodesCorrupt = corruptReplicas.getNodes(block);
     while(it.hasNext()) {
       DatanodeDescriptor node = it.next();
-      Collection<Block> excessBlocks =
+      CompactBlockSet excessBlocks =
         excessReplicateMap.get(node.getStorageID());
       if ((nodesCorrupt != null) && (nodesCorrupt.contains(node)))
         corrupt++;
@@ -1281,7 +1425,7 @@ public class BlockManager {
     for (Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
          it.hasNext();) {
       DatanodeDescriptor cur = it.next();
-      Collection<Block> excessBlocks = excessReplicateMap.get(cur
+      CompactBlockSet excessBlocks = excessReplicateMap.get(cur
           .getStorageID());
       if (excessBlocks == null || !excessBlocks.contains(block)) {
         if (!cur.isDecommissionInProgress() && !cur.isDecommissioned()) {
@@ -1297,9 +1441,9 @@ public class BlockManager {
   }
 
   void addToExcessReplicate(DatanodeInfo dn, Block block) {
-    Collection<Block> excessBlocks = excessReplicateMap.get(dn.getStorageID());
+    CompactBlockSet excessBlocks = excessReplicateMap.get(dn.getStorageID());
     if (excessBlocks == null) {
-      excessBlocks = new TreeSet<Block>();
+      excessBlocks = new CompactBlockSet();
       excessReplicateMap.put(dn.getStorageID(), excessBlocks);
     }
     if (excessBlocks.add(block)) {
@@ -1347,7 +1491,7 @@ public class BlockManager {
       // We've removed a block from a node, so it's definitely no longer
       // in "excess" there.
       //
-      Collection<Block> excessBlocks = excessReplicateMap.get(node
+      CompactBlockSet excessBlocks = excessReplicateMap.get(node
           .getStorageID());
       if (excessBlocks != null) {
         if (excessBlocks.remove(block)) {
@@ -1390,7 +1534,7 @@ public class BlockManager {
     //
     // Modify the blocks->datanode map and node's map.
     //
-    pendingReplications.remove(block);
+    pendingReplications.remove(block, node);
 
     // blockReceived reports a finalized block
     Collection<Block> toAdd = new LinkedList<Block>();
@@ -1434,7 +1578,7 @@ public class BlockManager {
       } else if (node.isDecommissionInProgress() || node.isDecommissioned()) {
         count++;
       } else {
-        Collection<Block> blocksExcess =
+        CompactBlockSet blocksExcess =
           excessReplicateMap.get(node.getStorageID());
         if (blocksExcess != null && blocksExcess.contains(b)) {
           excess++;
@@ -1599,7 +1743,7 @@ public class BlockManager {
    * @param n datanode
    */
   void removeFromInvalidates(String storageID) {
-    Collection<Block> blocks = recentInvalidateSets.remove(storageID);
+    CompactBlockSet blocks = recentInvalidateSets.remove(storageID);
     if (blocks != null) {
       pendingDeletionBlocksCount -= blocks.size();
     }
@@ -1625,23 +1769,16 @@ public class BlockManager {
         return 0;
       }
 
-      Collection<Block> invalidateSet = recentInvalidateSets.get(nodeId);
+      CompactBlockSet invalidateSet = recentInvalidateSets.get(nodeId);
       if (invalidateSet == null)
         return 0;
 
-      ArrayList<Block> blocksToInvalidate = new ArrayList<Block>(
-          namesystem.blockInvalidateLimit);
-
       // # blocks that can be sent in one message is limited
-      Iterator<Block> it = invalidateSet.iterator();
-      for (int blkCount = 0; blkCount < namesystem.blockInvalidateLimit
-          && it.hasNext(); blkCount++) {
-        blocksToInvalidate.add(it.next());
-        it.remove();
-      }
+      List<Block> blocksToInvalidate =
+        invalidateSet.poll(namesystem.blockInvalidateLimit);
 
       // If we send everything in this message, remove this node entry
-      if (!it.hasNext()) {
+      if (invalidateSet.isEmpty()) {
         removeFromInvalidates(nodeId);
       }
 
@@ -1779,10 +1916,18 @@ public class BlockManager {
   }
 
   /**
-   * Return an iterator over the set of blocks for which there are no replicas.
+   * Return an iterator over the set of blocks for which there are no replicas,
+   * in block id order.
    */
-  BlockIterator getCorruptReplicaBlockIterator() {
-    return neededReplications
-        .iterator(UnderReplicatedBlocks.QUEUE_WITH_CORRUPT_BLOCKS);
+  Iterator<Block> getCorruptReplicaBlockIterator() {
+    final List<Block> blocks = new ArrayList<Block>();
+    synchronized (neededReplications) {
+      for (Iterator<Block> i = neededReplications.iterator(
+          UnderReplicatedBlocks.QUEUE_WITH_CORRUPT_BLOCKS); i.hasNext(); ) {
+        blocks.add(i.next());
+      }
+    }
+    Collections.sort(blocks);
+    return blocks.iterator();
   }
 }
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * A compact set of the blocks of a datanode, such as the blocks to be
+ * invalidated or the excess replicas.
+ *
+ * Blocks are keyed by id and kept with their generation stamps, which the
+ * datanodes need to delete them, in two long arrays with open addressing.
+ * A block takes about 21 bytes instead of a {@link Block} object and
+ * a hash or tree map entry.  The lengths of the blocks are not kept.
+ *
+ * This class is not thread safe.
+ */
+class CompactBlockSet {
+  static final int MIN_CAPACITY = 16;
+  /** The generation stamp of an empty slot, which no block can have. */
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  private long[] ids;
+  private long[] genStamps;
+  private int size = 0;
+
+  CompactBlockSet() {
+    allocate(MIN_CAPACITY);
+  }
+
+  /** Allocate empty arrays; the capacity must be a power of two. */
+  private void allocate(int capacity) {
+    ids = new long[capacity];
+    genStamps = new long[capacity];
+    Arrays.fill(genStamps, EMPTY);
+  }
+
+  /** Spread the bits of the id, which may be sequential. */
+  private static int hash(long id) {
+    final long h = id * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  /**
+   * @return the slot of the id, or -(insertion slot + 1) if the id is not
+   *         in the set
+   */
+  private int find(long id) {
+    final int mask = ids.length - 1;
+    for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+      if (genStamps[i] == EMPTY) {
+        return -(i + 1);
+      } else if (ids[i] == id) {
+        return i;
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  boolean contains(Block b) {
+    return find(b.getBlockId()) >= 0;
+  }
+
+  /**
+   * Add a block, unless the set has a block with the same id.
+   * @return true if the block was added
+   */
+  boolean add(Block b) {
+    int i = find(b.getBlockId());
+    if (i >= 0) {
+      return false;
+    }
+    if ((size + 1) * 4L > ids.length * 3L) {
+      resize(ids.length << 1);
+      i = find(b.getBlockId());
+    }
+    i = -(i + 1);
+    ids[i] = b.getBlockId();
+    genStamps[i] = b.getGenerationStamp();
+    size++;
+    return true;
+  }
+
+  /**
+   * Remove the block with the id of the given block.
+   * @return true if the block was in the set
+   */
+  boolean remove(Block b) {
+    final int i = find(b.getBlockId());
+    if (i < 0) {
+      return false;
+    }
+    removeAt(i);
+    shrinkIfSparse();
+    return true;
+  }
+
+  /**
+   * Empty the slot, and shift back the following entries of the cluster
+   * which would no longer be found past the empty slot.
+   */
+  private void removeAt(int i) {
+    final int mask = ids.length - 1;
+    for (int j = (i + 1) & mask; genStamps[j] != EMPTY; j = (j + 1) & mask) {
+      final int home = hash(ids[j]) & mask;
+      // keep the entry if its home is cyclically in (i, j]
+      if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+        continue;
+      }
+      ids[i] = ids[j];
+      genStamps[i] = genStamps[j];
+      i = j;
+    }
+    genStamps[i] = EMPTY;
+    size--;
+  }
+
+  private void shrinkIfSparse() {
+    if (ids.length > MIN_CAPACITY && size * 8L < ids.length) {
+      int capacity = ids.length;
+      while (capacity > MIN_CAPACITY && size * 8L < capacity) {
+        capacity >>= 1;
+      }
+      resize(capacity);
+    }
+  }
+
+  private void resize(int capacity) {
+    final long[] oldIds = ids;
+    final long[] oldGenStamps = genStamps;
+    allocate(capacity);
+    for (int i = 0; i < oldIds.length; i++) {
+      if (oldGenStamps[i] != EMPTY) {
+        final int j = -(find(oldIds[i]) + 1);
+        ids[j] = oldIds[i];
+        genStamps[j] = oldGenStamps[i];
+      }
+    }
+  }
+
+  void clear() {
+    allocate(MIN_CAPACITY);
+    size = 0;
+  }
+
+  /**
+   * Remove up to the given number of blocks from the set.
+   * @return the removed blocks, with no length
+   */
+  List<Block> poll(int max) {
+    final List<Block> polled = new ArrayList<Block>(Math.min(max, size));
+    if (max >= size) {
+      // drain the whole set
+      for (int i = 0; i < ids.length; i++) {
+        if (genStamps[i] != EMPTY) {
+          polled.add(new Block(ids[i], 0, genStamps[i]));
+        }
+      }
+      clear();
+      return polled;
+    }
+    for (int i = 0; polled.size() < max && i < ids.length; ) {
+      if (genStamps[i] == EMPTY) {
+        i++;
+      } else {
+        polled.add(new Block(ids[i], 0, genStamps[i]));
+        // an entry may be shifted back to this slot
+        removeAt(i);
+      }
+    }
+    shrinkIfSparse();
+    return polled;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder("[");
+    for (int i = 0; i < ids.length; i++) {
+      if (genStamps[i] != EMPTY) {
+        if (b.length() > 1) {
+          b.append(", ");
+        }
+        b.append(Block.BLOCK_FILE_PREFIX).append(ids[i])
+         .append('_').append(genStamps[i]);
+      }
+    }
+    return b.append(']').toString();
+  }
+}
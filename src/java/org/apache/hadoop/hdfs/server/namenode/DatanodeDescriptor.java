@@ -108,7 +108,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
   private BlockQueue<BlockInfoUnderConstruction> recoverBlocks =
                                 new BlockQueue<BlockInfoUnderConstruction>();
   /** A set of blocks to be invalidated by this datanode */
-  private Set<Block> invalidateBlocks = new TreeSet<Block>();
+  private final CompactBlockSet invalidateBlocks = new CompactBlockSet();
 
   /* Variables for maintaining number of blocks scheduled to be written to
    * this datanode. This count is approximate and might be slightly bigger
@@ -256,7 +256,9 @@ public class DatanodeDescriptor extends DatanodeInfo {
     this.dfsUsed = 0;
     this.xceiverCount = 0;
     this.blockList = null;
-    this.invalidateBlocks.clear();
+    synchronized (invalidateBlocks) {
+      this.invalidateBlocks.clear();
+    }
   }
 
   public int numBlocks() {
@@ -372,45 +374,13 @@ public class DatanodeDescriptor extends DatanodeInfo {
    * Remove the specified number of blocks to be invalidated
    */
   Block[] getInvalidateBlocks(int maxblocks) {
-    return getBlockArray(invalidateBlocks, maxblocks); 
-  }
-
-  static private Block[] getBlockArray(Collection<Block> blocks, int max) {
-    Block[] blockarray = null;
-    synchronized(blocks) {
-      int available = blocks.size();
-      int n = available;
-      if (max > 0 && n > 0) {
-        if (max < n) {
-          n = max;
-        }
-        // allocate the properly sized block array ... 
-        blockarray = new Block[n];
-
-        // iterate tree collecting n blocks... 
-        Iterator<Block> e = blocks.iterator();
-        int blockCount = 0;
-
-        while (blockCount < n && e.hasNext()) {
-          // insert into array ... 
-          blockarray[blockCount++] = e.next();
-
-          // remove from tree via iterator, if we are removing 
-          // less than total available blocks
-          if (n < available){
-            e.remove();
-          }
-        }
-        assert(blockarray.length == n);
-        
-        // now if the number of blocks removed equals available blocks,
-        // them remove all blocks in one fell swoop via clear
-        if (n == available) { 
-          blocks.clear();
-        }
+    synchronized (invalidateBlocks) {
+      if (maxblocks <= 0 || invalidateBlocks.isEmpty()) {
+        return null;
       }
+      List<Block> blocks = invalidateBlocks.poll(maxblocks);
+      return blocks.toArray(new Block[blocks.size()]);
     }
-    return blockarray;
   }
 
   void reportDiff(BlockManager blockManager,
@@ -33,6 +33,13 @@ import org.apache.hadoop.io.Writable;
 /**
  * An implementation of the abstract class {@link EditLogOutputStream}, which
  * stores edits in a local file.
+ *
+ * The file is preallocated ahead of the edits written to it. The region is
+ * filled with {@link FSEditLogOpCodes#OP_INVALID} markers and forced to disk
+ * with its size once, so that a sync of the edits written into it only
+ * writes the data, and a log that is not closed cleanly still ends in
+ * end-of-log markers. The preallocated tail is truncated when the stream is
+ * closed.
  */
 class EditLogFileOutputStream extends EditLogOutputStream {
   private static int EDITS_FILE_HEADER_SIZE_BYTES = Integer.SIZE / Byte.SIZE;
@@ -43,7 +50,15 @@ class EditLogFileOutputStream extends EditLogOutputStream {
   private DataOutputBuffer bufCurrent; // current buffer for writing
   private DataOutputBuffer bufReady; // buffer ready for flushing
   final private int initBufferSize; // inital buffer size
-  static ByteBuffer fill = ByteBuffer.allocateDirect(512); // preallocation
+  final private int preallocateSize; // size of each preallocated extent
+
+  /** The end-of-log markers the preallocated region is filled with */
+  private static final ByteBuffer FILL = ByteBuffer.allocateDirect(64*1024);
+  static {
+    while (FILL.hasRemaining()) {
+      FILL.put(FSEditLogOpCodes.OP_INVALID.getOpCode());
+    }
+  }
 
   /**
    * Creates output buffers and file object.
@@ -52,12 +67,16 @@ class EditLogFileOutputStream extends EditLogOutputStream {
    *          File name to store edit log
    * @param size
    *          Size of flush buffer
+   * @param preallocateSize
+   *          Size by which the file is extended ahead of the edits
    * @throws IOException
    */
-  EditLogFileOutputStream(File name, int size) throws IOException {
+  EditLogFileOutputStream(File name, int size, int preallocateSize)
+      throws IOException {
     super();
     file = name;
     initBufferSize = size;
+    this.preallocateSize = preallocateSize;
     bufCurrent = new DataOutputBuffer(size);
     bufReady = new DataOutputBuffer(size);
     RandomAccessFile rp = new RandomAccessFile(name, "rw");
@@ -169,27 +188,36 @@ class EditLogFileOutputStream extends EditLogOutputStream {
    */
   @Override
   long length() throws IOException {
-    // file size - header size + size of both buffers
-    return fc.size() - EDITS_FILE_HEADER_SIZE_BYTES + bufReady.size()
+    // end of the edits - header size + size of both buffers;
+    // the preallocated region after the edits is not counted
+    return fc.position() - EDITS_FILE_HEADER_SIZE_BYTES + bufReady.size()
         + bufCurrent.size();
   }
 
-  // allocate a big chunk of data
+  /**
+   * Extend the file by the preallocation size, if the edits to be flushed
+   * come close to its end. The extension is written, rather than left as
+   * a hole, so that the file system allocates it, and forced together with
+   * the new file size.
+   */
   private void preallocate() throws IOException {
     long position = fc.position();
-    if (position + 4096 >= fc.size()) {
-      if(FSNamesystem.LOG.isDebugEnabled()) {
-        FSNamesystem.LOG.debug("Preallocating Edit log, current size "
-            + fc.size());
-      }
-      long newsize = position + 1024 * 1024; // 1MB
+    long size = fc.size();
+    if (position + bufReady.size() + 4096 < size) {
+      return;
+    }
+    long newsize = position + bufReady.size() + preallocateSize;
+    if(FSNamesystem.LOG.isDebugEnabled()) {
+      FSNamesystem.LOG.debug("Preallocating Edit log, current size " + size
+          + ", new size " + newsize);
+    }
+    ByteBuffer fill = FILL.duplicate();
+    for (long offset = size; offset < newsize; ) {
+      fill.limit((int)Math.min(fill.capacity(), newsize - offset));
       fill.position(0);
-      int written = fc.write(fill, newsize);
-      if(FSNamesystem.LOG.isDebugEnabled()) {
-        FSNamesystem.LOG.debug("Edit log size is now " + fc.size() +
-            " written " + written + " bytes " + " at offset " + newsize);
-      }
+      offset += fc.write(fill, offset);
     }
+    fc.force(true);
   }
 
   /**
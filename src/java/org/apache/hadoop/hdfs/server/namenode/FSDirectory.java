@@ -95,6 +95,65 @@ class FSDirectory implements Closeable {
     return this.bLock.isWriteLockedByCurrentThread();
   }
 
+  /** The snapshot an image is being saved from, or null */
+  private NamespaceSnapshot snapshot;
+
+  /**
+   * Open a snapshot of the namespace, to save an image from while the
+   * namespace is modified. The caller must hold the namesystem write lock.
+   */
+  NamespaceSnapshot openSnapshot(FSNamesystem ns) throws IOException {
+    writeLock();
+    try {
+      if (snapshot != null) {
+        throw new IllegalStateException("A snapshot is already open");
+      }
+      snapshot = new NamespaceSnapshot(ns);
+      return snapshot;
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  /** Close the snapshot, once the image has been saved from it. */
+  void closeSnapshot() {
+    writeLock();
+    try {
+      if (snapshot != null) {
+        NameNode.LOG.info("Closing namespace snapshot, "
+            + snapshot.getNumPreserved() + " inodes were preserved");
+      }
+      snapshot = null;
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  /** Preserve the inode in the open snapshot before it is modified. */
+  private void preserve(INode inode) {
+    if (snapshot != null) {
+      snapshot.preserve(inode);
+    }
+  }
+
+  /** Preserve the children of the directory in the open snapshot. */
+  private void preserveChildren(INodeDirectory dir) {
+    if (snapshot != null) {
+      snapshot.preserveChildren(dir);
+    }
+  }
+
+  /**
+   * Collect the blocks of a removed subtree. The inodes are cleared
+   * unless a snapshot is open, which may still have to save them.
+   */
+  private int collectSubtreeBlocks(INode node, List<Block> blocks) {
+    if (snapshot != null) {
+      return NamespaceSnapshot.collectSubtreeBlocks(node, blocks);
+    }
+    return node.collectSubtreeBlocksAndClear(blocks);
+  }
+
   /**
    * Caches frequently used file names used in {@link INode} to reuse 
    * byte[] objects and reduce heap usage.
@@ -158,6 +217,7 @@ class FSDirectory implements Closeable {
     }
     writeLock();
     try {
+      rootDir.trimChildrenToSize();
       this.ready = true;
       this.nameCache.initialized();
       cond.signalAll();
@@ -227,17 +287,19 @@ class FSDirectory implements Closeable {
     writeLock();
     try {
       newNode = addNode(path, newNode, UNKNOWN_DISK_SPACE, false);
+      if (newNode == null) {
+        NameNode.stateChangeLog.info("DIR* FSDirectory.addFile: "
+                                     +"failed to add "+path
+                                     +" to the file system");
+        return null;
+      }
+      // add create file record to log, record new generation stamp.
+      // Logged under the lock so that the record cannot precede
+      // the creation of its parent by a concurrent mkdirs.
+      fsImage.getEditLog().logOpenFile(path, newNode);
     } finally {
       writeUnlock();
     }
-    if (newNode == null) {
-      NameNode.stateChangeLog.info("DIR* FSDirectory.addFile: "
-                                   +"failed to add "+path
-                                   +" to the file system");
-      return null;
-    }
-    // add create file record to log, record new generation stamp
-    fsImage.getEditLog().logOpenFile(path, newNode);
 
     if(NameNode.stateChangeLog.isDebugEnabled()) {
       NameNode.stateChangeLog.debug("DIR* FSDirectory.addFile: "
@@ -345,6 +407,7 @@ class FSDirectory implements Closeable {
             BlockUCState.UNDER_CONSTRUCTION,
             targets);
       getBlockManager().addINode(blockInfo, fileINode);
+      preserve(fileINode);
       fileINode.addBlock(blockInfo);
 
       if(NameNode.stateChangeLog.isDebugEnabled()) {
@@ -387,6 +450,7 @@ class FSDirectory implements Closeable {
     writeLock();
     try {
       // file is closed
+      preserve(file);
       file.setModificationTimeForce(now);
       fsImage.getEditLog().logCloseFile(path, file);
       if (NameNode.stateChangeLog.isDebugEnabled()) {
@@ -409,6 +473,7 @@ class FSDirectory implements Closeable {
     writeLock();
     try {
       // modify file-> block and blocksMap
+      preserve(fileNode);
       fileNode.removeLastBlock(block);
       getBlockManager().removeBlockFromMap(block);
       // If block is removed from blocksMap remove it from corruptReplicasMap
@@ -557,6 +622,7 @@ class FSDirectory implements Closeable {
           return false;
         }
         srcChildName = srcChild.getLocalName();
+        preserve(srcChild);
         srcChild.setLocalName(dstComponents[dstInodes.length-1]);
         
         // add src to the destination
@@ -717,6 +783,7 @@ class FSDirectory implements Closeable {
         }
 
         INode dstChild = null;
+        preserve(removedSrc);
         removedSrc.setLocalName(dstComponents[dstInodes.length - 1]);
         // add src as dst to complete rename
         dstChild = addChildNoQuotaCheck(dstInodes, dstInodes.length - 1,
@@ -738,7 +805,7 @@ class FSDirectory implements Closeable {
             INode rmdst = removedDst;
             removedDst = null;
             List<Block> collectedBlocks = new ArrayList<Block>();
-            filesDeleted = rmdst.collectSubtreeBlocksAndClear(collectedBlocks);
+            filesDeleted = collectSubtreeBlocks(rmdst, collectedBlocks);
             getFSNamesystem().removePathAndBlocks(src, collectedBlocks);
           }
           return filesDeleted >0;
@@ -813,6 +880,7 @@ class FSDirectory implements Closeable {
            (fileNode.diskspaceConsumed()/oldReplication[0]);
       updateCount(inodes, inodes.length-1, 0, dsDelta, true);
 
+      preserve(fileNode);
       fileNode.setReplication(replication);
       fileBlocks = fileNode.getBlocks();
     } finally {
@@ -873,6 +941,7 @@ class FSDirectory implements Closeable {
         if (inode == null) {
             throw new FileNotFoundException("File does not exist: " + src);
         }
+        preserve(inode);
         inode.setPermission(permissions);
     } finally {
       writeUnlock();
@@ -893,6 +962,7 @@ class FSDirectory implements Closeable {
       if (inode == null) {
           throw new FileNotFoundException("File does not exist: " + src);
       }
+      preserve(inode);
       if (username != null) {
         inode.setUser(username);
       }
@@ -950,6 +1020,9 @@ class FSDirectory implements Closeable {
       allSrcInodes[i++] = srcInode;
       totalBlocks += srcInode.blocks.length;  
     }
+    preserve(trgInode);
+    preserve(trgParent);
+    preserveChildren(trgParent);
     trgInode.appendBlocks(allSrcInodes, totalBlocks); // copy the blocks
     
     // since we are in the same dir - we can use same parent to remove files
@@ -957,6 +1030,7 @@ class FSDirectory implements Closeable {
     for(INodeFile nodeToRemove: allSrcInodes) {
       if(nodeToRemove == null) continue;
       
+      preserve(nodeToRemove);
       nodeToRemove.blocks = null;
       trgParent.removeChild(nodeToRemove);
       count++;
@@ -1081,7 +1155,7 @@ class FSDirectory implements Closeable {
       }
       // set the parent's modification time
       inodes[pos-1].setModificationTime(mtime);
-      int filesRemoved = targetNode.collectSubtreeBlocksAndClear(collectedBlocks);
+      int filesRemoved = collectSubtreeBlocks(targetNode, collectedBlocks);
       if (NameNode.stateChangeLog.isDebugEnabled()) {
         NameNode.stateChangeLog.debug("DIR* FSDirectory.unprotectedDelete: "
             +src+" is removed");
@@ -1102,6 +1176,13 @@ class FSDirectory implements Closeable {
       //
       // Remove the node from the namespace 
       //
+      if (snapshot != null) {
+        // the parent of the old node may be stale if its quota was changed
+        INode[] inodes = getExistingPathINodes(path);
+        INodeDirectory parent = (INodeDirectory)inodes[inodes.length-2];
+        preserve(parent);
+        preserveChildren(parent);
+      }
       if (!oldnode.removeNode()) {
         NameNode.stateChangeLog.warn("DIR* FSDirectory.replaceNode: " +
                                      "failed to remove " + path);
@@ -1629,8 +1710,10 @@ class FSDirectory implements Closeable {
     if (pathComponents[pos-1] == null) {
       throw new NullPointerException("Panic: parent does not exist");
     }
-    T addedNode = ((INodeDirectory)pathComponents[pos-1]).addChild(
-        child, inheritPermission, true);
+    INodeDirectory parent = (INodeDirectory)pathComponents[pos-1];
+    preserve(parent);
+    preserveChildren(parent);
+    T addedNode = parent.addChild(child, inheritPermission, true);
     if (addedNode == null) {
       updateCount(pathComponents, pos, -counts.getNsCount(), 
           -childDiskspace, true);
@@ -1663,8 +1746,10 @@ class FSDirectory implements Closeable {
    * Return the removed node; null if the removal fails.
    */
   private INode removeChild(INode[] pathComponents, int pos) {
-    INode removedNode = 
-      ((INodeDirectory)pathComponents[pos-1]).removeChild(pathComponents[pos]);
+    INodeDirectory parent = (INodeDirectory)pathComponents[pos-1];
+    preserve(parent);
+    preserveChildren(parent);
+    INode removedNode = parent.removeChild(pathComponents[pos]);
     if (removedNode != null) {
       INode.DirCounts counts = new INode.DirCounts();
       removedNode.spaceConsumedInTree(counts);
@@ -1823,6 +1908,9 @@ class FSDirectory implements Closeable {
           dsQuota = oldDsQuota;
         }        
 
+        // a replacement node shares the children of the old one
+        preserve(dirNode);
+        preserveChildren(dirNode);
         if (dirNode instanceof INodeDirectoryWithQuota) { 
           // a directory with quota; so set the quota to the new value
           ((INodeDirectoryWithQuota)dirNode).setQuota(nsQuota, dsQuota);
@@ -1830,6 +1918,7 @@ class FSDirectory implements Closeable {
             // will not come here for root because root's nsQuota is always set
             INodeDirectory newNode = new INodeDirectory(dirNode);
             INodeDirectory parent = (INodeDirectory)inodes[inodes.length-2];
+            preserveChildren(parent);
             dirNode = newNode;
             parent.replaceChild(newNode);
           }
@@ -1839,6 +1928,7 @@ class FSDirectory implements Closeable {
             new INodeDirectoryWithQuota(nsQuota, dsQuota, dirNode);
           // non-root directory node; parent != null
           INodeDirectory parent = (INodeDirectory)inodes[inodes.length-2];
+          preserveChildren(parent);
           dirNode = newNode;
           parent.replaceChild(newNode);
         }
@@ -1882,7 +1972,14 @@ class FSDirectory implements Closeable {
    * Sets the access time on the file. Logs it in the transaction log
    */
   void setTimes(String src, INodeFile inode, long mtime, long atime, boolean force) {
-    if (unprotectedSetTimes(src, inode, mtime, atime, force)) {
+    boolean status;
+    writeLock();
+    try {
+      status = unprotectedSetTimes(src, inode, mtime, atime, force);
+    } finally {
+      writeUnlock();
+    }
+    if (status) {
       fsImage.getEditLog().logTimes(src, mtime, atime);
     }
   }
@@ -1902,6 +1999,7 @@ class FSDirectory implements Closeable {
                                       long atime, boolean force) {
     boolean status = false;
     if (mtime != -1) {
+      preserve(inode);
       inode.setModificationTimeForce(mtime);
       status = true;
     }
@@ -1913,6 +2011,7 @@ class FSDirectory implements Closeable {
       if (atime <= inodeTime + getFSNamesystem().getAccessTimePrecision() && !force) {
         status =  false;
       } else {
+        preserve(inode);
         inode.setAccessTime(atime);
         status = true;
       }
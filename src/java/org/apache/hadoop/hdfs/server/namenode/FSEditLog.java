@@ -30,6 +30,7 @@ import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.DeprecatedUTF8;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.security.token.delegation.DelegationTokenIdentifier;
@@ -46,8 +47,10 @@ import org.apache.hadoop.hdfs.server.protocol.NamenodeRegistration;
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.VIntWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.security.token.delegation.DelegationKey;
+import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.PureJavaCrc32;
 
 import static org.apache.hadoop.hdfs.server.namenode.FSEditLogOpCodes.*;
@@ -67,6 +70,10 @@ public class FSEditLog implements NNStorageListener {
 
   private volatile int sizeOutputFlushBuffer = 512*1024;
 
+  // the size by which edits files are preallocated ahead of the edits.
+  private volatile int sizePreallocate =
+    DFSConfigKeys.DFS_NAMENODE_EDITS_PREALLOCATE_SIZE_DEFAULT;
+
   private ArrayList<EditLogOutputStream> editStreams = null;
 
   // a monotonically increasing counter that represents transactionIds.
@@ -84,6 +91,18 @@ public class FSEditLog implements NNStorageListener {
   // is an automatic sync scheduled?
   private volatile boolean isAutoSyncScheduled = false;
 
+  // should syncs be done by a dedicated sync thread?
+  private boolean useSyncThread = false;
+
+  // the thread syncing edits on behalf of logSync() callers, if running.
+  private Daemon syncThread = null;
+
+  // the highest transactionId requested to be synced by the sync thread.
+  private long syncRequestTxid = 0;
+
+  // number of threads waiting for the sync thread.
+  private int numSyncWaiters = 0;
+
   // these are statistics counters.
   private long numTransactions;        // number of transactions
   private long numTransactionsBatchedInSync;
@@ -165,6 +184,11 @@ public class FSEditLog implements NNStorageListener {
     numTransactions = totalTimeTransactions = numTransactionsBatchedInSync = 0;
     if (editStreams == null)
       editStreams = new ArrayList<EditLogOutputStream>();
+    if (useSyncThread && syncThread == null) {
+      syncThread = new Daemon(new SyncMonitor());
+      syncThread.setName("EditLogSyncThread");
+      syncThread.start();
+    }
     
     ArrayList<StorageDirectory> al = null;
     for (Iterator<StorageDirectory> it 
@@ -188,7 +212,7 @@ public class FSEditLog implements NNStorageListener {
   
   synchronized void addNewEditLogStream(File eFile) throws IOException {
     EditLogOutputStream eStream = new EditLogFileOutputStream(eFile,
-        sizeOutputFlushBuffer);
+        sizeOutputFlushBuffer, sizePreallocate);
     editStreams.add(eStream);
   }
 
@@ -196,7 +220,7 @@ public class FSEditLog implements NNStorageListener {
     waitForSyncToFinish();
 
     EditLogOutputStream eStream = new EditLogFileOutputStream(name,
-        sizeOutputFlushBuffer);
+        sizeOutputFlushBuffer, sizePreallocate);
     eStream.create();
     eStream.close();
   }
@@ -206,6 +230,9 @@ public class FSEditLog implements NNStorageListener {
    */
   synchronized void close() {
     waitForSyncToFinish();
+    // stop the sync thread, it exits once it sees it has been replaced
+    syncThread = null;
+    notifyAll();
     if (editStreams == null || editStreams.isEmpty()) {
       return;
     }
@@ -450,11 +477,21 @@ public class FSEditLog implements NNStorageListener {
    * waitForSyncToFinish() before assuming they are running alone.
    */
   public void logSync() {
+    // Fetch the transactionId of this thread. 
+    long mytxid = myTransactionId.get().txid;
+    if (!waitForSyncThread(mytxid)) {
+      doSync(mytxid);
+    }
+  }
+
+  /**
+   * Sync all modifications up to the given transaction,
+   * see {@link #logSync()}.
+   */
+  private void doSync(long mytxid) {
     ArrayList<EditLogOutputStream> errorStreams = null;
     long syncStart = 0;
 
-    // Fetch the transactionId of this thread. 
-    long mytxid = myTransactionId.get().txid;
     ArrayList<EditLogOutputStream> streams = new ArrayList<EditLogOutputStream>();
     boolean sync = false;
     try {
@@ -533,6 +570,8 @@ public class FSEditLog implements NNStorageListener {
       // Prevent RuntimeException from blocking other log edit sync 
       synchronized (this) {
         if (sync) {
+          if (metrics != null) // Metrics non-null only when used inside name node
+            metrics.syncBatchSize.inc(syncStart - synctxid);
           synctxid = syncStart;
           isSyncRunning = false;
         }
@@ -541,6 +580,98 @@ public class FSEditLog implements NNStorageListener {
     }
   }
 
+  /**
+   * Let the sync thread sync all modifications up to the given transaction,
+   * and wait until it is done.
+   * 
+   * Threads calling {@link #logSync()} while a sync is in progress register
+   * their transactions with the sync thread, which flushes all of them
+   * with the next sync as one batch.
+   * 
+   * @return false if the sync thread is not running,
+   *         the caller should sync the transaction itself then.
+   */
+  private synchronized boolean waitForSyncThread(long mytxid) {
+    if (syncThread == null) {
+      return false;
+    }
+    // a thread without transactions of its own syncs all of them
+    mytxid = Math.min(mytxid, txid);
+    if (mytxid <= synctxid) {
+      numTransactionsBatchedInSync++;
+      if (metrics != null) // Metrics is non-null only when used inside name node
+        metrics.transactionsBatchedInSync.inc();
+      return true;
+    }
+    long start = now();
+    syncRequestTxid = Math.max(syncRequestTxid, mytxid);
+    numSyncWaiters++;
+    notifyAll();
+    try {
+      while (mytxid > synctxid && syncThread != null) {
+        try {
+          wait(1000);
+        } catch (InterruptedException ie) {
+        }
+      }
+    } finally {
+      numSyncWaiters--;
+    }
+    if (mytxid > synctxid) {
+      return false; // the sync thread has been stopped
+    }
+    if (metrics != null) // Metrics is non-null only when used inside name node
+      metrics.syncWaitTime.inc(now() - start);
+    return true;
+  }
+
+  /**
+   * Syncs the edits log on behalf of the threads waiting in
+   * {@link FSEditLog#logSync()}.
+   * While a sync is in progress new transactions accumulate
+   * in the other half of the double buffer,
+   * and are committed together by the next sync.
+   */
+  private class SyncMonitor implements Runnable {
+    public void run() {
+      Thread self = Thread.currentThread();
+      try {
+        while (true) {
+          long target;
+          synchronized (FSEditLog.this) {
+            while (syncThread == self && syncRequestTxid <= synctxid) {
+              try {
+                FSEditLog.this.wait(1000);
+              } catch (InterruptedException ie) {
+              }
+            }
+            if (syncThread != self) {
+              return;
+            }
+            target = syncRequestTxid;
+            if (metrics != null) // Metrics non-null only when used inside name node
+              metrics.syncQueueDepth.set(numSyncWaiters);
+          }
+          try {
+            doSync(target);
+          } catch (RuntimeException e) {
+            LOG.error("Exception in edits log sync thread", e);
+          }
+        }
+      } finally {
+        // if an Error killed the thread, the waiting threads sync themselves
+        synchronized (FSEditLog.this) {
+          if (syncThread == self) {
+            LOG.error("Edits log sync thread exited unexpectedly,"
+                + " the edits are synced by the logging threads from now on");
+            syncThread = null;
+            FSEditLog.this.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
   //
   // print statistics every 1 minute.
   //
@@ -578,15 +709,12 @@ public class FSEditLog implements NNStorageListener {
    * Records the block locations of the last block.
    */
   public void logOpenFile(String path, INodeFileUnderConstruction newNode) {
-
-    DeprecatedUTF8 nameReplicationPair[] = new DeprecatedUTF8[] { 
-      new DeprecatedUTF8(path), 
-      FSEditLog.toLogReplication(newNode.getReplication()),
-      FSEditLog.toLogLong(newNode.getModificationTime()),
-      FSEditLog.toLogLong(newNode.getAccessTime()),
-      FSEditLog.toLogLong(newNode.getPreferredBlockSize())};
     logEdit(OP_ADD,
-            new ArrayWritable(DeprecatedUTF8.class, nameReplicationPair), 
+            new DeprecatedUTF8(path),
+            FSEditLog.toLogReplication(newNode.getReplication()),
+            FSEditLog.toLogLong(newNode.getModificationTime()),
+            FSEditLog.toLogLong(newNode.getAccessTime()),
+            FSEditLog.toLogLong(newNode.getPreferredBlockSize()),
             new ArrayWritable(Block.class, newNode.getBlocks()),
             newNode.getPermissionStatus(),
             new DeprecatedUTF8(newNode.getClientName()),
@@ -597,14 +725,12 @@ public class FSEditLog implements NNStorageListener {
    * Add close lease record to edit log.
    */
   public void logCloseFile(String path, INodeFile newNode) {
-    DeprecatedUTF8 nameReplicationPair[] = new DeprecatedUTF8[] {
-      new DeprecatedUTF8(path),
-      FSEditLog.toLogReplication(newNode.getReplication()),
-      FSEditLog.toLogLong(newNode.getModificationTime()),
-      FSEditLog.toLogLong(newNode.getAccessTime()),
-      FSEditLog.toLogLong(newNode.getPreferredBlockSize())};
     logEdit(OP_CLOSE,
-            new ArrayWritable(DeprecatedUTF8.class, nameReplicationPair),
+            new DeprecatedUTF8(path),
+            FSEditLog.toLogReplication(newNode.getReplication()),
+            FSEditLog.toLogLong(newNode.getModificationTime()),
+            FSEditLog.toLogLong(newNode.getAccessTime()),
+            FSEditLog.toLogLong(newNode.getPreferredBlockSize()),
             new ArrayWritable(Block.class, newNode.getBlocks()),
             newNode.getPermissionStatus());
   }
@@ -613,13 +739,10 @@ public class FSEditLog implements NNStorageListener {
    * Add create directory record to edit log
    */
   public void logMkDir(String path, INode newNode) {
-    DeprecatedUTF8 info[] = new DeprecatedUTF8[] {
+    logEdit(OP_MKDIR,
       new DeprecatedUTF8(path),
       FSEditLog.toLogLong(newNode.getModificationTime()),
-      FSEditLog.toLogLong(newNode.getAccessTime())
-    };
-    logEdit(OP_MKDIR,
-      new ArrayWritable(DeprecatedUTF8.class, info),
+      FSEditLog.toLogLong(newNode.getAccessTime()),
       newNode.getPermissionStatus());
   }
   
@@ -628,23 +751,20 @@ public class FSEditLog implements NNStorageListener {
    * TODO: use String parameters until just before writing to disk
    */
   void logRename(String src, String dst, long timestamp) {
-    DeprecatedUTF8 info[] = new DeprecatedUTF8[] { 
+    logEdit(OP_RENAME_OLD,
       new DeprecatedUTF8(src),
       new DeprecatedUTF8(dst),
-      FSEditLog.toLogLong(timestamp)};
-    logEdit(OP_RENAME_OLD, new ArrayWritable(DeprecatedUTF8.class, info));
+      FSEditLog.toLogLong(timestamp));
   }
   
   /** 
    * Add rename record to edit log
    */
   void logRename(String src, String dst, long timestamp, Options.Rename... options) {
-    DeprecatedUTF8 info[] = new DeprecatedUTF8[] { 
+    logEdit(OP_RENAME,
       new DeprecatedUTF8(src),
       new DeprecatedUTF8(dst),
-      FSEditLog.toLogLong(timestamp)};
-    logEdit(OP_RENAME,
-      new ArrayWritable(DeprecatedUTF8.class, info),
+      FSEditLog.toLogLong(timestamp),
       toBytesWritable(options));
   }
   
@@ -684,25 +804,24 @@ public class FSEditLog implements NNStorageListener {
    * concat(trg,src..) log
    */
   void logConcat(String trg, String [] srcs, long timestamp) {
-    int size = 1 + srcs.length + 1; // trg, srcs, timestamp
+    int size = 1 + srcs.length; // trg, srcs
     DeprecatedUTF8 info[] = new DeprecatedUTF8[size];
     int idx = 0;
     info[idx++] = new DeprecatedUTF8(trg);
     for(int i=0; i<srcs.length; i++) {
       info[idx++] = new DeprecatedUTF8(srcs[i]);
     }
-    info[idx] = FSEditLog.toLogLong(timestamp);
-    logEdit(OP_CONCAT_DELETE, new ArrayWritable(DeprecatedUTF8.class, info));
+    logEdit(OP_CONCAT_DELETE, new ArrayWritable(DeprecatedUTF8.class, info),
+      FSEditLog.toLogLong(timestamp));
   }
   
   /** 
    * Add delete file record to edit log
    */
   void logDelete(String src, long timestamp) {
-    DeprecatedUTF8 info[] = new DeprecatedUTF8[] { 
+    logEdit(OP_DELETE,
       new DeprecatedUTF8(src),
-      FSEditLog.toLogLong(timestamp)};
-    logEdit(OP_DELETE, new ArrayWritable(DeprecatedUTF8.class, info));
+      FSEditLog.toLogLong(timestamp));
   }
 
   /** 
@@ -716,11 +835,10 @@ public class FSEditLog implements NNStorageListener {
    * Add access time record to edit log
    */
   void logTimes(String src, long mtime, long atime) {
-    DeprecatedUTF8 info[] = new DeprecatedUTF8[] { 
+    logEdit(OP_TIMES,
       new DeprecatedUTF8(src),
       FSEditLog.toLogLong(mtime),
-      FSEditLog.toLogLong(atime)};
-    logEdit(OP_TIMES, new ArrayWritable(DeprecatedUTF8.class, info));
+      FSEditLog.toLogLong(atime));
   }
 
   /** 
@@ -728,13 +846,11 @@ public class FSEditLog implements NNStorageListener {
    */
   void logSymlink(String path, String value, long mtime, 
                   long atime, INodeSymlink node) {
-    DeprecatedUTF8 info[] = new DeprecatedUTF8[] { 
+    logEdit(OP_SYMLINK, 
       new DeprecatedUTF8(path),
       new DeprecatedUTF8(value),
       FSEditLog.toLogLong(mtime),
-      FSEditLog.toLogLong(atime)};
-    logEdit(OP_SYMLINK, 
-      new ArrayWritable(DeprecatedUTF8.class, info),
+      FSEditLog.toLogLong(atime),
       node.getPermissionStatus());
   }
   
@@ -762,12 +878,17 @@ public class FSEditLog implements NNStorageListener {
     logEdit(OP_UPDATE_MASTER_KEY, key);
   }
   
-  static private DeprecatedUTF8 toLogReplication(short replication) {
-    return new DeprecatedUTF8(Short.toString(replication));
+  /**
+   * Since layout version -33 numeric fields are written in binary:
+   * the replication as a variable-length int, since it is small,
+   * and times and sizes as fixed-width longs.
+   */
+  static private VIntWritable toLogReplication(short replication) {
+    return new VIntWritable(replication);
   }
   
-  static private DeprecatedUTF8 toLogLong(long timestamp) {
-    return new DeprecatedUTF8(Long.toString(timestamp));
+  static private LongWritable toLogLong(long value) {
+    return new LongWritable(value);
   }
 
   /**
@@ -852,7 +973,7 @@ public class FSEditLog implements NNStorageListener {
         closeStream(eStream);
         // create new stream
         eStream = new EditLogFileOutputStream(new File(sd.getRoot(), dest),
-            sizeOutputFlushBuffer);
+            sizeOutputFlushBuffer, sizePreallocate);
         eStream.create();
         // replace by the new stream
         itE.replace(eStream);
@@ -932,7 +1053,8 @@ public class FSEditLog implements NNStorageListener {
           }
         }
         // open new stream
-        eStream = new EditLogFileOutputStream(editFile, sizeOutputFlushBuffer);
+        eStream = new EditLogFileOutputStream(editFile, sizeOutputFlushBuffer,
+            sizePreallocate);
         // replace by the new stream
         itE.replace(eStream);
       } catch (IOException e) {
@@ -983,6 +1105,19 @@ public class FSEditLog implements NNStorageListener {
     sizeOutputFlushBuffer = size;
   }
 
+  // sets the size by which edits files are preallocated.
+  void setPreallocateSize(int size) {
+    sizePreallocate = size;
+  }
+
+  /**
+   * Enable or disable syncing by a dedicated sync thread.
+   * Takes effect the next time the edits log is opened.
+   */
+  synchronized void setUseSyncThread(boolean useSyncThread) {
+    this.useSyncThread = useSyncThread;
+  }
+
 
   boolean isEmpty() throws IOException {
     return getEditLogSize() <= 0;
@@ -22,7 +22,9 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.Checksum;
 
@@ -43,14 +45,26 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableFactories;
 import org.apache.hadoop.io.WritableFactory;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.security.token.delegation.DelegationKey;
 
 public class FSEditLogLoader {
   private final FSNamesystem fsNamesys;
+  /** whether a loaded log ended in its preallocated region */
+  private boolean preallocatedTail = false;
 
   public FSEditLogLoader(FSNamesystem fsNamesys) {
     this.fsNamesys = fsNamesys;
   }
+
+  /**
+   * Whether any of the edit logs loaded so far was not closed, and ended
+   * in its preallocated region. The image should be saved then, which
+   * recreates the edits without the preallocated tail.
+   */
+  boolean hasPreallocatedTail() {
+    return preallocatedTail;
+  }
   
   /**
    * Load an edit log, and apply the changes to the in-memory structure
@@ -100,7 +114,8 @@ public class FSEditLogLoader {
   
   int loadFSEdits(EditLogInputStream edits, boolean closeOnExit) throws IOException {
     BufferedInputStream bin = new BufferedInputStream(edits);
-    DataInputStream in = new DataInputStream(bin);
+    PositionTrackingInputStream tracker = new PositionTrackingInputStream(bin);
+    DataInputStream in = new DataInputStream(tracker);
     
     int numEdits = 0;
     int logVersion = 0;
@@ -110,10 +125,17 @@ public class FSEditLogLoader {
       Checksum checksum = null;
       if (logVersion <= -28) { // support fsedits checksum
         checksum = FSEditLog.getChecksum();
-        in = new DataInputStream(new CheckedInputStream(bin, checksum));
+        in = new DataInputStream(new CheckedInputStream(tracker, checksum));
       }
 
       numEdits = loadEditRecords(logVersion, in, checksum, false);
+      long length = edits.length();
+      if (tracker.getPos() < length) {
+        // the log was not closed, and ends in its preallocated region
+        FSImage.LOG.info("Edits file " + edits.getName() + " ends with "
+            + (length - tracker.getPos()) + " bytes of preallocated space");
+        preallocatedTail = true;
+      }
     } finally {
       if(closeOnExit)
         in.close();
@@ -166,23 +188,26 @@ public class FSEditLogLoader {
         case OP_CLOSE: {
           // versions > 0 support per file replication
           // get name and replication
-          int length = in.readInt();
-          if (-7 == logVersion && length != 3||
-              -17 < logVersion && logVersion < -7 && length != 4 ||
-              logVersion <= -17 && length != 5) {
-              throw new IOException("Incorrect data format."  +
-                                    " logVersion is " + logVersion +
-                                    " but writables.length is " +
-                                    length + ". ");
+          if (logVersion > -33) {
+            int length = in.readInt();
+            if (-7 == logVersion && length != 3||
+                -17 < logVersion && logVersion < -7 && length != 4 ||
+                logVersion <= -17 && length != 5) {
+                throw new IOException("Incorrect data format."  +
+                                      " logVersion is " + logVersion +
+                                      " but writables.length is " +
+                                      length + ". ");
+            }
           }
           path = FSImageSerialization.readString(in);
-          short replication = fsNamesys.adjustReplication(readShort(in));
-          mtime = readLong(in);
+          short replication =
+            fsNamesys.adjustReplication(readShort(in, logVersion));
+          mtime = readLong(in, logVersion);
           if (logVersion <= -17) {
-            atime = readLong(in);
+            atime = readLong(in, logVersion);
           }
           if (logVersion < -7) {
-            blockSize = readLong(in);
+            blockSize = readLong(in, logVersion);
           }
           // get blocks
           boolean isFileUnderConstruction = (opCode == FSEditLogOpCodes.OP_ADD);
@@ -259,7 +284,8 @@ public class FSEditLogLoader {
         case OP_SET_REPLICATION: {
           numOpSetRepl++;
           path = FSImageSerialization.readString(in);
-          short replication = fsNamesys.adjustReplication(readShort(in));
+          short replication =
+            fsNamesys.adjustReplication(readShort(in, logVersion));
           fsDir.unprotectedSetReplication(path, replication, null);
           break;
         } 
@@ -270,30 +296,27 @@ public class FSEditLogLoader {
           }
           numOpConcatDelete++;
           int length = in.readInt();
-          if (length < 3) { // trg, srcs.., timestam
+          // trg, srcs.., and up to -33 timestamp
+          int srcSize = logVersion <= -33 ? length - 1 : length - 2;
+          if (srcSize < 1) {
             throw new IOException("Incorrect data format. " 
                                   + "Mkdir operation.");
           }
           String trg = FSImageSerialization.readString(in);
-          int srcSize = length - 1 - 1; //trg and timestamp
           String [] srcs = new String [srcSize];
           for(int i=0; i<srcSize;i++) {
             srcs[i]= FSImageSerialization.readString(in);
           }
-          timestamp = readLong(in);
+          timestamp = readLong(in, logVersion);
           fsDir.unprotectedConcat(trg, srcs);
           break;
         }
         case OP_RENAME_OLD: {
           numOpRenameOld++;
-          int length = in.readInt();
-          if (length != 3) {
-            throw new IOException("Incorrect data format. " 
-                                  + "Mkdir operation.");
-          }
+          readLength(in, logVersion, 3, "Mkdir");
           String s = FSImageSerialization.readString(in);
           String d = FSImageSerialization.readString(in);
-          timestamp = readLong(in);
+          timestamp = readLong(in, logVersion);
           HdfsFileStatus dinfo = fsDir.getFileInfo(d, false);
           fsDir.unprotectedRenameTo(s, d, timestamp);
           fsNamesys.changeLease(s, d, dinfo);
@@ -301,33 +324,24 @@ public class FSEditLogLoader {
         }
         case OP_DELETE: {
           numOpDelete++;
-          int length = in.readInt();
-          if (length != 2) {
-            throw new IOException("Incorrect data format. " 
-                                  + "delete operation.");
-          }
+          readLength(in, logVersion, 2, "delete");
           path = FSImageSerialization.readString(in);
-          timestamp = readLong(in);
+          timestamp = readLong(in, logVersion);
           fsDir.unprotectedDelete(path, timestamp);
           break;
         }
         case OP_MKDIR: {
           numOpMkDir++;
           PermissionStatus permissions = fsNamesys.getUpgradePermission();
-          int length = in.readInt();
-          if (-17 < logVersion && length != 2 ||
-              logVersion <= -17 && length != 3) {
-            throw new IOException("Incorrect data format. " 
-                                  + "Mkdir operation.");
-          }
+          readLength(in, logVersion, logVersion <= -17 ? 3 : 2, "Mkdir");
           path = FSImageSerialization.readString(in);
-          timestamp = readLong(in);
+          timestamp = readLong(in, logVersion);
 
           // The disk format stores atimes for directories as well.
           // However, currently this is not being updated/used because of
           // performance reasons.
           if (logVersion <= -17) {
-            atime = readLong(in);
+            atime = readLong(in, logVersion);
           }
 
           if (logVersion <= -11) {
@@ -404,28 +418,20 @@ public class FSEditLogLoader {
 
         case OP_TIMES: {
           numOpTimes++;
-          int length = in.readInt();
-          if (length != 3) {
-            throw new IOException("Incorrect data format. " 
-                                  + "times operation.");
-          }
+          readLength(in, logVersion, 3, "times");
           path = FSImageSerialization.readString(in);
-          mtime = readLong(in);
-          atime = readLong(in);
+          mtime = readLong(in, logVersion);
+          atime = readLong(in, logVersion);
           fsDir.unprotectedSetTimes(path, mtime, atime, true);
           break;
         }
         case OP_SYMLINK: {
           numOpSymlink++;
-          int length = in.readInt();
-          if (length != 4) {
-            throw new IOException("Incorrect data format. " 
-                                  + "symlink operation.");
-          }
+          readLength(in, logVersion, 4, "symlink");
           path = FSImageSerialization.readString(in);
           String value = FSImageSerialization.readString(in);
-          mtime = readLong(in);
-          atime = readLong(in);
+          mtime = readLong(in, logVersion);
+          atime = readLong(in, logVersion);
           PermissionStatus perm = PermissionStatus.read(in);
           fsDir.unprotectedSymlink(path, value, mtime, atime, perm);
           break;
@@ -436,14 +442,10 @@ public class FSEditLogLoader {
                 + " for version " + logVersion);
           }
           numOpRename++;
-          int length = in.readInt();
-          if (length != 3) {
-            throw new IOException("Incorrect data format. " 
-                                  + "Mkdir operation.");
-          }
+          readLength(in, logVersion, 3, "Mkdir");
           String s = FSImageSerialization.readString(in);
           String d = FSImageSerialization.readString(in);
-          timestamp = readLong(in);
+          timestamp = readLong(in, logVersion);
           Rename[] options = readRenameOptions(in);
           HdfsFileStatus dinfo = fsDir.getFileInfo(d, false);
           fsDir.unprotectedRenameTo(s, d, timestamp, options);
@@ -459,7 +461,7 @@ public class FSEditLogLoader {
           DelegationTokenIdentifier delegationTokenId = 
               new DelegationTokenIdentifier();
           delegationTokenId.readFields(in);
-          long expiryTime = readLong(in);
+          long expiryTime = readLong(in, logVersion);
           fsNamesys.getDelegationTokenSecretManager()
               .addPersistedDelegationToken(delegationTokenId, expiryTime);
           break;
@@ -473,7 +475,7 @@ public class FSEditLogLoader {
           DelegationTokenIdentifier delegationTokenId = 
               new DelegationTokenIdentifier();
           delegationTokenId.readFields(in);
-          long expiryTime = readLong(in);
+          long expiryTime = readLong(in, logVersion);
           fsNamesys.getDelegationTokenSecretManager()
               .updatePersistedTokenRenewal(delegationTokenId, expiryTime);
           break;
@@ -596,11 +598,32 @@ public class FSEditLogLoader {
     return locations;
   }
 
-  static private short readShort(DataInputStream in) throws IOException {
+  /**
+   * Up to layout version -33 the fields of most records are written as
+   * an array, and numeric fields as strings. Read and check the length
+   * of the array, if there is one.
+   */
+  static private void readLength(DataInputStream in, int logVersion,
+      int expected, String operation) throws IOException {
+    if (logVersion > -33 && in.readInt() != expected) {
+      throw new IOException("Incorrect data format. " 
+                            + operation + " operation.");
+    }
+  }
+
+  static private short readShort(DataInputStream in, int logVersion)
+      throws IOException {
+    if (logVersion <= -33) {
+      return (short)WritableUtils.readVInt(in);
+    }
     return Short.parseShort(FSImageSerialization.readString(in));
   }
 
-  static private long readLong(DataInputStream in) throws IOException {
+  static private long readLong(DataInputStream in, int logVersion)
+      throws IOException {
+    if (logVersion <= -33) {
+      return in.readLong();
+    }
     return Long.parseLong(FSImageSerialization.readString(in));
   }
   
@@ -652,4 +675,59 @@ public class FSEditLogLoader {
     }
     return blocks;
   }
+
+  /**
+   * Stream wrapper that keeps track of the position in the stream, through
+   * marks and resets, so that the end of the edits in a file is known.
+   */
+  static class PositionTrackingInputStream extends FilterInputStream {
+    private long curPos = 0;
+    private long markPos = -1;
+
+    PositionTrackingInputStream(InputStream is) {
+      super(is);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int ret = super.read();
+      if (ret != -1) curPos++;
+      return ret;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+      int ret = super.read(data, offset, length);
+      if (ret > 0) curPos += ret;
+      return ret;
+    }
+
+    @Override
+    public synchronized void mark(int limit) {
+      super.mark(limit);
+      markPos = curPos;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+      if (markPos == -1) {
+        throw new IOException("Not marked!");
+      }
+      super.reset();
+      curPos = markPos;
+      markPos = -1;
+    }
+
+    @Override
+    public long skip(long amt) throws IOException {
+      long ret = super.skip(amt);
+      curPos += ret;
+      return ret;
+    }
+
+    /** @return the number of bytes read from the stream */
+    long getPos() {
+      return curPos;
+    }
+  }
 }
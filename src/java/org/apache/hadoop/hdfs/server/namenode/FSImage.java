@@ -19,6 +19,7 @@ package org.apache.hadoop.hdfs.server.namenode;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.text.SimpleDateFormat;
@@ -29,6 +30,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -56,6 +58,7 @@ import org.apache.hadoop.hdfs.server.protocol.CheckpointCommand;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeCommand;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeProtocol;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeRegistration;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 
@@ -95,6 +98,12 @@ public class FSImage implements NNStorageListener, Closeable {
    */
   volatile protected CheckpointStates ckptState = FSImage.CheckpointStates.START; 
 
+  /** The snapshot the namespace is being saved from, or null */
+  private NamespaceSnapshot savingSnapshot = null;
+  /** Whether edits.new was rolled by a save from a snapshot that failed,
+   * rather than by a checkpoint in progress */
+  private boolean editsNewFromFailedSave = false;
+
   /**
    */
   FSImage() {
@@ -114,6 +123,12 @@ public class FSImage implements NNStorageListener, Closeable {
       NameNode.LOG.info("set FSImage.restoreFailedStorage");
       storage.setRestoreFailedStorage(true);
     }
+    editLog.setUseSyncThread(conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_EDITS_SYNC_THREAD_ENABLED_KEY,
+        DFSConfigKeys.DFS_NAMENODE_EDITS_SYNC_THREAD_ENABLED_DEFAULT));
+    editLog.setPreallocateSize(conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_EDITS_PREALLOCATE_SIZE_KEY,
+        DFSConfigKeys.DFS_NAMENODE_EDITS_PREALLOCATE_SIZE_DEFAULT));
     setCheckpointDirectories(FSImage.getCheckpointDirs(conf, null),
         FSImage.getCheckpointEditsDirs(conf, null));
   }
@@ -669,8 +684,12 @@ public class FSImage implements NNStorageListener, Closeable {
     if (latestNameCheckpointTime > latestEditsCheckpointTime)
       // the image is already current, discard edits
       needToSave |= true;
-    else // latestNameCheckpointTime == latestEditsCheckpointTime
-      needToSave |= (loadFSEdits(latestEditsSD) > 0);
+    else { // latestNameCheckpointTime == latestEditsCheckpointTime
+      FSEditLogLoader loader = new FSEditLogLoader(namesystem);
+      needToSave |= (loadFSEdits(latestEditsSD, loader) > 0);
+      // save the image to drop the preallocated tail of unclosed edits
+      needToSave |= loader.hasPreallocatedTail();
+    }
     
     return needToSave;
   }
@@ -713,8 +732,19 @@ public class FSImage implements NNStorageListener, Closeable {
    * @throws IOException
    */
   int loadFSEdits(StorageDirectory sd) throws IOException {
-    FSEditLogLoader loader = new FSEditLogLoader(namesystem);
-    
+    return loadFSEdits(sd, new FSEditLogLoader(namesystem));
+  }
+
+  /**
+   * Load and merge edits from two edits files with the given loader
+   *
+   * @param sd storage directory
+   * @param loader the loader of the edits
+   * @return number of edits loaded
+   * @throws IOException
+   */
+  private int loadFSEdits(StorageDirectory sd, FSEditLogLoader loader)
+      throws IOException {
     int numEdits = 0;
     EditLogFileInputStream edits =
       new EditLogFileInputStream(NNStorage.getStorageFile(sd,
@@ -740,22 +770,116 @@ public class FSImage implements NNStorageListener, Closeable {
    * Save the contents of the FS image to the file.
    */
   void saveFSImage(File newFile) throws IOException {
-    FSImageFormat.Saver saver = new FSImageFormat.Saver();
+    FSImageFormat.Saver saver = new FSImageFormat.Saver(conf);
     FSImageCompression compression = FSImageCompression.createCompression(conf);
     saver.save(newFile, getFSNamesystem(), compression);
     storage.setImageDigest(saver.getSavedDigest());
   }
 
   /**
-   * FSImageSaver is being run in a separate thread when saving
-   * FSImage. There is one thread per each copy of the image.
+   * Open the stream to save an image to the given file.
+   */
+  FileOutputStream openImageFile(File imageFile) throws IOException {
+    return new FileOutputStream(imageFile);
+  }
+
+  /**
+   * Save the contents of the FS image to the given image directories,
+   * and an empty journal to those that also store edits.
+   *
+   * The namespace is serialized once, and the bytes are written to the
+   * image file of every directory, each with its own digest. A directory
+   * whose image cannot be written is added to errorSDs, and the image is
+   * still saved to the others.
+   *
+   * The caller must hold the FSNamesystem lock, so that the namespace is
+   * not being updated while it is written out.
+   */
+  private void saveCurrent(List<StorageDirectory> sds,
+                           List<StorageDirectory> errorSDs) {
+    Map<StorageDirectory, MD5Hash> saved =
+      saveImageFiles(sds, NameNodeFile.IMAGE, null, errorSDs);
+    for (Map.Entry<StorageDirectory, MD5Hash> entry : saved.entrySet()) {
+      StorageDirectory sd = entry.getKey();
+      try {
+        // the version file of each directory records the digest of its image
+        storage.setImageDigest(entry.getValue());
+        if (sd.getStorageDirType().isOfType(NameNodeDirType.EDITS))
+          editLog.createEditLogFile(NNStorage.getStorageFile(sd,
+                                                             NameNodeFile.EDITS));
+        // write version and time files
+        sd.write();
+      } catch (Throwable t) {
+        LOG.error("Unable to save image for " + sd.getRoot(), t);
+        errorSDs.add(sd);
+      }
+    }
+  }
+
+  /**
+   * Save the namespace to the image file of the given type in each of the
+   * given directories, serializing it once. A directory whose image cannot
+   * be written is added to errorSDs.
+   * @param snapshot the snapshot to save the namespace from, or null to
+   *        save the namespace as it is
+   * @return the directories the image was saved to, with its digest
+   */
+  private Map<StorageDirectory, MD5Hash> saveImageFiles(
+      List<StorageDirectory> sds, NameNodeFile type,
+      NamespaceSnapshot snapshot, List<StorageDirectory> errorSDs) {
+    Map<StorageDirectory, MD5Hash> saved =
+      new LinkedHashMap<StorageDirectory, MD5Hash>();
+    List<StorageDirectory> saving = new ArrayList<StorageDirectory>();
+    List<FileOutputStream> streams = new ArrayList<FileOutputStream>();
+    for (StorageDirectory sd : sds) {
+      try {
+        File curDir = sd.getCurrentDir();
+        if (!curDir.exists() && !curDir.mkdir())
+          throw new IOException("Cannot create directory " + curDir);
+        streams.add(openImageFile(NNStorage.getStorageFile(sd, type)));
+        saving.add(sd);
+      } catch (Throwable t) {
+        LOG.error("Unable to save image for " + sd.getRoot(), t);
+        errorSDs.add(sd);
+      }
+    }
+    if (saving.isEmpty()) {
+      return saved;
+    }
+
+    FSImageFormat.Saver saver = new FSImageFormat.Saver(conf);
+    try {
+      saver.save(streams, getFSNamesystem(),
+          FSImageCompression.createCompression(conf), snapshot);
+    } catch (Throwable t) {
+      LOG.error("Unable to save image", t);
+      for (FileOutputStream stream : streams) {
+        IOUtils.closeStream(stream);
+      }
+      errorSDs.addAll(saving);
+      return saved;
+    }
+
+    for (int i = 0; i < saving.size(); i++) {
+      StorageDirectory sd = saving.get(i);
+      if (saver.getFailure(i) != null) {
+        LOG.error("Unable to save image for " + sd.getRoot(),
+            saver.getFailure(i));
+        errorSDs.add(sd);
+      } else {
+        saved.put(sd, saver.getSavedDigest(i));
+      }
+    }
+    return saved;
+  }
+
+  /**
+   * FSImageSaver is being run in a separate thread when creating
+   * the empty journal of an edits-only directory.
    *
    * FSImageSaver assumes that it was launched from a thread that holds
    * FSNamesystem lock and waits for the execution of FSImageSaver thread
    * to finish.
-   * This way we are guraranteed that the namespace is not being updated
-   * while multiple instances of FSImageSaver are traversing it
-   * and writing it out.
    */
   private class FSImageSaver implements Runnable {
     private StorageDirectory sd;
@@ -831,18 +955,13 @@ public class FSImage implements NNStorageListener, Closeable {
       }
     }
 
-    List<Thread> saveThreads = new ArrayList<Thread>();
     // save images into current
+    List<StorageDirectory> imageSDs = new ArrayList<StorageDirectory>();
     for (Iterator<StorageDirectory> it
            = storage.dirIterator(NameNodeDirType.IMAGE); it.hasNext();) {
-      StorageDirectory sd = it.next();
-      FSImageSaver saver = new FSImageSaver(sd, errorSDs);
-      Thread saveThread = new Thread(saver, saver.toString());
-      saveThreads.add(saveThread);
-      saveThread.start();
+      imageSDs.add(it.next());
     }
-    waitForThreads(saveThreads);
-    saveThreads.clear();
+    saveCurrent(imageSDs, errorSDs);
 
     // -NOTE-
     // If NN has image-only and edits-only storage directories and fails here
@@ -854,6 +973,7 @@ public class FSImage implements NNStorageListener, Closeable {
     // The edits directories should be discarded during startup because their
     // checkpointTime is older than that of image directories.
     // recreate edits in current
+    List<Thread> saveThreads = new ArrayList<Thread>();
     for (Iterator<StorageDirectory> it
            = storage.dirIterator(NameNodeDirType.EDITS); it.hasNext();) {
       StorageDirectory sd = it.next();
@@ -885,6 +1005,94 @@ public class FSImage implements NNStorageListener, Closeable {
     ckptState = CheckpointStates.UPLOAD_DONE;
   }
 
+  /**
+   * Start saving the namespace while it is being modified.
+   *
+   * The edits are rolled, so that the operations from now on are logged
+   * to edits.new, and a snapshot of the namespace is opened. The image is
+   * then saved from the snapshot to fsimage.ckpt by
+   * {@link #saveCheckpoint(NamespaceSnapshot, List)}, and
+   * {@link #endSaveNamespace(boolean, List)} rolls it into the current
+   * image, as for a checkpoint uploaded by a secondary or backup node.
+   *
+   * If a previous save failed, its edits.new is still there, and the
+   * operations since the previous save are in it. The save goes on
+   * logging to it, and rolls it into edits once the image is saved.
+   *
+   * The caller must hold the FSNamesystem write lock.
+   * @throws IOException if the namespace is already being saved or
+   *         another checkpoint is in progress
+   */
+  NamespaceSnapshot startSaveNamespace() throws IOException {
+    if (savingSnapshot != null) {
+      throw new IOException("The namespace is already being saved.");
+    }
+    for (Iterator<StorageDirectory> it
+           = storage.dirIterator(NameNodeDirType.EDITS); it.hasNext();) {
+      if (!editsNewFromFailedSave && editLog.existsNew(it.next())) {
+        throw new IOException("Cannot save the namespace while " +
+                              "a checkpoint is in progress.");
+      }
+    }
+    editLog.rollEditLog(); // nothing to do if edits.new exists
+    ckptState = CheckpointStates.ROLLED_EDITS;
+    editsNewFromFailedSave = false;
+    // if the save fails this is still the most recent image
+    storage.incrementCheckpointTime();
+    savingSnapshot = getFSNamesystem().dir.openSnapshot(getFSNamesystem());
+    return savingSnapshot;
+  }
+
+  /**
+   * Save the image from the snapshot to fsimage.ckpt in every image
+   * directory. A directory whose image cannot be written is added to
+   * errorSDs. The caller need not hold the FSNamesystem lock.
+   * @return true if the image was saved to at least one directory
+   */
+  boolean saveCheckpoint(NamespaceSnapshot snapshot,
+                         List<StorageDirectory> errorSDs) {
+    List<StorageDirectory> imageSDs = new ArrayList<StorageDirectory>();
+    for (Iterator<StorageDirectory> it
+           = storage.dirIterator(NameNodeDirType.IMAGE); it.hasNext();) {
+      imageSDs.add(it.next());
+    }
+    Map<StorageDirectory, MD5Hash> saved =
+      saveImageFiles(imageSDs, NameNodeFile.IMAGE_NEW, snapshot, errorSDs);
+    if (saved.isEmpty()) {
+      return false;
+    }
+    // the same bytes were written to every directory
+    newImageDigest = saved.values().iterator().next();
+    return true;
+  }
+
+  /**
+   * End saving the namespace from the snapshot. If the image was saved,
+   * roll it into the current image and edits.new into edits; otherwise
+   * discard it, and leave edits.new to the next save or checkpoint.
+   *
+   * The caller must hold the FSNamesystem write lock.
+   */
+  void endSaveNamespace(boolean saved, List<StorageDirectory> errorSDs)
+      throws IOException {
+    getFSNamesystem().dir.closeSnapshot();
+    savingSnapshot = null;
+    storage.reportErrorsOnDirectories(errorSDs);
+    if (saved) {
+      ckptState = CheckpointStates.UPLOAD_DONE;
+      rollFSImage(true);
+      return;
+    }
+    editsNewFromFailedSave = true;
+    for (Iterator<StorageDirectory> it
+           = storage.dirIterator(NameNodeDirType.IMAGE); it.hasNext();) {
+      File ckpt = NNStorage.getStorageFile(it.next(), NameNodeFile.IMAGE_NEW);
+      if (ckpt.exists() && !ckpt.delete()) {
+        LOG.warn("Cannot delete checkpoint file " + ckpt);
+      }
+    }
+  }
+
   /**
    * Save current image and empty journal into {@code current} directory.
    */
@@ -932,6 +1140,7 @@ public class FSImage implements NNStorageListener, Closeable {
       }
     }
     editLog.purgeEditLog(); // renamed edits.new to edits
+    editsNewFromFailedSave = false;
     if(LOG.isDebugEnabled()) {
       LOG.debug("rollFSImage after purgeEditLog: storageList=" 
                 + storage.listStorageDirectories());
@@ -1013,8 +1222,14 @@ public class FSImage implements NNStorageListener, Closeable {
   }
 
   CheckpointSignature rollEditLog() throws IOException {
+    if (savingSnapshot != null) {
+      throw new IOException("Cannot roll the edits log while " +
+                            "the namespace is being saved.");
+    }
     getEditLog().rollEditLog();
     ckptState = CheckpointStates.ROLLED_EDITS;
+    // edits.new now belongs to this checkpoint
+    editsNewFromFailedSave = false;
     // If checkpoint fails this should be the most recent image, therefore
     storage.incrementCheckpointTime();
     return new CheckpointSignature(this);
@@ -1025,7 +1240,7 @@ public class FSImage implements NNStorageListener, Closeable {
    * namenode.
    */
   void validateCheckpointUpload(CheckpointSignature sig) throws IOException {
-    if (ckptState != CheckpointStates.ROLLED_EDITS) {
+    if (ckptState != CheckpointStates.ROLLED_EDITS || savingSnapshot != null) {
       throw new IOException("Namenode is not expecting an new image " +
                              ckptState);
     } 
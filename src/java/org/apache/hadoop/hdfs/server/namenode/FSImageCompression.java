@@ -17,21 +17,27 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
 
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Text;
 
 /**
@@ -139,31 +145,57 @@ class FSImageCompression {
 
   /**
    * Write out a header to the given stream that indicates the chosen
-   * compression codec, and return the same stream wrapped with that codec.
-   * If no codec is specified, simply adds buffering to the stream, so that
-   * the returned stream is always buffered.
-   * 
-   * @param os The stream to write header to and wrap. This stream should
-   * be unbuffered.
-   * @return A stream wrapped with the specified compressor, or buffering
-   * if compression is not enabled.
-   * @throws IOException if an IO error occurs or the compressor cannot be
-   * instantiated
+   * compression codec.
    */
-  DataOutputStream writeHeaderAndWrapStream(OutputStream os)
-  throws IOException {
-    DataOutputStream dos = new DataOutputStream(os);
-
+  void writeHeader(DataOutputStream dos) throws IOException {
     dos.writeBoolean(imageCodec != null);
 
     if (imageCodec != null) {
       String codecClassName = imageCodec.getClass().getCanonicalName();
       Text.writeString(dos, codecClassName);
+    }
+  }
 
-      return new DataOutputStream(imageCodec.createOutputStream(os));
-    } else {
-      // use a buffered output stream
-      return new DataOutputStream(new BufferedOutputStream(os));
+  /**
+   * Compress the given bytes to a stream with this codec, without a header,
+   * as for the sections of an image. The compressors are pooled, since an
+   * image has many sections.
+   * If this instance represents no compression, simply copies the bytes.
+   */
+  void compress(byte[] data, int off, int len, OutputStream os)
+  throws IOException {
+    if (imageCodec == null) {
+      os.write(data, off, len);
+      return;
+    }
+    Compressor compressor = CodecPool.getCompressor(imageCodec);
+    try {
+      CompressionOutputStream cos =
+        imageCodec.createOutputStream(os, compressor);
+      cos.write(data, off, len);
+      cos.finish();
+    } finally {
+      CodecPool.returnCompressor(compressor);
+    }
+  }
+
+  /**
+   * Decompress bytes written by {@link #compress}.
+   * If this instance represents no compression, returns the same bytes.
+   */
+  byte[] decompress(byte[] data) throws IOException {
+    if (imageCodec == null) {
+      return data;
+    }
+    Decompressor decompressor = CodecPool.getDecompressor(imageCodec);
+    try {
+      InputStream is = imageCodec.createInputStream(
+          new ByteArrayInputStream(data), decompressor);
+      ByteArrayOutputStream os = new ByteArrayOutputStream(4 * data.length);
+      IOUtils.copyBytes(is, os, 4096, false);
+      return os.toByteArray();
+    } finally {
+      CodecPool.returnDecompressor(decompressor);
     }
   }
 
@@ -19,18 +19,33 @@ package org.apache.hadoop.hdfs.server.namenode;
 
 import static org.apache.hadoop.hdfs.server.common.Util.now;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -38,9 +53,13 @@ import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.util.DaemonFactory;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.Text;
 
@@ -174,25 +193,29 @@ class FSImageFormat {
         } else {
           compression = FSImageCompression.createNoopCompression();
         }
-        in = compression.unwrapInputStream(fin);
-
         LOG.info("Loading image file " + curFile + " using " + compression);
 
         // load all inodes
         LOG.info("Number of files = " + numFiles);
-        if (imgVersion <= -30) {
-          loadLocalNameINodes(numFiles, in);
+        if (imgVersion <= -32) { // -32: sections are compressed separately
+          in = new DataInputStream(new BufferedInputStream(fin));
+          loadSections(numFiles, compression, in);
         } else {
-          loadFullNameINodes(numFiles, in);
-        }
+          in = compression.unwrapInputStream(fin);
+          if (imgVersion <= -30) {
+            loadLocalNameINodes(numFiles, in);
+          } else {
+            loadFullNameINodes(numFiles, in);
+          }
 
-        // load datanode info
-        this.loadDatanodes(in);
+          // load datanode info
+          this.loadDatanodes(in);
 
-        // load Files Under Construction
-        this.loadFilesUnderConstruction(in);
+          // load Files Under Construction
+          this.loadFilesUnderConstruction(in);
 
-        this.loadSecretManagerState(in);
+          this.loadSecretManagerState(in);
+        }
 
         // make sure to read to the end of file
         int eof = in.read();
@@ -259,11 +282,7 @@ class FSImageFormat {
     */
    private int loadDirectory(DataInputStream in) throws IOException {
      String parentPath = FSImageSerialization.readString(in);
-     FSDirectory fsDir = namesystem.dir;
-     INode parent = fsDir.rootDir.getNode(parentPath, true);
-     if (parent == null || !parent.isDirectory()) {
-       throw new IOException("Path " + parentPath + "is not a directory.");
-     }
+     INodeDirectory parent = getDirectory(parentPath);
 
      int numChildren = in.readInt();
      for(int i=0; i<numChildren; i++) {
@@ -273,11 +292,212 @@ class FSImageFormat {
        INode newNode = loadINode(in); // read rest of inode
 
        // add to parent
-       namesystem.dir.addToParent(localName, (INodeDirectory)parent, newNode, false);
+       namesystem.dir.addToParent(localName, parent, newNode, false);
      }
      return numChildren;
    }
 
+   private INodeDirectory getDirectory(String path) throws IOException {
+     INode dir = namesystem.dir.rootDir.getNode(path, true);
+     if (dir == null || !dir.isDirectory()) {
+       throw new IOException("Path " + path + "is not a directory.");
+     }
+     return (INodeDirectory)dir;
+   }
+
+    /**
+     * Load an image made of sections.
+     * This thread reads the sections, the loader threads decode them,
+     * and this thread applies them to the namespace in the order of
+     * the image, so that directories are linked before their children.
+     *
+     * @param numFiles number of files expected to be read
+     * @param compression the compression of the sections
+     * @param in image input stream
+     * @throws IOException
+     */
+    private void loadSections(long numFiles, FSImageCompression compression,
+        DataInputStream in) throws IOException {
+      // load root, which is not in a section
+      if (in.readShort() != 0) {
+        throw new IOException("First node is not root");
+      }
+      INode root = loadINode(in);
+      updateRootAttr(root);
+      numFiles--;
+
+      int numThreads = conf.getInt(DFSConfigKeys.DFS_IMAGE_LOAD_THREADS_KEY,
+          DFSConfigKeys.DFS_IMAGE_LOAD_THREADS_DEFAULT);
+      ExecutorService decoders = null;
+      if (numThreads > 1) {
+        decoders = Executors.newFixedThreadPool(numThreads,
+            new DaemonFactory());
+      }
+      // the sections being decoded, bounded to limit the read ahead
+      LinkedList<Future<Section>> decoding = new LinkedList<Future<Section>>();
+      int numSections = 0;
+      try {
+        for (byte type = in.readByte(); type != FSImageSerialization.SECTION_END;
+             type = in.readByte()) {
+          byte[] data = new byte[in.readInt()];
+          in.readFully(data);
+          numSections++;
+          SectionDecoder decoder = new SectionDecoder(type, data, compression);
+          if (decoders == null) {
+            numFiles -= decoder.call().apply();
+            continue;
+          }
+          decoding.add(decoders.submit(decoder));
+          if (decoding.size() > 2 * numThreads) {
+            numFiles -= getDecoded(decoding.removeFirst()).apply();
+          }
+        }
+        while (!decoding.isEmpty()) {
+          numFiles -= getDecoded(decoding.removeFirst()).apply();
+        }
+      } finally {
+        if (decoders != null) {
+          decoders.shutdownNow();
+        }
+      }
+      if (numFiles != 0) {
+        throw new IOException("Read unexpect number of files: " + -numFiles);
+      }
+      LOG.info("Loaded " + numSections + " image sections using "
+          + Math.max(numThreads, 1) + " threads");
+    }
+
+    private Section getDecoded(Future<Section> f) throws IOException {
+      try {
+        return f.get();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw (IOException)new InterruptedIOException(
+            "Interrupted while loading the image").initCause(ie);
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+    /** Decode a section of the image. */
+    private class SectionDecoder implements Callable<Section> {
+      private final byte type;
+      private final byte[] data;
+      private final FSImageCompression compression;
+
+      SectionDecoder(byte type, byte[] data, FSImageCompression compression) {
+        this.type = type;
+        this.data = data;
+        this.compression = compression;
+      }
+
+      @Override
+      public Section call() throws IOException {
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(compression.decompress(data)));
+        switch (type) {
+        case FSImageSerialization.SECTION_INODES:
+          return new INodeSection(in);
+        case FSImageSerialization.SECTION_INODES_UNDER_CONSTRUCTION:
+          return new UnderConstructionSection(in);
+        case FSImageSerialization.SECTION_SECRET_MANAGER:
+          return new SecretManagerSection(in);
+        default:
+          throw new IOException("Unknown image section type " + type);
+        }
+      }
+    }
+
+    /** A decoded section of the image. */
+    private static abstract class Section {
+      /**
+       * Apply the section to the namespace.
+       * @return the number of inodes added to the namespace
+       */
+      abstract int apply() throws IOException;
+    }
+
+    /** Directories and their children. */
+    private class INodeSection extends Section {
+      private final String[] dirs;
+      private final byte[][][] names;
+      private final INode[][] children;
+
+      INodeSection(DataInputStream in) throws IOException {
+        int numDirs = in.readInt();
+        dirs = new String[numDirs];
+        names = new byte[numDirs][][];
+        children = new INode[numDirs][];
+        for (int i = 0; i < numDirs; i++) {
+          dirs[i] = FSImageSerialization.readString(in);
+          int numChildren = in.readInt();
+          names[i] = new byte[numChildren][];
+          children[i] = new INode[numChildren];
+          for (int j = 0; j < numChildren; j++) {
+            names[i][j] = new byte[in.readShort()];
+            in.readFully(names[i][j]);
+            children[i][j] = loadINode(in);
+          }
+        }
+      }
+
+      @Override
+      int apply() throws IOException {
+        int numINodes = 0;
+        for (int i = 0; i < dirs.length; i++) {
+          INodeDirectory parent = getDirectory(dirs[i]);
+          for (int j = 0; j < children[i].length; j++) {
+            namesystem.dir.addToParent(names[i][j], parent, children[i][j],
+                false);
+          }
+          numINodes += children[i].length;
+        }
+        return numINodes;
+      }
+    }
+
+    private class UnderConstructionSection extends Section {
+      private final INodeFileUnderConstruction[] files;
+
+      UnderConstructionSection(DataInputStream in) throws IOException {
+        files = new INodeFileUnderConstruction[in.readInt()];
+        for (int i = 0; i < files.length; i++) {
+          files[i] = FSImageSerialization.readINodeUnderConstruction(in);
+        }
+      }
+
+      @Override
+      int apply() throws IOException {
+        LOG.info("Number of files under construction = " + files.length);
+        for (INodeFileUnderConstruction cons : files) {
+          addFileUnderConstruction(cons);
+        }
+        return 0;
+      }
+    }
+
+    private class SecretManagerSection extends Section {
+      private final DataInputStream in;
+
+      SecretManagerSection(DataInputStream in) {
+        this.in = in;
+      }
+
+      @Override
+      int apply() throws IOException {
+        namesystem.loadSecretManagerState(in);
+        return 0;
+      }
+    }
+
   /**
    * load fsimage files assuming full path names are stored
    * 
@@ -404,7 +624,6 @@ class FSImageFormat {
 
     private void loadFilesUnderConstruction(DataInputStream in)
     throws IOException {
-      FSDirectory fsDir = namesystem.dir;
       if (imgVersion > -13) // pre lease image version
         return;
       int size = in.readInt();
@@ -412,24 +631,28 @@ class FSImageFormat {
       LOG.info("Number of files under construction = " + size);
 
       for (int i = 0; i < size; i++) {
-        INodeFileUnderConstruction cons =
-          FSImageSerialization.readINodeUnderConstruction(in);
-
-        // verify that file exists in namespace
-        String path = cons.getLocalName();
-        INode old = fsDir.getFileINode(path);
-        if (old == null) {
-          throw new IOException("Found lease for non-existent file " + path);
-        }
-        if (old.isDirectory()) {
-          throw new IOException("Found lease for directory " + path);
-        }
-        INodeFile oldnode = (INodeFile) old;
-        fsDir.replaceNode(path, oldnode, cons);
-        namesystem.leaseManager.addLease(cons.getClientName(), path); 
+        addFileUnderConstruction(
+            FSImageSerialization.readINodeUnderConstruction(in));
       }
     }
 
+    private void addFileUnderConstruction(INodeFileUnderConstruction cons)
+    throws IOException {
+      FSDirectory fsDir = namesystem.dir;
+      // verify that file exists in namespace
+      String path = cons.getLocalName();
+      INode old = fsDir.getFileINode(path);
+      if (old == null) {
+        throw new IOException("Found lease for non-existent file " + path);
+      }
+      if (old.isDirectory()) {
+        throw new IOException("Found lease for directory " + path);
+      }
+      INodeFile oldnode = (INodeFile) old;
+      fsDir.replaceNode(path, oldnode, cons);
+      namesystem.leaseManager.addLease(cons.getClientName(), path);
+    }
+
     private void loadSecretManagerState(DataInputStream in) throws IOException {
       if (imgVersion > -23) {
         //SecretManagerState is not available.
@@ -488,14 +711,28 @@ class FSImageFormat {
    * functions may be used to retrieve information about the file that was written.
    */
   static class Saver {
+    /** The size after which a section of the image is complete */
+    private final int sectionSize;
+
     /** Set to true once an image has been written */
     private boolean saved = false;
-    
-    /** The MD5 checksum of the file that was written */
-    private MD5Hash savedDigest;
+
+    /** The MD5 checksums of the streams that were written, null if failed */
+    private MD5Hash[] savedDigests;
+
+    /** The failures of the streams that could not be written */
+    private IOException[] failures;
 
     static private final byte[] PATH_SEPARATOR = DFSUtil.string2Bytes(Path.SEPARATOR);
 
+    /** The number of inodes encoded at a time when saving from a snapshot */
+    static private final int SNAPSHOT_BATCH_SIZE = 1000;
+
+    Saver(Configuration conf) {
+      sectionSize = conf.getInt(DFSConfigKeys.DFS_IMAGE_SECTION_SIZE_KEY,
+          DFSConfigKeys.DFS_IMAGE_SECTION_SIZE_DEFAULT);
+    }
+
     /** @throws IllegalStateException if the instance has not yet saved an image */
     private void checkSaved() {
       if (!saved) {
@@ -512,10 +749,35 @@ class FSImageFormat {
 
     /**
      * Return the MD5 checksum of the image file that was saved.
+     * When the image was saved to several streams, return the checksum
+     * of the first stream that was written.
      */
     MD5Hash getSavedDigest() {
       checkSaved();
-      return savedDigest;
+      for (MD5Hash digest : savedDigests) {
+        if (digest != null) {
+          return digest;
+        }
+      }
+      throw new IllegalStateException("FSImageSaver has not saved an image");
+    }
+
+    /**
+     * Return the MD5 checksum of the i-th stream the image was saved to,
+     * or null if the image could not be written to it.
+     */
+    MD5Hash getSavedDigest(int i) {
+      checkSaved();
+      return savedDigests[i];
+    }
+
+    /**
+     * Return the reason the image could not be written to the i-th stream,
+     * or null if it was written.
+     */
+    IOException getFailure(int i) {
+      checkSaved();
+      return failures[i];
     }
 
     void save(File newFile,
@@ -523,51 +785,120 @@ class FSImageFormat {
               FSImageCompression compression)
       throws IOException {
       checkNotSaved();
+      long startTime = now();
+      save(Collections.singletonList(new FileOutputStream(newFile)),
+          sourceNamesystem, compression);
+      LOG.info("Image file of size " + newFile.length() + " saved in " 
+          + (now() - startTime)/1000 + " seconds.");
+    }
+
+    /**
+     * Save the image to each of the given streams. The namespace is walked
+     * and serialized once, and the bytes are written to every stream.
+     * A stream that fails is dropped, and the image is still saved to the
+     * others; the failure and the digest of each stream are available
+     * once the image is saved. The streams are closed.
+     * @throws IOException if the image could not be saved to any stream
+     */
+    void save(List<FileOutputStream> streams,
+              FSNamesystem sourceNamesystem,
+              FSImageCompression compression)
+      throws IOException {
+      save(streams, sourceNamesystem, compression, null);
+    }
+
+    /**
+     * Save the image to each of the given streams, as above.
+     * If a snapshot is given, the namespace is saved as of the snapshot,
+     * and may be modified while it is saved; otherwise the caller must
+     * keep the namespace from being modified.
+     */
+    void save(List<FileOutputStream> streams,
+              FSNamesystem sourceNamesystem,
+              FSImageCompression compression,
+              NamespaceSnapshot snapshot)
+      throws IOException {
+      checkNotSaved();
 
       FSDirectory fsDir = sourceNamesystem.dir;
       long startTime = now();
       //
       // Write out data
       //
-      MessageDigest digester = MD5Hash.getDigester();
-      FileOutputStream fout = new FileOutputStream(newFile);
-      DigestOutputStream fos = new DigestOutputStream(fout, digester);
+      TeeOutputStream fos = new TeeOutputStream(streams);
       DataOutputStream out = new DataOutputStream(fos);
       try {
         out.writeInt(FSConstants.LAYOUT_VERSION);
         out.writeInt(sourceNamesystem.getFSImage().getStorage().getNamespaceID()); // TODO bad dependency
-        out.writeLong(fsDir.rootDir.numItemsInTree());
-        out.writeLong(sourceNamesystem.getGenerationStamp());
+        long numItems;
+        if (snapshot == null) {
+          numItems = fsDir.rootDir.numItemsInTree();
+          out.writeLong(numItems);
+          out.writeLong(sourceNamesystem.getGenerationStamp());
+        } else {
+          numItems = snapshot.getNumItems();
+          out.writeLong(numItems);
+          out.writeLong(snapshot.getGenerationStamp());
+        }
 
-        // write compression info and set up compressed stream
-        out = compression.writeHeaderAndWrapStream(fos);
-        LOG.info("Saving image file " + newFile +
+        // write compression info; the sections are compressed separately
+        compression.writeHeader(out);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+        LOG.info("Saving image to " + streams.size() + " file(s)" +
                  " using " + compression);
 
 
         byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
         ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
-        // save the root
-        FSImageSerialization.saveINode2Image(fsDir.rootDir, out);
-        // save the rest of the nodes
-        saveImage(strbuf, fsDir.rootDir, out);
-        // save files under construction
-        sourceNamesystem.saveFilesUnderConstruction(out);
-        sourceNamesystem.saveSecretManagerState(out);
+        SectionWriter sections =
+          new SectionWriter(out, compression, sectionSize);
+        if (snapshot == null) {
+          // save the root
+          FSImageSerialization.saveINode2Image(fsDir.rootDir, out);
+          // save the rest of the nodes
+          saveImage(strbuf, fsDir.rootDir, sections);
+          sections.endINodes();
+          // save files under construction
+          sourceNamesystem.saveFilesUnderConstruction(sections.getBuffer());
+          sections.endSection(
+              FSImageSerialization.SECTION_INODES_UNDER_CONSTRUCTION);
+          sourceNamesystem.saveSecretManagerState(sections.getBuffer());
+          sections.endSection(FSImageSerialization.SECTION_SECRET_MANAGER);
+        } else {
+          DataOutputBuffer batch = new DataOutputBuffer();
+          int[] ends = new int[SNAPSHOT_BATCH_SIZE];
+          snapshot.saveINodes(new INode[] {fsDir.rootDir}, 0, 1, batch, ends);
+          out.write(batch.getData(), 0, batch.getLength());
+          long numSaved = 1 + saveImage(strbuf, fsDir.rootDir, sections,
+              snapshot, batch, ends);
+          if (numSaved != numItems) {
+            // the header would not match and the image would not load
+            throw new IOException("Saved " + numSaved + " inodes from the "
+                + "snapshot of " + numItems + " inodes");
+          }
+          sections.endINodes();
+          sections.getBuffer().write(snapshot.getFilesUnderConstruction());
+          sections.endSection(
+              FSImageSerialization.SECTION_INODES_UNDER_CONSTRUCTION);
+          sections.getBuffer().write(snapshot.getSecretManagerState());
+          sections.endSection(FSImageSerialization.SECTION_SECRET_MANAGER);
+        }
+        out.writeByte(FSImageSerialization.SECTION_END);
         strbuf = null;
 
         out.flush();
-        fout.getChannel().force(true);
+        fos.force();
       } finally {
-        out.close();
+        fos.close();
       }
 
       saved = true;
       // set md5 of the saved image
-      savedDigest = new MD5Hash(digester.digest());
+      savedDigests = fos.getDigests();
+      failures = fos.getFailures();
 
-      LOG.info("Image file of size " + newFile.length() + " saved in " 
-          + (now() - startTime)/1000 + " seconds.");
+      LOG.info("Image saved to " + fos.getNumLive() + " of " + streams.size()
+          + " file(s) in " + (now() - startTime)/1000 + " seconds.");
     }
 
     /**
@@ -577,31 +908,311 @@ class FSImageFormat {
      */
     private static void saveImage(ByteBuffer currentDirName,
                                   INodeDirectory current,
-                                  DataOutputStream out) throws IOException {
+                                  SectionWriter sections) throws IOException {
       List<INode> children = current.getChildrenRaw();
       if (children == null || children.isEmpty())
         return;
       // print prefix (parent directory name)
       int prefixLen = currentDirName.position();
       if (prefixLen == 0) {  // root
-        out.writeShort(PATH_SEPARATOR.length);
-        out.write(PATH_SEPARATOR);
+        sections.startDirectory(PATH_SEPARATOR, PATH_SEPARATOR.length);
       } else {  // non-root directories
-        out.writeShort(prefixLen);
-        out.write(currentDirName.array(), 0, prefixLen);
+        sections.startDirectory(currentDirName.array(), prefixLen);
       }
-      out.writeInt(children.size());
       for(INode child : children) {
         // print all children first
-        FSImageSerialization.saveINode2Image(child, out);
+        FSImageSerialization.saveINode2Image(child, sections.nextChild());
       }
+      sections.endDirectory();
       for(INode child : children) {
         if(!child.isDirectory())
           continue;
         currentDirName.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
-        saveImage(currentDirName, (INodeDirectory)child, out);
+        saveImage(currentDirName, (INodeDirectory)child, sections);
+        currentDirName.position(prefixLen);
+      }
+    }
+
+    /**
+     * Save file tree image starting from the given root, as of the snapshot.
+     * The children of a directory are encoded in batches under the directory
+     * read lock, and are written to the sections outside of it.
+     * @return the number of inodes saved under the root
+     */
+    private static long saveImage(ByteBuffer currentDirName,
+                                  INodeDirectory current,
+                                  SectionWriter sections,
+                                  NamespaceSnapshot snapshot,
+                                  DataOutputBuffer batch,
+                                  int[] ends) throws IOException {
+      List<byte[]> names = new ArrayList<byte[]>();
+      INode[] children = snapshot.getChildren(current, names);
+      if (children.length == 0)
+        return 0;
+      int prefixLen = currentDirName.position();
+      if (prefixLen == 0) {  // root
+        sections.startDirectory(PATH_SEPARATOR, PATH_SEPARATOR.length);
+      } else {  // non-root directories
+        sections.startDirectory(currentDirName.array(), prefixLen);
+      }
+      for (int from = 0; from < children.length; from += ends.length) {
+        int count = Math.min(ends.length, children.length - from);
+        batch.reset();
+        snapshot.saveINodes(children, from, count, batch, ends);
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+          sections.nextChild().write(batch.getData(), start, ends[i] - start);
+          start = ends[i];
+        }
+      }
+      sections.endDirectory();
+      long numSaved = children.length;
+      for (int i = 0; i < children.length; i++) {
+        if (!children[i].isDirectory())
+          continue;
+        currentDirName.put(PATH_SEPARATOR).put(names.get(i));
+        numSaved += saveImage(currentDirName, (INodeDirectory)children[i],
+            sections, snapshot, batch, ends);
         currentDirName.position(prefixLen);
       }
+      return numSaved;
+    }
+
+    /**
+     * Writes the sections of an image. The data of a section is buffered
+     * until the section is complete, and is then compressed on its own.
+     * The inode sections are complete once they reach the section size,
+     * so a large directory may span several sections.
+     */
+    private static class SectionWriter {
+      private final DataOutputStream out;
+      private final FSImageCompression compression;
+      private final int sectionSize;
+      private final DataOutputBuffer buffer = new DataOutputBuffer();
+      private final ByteArrayOutputStream compressed =
+        new ByteArrayOutputStream();
+
+      /** The number of directories in the current inode section */
+      private int numDirs = 0;
+      /** The path of the directory being saved */
+      private byte[] dirPath;
+      /** Whether the directory has an entry in the current section */
+      private boolean inEntry = false;
+      private int numChildrenOffset;
+      private int numChildren;
+
+      SectionWriter(DataOutputStream out, FSImageCompression compression,
+          int sectionSize) {
+        this.out = out;
+        this.compression = compression;
+        this.sectionSize = sectionSize;
+      }
+
+      /** @return the stream to write the data of a section to */
+      DataOutputStream getBuffer() {
+        return buffer;
+      }
+
+      void startDirectory(byte[] path, int len) {
+        dirPath = Arrays.copyOf(path, len);
+        inEntry = false;
+      }
+
+      /** @return the stream to save the next child of the directory to */
+      DataOutputStream nextChild() throws IOException {
+        if (inEntry && buffer.getLength() >= sectionSize) {
+          // continue the directory in the next section
+          endDirectory();
+        }
+        if (!inEntry) {
+          if (numDirs == 0) {
+            buffer.writeInt(0); // the number of directories, set at the end
+          }
+          numDirs++;
+          buffer.writeShort(dirPath.length);
+          buffer.write(dirPath);
+          numChildrenOffset = buffer.getLength();
+          buffer.writeInt(0);
+          numChildren = 0;
+          inEntry = true;
+        }
+        numChildren++;
+        return buffer;
+      }
+
+      void endDirectory() throws IOException {
+        if (inEntry) {
+          setInt(numChildrenOffset, numChildren);
+          inEntry = false;
+        }
+        if (buffer.getLength() >= sectionSize) {
+          endINodes();
+        }
+      }
+
+      /** Complete the current inode section, if any. */
+      void endINodes() throws IOException {
+        if (numDirs > 0) {
+          setInt(0, numDirs);
+          numDirs = 0;
+          endSection(FSImageSerialization.SECTION_INODES);
+        }
+      }
+
+      /** Write out the buffered section. */
+      void endSection(byte type) throws IOException {
+        compression.compress(buffer.getData(), 0, buffer.getLength(),
+            compressed);
+        out.writeByte(type);
+        out.writeInt(compressed.size());
+        compressed.writeTo(out);
+        compressed.reset();
+        buffer.reset();
+      }
+
+      private void setInt(int offset, int v) {
+        byte[] data = buffer.getData();
+        data[offset] = (byte)(v >>> 24);
+        data[offset + 1] = (byte)(v >>> 16);
+        data[offset + 2] = (byte)(v >>> 8);
+        data[offset + 3] = (byte)v;
+      }
+    }
+
+    /**
+     * Writes the same bytes to several files, each with its own digest.
+     * A file that fails is closed and dropped, so that the others are still
+     * written; writing fails only when no file is left.
+     */
+    private static class TeeOutputStream extends OutputStream {
+      private final List<FileOutputStream> files;
+      private final MessageDigest[] digesters;
+      private final DigestOutputStream[] outs;
+      private final IOException[] failures;
+      private int numLive;
+
+      TeeOutputStream(List<FileOutputStream> files) {
+        this.files = files;
+        int n = files.size();
+        digesters = new MessageDigest[n];
+        outs = new DigestOutputStream[n];
+        failures = new IOException[n];
+        for (int i = 0; i < n; i++) {
+          // MD5Hash.getDigester() is per thread, so each file gets its own
+          try {
+            digesters[i] = MessageDigest.getInstance("MD5");
+          } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+          }
+          outs[i] = new DigestOutputStream(files.get(i), digesters[i]);
+        }
+        numLive = n;
+      }
+
+      int getNumLive() {
+        return numLive;
+      }
+
+      /** @return the digests of the files written, null for those failed */
+      MD5Hash[] getDigests() {
+        MD5Hash[] digests = new MD5Hash[outs.length];
+        for (int i = 0; i < outs.length; i++) {
+          if (failures[i] == null) {
+            digests[i] = new MD5Hash(digesters[i].digest());
+          }
+        }
+        return digests;
+      }
+
+      IOException[] getFailures() {
+        return failures;
+      }
+
+      private void fail(int i, IOException e) {
+        LOG.error("Unable to save image to file " + i + " of " + outs.length, e);
+        failures[i] = e;
+        numLive--;
+        IOUtils.closeStream(outs[i]);
+      }
+
+      private void checkLive() throws IOException {
+        if (numLive == 0) {
+          IOException e = new IOException(
+              "Unable to save image to any of " + outs.length + " file(s)");
+          e.initCause(failures[0]);
+          throw e;
+        }
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        for (int i = 0; i < outs.length; i++) {
+          if (failures[i] == null) {
+            try {
+              outs[i].write(b);
+            } catch (IOException e) {
+              fail(i, e);
+            }
+          }
+        }
+        checkLive();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = 0; i < outs.length; i++) {
+          if (failures[i] == null) {
+            try {
+              outs[i].write(b, off, len);
+            } catch (IOException e) {
+              fail(i, e);
+            }
+          }
+        }
+        checkLive();
+      }
+
+      @Override
+      public void flush() throws IOException {
+        for (int i = 0; i < outs.length; i++) {
+          if (failures[i] == null) {
+            try {
+              outs[i].flush();
+            } catch (IOException e) {
+              fail(i, e);
+            }
+          }
+        }
+        checkLive();
+      }
+
+      /** Force the files to disk. */
+      void force() throws IOException {
+        for (int i = 0; i < outs.length; i++) {
+          if (failures[i] == null) {
+            try {
+              files.get(i).getChannel().force(true);
+            } catch (IOException e) {
+              fail(i, e);
+            }
+          }
+        }
+        checkLive();
+      }
+
+      @Override
+      public void close() throws IOException {
+        for (int i = 0; i < outs.length; i++) {
+          if (failures[i] == null) {
+            try {
+              outs[i].close();
+            } catch (IOException e) {
+              fail(i, e);
+            }
+          }
+        }
+        checkLive();
+      }
     }
   }
 }
@@ -51,7 +51,25 @@ public class FSImageSerialization {
 
   // Static-only class
   private FSImageSerialization() {}
-  
+
+  /*
+   * From version -32 on, the image after the root inode is a sequence of
+   * sections, each a type byte, the length of its data as an int and the
+   * data, compressed separately. The last section is a single END byte.
+   */
+  /** The end of the image. */
+  public static final byte SECTION_END = 0;
+  /**
+   * Directories and their children: the number of directories, then for
+   * each the parent path, the number of children and the children, as
+   * in version -30. The children of a large directory may span sections.
+   */
+  public static final byte SECTION_INODES = 1;
+  /** The files under construction. */
+  public static final byte SECTION_INODES_UNDER_CONSTRUCTION = 2;
+  /** The state of the delegation token secret manager. */
+  public static final byte SECTION_SECRET_MANAGER = 3;
+
   /**
    * In order to reduce allocation, we reuse some static objects. However, the methods
    * in this class should be thread-safe since image-saving is multithreaded, so 
@@ -31,11 +31,13 @@ import org.apache.hadoop.hdfs.server.common.GenerationStamp;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.BlockUCState;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.StartupOption;
 import org.apache.hadoop.hdfs.server.common.Storage;
+import org.apache.hadoop.hdfs.server.common.Storage.StorageDirectory;
 import org.apache.hadoop.hdfs.server.common.UpgradeStatusReport;
 import org.apache.hadoop.hdfs.server.common.Util;
 import static org.apache.hadoop.hdfs.server.common.Util.now;
 import org.apache.hadoop.hdfs.server.namenode.metrics.FSNamesystemMBean;
 import org.apache.hadoop.hdfs.server.namenode.metrics.FSNamesystemMetrics;
+import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.UserGroupInformation.AuthenticationMethod;
@@ -54,7 +56,6 @@ import org.apache.hadoop.net.NodeBase;
 import org.apache.hadoop.net.ScriptBasedMapping;
 import org.apache.hadoop.hdfs.server.namenode.DatanodeDescriptor.BlockTargetPair;
 import org.apache.hadoop.hdfs.server.namenode.LeaseManager.Lease;
-import org.apache.hadoop.hdfs.server.namenode.UnderReplicatedBlocks.BlockIterator;
 import org.apache.hadoop.hdfs.server.protocol.BlockCommand;
 import org.apache.hadoop.hdfs.server.protocol.BlockRecoveryCommand;
 import org.apache.hadoop.hdfs.server.protocol.BlocksWithLocations;
@@ -66,6 +67,7 @@ import org.apache.hadoop.hdfs.server.protocol.KeyUpdateCommand;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeCommand;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
+import org.apache.hadoop.hdfs.server.protocol.ReceivedDeletedBlockInfo;
 import org.apache.hadoop.hdfs.server.protocol.UpgradeCommand;
 import org.apache.hadoop.hdfs.server.protocol.BlockRecoveryCommand.RecoveringBlock;
 import org.apache.hadoop.hdfs.server.protocol.BlocksWithLocations.BlockWithLocations;
@@ -102,7 +104,6 @@ import java.net.URI;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
@@ -180,6 +181,11 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
   private FSNamesystemMetrics myFSMetrics;
   private long capacityTotal = 0L, capacityUsed = 0L, capacityRemaining = 0L;
   private long blockPoolUsed = 0L;
+  /**
+   * Time per block spent processing the latest full block report,
+   * used to estimate the lock time saved by incremental block reports.
+   */
+  private volatile double fullReportNanosPerBlock = 0;
   private int totalLoad = 0;
   boolean isBlockTokenEnabled;
   BlockTokenSecretManager blockTokenSecretManager;
@@ -259,6 +265,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
   private FsServerDefaults serverDefaults;
   // allow appending to hdfs files
   private boolean supportAppends = true;
+  // save the namespace without holding the lock for the whole save
+  private boolean concurrentSaveNamespace = false;
   private DataTransferProtocol.ReplaceDatanodeOnFailure dtpReplaceDatanodeOnFailure = 
       DataTransferProtocol.ReplaceDatanodeOnFailure.DEFAULT;
 
@@ -286,7 +294,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
   private long accessTimePrecision = 0;
 
   // lock to protect FSNamesystem.
-  private ReentrantReadWriteLock fsLock;
+  private NamespaceLock fsLock;
 
   /**
    * FSNamesystem constructor.
@@ -308,7 +316,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
       throws IOException {
     this.systemStart = now();
     this.blockManager = new BlockManager(this, conf);
-    this.fsLock = new ReentrantReadWriteLock(true); // fair locking
+    this.fsLock = new NamespaceLock(conf);
     setConfigurationParameters(conf);
     dtSecretManager = createDelegationTokenSecretManager(conf);
     this.registerMBean(conf); // register the MBean for the FSNamesystemStutus
@@ -415,23 +423,23 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
 
   // utility methods to acquire and release read lock and write lock
   void readLock() {
-    this.fsLock.readLock().lock();
+    this.fsLock.readLock();
   }
 
   void readUnlock() {
-    this.fsLock.readLock().unlock();
+    this.fsLock.readUnlock();
   }
 
   void writeLock() {
-    this.fsLock.writeLock().lock();
+    this.fsLock.writeLock();
   }
 
   void writeUnlock() {
-    this.fsLock.writeLock().unlock();
+    this.fsLock.writeUnlock();
   }
 
   boolean hasWriteLock() {
-    return this.fsLock.isWriteLockedByCurrentThread();
+    return this.fsLock.hasWriteLock();
   }
 
   /**
@@ -439,7 +447,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
    * is stored
    */
   FSNamesystem(FSImage fsImage, Configuration conf) throws IOException {
-    this.fsLock = new ReentrantReadWriteLock(true);
+    this.fsLock = new NamespaceLock(conf);
     this.blockManager = new BlockManager(this, conf);
     setConfigurationParameters(conf);
     this.dir = new FSDirectory(fsImage, this, conf);
@@ -516,6 +524,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
     this.accessTimePrecision = conf.getLong(DFSConfigKeys.DFS_NAMENODE_ACCESSTIME_PRECISION_KEY, 0);
     this.supportAppends = conf.getBoolean(DFSConfigKeys.DFS_SUPPORT_APPEND_KEY,
                                       DFSConfigKeys.DFS_SUPPORT_APPEND_DEFAULT);
+    this.concurrentSaveNamespace = conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_SAVENAMESPACE_CONCURRENT_KEY,
+        DFSConfigKeys.DFS_NAMENODE_SAVENAMESPACE_CONCURRENT_DEFAULT);
     this.isBlockTokenEnabled = conf.getBoolean(
         DFSConfigKeys.DFS_BLOCK_ACCESS_TOKEN_ENABLE_KEY, 
         DFSConfigKeys.DFS_BLOCK_ACCESS_TOKEN_ENABLE_DEFAULT);
@@ -1341,8 +1352,17 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
           + ", replication=" + replication
           + ", createFlag=" + flag.toString());
     }
-    writeLock();
+    boolean append = flag.contains(CreateFlag.APPEND);
+    // Creation of a new file only adds an entry to the parent directory.
+    // Appending to or overwriting an existing file may modify its blocks,
+    // which requires the exclusive lock.
+    NamespaceLock.PathLock pathLock = append ?
+        fsLock.lockExclusive() : fsLock.lockPath(src);
     try {
+    if (!pathLock.isExclusive() && dir.exists(src)) {
+      pathLock.unlock();
+      pathLock = fsLock.lockExclusive();
+    }
     if (isInSafeMode())
       throw new SafeModeException("Cannot create file" + src, safeMode);
     if (!DFSUtil.isValidName(src)) {
@@ -1357,7 +1377,6 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
     }
 
     boolean overwrite = flag.contains(CreateFlag.OVERWRITE);
-    boolean append = flag.contains(CreateFlag.APPEND);
     if (isPermissionEnabled) {
       if (append || (overwrite && pathExists)) {
         checkPathAccess(src, FsAction.WRITE);
@@ -1493,6 +1512,12 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
         INodeFileUnderConstruction newNode = dir.addFile(src, permissions,
             replication, blockSize, holder, clientMachine, clientNode, genstamp);
         if (newNode == null) {
+          // a mkdirs of a descendant holds the stripe of another parent,
+          // and may have created the directory since the check above
+          if (dir.isDir(src)) {
+            throw new FileAlreadyExistsException("Cannot create file " + src
+                + "; already exists as a directory.");
+          }
           throw new IOException("DIR* NameSystem.startFile: " +
                                 "Unable to add file to namespace.");
         }
@@ -1508,7 +1533,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
       throw ie;
     }
     } finally {
-      writeUnlock();
+      pathLock.unlock();
     }
     return null;
   }
@@ -2158,7 +2183,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
   private boolean mkdirsInternal(String src,
       PermissionStatus permissions, boolean createParent) 
       throws IOException, UnresolvedLinkException {
-    writeLock();
+    NamespaceLock.PathLock pathLock = fsLock.lockPath(src);
     try {
     if(NameNode.stateChangeLog.isDebugEnabled()) {
       NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
@@ -2194,7 +2219,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
     }
     return true;
     } finally {
-      writeUnlock();
+      pathLock.unlock();
     }
   }
 
@@ -3195,7 +3220,12 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
       return;
     }
 
+    long startNanos = System.nanoTime();
     blockManager.processReport(node, newReport);
+    if (newReport.getNumberOfBlocks() > 0) {
+      fullReportNanosPerBlock = (double) (System.nanoTime() - startNanos)
+          / newReport.getNumberOfBlocks();
+    }
     NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
     } finally {
       writeUnlock();
@@ -3305,29 +3335,53 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
 
 
   /**
-   * The given node is reporting that it received a certain block.
+   * The given node is reporting the replicas it received or deleted
+   * since its previous report. The whole report is processed under
+   * one acquisition of the write lock.
    */
-  public void blockReceived(DatanodeID nodeID,  
-                                         String poolId,
-                                         Block block,
-                                         String delHint
-                                         ) throws IOException {
+  public void blockReceivedAndDeleted(DatanodeID nodeID,
+      String poolId,
+      ReceivedDeletedBlockInfo receivedAndDeletedBlocks[]
+      ) throws IOException {
     writeLock();
     try {
+    long startTime = System.nanoTime();
     DatanodeDescriptor node = getDatanode(nodeID);
     if (node == null || !node.isAlive) {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: " + block
-          + " is received from dead or unregistered node " + nodeID.getName());
-      throw new IOException(
-          "Got blockReceived message from unregistered or dead node " + block);
-    }
-        
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceived: "
-                                    +block+" is received from " + nodeID.getName());
+      NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceivedAndDeleted:"
+          + " " + receivedAndDeletedBlocks.length + " blocks"
+          + " are reported from dead or unregistered node "
+          + nodeID.getName());
+      throw new IOException("Got incremental block report"
+          + " from unregistered or dead node " + nodeID.getName());
     }
 
-    blockManager.addBlock(node, block, delHint);
+    for (ReceivedDeletedBlockInfo info : receivedAndDeletedBlocks) {
+      if (info.isDeletedBlock()) {
+        if (NameNode.stateChangeLog.isDebugEnabled()) {
+          NameNode.stateChangeLog.debug(
+              "BLOCK* NameSystem.blockReceivedAndDeleted: "
+              + info.getBlock() + " is deleted from " + nodeID.getName());
+        }
+        blockManager.removeStoredBlock(info.getBlock(), node);
+      } else {
+        if (NameNode.stateChangeLog.isDebugEnabled()) {
+          NameNode.stateChangeLog.debug(
+              "BLOCK* NameSystem.blockReceivedAndDeleted: "
+              + info.getBlock() + " is received from " + nodeID.getName());
+        }
+        blockManager.addBlock(node, info.getBlock(), info.getDelHints());
+      }
+    }
+    long lockTime = System.nanoTime() - startTime;
+    NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
+    metrics.incrementalBlockReport.inc((int) (lockTime / 1000000));
+    // a full report of the node would have held the lock this much longer
+    long saved = (long) (node.numBlocks() * fullReportNanosPerBlock)
+        - lockTime;
+    if (saved > 0) {
+      metrics.blockReportLockTimeSaved.inc(saved / 1000000);
+    }
     } finally {
       writeUnlock();
     }
@@ -3505,10 +3559,18 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
    * This will save current namespace into fsimage file and empty edits file.
    * Requires superuser privilege and safe mode.
    * 
+   * If the namespace is saved concurrently, safe mode is not required.
+   * The image is saved from a snapshot of the namespace without holding
+   * the lock, while the operations are logged to a new edits file.
+   * 
    * @throws AccessControlException if superuser privilege is violated.
    * @throws IOException if 
    */
   void saveNamespace() throws AccessControlException, IOException {
+    if (concurrentSaveNamespace) {
+      saveNamespaceConcurrently();
+      return;
+    }
     writeLock();
     try {
     checkSuperuserPrivilege();
@@ -3522,6 +3584,34 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
       writeUnlock();
     }
   }
+
+  private void saveNamespaceConcurrently() throws IOException {
+    NamespaceSnapshot snapshot;
+    writeLock();
+    try {
+      checkSuperuserPrivilege();
+      snapshot = getFSImage().startSaveNamespace();
+    } finally {
+      writeUnlock();
+    }
+    List<StorageDirectory> errorSDs =
+      Collections.synchronizedList(new ArrayList<StorageDirectory>());
+    boolean saved = false;
+    try {
+      saved = getFSImage().saveCheckpoint(snapshot, errorSDs);
+    } finally {
+      writeLock();
+      try {
+        getFSImage().endSaveNamespace(saved, errorSDs);
+      } finally {
+        writeUnlock();
+      }
+    }
+    if (!saved) {
+      throw new IOException("Unable to save the namespace image.");
+    }
+    LOG.info("New namespace image has been created.");
+  }
   
   /**
    * Enables/Disables/Checks restoring failed storage replicas if the storage becomes available again.
@@ -4562,10 +4652,13 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
     if (!pc.isSuper) {
       dir.waitForReady();
       readLock();
+      // the tree may be modified by concurrent path scoped operations
+      dir.readLock();
       try {
         pc.checkPermission(path, dir.rootDir, doCheckOwner,
             ancestorAccess, parentAccess, access, subAccess);
       } finally {
+        dir.readUnlock();
         readUnlock();
       } 
     }
@@ -4733,9 +4826,13 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
    * Increments, logs and then returns the stamp
    */
   long nextGenerationStamp() {
-    long gs = generationStamp.nextStamp();
-    getEditLog().logGenerationStamp(gs);
-    return gs;
+    // path scoped operations may run concurrently, so the generation stamps
+    // must be logged in the order they are issued
+    synchronized (generationStamp) {
+      long gs = generationStamp.nextStamp();
+      getEditLog().logGenerationStamp(gs);
+      return gs;
+    }
   }
 
   private INodeFileUnderConstruction checkUCBlock(ExtendedBlock block,
@@ -5046,7 +5143,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, FSClusterSt
     if (startBlockAfter != null) {
       startBlockId = Block.filename2id(startBlockAfter);
     }
-    BlockIterator blkIterator = blockManager.getCorruptReplicaBlockIterator();
+    Iterator<Block> blkIterator = blockManager.getCorruptReplicaBlockIterator();
     while (blkIterator.hasNext()) {
       Block blk = blkIterator.next();
       INode inode = blockManager.getINode(blk);
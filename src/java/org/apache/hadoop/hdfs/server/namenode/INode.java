@@ -43,7 +43,6 @@ abstract class INode implements Comparable<byte[]>, FSInodeInfo {
   protected byte[] name;
   protected INodeDirectory parent;
   protected long modificationTime;
-  protected long accessTime;
 
   /** Simple wrapper for two counters : 
    *  nsCount (namespace consumed) and dsCount (diskspace consumed).
@@ -94,7 +93,6 @@ abstract class INode implements Comparable<byte[]>, FSInodeInfo {
     name = null;
     parent = null;
     modificationTime = 0;
-    accessTime = 0;
   }
 
   INode(PermissionStatus permissions, long mTime, long atime) {
@@ -308,17 +306,19 @@ abstract class INode implements Comparable<byte[]>, FSInodeInfo {
 
   /**
    * Get access time of inode.
+   * Only files and symbolic links keep an access time,
+   * so that directories do not pay for the field.
    * @return access time
    */
   public long getAccessTime() {
-    return accessTime;
+    return 0;
   }
 
   /**
    * Set last access time of inode.
+   * Ignored by inodes which do not keep an access time.
    */
   void setAccessTime(long atime) {
-    accessTime = atime;
   }
 
   /**
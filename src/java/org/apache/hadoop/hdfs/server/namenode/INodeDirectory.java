@@ -29,12 +29,23 @@ import org.apache.hadoop.fs.permission.PermissionStatus;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.UnresolvedPathException;
+import org.apache.hadoop.hdfs.util.ChunkedArrayList;
 
 /**
  * Directory INode class.
  */
 class INodeDirectory extends INode {
   protected static final int DEFAULT_FILES_PER_DIRECTORY = 5;
+  /**
+   * Number of children above which the children are stored in a
+   * {@link ChunkedArrayList}, so that adding or removing a child in a large
+   * directory does not shift all the other children.
+   * The children are moved back into an {@link ArrayList} when the
+   * directory shrinks below half of this number.
+   */
+  static final int CHUNKED_CHILDREN_THRESHOLD = 4096;
+  /** Capacity of a chunk of a {@link ChunkedArrayList} of children. */
+  static final int CHILDREN_CHUNK_CAPACITY = 1024;
   final static String ROOT_NAME = "";
 
   private List<INode> children;
@@ -74,11 +85,15 @@ class INodeDirectory extends INode {
   INode removeChild(INode node) {
     assert children != null;
     int low = Collections.binarySearch(children, node.name);
-    if (low >= 0) {
-      return children.remove(low);
-    } else {
+    if (low < 0) {
       return null;
     }
+    INode removed = children.remove(low);
+    if (children instanceof ChunkedArrayList
+        && children.size() < CHUNKED_CHILDREN_THRESHOLD / 2) {
+      children = new ArrayList<INode>(children);
+    }
+    return removed;
   }
 
   /** Replace a child that has the same name as newChild by newChild.
@@ -288,6 +303,10 @@ class INodeDirectory extends INode {
       return null;
     node.parent = this;
     children.add(-low - 1, node);
+    if (children.size() > CHUNKED_CHILDREN_THRESHOLD
+        && !(children instanceof ChunkedArrayList)) {
+      children = new ChunkedArrayList<INode>(children, CHILDREN_CHUNK_CAPACITY);
+    }
     // update modification time of the parent directory
     if (setModTime)
       setModificationTime(node.getModificationTime());
@@ -436,6 +455,28 @@ class INodeDirectory extends INode {
     return children;
   }
 
+  /**
+   * Release the unused capacity of the children lists in this subtree.
+   * A list grows by half of its size when full, so a tree built by adding
+   * children one at a time, as the image loader does, can waste up to
+   * a third of the space taken by the references to the children.
+   */
+  void trimChildrenToSize() {
+    if (children == null) {
+      return;
+    }
+    if (children instanceof ArrayList) {
+      ((ArrayList<INode>)children).trimToSize();
+    } else if (children instanceof ChunkedArrayList) {
+      ((ChunkedArrayList<INode>)children).trimToSize();
+    }
+    for (INode child : children) {
+      if (child.isDirectory()) {
+        ((INodeDirectory)child).trimChildrenToSize();
+      }
+    }
+  }
+
   int collectSubtreeBlocksAndClear(List<Block> v) {
     int total = 1;
     if (children == null) {
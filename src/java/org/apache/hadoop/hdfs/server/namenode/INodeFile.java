@@ -37,6 +37,9 @@ class INodeFile extends INode {
 
   protected long header;
 
+  // not initialized here, since it is set by the INode constructor
+  private long accessTime;
+
   protected BlockInfo blocks[] = null;
 
   INodeFile(PermissionStatus permissions,
@@ -102,6 +105,16 @@ class INodeFile extends INode {
     header = (header & HEADERMASK) | (preferredBlkSize & ~HEADERMASK);
   }
 
+  @Override
+  public long getAccessTime() {
+    return accessTime;
+  }
+
+  @Override
+  void setAccessTime(long atime) {
+    accessTime = atime;
+  }
+
   /**
    * Get file blocks 
    * @return file blocks
@@ -30,6 +30,7 @@ import org.apache.hadoop.hdfs.protocol.Block;
 @InterfaceAudience.Private
 public class INodeSymlink extends INode {
   private byte[] symlink; // The target URI
+  private long accessTime;
 
   INodeSymlink(String value, long modTime, long atime,
                PermissionStatus permissions) {
@@ -43,6 +44,16 @@ public class INodeSymlink extends INode {
   public boolean isLink() {
     return true;
   }
+
+  @Override
+  public long getAccessTime() {
+    return accessTime;
+  }
+
+  @Override
+  void setAccessTime(long atime) {
+    accessTime = atime;
+  }
   
   void setLinkValue(String value) {
     this.symlink = DFSUtil.string2Bytes(value);
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+
+/**
+ * Lock protecting the {@link FSNamesystem}.
+ *
+ * The lock has two levels. A fair global read-write lock protects the
+ * cluster-wide state, and an optional set of striped locks protects
+ * individual directories. A stripe is selected by the path of the parent
+ * directory of the path being modified.
+ *
+ * Operations that only add a new entry to the namespace,
+ * such as {@link FSNamesystem#mkdirs} or the creation of a new file,
+ * hold the global lock in shared mode together with the stripe of the
+ * parent directory. Such operations on different directories may therefore
+ * run concurrently. All other modifications hold the global lock
+ * exclusively, which excludes the path scoped operations as well.
+ *
+ * Path scoped operations rely on {@link FSDirectory} locking to modify
+ * the inode tree, and must not modify any other state that is not safe
+ * for concurrent access, in particular the {@link BlockManager} state.
+ *
+ * Path scoped locking is disabled if the number of stripes is 0, in which
+ * case {@link #lockPath(String)} falls back to the global write lock.
+ */
+class NamespaceLock {
+  private final ReentrantReadWriteLock globalLock;
+  private final ReentrantLock[] stripes;
+
+  NamespaceLock(Configuration conf) {
+    this(conf.getInt(DFSConfigKeys.DFS_NAMENODE_PATH_LOCK_STRIPES_KEY,
+                     DFSConfigKeys.DFS_NAMENODE_PATH_LOCK_STRIPES_DEFAULT));
+  }
+
+  NamespaceLock(int numStripes) {
+    this.globalLock = new ReentrantReadWriteLock(true); // fair locking
+    if (numStripes > 0) {
+      stripes = new ReentrantLock[numStripes];
+      for (int i = 0; i < numStripes; i++) {
+        stripes[i] = new ReentrantLock();
+      }
+    } else {
+      stripes = null;
+    }
+  }
+
+  void readLock() {
+    globalLock.readLock().lock();
+  }
+
+  void readUnlock() {
+    globalLock.readLock().unlock();
+  }
+
+  void writeLock() {
+    globalLock.writeLock().lock();
+  }
+
+  void writeUnlock() {
+    globalLock.writeLock().unlock();
+  }
+
+  boolean hasWriteLock() {
+    return globalLock.isWriteLockedByCurrentThread();
+  }
+
+  /** @return true if path scoped locking is enabled. */
+  boolean isPathLockingEnabled() {
+    return stripes != null;
+  }
+
+  /** @return the number of stripes, 0 if path scoped locking is disabled. */
+  int getNumStripes() {
+    return stripes == null ? 0 : stripes.length;
+  }
+
+  /**
+   * Lock the namespace for an operation that adds an entry under
+   * the parent directory of the given path.
+   * The global lock is held in shared mode
+   * and the stripe of the parent directory exclusively.
+   * If path scoped locking is disabled the global write lock is held.
+   *
+   * @param src path being modified
+   * @return lock which must be released by {@link PathLock#unlock()}
+   */
+  PathLock lockPath(String src) {
+    if (stripes == null) {
+      return lockExclusive();
+    }
+    ReentrantLock stripe = stripes[getStripeIndex(src)];
+    readLock();
+    try {
+      stripe.lock();
+    } catch(RuntimeException e) {
+      readUnlock();
+      throw e;
+    }
+    return new PathLock(stripe);
+  }
+
+  /**
+   * Lock the namespace exclusively.
+   * @return lock which must be released by {@link PathLock#unlock()}
+   */
+  PathLock lockExclusive() {
+    writeLock();
+    return new PathLock(null);
+  }
+
+  /**
+   * Get the stripe guarding the parent directory of the given path.
+   */
+  int getStripeIndex(String src) {
+    int lastSep = src.lastIndexOf(Path.SEPARATOR_CHAR);
+    String parent = lastSep > 0 ? src.substring(0, lastSep) : Path.SEPARATOR;
+    return (parent.hashCode() & Integer.MAX_VALUE) % stripes.length;
+  }
+
+  /**
+   * Lock held by a namespace operation,
+   * see {@link NamespaceLock#lockPath(String)}.
+   */
+  class PathLock {
+    /** stripe held in addition to the global read lock,
+     * or null if the global write lock is held */
+    private final ReentrantLock stripe;
+
+    private PathLock(ReentrantLock stripe) {
+      this.stripe = stripe;
+    }
+
+    /** @return true if the global write lock is held. */
+    boolean isExclusive() {
+      return stripe == null;
+    }
+
+    void unlock() {
+      if (stripe == null) {
+        writeUnlock();
+      } else {
+        stripe.unlock();
+        readUnlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * A point-in-time view of the namespace, from which an image is saved
+ * while the namespace is being modified.
+ *
+ * The view is copy-on-write. While the snapshot is open, {@link FSDirectory}
+ * calls {@link #preserve(INode)} before it modifies an inode, and
+ * {@link #preserveChildren(INodeDirectory)} before it adds or removes
+ * a child of a directory. The first call keeps the state of the inode
+ * as of the snapshot: the image encoding of its attributes, or the list
+ * of its children. The saver reads the preserved state of an inode if there
+ * is one, and the inode itself otherwise.
+ *
+ * Modifications and their preservation happen under the FSDirectory write
+ * lock, and the saver reads under the FSDirectory read lock, so the saver
+ * never sees a modification that has not been preserved.
+ *
+ * The inodes of a subtree that is deleted while the snapshot is open are
+ * not cleared, see {@link #collectSubtreeBlocks(INode, List)}, so that
+ * the saver can still save them. The state that is not part of the inode
+ * tree is saved when the snapshot is opened.
+ */
+class NamespaceSnapshot {
+  private final FSDirectory fsDir;
+
+  /** The number of inodes in the tree, as written in the image header */
+  private final long numItems;
+  private final long generationStamp;
+  /** The image sections of the files under construction
+   * and of the secret manager */
+  private final byte[] filesUnderConstruction;
+  private final byte[] secretManagerState;
+
+  /** The encoded attributes of the inodes modified since the snapshot */
+  private final IdentityHashMap<INode, byte[]> attributes =
+    new IdentityHashMap<INode, byte[]>();
+  /** The children of the directories modified since the snapshot */
+  private final IdentityHashMap<INodeDirectory, INode[]> children =
+    new IdentityHashMap<INodeDirectory, INode[]>();
+  private final DataOutputBuffer buffer = new DataOutputBuffer();
+
+  /**
+   * Open a snapshot of the namespace.
+   * The caller must hold the namesystem write lock.
+   */
+  NamespaceSnapshot(FSNamesystem namesystem) throws IOException {
+    this.fsDir = namesystem.dir;
+    this.numItems = fsDir.rootDir.numItemsInTree();
+    this.generationStamp = namesystem.getGenerationStamp();
+    namesystem.saveFilesUnderConstruction(buffer);
+    this.filesUnderConstruction = copyBuffer();
+    namesystem.saveSecretManagerState(buffer);
+    this.secretManagerState = copyBuffer();
+  }
+
+  long getNumItems() {
+    return numItems;
+  }
+
+  long getGenerationStamp() {
+    return generationStamp;
+  }
+
+  byte[] getFilesUnderConstruction() {
+    return filesUnderConstruction;
+  }
+
+  byte[] getSecretManagerState() {
+    return secretManagerState;
+  }
+
+  /** @return the number of inodes preserved since the snapshot */
+  int getNumPreserved() {
+    return attributes.size() + children.size();
+  }
+
+  /**
+   * Keep the attributes of the inode before it is modified.
+   * The caller must hold the FSDirectory write lock.
+   */
+  void preserve(INode inode) {
+    if (!attributes.containsKey(inode)) {
+      try {
+        FSImageSerialization.saveINode2Image(inode, buffer);
+      } catch (IOException e) {
+        // not thrown when writing to a buffer
+        throw new IllegalStateException("Cannot preserve " + inode, e);
+      }
+      attributes.put(inode, copyBuffer());
+    }
+  }
+
+  /**
+   * Keep the children of the directory before one is added or removed.
+   * The caller must hold the FSDirectory write lock.
+   */
+  void preserveChildren(INodeDirectory dir) {
+    if (!children.containsKey(dir)) {
+      children.put(dir, toArray(dir.getChildrenRaw()));
+    }
+  }
+
+  /**
+   * Get the children of the directory as of the snapshot,
+   * and the names they had then.
+   * @param names the names of the children, set by the call
+   */
+  INode[] getChildren(INodeDirectory dir, List<byte[]> names) {
+    fsDir.readLock();
+    try {
+      INode[] nodes = children.get(dir);
+      if (nodes == null) {
+        nodes = toArray(dir.getChildrenRaw());
+      }
+      names.clear();
+      for (INode node : nodes) {
+        byte[] encoded = attributes.get(node);
+        if (encoded == null) {
+          names.add(node.getLocalNameBytes());
+        } else {
+          // the encoding starts with the name, as a short length and bytes
+          int len = ((encoded[0] & 0xff) << 8) | (encoded[1] & 0xff);
+          names.add(Arrays.copyOfRange(encoded, 2, 2 + len));
+        }
+      }
+      return nodes;
+    } finally {
+      fsDir.readUnlock();
+    }
+  }
+
+  /**
+   * Write the attributes of the given inodes as of the snapshot
+   * to the stream.
+   * @param ends the offsets in the stream after each inode, set by the call
+   */
+  void saveINodes(INode[] nodes, int from, int count,
+      DataOutputBuffer out, int[] ends) throws IOException {
+    fsDir.readLock();
+    try {
+      for (int i = 0; i < count; i++) {
+        INode node = nodes[from + i];
+        byte[] encoded = attributes.get(node);
+        if (encoded == null) {
+          FSImageSerialization.saveINode2Image(node, out);
+        } else {
+          out.write(encoded);
+        }
+        ends[i] = out.getLength();
+      }
+    } finally {
+      fsDir.readUnlock();
+    }
+  }
+
+  /**
+   * Collect the blocks of a subtree removed from the namespace, as
+   * {@link INode#collectSubtreeBlocksAndClear(List)} does, but leave the
+   * inodes intact, since the snapshot may not have saved them yet.
+   * @return the number of inodes in the subtree
+   */
+  static int collectSubtreeBlocks(INode node, List<Block> v) {
+    if (node.isDirectory()) {
+      int total = 1;
+      List<INode> nodes = ((INodeDirectory)node).getChildrenRaw();
+      if (nodes != null) {
+        for (INode child : nodes) {
+          total += collectSubtreeBlocks(child, v);
+        }
+      }
+      return total;
+    }
+    if (!node.isLink()) {
+      BlockInfo[] blocks = ((INodeFile)node).getBlocks();
+      if (blocks != null && v != null) {
+        for (BlockInfo blk : blocks) {
+          v.add(blk);
+          blk.setINode(null);
+        }
+      }
+    }
+    return 1;
+  }
+
+  private byte[] copyBuffer() {
+    byte[] data = Arrays.copyOf(buffer.getData(), buffer.getLength());
+    buffer.reset();
+    return data;
+  }
+
+  private static INode[] toArray(List<INode> nodes) {
+    return nodes == null ?
+        new INode[0] : nodes.toArray(new INode[nodes.size()]);
+  }
+}
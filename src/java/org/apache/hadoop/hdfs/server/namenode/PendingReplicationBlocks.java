@@ -33,17 +33,26 @@ import java.sql.Time;
  * 2)  a coarse grain timer to track age of replication request
  * 3)  a thread that periodically identifies replication-requests
  *     that never made it.
+ * 4)  count the replications pending to each target datanode.
+ *
+ * Since every request has the same timeout, the requests are kept in the
+ * order of their timestamps, and a request whose timestamp is reset moves
+ * to the end.  The thread then only visits the requests which have timed
+ * out, and sleeps until the oldest one times out.
  *
  ***************************************************/
 class PendingReplicationBlocks {
-  private Map<Block, PendingBlockInfo> pendingReplications;
+  /** The pending requests, oldest timestamp first. */
+  private final LinkedHashMap<Block, PendingBlockInfo> pendingReplications;
+  /** The number of replications pending to each target. */
+  private final Map<DatanodeDescriptor, Integer> pendingTargets;
   private ArrayList<Block> timedOutItems;
   Daemon timerThread = null;
   private volatile boolean fsRunning = true;
 
   //
-  // It might take anywhere between 5 to 10 minutes before
-  // a request is timed out.
+  // A request is timed out as soon as the thread sees it is older than
+  // the timeout, and the thread rechecks at least every 5 minutes.
   //
   private long timeout = 5 * 60 * 1000;
   private long defaultRecheckInterval = 5 * 60 * 1000;
@@ -52,7 +61,8 @@ class PendingReplicationBlocks {
     if ( timeoutPeriod > 0 ) {
       this.timeout = timeoutPeriod;
     }
-    pendingReplications = new HashMap<Block, PendingBlockInfo>();
+    pendingReplications = new LinkedHashMap<Block, PendingBlockInfo>();
+    pendingTargets = new HashMap<DatanodeDescriptor, Integer>();
     timedOutItems = new ArrayList<Block>();
   }
 
@@ -65,14 +75,39 @@ class PendingReplicationBlocks {
    * Add a block to the list of pending Replications
    */
   void add(Block block, int numReplicas) {
+    add(block, numReplicas, null);
+  }
+
+  /**
+   * Add a block to the list of pending Replications
+   * @param targets the datanodes the block is being replicated to
+   */
+  void add(Block block, DatanodeDescriptor[] targets) {
+    add(block, targets.length, targets);
+  }
+
+  private void add(Block block, int numReplicas,
+      DatanodeDescriptor[] targets) {
     synchronized (pendingReplications) {
-      PendingBlockInfo found = pendingReplications.get(block);
+      PendingBlockInfo found = pendingReplications.remove(block);
       if (found == null) {
-        pendingReplications.put(block, new PendingBlockInfo(numReplicas));
+        found = new PendingBlockInfo(numReplicas);
       } else {
         found.incrementReplicas(numReplicas);
         found.setTimeStamp();
       }
+      // (re)insert at the end, which keeps the timestamps in order
+      pendingReplications.put(block, found);
+      if (targets != null) {
+        for (DatanodeDescriptor dn : targets) {
+          found.addTarget(dn);
+          incrementTarget(dn, 1);
+        }
+      }
+      if (pendingReplications.size() == 1) {
+        // wake up the monitor waiting for a block
+        pendingReplications.notifyAll();
+      }
     }
   }
 
@@ -82,6 +117,16 @@ class PendingReplicationBlocks {
    * for this block.
    */
   void remove(Block block) {
+    remove(block, null);
+  }
+
+  /**
+   * One replication request for this block has finished.
+   * Decrement the number of pending replication requests
+   * for this block.
+   * @param node the datanode which received the block, or null if unknown
+   */
+  void remove(Block block, DatanodeDescriptor node) {
     synchronized (pendingReplications) {
       PendingBlockInfo found = pendingReplications.get(block);
       if (found != null) {
@@ -90,13 +135,38 @@ class PendingReplicationBlocks {
               block);
         }
         found.decrementReplicas();
+        if (node != null && found.removeTarget(node)) {
+          incrementTarget(node, -1);
+        }
         if (found.getNumReplicas() <= 0) {
           pendingReplications.remove(block);
+          removeTargets(found);
         }
       }
     }
   }
 
+  /** Add delta to the count of replications pending to the target. */
+  private void incrementTarget(DatanodeDescriptor dn, int delta) {
+    final Integer count = pendingTargets.get(dn);
+    final int newCount = (count == null ? 0 : count) + delta;
+    if (newCount > 0) {
+      pendingTargets.put(dn, newCount);
+    } else {
+      pendingTargets.remove(dn);
+    }
+  }
+
+  /** Decrement the counts of the targets the block is still pending to. */
+  private void removeTargets(PendingBlockInfo pendingBlock) {
+    if (pendingBlock.targets != null) {
+      for (DatanodeDescriptor dn : pendingBlock.targets) {
+        incrementTarget(dn, -1);
+      }
+      pendingBlock.targets = null;
+    }
+  }
+
   /**
    * The total number of blocks that are undergoing replication
    */
@@ -117,6 +187,16 @@ class PendingReplicationBlocks {
     return 0;
   }
 
+  /**
+   * How many replications are pending to this datanode?
+   */
+  int getNumPendingTo(DatanodeDescriptor target) {
+    synchronized (pendingReplications) {
+      final Integer count = pendingTargets.get(target);
+      return count == null ? 0 : count;
+    }
+  }
+
   /**
    * Returns a list of blocks that have timed out their 
    * replication requests. Returns null if no blocks have
@@ -139,11 +219,13 @@ class PendingReplicationBlocks {
    * is being replicated. It records the timestamp when the 
    * system started replicating the most recent copy of this
    * block. It also records the number of replication
-   * requests that are in progress.
+   * requests that are in progress, and the targets it knows of.
    */
   static class PendingBlockInfo {
     private long timeStamp;
     private int numReplicasInProgress;
+    /** The targets which have not received the block yet, or null. */
+    private List<DatanodeDescriptor> targets;
 
     PendingBlockInfo(int numReplicas) {
       this.timeStamp = now();
@@ -170,18 +252,35 @@ class PendingReplicationBlocks {
     int getNumReplicas() {
       return numReplicasInProgress;
     }
+
+    void addTarget(DatanodeDescriptor dn) {
+      if (targets == null) {
+        targets = new ArrayList<DatanodeDescriptor>(2);
+      }
+      targets.add(dn);
+    }
+
+    /** @return true if the datanode was one of the targets */
+    boolean removeTarget(DatanodeDescriptor dn) {
+      return targets != null && targets.remove(dn);
+    }
   }
 
   /*
-   * A periodic thread that scans for blocks that never finished
+   * A periodic thread that reaps the blocks that never finished
    * their replication request.
    */
   class PendingReplicationMonitor implements Runnable {
     public void run() {
       while (fsRunning) {
-        long period = Math.min(defaultRecheckInterval, timeout);
         try {
-          pendingReplicationCheck();
+          long period = pendingReplicationCheck();
+          synchronized (pendingReplications) {
+            if (pendingReplications.isEmpty()) {
+              pendingReplications.wait(defaultRecheckInterval);
+              continue;
+            }
+          }
           Thread.sleep(period);
         } catch (InterruptedException ie) {
           if(FSNamesystem.LOG.isDebugEnabled()) {
@@ -193,9 +292,10 @@ class PendingReplicationBlocks {
     }
 
     /**
-     * Iterate through all items and detect timed-out items
+     * Detect the timed-out items, which are at the head of the queue.
+     * @return the time until the oldest remaining item times out
      */
-    void pendingReplicationCheck() {
+    long pendingReplicationCheck() {
       synchronized (pendingReplications) {
         Iterator<Map.Entry<Block, PendingBlockInfo>> iter =
                                     pendingReplications.entrySet().iterator();
@@ -206,16 +306,20 @@ class PendingReplicationBlocks {
         while (iter.hasNext()) {
           Map.Entry<Block, PendingBlockInfo> entry = iter.next();
           PendingBlockInfo pendingBlock = entry.getValue();
-          if (now > pendingBlock.getTimeStamp() + timeout) {
-            Block block = entry.getKey();
-            synchronized (timedOutItems) {
-              timedOutItems.add(block);
-            }
-            FSNamesystem.LOG.warn(
-                "PendingReplicationMonitor timed out block " + block);
-            iter.remove();
+          long expiry = pendingBlock.getTimeStamp() + timeout;
+          if (now <= expiry) {
+            return Math.min(defaultRecheckInterval, expiry - now + 1);
+          }
+          Block block = entry.getKey();
+          synchronized (timedOutItems) {
+            timedOutItems.add(block);
           }
+          FSNamesystem.LOG.warn(
+              "PendingReplicationMonitor timed out block " + block);
+          iter.remove();
+          removeTargets(pendingBlock);
         }
+        return Math.min(defaultRecheckInterval, timeout);
       }
     }
   }
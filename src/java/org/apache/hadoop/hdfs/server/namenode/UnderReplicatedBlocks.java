@@ -20,27 +20,35 @@ package org.apache.hadoop.hdfs.server.namenode;
 import java.util.*;
 
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.util.LightWeightLinkedSet;
 
 /* Class for keeping track of under replication blocks
  * Blocks have replication priority, with priority 0 indicating the highest
  * Blocks have only one replicas has the highest
+ *
+ * Each priority queue is a hash indexed set kept in insertion order, so
+ * adding, removing and moving a block between levels costs O(1).  Each
+ * queue has a cursor, which lets the replication monitor resume where it
+ * left off in every level instead of skipping over the blocks it has
+ * already seen.
  */
 class UnderReplicatedBlocks implements Iterable<Block> {
   static final int LEVEL = 5;
   static public final int QUEUE_WITH_CORRUPT_BLOCKS = 4;
-  private List<TreeSet<Block>> priorityQueues = new ArrayList<TreeSet<Block>>();
+  private final List<LightWeightLinkedSet<Block>> priorityQueues
+      = new ArrayList<LightWeightLinkedSet<Block>>(LEVEL);
       
   /* constructor */
   UnderReplicatedBlocks() {
     for(int i=0; i<LEVEL; i++) {
-      priorityQueues.add(new TreeSet<Block>());
+      priorityQueues.add(new LightWeightLinkedSet<Block>());
     }
   }
 
   /**
    * Empty the queues.
    */
-  void clear() {
+  synchronized void clear() {
     for(int i=0; i<LEVEL; i++) {
       priorityQueues.get(i).clear();
     }
@@ -71,7 +79,7 @@ class UnderReplicatedBlocks implements Iterable<Block> {
   
   /* Check if a block is in the neededReplication queue */
   synchronized boolean contains(Block block) {
-    for(TreeSet<Block> set:priorityQueues) {
+    for(LightWeightLinkedSet<Block> set:priorityQueues) {
       if(set.contains(block)) { return true; }
     }
     return false;
@@ -209,6 +217,57 @@ class UnderReplicatedBlocks implements Iterable<Block> {
     }
   }
 
+  /**
+   * Choose the blocks to be replicated, starting from the highest priority
+   * and resuming each level at its cursor.  A level whose cursor has
+   * reached the end is skipped, until every level is exhausted and the
+   * cursors start over from the beginning.
+   *
+   * @param blocksToProcess the maximum number of blocks to choose
+   * @return a list of block lists to be replicated.  The block list index
+   *         represents its replication priority.
+   */
+  synchronized List<List<Block>> chooseUnderReplicatedBlocks(
+      int blocksToProcess) {
+    final List<List<Block>> blocksToReplicate = new ArrayList<List<Block>>(LEVEL);
+    for (int i = 0; i < LEVEL; i++) {
+      blocksToReplicate.add(new ArrayList<Block>());
+    }
+    // # of blocks to process equals either twice the number of live
+    // data-nodes or the number of under-replicated blocks whichever is less
+    blocksToProcess = Math.min(blocksToProcess, size());
+    int blkCnt = 0;
+    for (int priority = 0; priority < LEVEL && blkCnt < blocksToProcess;
+        priority++) {
+      final LightWeightLinkedSet<Block> queue = priorityQueues.get(priority);
+      final List<Block> chosen = blocksToReplicate.get(priority);
+      for (Block block; blkCnt < blocksToProcess
+          && (block = queue.advanceCursor()) != null; blkCnt++) {
+        chosen.add(block);
+      }
+    }
+
+    if (blkCnt < blocksToProcess) {
+      // every level is exhausted: start from the beginning, stopping
+      // at the blocks already chosen in this round
+      for (int priority = 0; priority < LEVEL; priority++) {
+        priorityQueues.get(priority).resetCursor();
+      }
+      for (int priority = 0; priority < LEVEL && blkCnt < blocksToProcess;
+          priority++) {
+        final LightWeightLinkedSet<Block> queue = priorityQueues.get(priority);
+        final List<Block> chosen = blocksToReplicate.get(priority);
+        final Block firstChosen = chosen.isEmpty()? null: chosen.get(0);
+        for (Block block; blkCnt < blocksToProcess
+            && (block = queue.advanceCursor()) != null
+            && block != firstChosen; blkCnt++) {
+          chosen.add(block);
+        }
+      }
+    }
+    return blocksToReplicate;
+  }
+
   /* returns an iterator of all blocks in a given priority queue */
   synchronized BlockIterator iterator(int level) {
     return new BlockIterator(level);
@@ -29,6 +29,7 @@ import org.apache.hadoop.metrics.util.MetricsBase;
 import org.apache.hadoop.metrics.util.MetricsIntValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 
 /**
@@ -86,8 +87,31 @@ public class NameNodeMetrics implements Updater {
     public MetricsTimeVaryingInt transactionsBatchedInSync = new MetricsTimeVaryingInt(
       "JournalTransactionsBatchedInSync", registry,
       "Journal Transactions Batched In Sync");
+    public MetricsTimeVaryingRate syncBatchSize = new MetricsTimeVaryingRate(
+      "SyncBatchSize", registry, "Journal Transactions Per Sync");
+    public MetricsTimeVaryingRate syncWaitTime = new MetricsTimeVaryingRate(
+      "SyncWaitTime", registry, "Journal Sync Wait Time");
+    public MetricsIntValue syncQueueDepth = new MetricsIntValue(
+      "SyncQueueDepth", registry, "Threads Waiting For Journal Sync");
     public MetricsTimeVaryingRate blockReport =
                     new MetricsTimeVaryingRate("blockReport", registry, "Block Report");
+    public MetricsTimeVaryingRate incrementalBlockReport =
+      new MetricsTimeVaryingRate("IncrementalBlockReport", registry,
+          "Lock Time Of Incremental Block Reports");
+    /** Estimate of the lock time, in msec, full block reports would have
+     * taken in excess of the incremental block reports received instead. */
+    public MetricsTimeVaryingLong blockReportLockTimeSaved =
+      new MetricsTimeVaryingLong("BlockReportLockTimeSaved", registry,
+          "Block Report Lock Time Saved");
+    public MetricsTimeVaryingInt replicationWorkScheduled =
+      new MetricsTimeVaryingInt("ReplicationWorkScheduled", registry,
+          "Blocks Scheduled For Replication");
+    public MetricsTimeVaryingRate replicationWorkLockTime =
+      new MetricsTimeVaryingRate("ReplicationWorkLockTime", registry,
+          "Write Lock Time Of Replication Work Per Iteration");
+    public MetricsTimeVaryingRate replicationWorkChooseTargetTime =
+      new MetricsTimeVaryingRate("ReplicationWorkChooseTargetTime", registry,
+          "Time Choosing Replication Targets Per Iteration");
     public MetricsIntValue safeModeTime =
                     new MetricsIntValue("SafemodeTime", registry, "Duration in SafeMode at Startup");
     public MetricsIntValue fsImageLoadTime = 
@@ -139,6 +163,11 @@ public class NameNodeMetrics implements Updater {
     public void resetAllMinMax() {
       transactions.resetMinMax();
       syncs.resetMinMax();
+      syncBatchSize.resetMinMax();
+      syncWaitTime.resetMinMax();
       blockReport.resetMinMax();
+      incrementalBlockReport.resetMinMax();
+      replicationWorkLockTime.resetMinMax();
+      replicationWorkChooseTargetTime.resetMinMax();
     }
 }
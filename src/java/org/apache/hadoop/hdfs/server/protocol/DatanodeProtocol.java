@@ -22,7 +22,6 @@ import java.io.*;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
-import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.DatanodeID;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
@@ -45,9 +44,10 @@ import org.apache.avro.reflect.Nullable;
 @InterfaceAudience.Private
 public interface DatanodeProtocol extends VersionedProtocol {
   /**
-   * 27: Add block pool ID to Block
+   * 28: Replace blockReceived with blockReceivedAndDeleted,
+   *     which reports deleted replicas as well
    */
-  public static final long versionID = 27L;
+  public static final long versionID = 28L;
   
   // error code
   final static int NOTIFY = 0;
@@ -123,17 +123,25 @@ public interface DatanodeProtocol extends VersionedProtocol {
                                      long[] blocks) throws IOException;
     
   /**
-   * blockReceived() allows the DataNode to tell the NameNode about
-   * recently-received block data, with a hint for pereferred replica
-   * to be deleted when there is any excessive blocks.
-   * For example, whenever client code
-   * writes a new Block here, or another DataNode copies a Block to
-   * this DataNode, it will call blockReceived().
+   * blockReceivedAndDeleted() is an incremental block report.
+   * It allows the DataNode to tell the NameNode about the replicas
+   * received or deleted since its previous report, so that the NameNode
+   * does not need to wait for the next full {@link #blockReport} to learn
+   * about the change. For example, whenever client code writes a new Block
+   * here, or another DataNode copies a Block to this DataNode, or a Block
+   * is deleted on the command of the NameNode.
+   * A received replica comes with a hint for the preferred replica
+   * to be deleted when there are excessive replicas.
+   *
+   * @param registration
+   * @param poolId - the block pool ID for the blocks
+   * @param receivedAndDeletedBlocks - the replicas received or deleted
+   *     since the previous report
    */
-  public void blockReceived(DatanodeRegistration registration,
+  public void blockReceivedAndDeleted(DatanodeRegistration registration,
                             String poolId,
-                            Block blocks[],
-                            String[] delHints) throws IOException;
+                            ReceivedDeletedBlockInfo[] receivedAndDeletedBlocks)
+                            throws IOException;
 
   /**
    * errorReport() tells the NameNode about something that has gone
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * An entry of an incremental block report: a replica which has been
+ * received or deleted by a data-node since its previous report,
+ * see {@link DatanodeProtocol#blockReceivedAndDeleted}.
+ *
+ * A received replica carries the deletion hint, which names the
+ * data-node that the replica should preferably be removed from if the
+ * block becomes over-replicated, or an empty string.
+ * A deleted replica carries {@link #TODELETE_HINT} instead.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class ReceivedDeletedBlockInfo implements Writable {
+  /** Hint marking a deleted replica. */
+  public static final String TODELETE_HINT = "-";
+
+  Block block;
+  String delHints;
+
+  public ReceivedDeletedBlockInfo() {
+  }
+
+  public ReceivedDeletedBlockInfo(Block blk, String delHints) {
+    this.block = blk;
+    this.delHints = delHints;
+  }
+
+  public Block getBlock() {
+    return this.block;
+  }
+
+  public String getDelHints() {
+    return this.delHints;
+  }
+
+  /** @return true if the replica has been deleted by the data-node. */
+  public boolean isDeletedBlock() {
+    return TODELETE_HINT.equals(delHints);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ReceivedDeletedBlockInfo)) {
+      return false;
+    }
+    ReceivedDeletedBlockInfo other = (ReceivedDeletedBlockInfo) o;
+    return this.block.equals(other.getBlock())
+        && this.delHints.equals(other.delHints);
+  }
+
+  @Override
+  public int hashCode() {
+    return block.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return block.toString() + ", delHint: " + delHints;
+  }
+
+  /////////////////////////////////////
+  // Writable
+  /////////////////////////////////////
+  @Override
+  public void write(DataOutput out) throws IOException {
+    this.block.write(out);
+    Text.writeString(out, this.delHints);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    this.block = new Block();
+    this.block.readFields(in);
+    this.delHints = Text.readString(in);
+  }
+}
@@ -38,7 +38,7 @@ import static org.apache.hadoop.hdfs.tools.offlineEditsViewer.Tokenizer.VIntToke
 class EditsLoaderCurrent implements EditsLoader {
 
   private static int [] supportedVersions = {
-    -18, -19, -20, -21, -22, -23, -24, -25, -26, -27, -28, -30, -31 };
+    -18, -19, -20, -21, -22, -23, -24, -25, -26, -27, -28, -30, -31, -32, -33 };
 
   private EditsVisitor v;
   private int editsVersion = 0;
@@ -62,6 +62,40 @@ class EditsLoaderCurrent implements EditsLoader {
     return false;
   }
 
+  /**
+   * Visit the length of the array of fields of a record, which
+   * is there up to version -33
+   */
+  private void visitLength() throws IOException {
+    if(editsVersion > -33) {
+      v.visitInt(EditsElement.LENGTH);
+    }
+  }
+
+  /**
+   * Visit a replication, written as a string up to version -33
+   * and as a VInt after
+   */
+  private void visitReplication() throws IOException {
+    if(editsVersion > -33) {
+      v.visitStringUTF8(EditsElement.REPLICATION);
+    } else {
+      v.visitVInt(EditsElement.REPLICATION);
+    }
+  }
+
+  /**
+   * Visit a time or a size, written as a string up to version -33
+   * and as a long after
+   */
+  private void visitLongField(EditsElement e) throws IOException {
+    if(editsVersion > -33) {
+      v.visitStringUTF8(e);
+    } else {
+      v.visitLong(e);
+    }
+  }
+
   /**
    * Visit OP_INVALID
    */
@@ -91,19 +125,21 @@ class EditsLoaderCurrent implements EditsLoader {
   private void visit_OP_ADD_or_OP_CLOSE(FSEditLogOpCodes editsOpCode)
     throws IOException {
 
-    IntToken opAddLength = v.visitInt(EditsElement.LENGTH);
-    // this happens if the edits is not properly ended (-1 op code),
-    // it is padded at the end with all zeros, OP_ADD is zero so
-    // without this check we would treat all zeros as empty OP_ADD)
-    if(opAddLength.value == 0) {
-      throw new IOException("OpCode " + editsOpCode +
-        " has zero length (corrupted edits)");
+    if(editsVersion > -33) {
+      IntToken opAddLength = v.visitInt(EditsElement.LENGTH);
+      // this happens if the edits is not properly ended (-1 op code),
+      // it is padded at the end with all zeros, OP_ADD is zero so
+      // without this check we would treat all zeros as empty OP_ADD)
+      if(opAddLength.value == 0) {
+        throw new IOException("OpCode " + editsOpCode +
+          " has zero length (corrupted edits)");
+      }
     }
     v.visitStringUTF8(EditsElement.PATH);
-    v.visitStringUTF8(EditsElement.REPLICATION);
-    v.visitStringUTF8(EditsElement.MTIME);
-    v.visitStringUTF8(EditsElement.ATIME);
-    v.visitStringUTF8(EditsElement.BLOCKSIZE);
+    visitReplication();
+    visitLongField(EditsElement.MTIME);
+    visitLongField(EditsElement.ATIME);
+    visitLongField(EditsElement.BLOCKSIZE);
     // now read blocks
     IntToken numBlocksToken = v.visitInt(EditsElement.NUMBLOCKS);
     for (int i = 0; i < numBlocksToken.value; i++) {
@@ -133,29 +169,29 @@ class EditsLoaderCurrent implements EditsLoader {
    * Visit OP_RENAME_OLD
    */
   private void visit_OP_RENAME_OLD() throws IOException {
-    v.visitInt(        EditsElement.LENGTH);
+    visitLength();
     v.visitStringUTF8( EditsElement.SOURCE);
     v.visitStringUTF8( EditsElement.DESTINATION);
-    v.visitStringUTF8( EditsElement.TIMESTAMP);
+    visitLongField(    EditsElement.TIMESTAMP);
   }
 
   /**
    * Visit OP_DELETE
    */
   private void visit_OP_DELETE() throws IOException {
-    v.visitInt(        EditsElement.LENGTH);
+    visitLength();
     v.visitStringUTF8( EditsElement.PATH);
-    v.visitStringUTF8( EditsElement.TIMESTAMP);
+    visitLongField(    EditsElement.TIMESTAMP);
   }
 
   /**
    * Visit OP_MKDIR
    */
   private void visit_OP_MKDIR() throws IOException {
-    v.visitInt(        EditsElement.LENGTH);
+    visitLength();
     v.visitStringUTF8( EditsElement.PATH);
-    v.visitStringUTF8( EditsElement.TIMESTAMP);
-    v.visitStringUTF8( EditsElement.ATIME);
+    visitLongField(    EditsElement.TIMESTAMP);
+    visitLongField(    EditsElement.ATIME);
     // PERMISSION_STATUS
     v.visitEnclosingElement( EditsElement.PERMISSION_STATUS);
 
@@ -171,7 +207,7 @@ class EditsLoaderCurrent implements EditsLoader {
    */
   private void visit_OP_SET_REPLICATION() throws IOException {
     v.visitStringUTF8(EditsElement.PATH);
-    v.visitStringUTF8(EditsElement.REPLICATION);
+    visitReplication();
   }
 
   /**
@@ -202,10 +238,10 @@ class EditsLoaderCurrent implements EditsLoader {
    * Visit OP_TIMES
    */
   private void visit_OP_TIMES() throws IOException {
-    v.visitInt(        EditsElement.LENGTH);
+    visitLength();
     v.visitStringUTF8( EditsElement.PATH);
-    v.visitStringUTF8( EditsElement.MTIME);
-    v.visitStringUTF8( EditsElement.ATIME);
+    visitLongField(    EditsElement.MTIME);
+    visitLongField(    EditsElement.ATIME);
   }
 
   /**
@@ -226,10 +262,10 @@ class EditsLoaderCurrent implements EditsLoader {
         + " for edit log version " + editsVersion
         + " (op code 15 only expected for 21 and later)");
     }
-    v.visitInt(           EditsElement.LENGTH);
+    visitLength();
     v.visitStringUTF8(    EditsElement.SOURCE);
     v.visitStringUTF8(    EditsElement.DESTINATION);
-    v.visitStringUTF8(    EditsElement.TIMESTAMP);
+    visitLongField(       EditsElement.TIMESTAMP);
     v.visitBytesWritable( EditsElement.RENAME_OPTIONS);
   }
 
@@ -245,23 +281,23 @@ class EditsLoaderCurrent implements EditsLoader {
     }
     IntToken lengthToken = v.visitInt(EditsElement.LENGTH);
     v.visitStringUTF8(EditsElement.CONCAT_TARGET);
-    // all except of CONCAT_TARGET and TIMESTAMP
-    int sourceCount = lengthToken.value - 2;
+    // all except of CONCAT_TARGET and, up to version -33, TIMESTAMP
+    int sourceCount = lengthToken.value - (editsVersion > -33 ? 2 : 1);
     for(int i = 0; i < sourceCount; i++) {
       v.visitStringUTF8(EditsElement.CONCAT_SOURCE);
     }
-    v.visitStringUTF8(EditsElement.TIMESTAMP);
+    visitLongField(EditsElement.TIMESTAMP);
   }
 
   /**
    * Visit OP_SYMLINK
    */
   private void visit_OP_SYMLINK() throws IOException {
-    v.visitInt(        EditsElement.LENGTH);
+    visitLength();
     v.visitStringUTF8( EditsElement.SOURCE);
     v.visitStringUTF8( EditsElement.DESTINATION);
-    v.visitStringUTF8( EditsElement.MTIME);
-    v.visitStringUTF8( EditsElement.ATIME);
+    visitLongField(    EditsElement.MTIME);
+    visitLongField(    EditsElement.ATIME);
     // PERMISSION_STATUS
     v.visitEnclosingElement(EditsElement.PERMISSION_STATUS);
 
@@ -290,7 +326,7 @@ class EditsLoaderCurrent implements EditsLoader {
       v.visitVLong(      EditsElement.T_MAX_DATE);
       v.visitVInt(       EditsElement.T_SEQUENCE_NUMBER);
       v.visitVInt(       EditsElement.T_MASTER_KEY_ID);
-      v.visitStringUTF8( EditsElement.T_EXPIRY_TIME);
+      visitLongField(    EditsElement.T_EXPIRY_TIME);
   }
 
   /**
@@ -313,7 +349,7 @@ class EditsLoaderCurrent implements EditsLoader {
       v.visitVLong(      EditsElement.T_MAX_DATE);
       v.visitVInt(       EditsElement.T_SEQUENCE_NUMBER);
       v.visitVInt(       EditsElement.T_MASTER_KEY_ID);
-      v.visitStringUTF8( EditsElement.T_EXPIRY_TIME);
+      visitLongField(    EditsElement.T_EXPIRY_TIME);
   }
 
   /**
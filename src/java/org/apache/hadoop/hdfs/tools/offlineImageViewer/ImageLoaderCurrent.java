@@ -17,8 +17,10 @@
  */
 package org.apache.hadoop.hdfs.tools.offlineImageViewer;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -115,12 +117,19 @@ import org.apache.hadoop.security.token.delegation.DelegationKey;
  *        masterKeyId (vint)
  *      expiryTime (long)     
  *
+ * From version -32 on, the inodes after the root, the inodes under
+ * construction and the delegation tokens are stored in sections, each
+ * a type (byte), the length of its data (int) and the data, compressed
+ * separately. The directories of the inode sections are preceded by their
+ * number (int).
+ *
  */
 class ImageLoaderCurrent implements ImageLoader {
   protected final DateFormat dateFormat = 
                                       new SimpleDateFormat("yyyy-MM-dd HH:mm");
   private static int [] versions = 
-    {-16, -17, -18, -19, -20, -21, -22, -23, -24, -25, -26, -27, -28, -30, -31};
+    {-16, -17, -18, -19, -20, -21, -22, -23, -24, -25, -26, -27, -28, -30, -31,
+     -32, -33};
   private int imageVersion = 0;
 
   /* (non-Javadoc)
@@ -155,6 +164,7 @@ class ImageLoaderCurrent implements ImageLoader {
 
       v.visit(ImageElement.GENERATION_STAMP, in.readLong());
 
+      CompressionCodec codec = null;
       if (imageVersion <= -25) {
         boolean isCompressed = in.readBoolean();
         v.visit(ImageElement.IS_COMPRESSED, imageVersion);
@@ -163,20 +173,26 @@ class ImageLoaderCurrent implements ImageLoader {
           v.visit(ImageElement.COMPRESS_CODEC, codecClassName);
           CompressionCodecFactory codecFac = new CompressionCodecFactory(
               new Configuration());
-          CompressionCodec codec = codecFac.getCodecByClassName(codecClassName);
+          codec = codecFac.getCodecByClassName(codecClassName);
           if (codec == null) {
             throw new IOException("Image compression codec not supported: "
                 + codecClassName);
           }
-          in = new DataInputStream(codec.createInputStream(in));
         }
       }
-      processINodes(in, v, numInodes, skipBlocks);
+      if (imageVersion <= -32) { // sections compressed separately
+        processSections(in, v, numInodes, skipBlocks, codec);
+      } else {
+        if (codec != null) {
+          in = new DataInputStream(codec.createInputStream(in));
+        }
+        processINodes(in, v, numInodes, skipBlocks);
 
-      processINodesUC(in, v, skipBlocks);
+        processINodesUC(in, v, skipBlocks);
 
-      if (imageVersion <= -24) {
-        processDelegationTokens(in, v);
+        if (imageVersion <= -24) {
+          processDelegationTokens(in, v);
+        }
       }
       
       v.leaveEnclosingElement(); // FSImage
@@ -188,6 +204,58 @@ class ImageLoaderCurrent implements ImageLoader {
     }
   }
 
+  /**
+   * Process an image made of sections, in which the inodes are stored with
+   * local names. The sections are in the order of the older images: the
+   * inodes, the inodes under construction and the delegation tokens.
+   *
+   * @param in DataInputStream to process
+   * @param v Visitor to walk over records
+   * @param numInodes Number of INodes stored in file
+   * @param skipBlocks Process all the blocks within the INode?
+   * @param codec the codec of the sections, or null if not compressed
+   */
+  private void processSections(DataInputStream in, ImageVisitor v,
+      long numInodes, boolean skipBlocks, CompressionCodec codec)
+      throws IOException {
+    v.visitEnclosingElement(ImageElement.INODES,
+        ImageElement.NUM_INODES, numInodes);
+    // process root, which is not in a section
+    processINode(in, v, skipBlocks, "");
+    boolean inINodes = true;
+
+    for (byte type = in.readByte(); type != FSImageSerialization.SECTION_END;
+         type = in.readByte()) {
+      byte[] data = new byte[in.readInt()];
+      in.readFully(data);
+      InputStream section = new ByteArrayInputStream(data);
+      DataInputStream sin = new DataInputStream(codec == null ? section
+          : codec.createInputStream(section));
+
+      if (type == FSImageSerialization.SECTION_INODES) {
+        int numDirs = sin.readInt();
+        for (int i = 0; i < numDirs; i++) {
+          processDirectory(sin, v, skipBlocks);
+        }
+        continue;
+      }
+      if (inINodes) {
+        v.leaveEnclosingElement(); // INodes
+        inINodes = false;
+      }
+      if (type == FSImageSerialization.SECTION_INODES_UNDER_CONSTRUCTION) {
+        processINodesUC(sin, v, skipBlocks);
+      } else if (type == FSImageSerialization.SECTION_SECRET_MANAGER) {
+        processDelegationTokens(sin, v);
+      } else {
+        throw new IOException("Unknown image section type " + type);
+      }
+    }
+    if (inINodes) {
+      v.leaveEnclosingElement(); // INodes
+    }
+  }
+
   /**
    * Process the Delegation Token related section in fsimage.
    * 
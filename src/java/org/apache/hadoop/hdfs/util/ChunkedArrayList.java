@@ -0,0 +1,331 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.HadoopIllegalArgumentException;
+
+/**
+ * A {@link java.util.List} which stores its elements in a sequence of
+ * bounded size chunks, rather than in one contiguous array.
+ *
+ * The chunk sizes are kept in a Fenwick tree, which gives the offset of
+ * a chunk and the chunk of an index in time logarithmic in the number of
+ * chunks, and is updated in logarithmic time when the size of one chunk
+ * changes. Hence inserting or removing an element takes time proportional
+ * to the chunk capacity, to shift the elements of its chunk, plus time
+ * logarithmic in the number of chunks, to update the tree; and
+ * {@link java.util.Collections#binarySearch(java.util.List, Object)}
+ * still runs in logarithmic time on a sorted list.
+ *
+ * A chunk is split in halves when it overflows, and merged with its
+ * successor when it shrinks below a quarter of the chunk capacity.
+ * Either shifts the chunks and rebuilds the tree in time linear in the
+ * number of chunks. A chunk resulting from a split holds half of the
+ * chunk capacity, so it takes about a quarter of the chunk capacity of
+ * updates to split or merge it again, and the amortized cost of the
+ * rebuilds per update is the number of elements divided by a quarter of
+ * the square of the chunk capacity.
+ *
+ * This class is not thread safe.
+ *
+ * @param <E> Element type
+ */
+@InterfaceAudience.Private
+public class ChunkedArrayList<E> extends AbstractList<E>
+    implements RandomAccess {
+  /** The chunks, none of which is empty. */
+  private final ArrayList<ArrayList<E>> chunks = new ArrayList<ArrayList<E>>();
+  /**
+   * Fenwick tree over the chunk sizes: sizeTree[i] is the number of
+   * elements in the chunks (i - (i & -i), i], counting chunks from 1.
+   */
+  private int[] sizeTree = new int[4];
+  /** Maximum number of elements in a chunk. */
+  private final int chunkCapacity;
+  private int size = 0;
+
+  /**
+   * @param chunkCapacity maximum number of elements in a chunk
+   */
+  public ChunkedArrayList(int chunkCapacity) {
+    if (chunkCapacity < 4) {
+      throw new HadoopIllegalArgumentException(
+          "chunkCapacity = " + chunkCapacity + " < 4");
+    }
+    this.chunkCapacity = chunkCapacity;
+  }
+
+  /**
+   * Construct a list containing the elements of the given collection,
+   * in the order they are returned by its iterator.
+   *
+   * @param c elements to be placed into this list
+   * @param chunkCapacity maximum number of elements in a chunk
+   */
+  public ChunkedArrayList(Collection<? extends E> c, int chunkCapacity) {
+    this(chunkCapacity);
+    ArrayList<E> chunk = null;
+    for (E e : c) {
+      if (chunk == null || chunk.size() == chunkCapacity) {
+        chunk = new ArrayList<E>(chunkCapacity);
+        chunks.add(chunk);
+      }
+      chunk.add(e);
+    }
+    size = c.size();
+    rebuildSizeTree();
+  }
+
+  /** @return the maximum number of elements in a chunk */
+  public int getChunkCapacity() {
+    return chunkCapacity;
+  }
+
+  /** @return the number of chunks */
+  public int getNumChunks() {
+    return chunks.size();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public E get(int index) {
+    checkIndex(index, size);
+    int c = chunkIndex(index);
+    return chunks.get(c).get(index - offset(c));
+  }
+
+  @Override
+  public E set(int index, E element) {
+    checkIndex(index, size);
+    int c = chunkIndex(index);
+    return chunks.get(c).set(index - offset(c), element);
+  }
+
+  @Override
+  public void add(int index, E element) {
+    checkIndex(index, size + 1);
+    if (chunks.isEmpty()) {
+      chunks.add(new ArrayList<E>());
+      rebuildSizeTree();
+    }
+    int c;
+    int pos;
+    if (index == size) {
+      // appending goes to the end of the last chunk
+      c = chunks.size() - 1;
+      pos = chunks.get(c).size();
+    } else {
+      c = chunkIndex(index);
+      pos = index - offset(c);
+    }
+    ArrayList<E> chunk = chunks.get(c);
+    chunk.add(pos, element);
+    size++;
+    modCount++;
+    if (chunk.size() > chunkCapacity) {
+      // split the chunk in halves
+      int half = chunk.size() / 2;
+      ArrayList<E> tail = new ArrayList<E>(chunkCapacity);
+      tail.addAll(chunk.subList(half, chunk.size()));
+      chunk.subList(half, chunk.size()).clear();
+      chunks.add(c + 1, tail);
+      rebuildSizeTree();
+    } else {
+      updateSizeTree(c, 1);
+    }
+  }
+
+  @Override
+  public E remove(int index) {
+    checkIndex(index, size);
+    int c = chunkIndex(index);
+    ArrayList<E> chunk = chunks.get(c);
+    E removed = chunk.remove(index - offset(c));
+    size--;
+    modCount++;
+    if (chunk.isEmpty()) {
+      chunks.remove(c);
+      rebuildSizeTree();
+    } else if (chunk.size() < chunkCapacity / 4 && c + 1 < chunks.size()
+        && chunk.size() + chunks.get(c + 1).size() <= chunkCapacity) {
+      // merge with the next chunk
+      chunk.addAll(chunks.remove(c + 1));
+      rebuildSizeTree();
+    } else {
+      updateSizeTree(c, -1);
+    }
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    chunks.clear();
+    size = 0;
+    modCount++;
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new Itr();
+  }
+
+  /**
+   * Release the unused capacity of the chunks.
+   */
+  public void trimToSize() {
+    for (ArrayList<E> chunk : chunks) {
+      chunk.trimToSize();
+    }
+    chunks.trimToSize();
+    if (sizeTree.length > chunks.size() + 1) {
+      int[] newSizeTree = new int[chunks.size() + 1];
+      System.arraycopy(sizeTree, 0, newSizeTree, 0, newSizeTree.length);
+      sizeTree = newSizeTree;
+    }
+  }
+
+  private static void checkIndex(int index, int bound) {
+    if (index < 0 || index >= bound) {
+      throw new IndexOutOfBoundsException("index = " + index
+          + ", bound = " + bound);
+    }
+  }
+
+  /** @return the index of the chunk containing the given element index */
+  private int chunkIndex(int index) {
+    // descend the tree, skipping the chunks which end before the index
+    int n = chunks.size();
+    int c = 0;
+    for (int step = Integer.highestOneBit(n); step > 0; step >>= 1) {
+      int next = c + step;
+      if (next <= n && sizeTree[next] <= index) {
+        c = next;
+        index -= sizeTree[next];
+      }
+    }
+    return c;
+  }
+
+  /** @return the index of the first element of the given chunk */
+  private int offset(int c) {
+    int offset = 0;
+    for (int i = c; i > 0; i -= i & -i) {
+      offset += sizeTree[i];
+    }
+    return offset;
+  }
+
+  /** Add delta to the size of the given chunk in the tree. */
+  private void updateSizeTree(int c, int delta) {
+    int n = chunks.size();
+    for (int i = c + 1; i <= n; i += i & -i) {
+      sizeTree[i] += delta;
+    }
+  }
+
+  /** Rebuild the tree after chunks were inserted or removed. */
+  private void rebuildSizeTree() {
+    int n = chunks.size();
+    if (sizeTree.length < n + 1) {
+      sizeTree = new int[Math.max(n + 1, sizeTree.length * 3 / 2 + 1)];
+    }
+    for (int i = 1; i <= n; i++) {
+      sizeTree[i] = chunks.get(i - 1).size();
+    }
+    for (int i = 1; i <= n; i++) {
+      int parent = i + (i & -i);
+      if (parent <= n) {
+        sizeTree[parent] += sizeTree[i];
+      }
+    }
+  }
+
+  /**
+   * Iterator walking the chunks directly,
+   * so that each step takes constant time.
+   */
+  private class Itr implements Iterator<E> {
+    private int chunk = 0;
+    private int pos = 0;
+    /** Index of the element to be returned by the next call to next. */
+    private int cursor = 0;
+    /** Index of the element returned by the last call to next. */
+    private int lastRet = -1;
+    private int expectedModCount = modCount;
+
+    @Override
+    public boolean hasNext() {
+      return chunk < chunks.size();
+    }
+
+    @Override
+    public E next() {
+      checkModification();
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ArrayList<E> c = chunks.get(chunk);
+      lastRet = cursor++;
+      E e = c.get(pos);
+      if (++pos == c.size()) {
+        chunk++;
+        pos = 0;
+      }
+      return e;
+    }
+
+    @Override
+    public void remove() {
+      if (lastRet < 0) {
+        throw new IllegalStateException();
+      }
+      checkModification();
+      ChunkedArrayList.this.remove(lastRet);
+      // position the cursor at the element following the removed one
+      cursor = lastRet;
+      if (lastRet < size) {
+        chunk = chunkIndex(lastRet);
+        pos = lastRet - offset(chunk);
+      } else {
+        chunk = chunks.size();
+        pos = 0;
+      }
+      lastRet = -1;
+      expectedModCount = modCount;
+    }
+
+    private void checkModification() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+}
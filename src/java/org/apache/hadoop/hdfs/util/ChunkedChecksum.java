@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.PureJavaCrc32;
+
+/**
+ * Computes and verifies the checksums of all the chunks of a packet
+ * in one pass.
+ *
+ * {@link DataChecksum} is updated and compared chunk by chunk through
+ * its generic interface.  This class runs the CRC directly over each
+ * chunk of the packet and compares the results as ints with the
+ * checksums stored in the packet, which are big-endian as written by
+ * {@link DataChecksum}.
+ */
+@InterfaceAudience.Private
+public class ChunkedChecksum {
+  /** Same as {@link DataChecksum#CHECKSUM_NULL} */
+  public static final int CHECKSUM_NULL = DataChecksum.CHECKSUM_NULL;
+  /** Same as {@link DataChecksum#CHECKSUM_CRC32} */
+  public static final int CHECKSUM_CRC32 = DataChecksum.CHECKSUM_CRC32;
+  /** CRC32 with the Castagnoli polynomial, see {@link PureJavaCrc32C} */
+  public static final int CHECKSUM_CRC32C = 2;
+
+  private static final int CRC_SIZE = 4;
+
+  private final int type;
+  private final int bytesPerChecksum;
+  private final Checksum sum;
+
+  /** Create a checksum of the same type and chunk size as the given one. */
+  public ChunkedChecksum(DataChecksum checksum) {
+    this(checksum.getChecksumType(), checksum.getBytesPerChecksum());
+  }
+
+  public ChunkedChecksum(int type, int bytesPerChecksum) {
+    this.type = type;
+    this.bytesPerChecksum = bytesPerChecksum;
+    switch (type) {
+    case CHECKSUM_NULL:
+      sum = null;
+      break;
+    case CHECKSUM_CRC32:
+      sum = new PureJavaCrc32();
+      break;
+    case CHECKSUM_CRC32C:
+      sum = new PureJavaCrc32C();
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown checksum type " + type);
+    }
+  }
+
+  public int getChecksumType() {
+    return type;
+  }
+
+  public int getBytesPerChecksum() {
+    return bytesPerChecksum;
+  }
+
+  /** @return the size of the checksum of one chunk */
+  public int getChecksumSize() {
+    return sum == null? 0: CRC_SIZE;
+  }
+
+  /**
+   * Verify the checksums of the chunks of some data.
+   * The data starts at a chunk boundary; its last chunk may be partial.
+   *
+   * @param data the buffer with the data
+   * @param dataOff the offset of the data in the buffer
+   * @param dataLen the length of the data
+   * @param sums the buffer with the checksums of the chunks
+   * @param sumsOff the offset of the first checksum in its buffer
+   * @return the offset in the data of the first chunk whose checksum
+   *         does not match, or -1 if all the checksums match
+   */
+  public int verify(byte[] data, int dataOff, int dataLen,
+      byte[] sums, int sumsOff) {
+    if (sum == null) {
+      return -1;
+    }
+    for (int n = 0; n < dataLen; n += bytesPerChecksum) {
+      sum.reset();
+      sum.update(data, dataOff + n, Math.min(bytesPerChecksum, dataLen - n));
+      final int expected = ((sums[sumsOff] & 0xff) << 24)
+          | ((sums[sumsOff + 1] & 0xff) << 16)
+          | ((sums[sumsOff + 2] & 0xff) << 8)
+          | (sums[sumsOff + 3] & 0xff);
+      if ((int)sum.getValue() != expected) {
+        return n;
+      }
+      sumsOff += CRC_SIZE;
+    }
+    return -1;
+  }
+
+  /**
+   * Compute the checksums of the chunks of some data,
+   * in the same format as {@link #verify} expects them.
+   */
+  public void calculate(byte[] data, int dataOff, int dataLen,
+      byte[] sums, int sumsOff) {
+    if (sum == null) {
+      return;
+    }
+    for (int n = 0; n < dataLen; n += bytesPerChecksum) {
+      sum.reset();
+      sum.update(data, dataOff + n, Math.min(bytesPerChecksum, dataLen - n));
+      final int value = (int)sum.getValue();
+      sums[sumsOff] = (byte)(value >>> 24);
+      sums[sumsOff + 1] = (byte)(value >>> 16);
+      sums[sumsOff + 2] = (byte)(value >>> 8);
+      sums[sumsOff + 3] = (byte)value;
+      sumsOff += CRC_SIZE;
+    }
+  }
+}
@@ -0,0 +1,383 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.HadoopIllegalArgumentException;
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A low memory footprint hash set.  Unlike {@link java.util.HashSet},
+ * which keeps a map entry per element, this set keeps a small entry with
+ * the element, its hash code and the next entry in the same row.
+ *
+ * The array of rows doubles when the size exceeds the load factor times
+ * the array length, and halves when the size falls below a quarter of
+ * that, down to the initial capacity.
+ *
+ * This class does not support null element.
+ *
+ * This class is not thread safe.
+ *
+ * @param <T> Element type
+ */
+@InterfaceAudience.Private
+public class LightWeightHashSet<T> implements Collection<T> {
+  static final int MAX_ARRAY_LENGTH = 1 << 30;
+  public static final int DEFAULT_INITIAL_CAPACITY = 16;
+  public static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+  /** An element with its hash code, linked to the next one in its row. */
+  protected static class Entry<T> {
+    protected final T element;
+    protected final int hashCode;
+    protected Entry<T> next;
+
+    protected Entry(T element, int hashCode) {
+      this.element = element;
+      this.hashCode = hashCode;
+    }
+  }
+
+  /** The rows of the hash table.  The length is a power of two. */
+  private Entry<T>[] entries;
+  private final int initialCapacity;
+  private final float loadFactor;
+  /** Grow the array when the size exceeds this. */
+  private int expandThreshold;
+  /** Shrink the array when the size falls below this. */
+  private int shrinkThreshold;
+  /** The size of the set (not the entry array). */
+  private int size = 0;
+  /** Modification version for fail-fast.
+   * @see ConcurrentModificationException
+   */
+  protected int modification = 0;
+
+  public LightWeightHashSet() {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+  }
+
+  /**
+   * @param initialCapacity the initial length of the internal array,
+   *        rounded up to a power of two
+   * @param loadFactor the maximum ratio of the size to the array length
+   */
+  public LightWeightHashSet(int initialCapacity, float loadFactor) {
+    if (initialCapacity < 0 || !(loadFactor > 0)) {
+      throw new HadoopIllegalArgumentException("initialCapacity="
+          + initialCapacity + ", loadFactor=" + loadFactor);
+    }
+    int length = 1;
+    while (length < initialCapacity && length < MAX_ARRAY_LENGTH) {
+      length <<= 1;
+    }
+    this.initialCapacity = length;
+    this.loadFactor = loadFactor;
+    this.entries = newArray(length);
+    updateThresholds();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Entry<T>[] newArray(int length) {
+    return new Entry[length];
+  }
+
+  private void updateThresholds() {
+    expandThreshold = (int)Math.min(entries.length * loadFactor,
+        Integer.MAX_VALUE);
+    shrinkThreshold = entries.length > initialCapacity ?
+        (int)(entries.length * loadFactor / 4) : -1;
+  }
+
+  /** Spread the high bits of the hash code to the low bits. */
+  private static int hash(Object o) {
+    final int h = o.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int getIndex(int hashCode, int length) {
+    return hashCode & (length - 1);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** @return the entry of the element, or null if it is not in the set */
+  protected Entry<T> getEntry(Object key) {
+    final int hashCode = hash(key);
+    for (Entry<T> e = entries[getIndex(hashCode, entries.length)];
+        e != null; e = e.next) {
+      if (e.hashCode == hashCode && e.element.equals(key)) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean contains(Object key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    return getEntry(key) != null;
+  }
+
+  /**
+   * Get the element of the set which equals the key.
+   * @return the element, or null if it is not in the set
+   */
+  public T get(Object key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    final Entry<T> e = getEntry(key);
+    return e == null ? null : e.element;
+  }
+
+  /** Create the entry of an element being added to the set. */
+  protected Entry<T> newEntry(T element, int hashCode) {
+    return new Entry<T>(element, hashCode);
+  }
+
+  /**
+   * Add an element to the set, unless the set has an equal element.
+   * @return true if the element was added
+   */
+  @Override
+  public boolean add(T element) {
+    if (element == null) {
+      throw new NullPointerException("Null element is not supported.");
+    }
+    if (getEntry(element) != null) {
+      return false;
+    }
+    final int hashCode = hash(element);
+    final Entry<T> e = newEntry(element, hashCode);
+    final int index = getIndex(hashCode, entries.length);
+    e.next = entries[index];
+    entries[index] = e;
+    size++;
+    modification++;
+    if (size > expandThreshold && entries.length < MAX_ARRAY_LENGTH) {
+      resize(entries.length << 1);
+    }
+    return true;
+  }
+
+  /**
+   * Remove the entry of the key from its row.
+   * @param shrink whether the array may shrink, which iterators do not allow
+   * @return the entry, or null if the key is not in the set
+   */
+  protected Entry<T> removeEntry(Object key, boolean shrink) {
+    final int hashCode = hash(key);
+    final int index = getIndex(hashCode, entries.length);
+    Entry<T> prev = null;
+    for (Entry<T> e = entries[index]; e != null; prev = e, e = e.next) {
+      if (e.hashCode == hashCode && e.element.equals(key)) {
+        if (prev == null) {
+          entries[index] = e.next;
+        } else {
+          prev.next = e.next;
+        }
+        e.next = null;
+        size--;
+        modification++;
+        if (shrink && size < shrinkThreshold) {
+          resize(entries.length >> 1);
+        }
+        return e;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean remove(Object key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    return removeEntry(key, true) != null;
+  }
+
+  /** Move the entries to a new array of the given length. */
+  private void resize(int length) {
+    final Entry<T>[] newEntries = newArray(length);
+    for (int i = 0; i < entries.length; i++) {
+      for (Entry<T> e = entries[i]; e != null; ) {
+        final Entry<T> next = e.next;
+        final int index = getIndex(e.hashCode, length);
+        e.next = newEntries[index];
+        newEntries[index] = e;
+        e = next;
+      }
+    }
+    entries = newEntries;
+    updateThresholds();
+  }
+
+  @Override
+  public void clear() {
+    entries = newArray(initialCapacity);
+    updateThresholds();
+    size = 0;
+    modification++;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new SetIterator();
+  }
+
+  @Override
+  public Object[] toArray() {
+    return toArray(new Object[size]);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <U> U[] toArray(U[] a) {
+    if (a.length < size) {
+      a = (U[])Array.newInstance(a.getClass().getComponentType(), size);
+    }
+    int i = 0;
+    for (T element : this) {
+      a[i++] = (U)element;
+    }
+    if (a.length > size) {
+      a[size] = null;
+    }
+    return a;
+  }
+
+  @Override
+  public boolean containsAll(Collection<?> c) {
+    for (Object o : c) {
+      if (!contains(o)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends T> c) {
+    boolean changed = false;
+    for (T element : c) {
+      changed |= add(element);
+    }
+    return changed;
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    boolean changed = false;
+    for (Object o : c) {
+      changed |= remove(o);
+    }
+    return changed;
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    boolean changed = false;
+    for (Iterator<T> i = iterator(); i.hasNext(); ) {
+      if (!c.contains(i.next())) {
+        i.remove();
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder(getClass().getSimpleName());
+    b.append("(size=").append(size)
+     .append(", modification=").append(modification)
+     .append(", entries.length=").append(entries.length)
+     .append(")");
+    return b.toString();
+  }
+
+  /** Iterate the rows of the hash table. */
+  private class SetIterator implements Iterator<T> {
+    /** The expected modification for fail-fast. */
+    private int expectedModification = modification;
+    /** The current index of the entry array. */
+    private int index = -1;
+    /** The entry last returned, null if it has been removed. */
+    private Entry<T> current;
+    /** The next entry to return. */
+    private Entry<T> next = nextNonemptyEntry();
+
+    /** Find the next nonempty entry starting at (index + 1). */
+    private Entry<T> nextNonemptyEntry() {
+      for(index++; index < entries.length && entries[index] == null; index++);
+      return index < entries.length? entries[index]: null;
+    }
+
+    private void checkModification() {
+      if (modification != expectedModification) {
+        throw new ConcurrentModificationException("modification="
+            + modification + " != expectedModification = "
+            + expectedModification);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public T next() {
+      checkModification();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      current = next;
+      next = current.next != null? current.next: nextNonemptyEntry();
+      return current.element;
+    }
+
+    @Override
+    public void remove() {
+      checkModification();
+      if (current == null) {
+        throw new IllegalStateException("next() has not been called");
+      }
+      LightWeightHashSet.this.removeEntry(current.element, false);
+      current = null;
+      expectedModification = modification;
+    }
+  }
+}
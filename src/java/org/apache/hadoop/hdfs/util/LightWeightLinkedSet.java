@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A {@link LightWeightHashSet} which iterates the elements in the order
+ * they were added, like {@link java.util.LinkedHashSet}.
+ *
+ * The set has a cursor, which walks the elements in order with
+ * {@link #advanceCursor()} while elements are added and removed, so that
+ * a consumer can resume where it stopped.  Elements added after the
+ * cursor reached the last element are returned by the next advance.
+ *
+ * This class does not support null element.
+ *
+ * This class is not thread safe.
+ *
+ * @param <T> Element type
+ */
+@InterfaceAudience.Private
+public class LightWeightLinkedSet<T> extends LightWeightHashSet<T> {
+  /** An entry linked to the entries added before and after it. */
+  private static class DoubleLinkedEntry<T> extends Entry<T> {
+    private DoubleLinkedEntry<T> before;
+    private DoubleLinkedEntry<T> after;
+
+    DoubleLinkedEntry(T element, int hashCode) {
+      super(element, hashCode);
+    }
+  }
+
+  /** The first and the last entries added. */
+  private DoubleLinkedEntry<T> head = null;
+  private DoubleLinkedEntry<T> tail = null;
+  /** The entry last returned by the cursor, null at the start. */
+  private DoubleLinkedEntry<T> cursor = null;
+
+  public LightWeightLinkedSet() {
+    super();
+  }
+
+  public LightWeightLinkedSet(int initialCapacity, float loadFactor) {
+    super(initialCapacity, loadFactor);
+  }
+
+  @Override
+  protected Entry<T> newEntry(T element, int hashCode) {
+    final DoubleLinkedEntry<T> e = new DoubleLinkedEntry<T>(element,
+        hashCode);
+    e.before = tail;
+    if (tail == null) {
+      head = e;
+    } else {
+      tail.after = e;
+    }
+    tail = e;
+    return e;
+  }
+
+  @Override
+  protected Entry<T> removeEntry(Object key, boolean shrink) {
+    final DoubleLinkedEntry<T> e =
+      (DoubleLinkedEntry<T>)super.removeEntry(key, shrink);
+    if (e == null) {
+      return null;
+    }
+    if (cursor == e) {
+      // the next advance returns the entry after the removed one
+      cursor = e.before;
+    }
+    if (e.before == null) {
+      head = e.after;
+    } else {
+      e.before.after = e.after;
+    }
+    if (e.after == null) {
+      tail = e.before;
+    } else {
+      e.after.before = e.before;
+    }
+    e.before = null;
+    e.after = null;
+    return e;
+  }
+
+  /**
+   * Remove the first element added.
+   * @return the element, or null if the set is empty
+   */
+  public T pollFirst() {
+    if (head == null) {
+      return null;
+    }
+    final T element = head.element;
+    removeEntry(element, true);
+    return element;
+  }
+
+  /** @return the first element added, or null if the set is empty */
+  public T first() {
+    return head == null ? null : head.element;
+  }
+
+  /**
+   * Move the cursor to the next element.
+   * @return the element, or null if the cursor is at the last element,
+   *         in which case the cursor stays there
+   */
+  public T advanceCursor() {
+    final DoubleLinkedEntry<T> next = cursor == null ? head : cursor.after;
+    if (next == null) {
+      return null;
+    }
+    cursor = next;
+    return next.element;
+  }
+
+  /** Move the cursor back to the start. */
+  public void resetCursor() {
+    cursor = null;
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    head = null;
+    tail = null;
+    cursor = null;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new LinkedSetIterator();
+  }
+
+  /** Iterate the elements in the order they were added. */
+  private class LinkedSetIterator implements Iterator<T> {
+    /** The expected modification for fail-fast. */
+    private int expectedModification = modification;
+    /** The entry last returned, null if it has been removed. */
+    private DoubleLinkedEntry<T> current = null;
+    /** The next entry to return. */
+    private DoubleLinkedEntry<T> next = head;
+
+    private void checkModification() {
+      if (modification != expectedModification) {
+        throw new ConcurrentModificationException("modification="
+            + modification + " != expectedModification = "
+            + expectedModification);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public T next() {
+      checkModification();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      current = next;
+      next = next.after;
+      return current.element;
+    }
+
+    @Override
+    public void remove() {
+      checkModification();
+      if (current == null) {
+        throw new IllegalStateException("next() has not been called");
+      }
+      LightWeightLinkedSet.this.removeEntry(current.element, false);
+      current = null;
+      expectedModification = modification;
+    }
+  }
+}
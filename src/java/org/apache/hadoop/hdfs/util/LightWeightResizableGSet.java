@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.HadoopIllegalArgumentException;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.hdfs.util.LightWeightGSet.LinkedElement;
+
+/**
+ * A low memory footprint {@link GSet} implementation like
+ * {@link LightWeightGSet}, which stores the elements in an array
+ * and links the colliding elements through the elements themselves,
+ * so that there is no entry object per element.
+ *
+ * Unlike {@link LightWeightGSet}, the array doubles whenever the size
+ * exceeds the load factor times the array length, so this set suits
+ * sets whose size is not known in advance.  The array never shrinks.
+ * The iterator supports {@link Iterator#remove()}.
+ *
+ * This class does not support null element.
+ *
+ * This class is not thread safe.
+ *
+ * @param <K> Key type for looking up the elements
+ * @param <E> Element type, which must be
+ *       (1) a subclass of K, and
+ *       (2) implementing {@link LinkedElement} interface.
+ */
+@InterfaceAudience.Private
+public class LightWeightResizableGSet<K, E extends K> implements GSet<K, E> {
+  static final int MAX_ARRAY_LENGTH = 1 << 30;
+  public static final int DEFAULT_INITIAL_CAPACITY = 16;
+  public static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+  /**
+   * An internal array of entries, which are the rows of the hash table.
+   * The size must be a power of two.
+   */
+  private LinkedElement[] entries;
+  private final float loadFactor;
+  /** Resize the array when the size exceeds the threshold. */
+  private int threshold;
+  /** The size of the set (not the entry array). */
+  private int size = 0;
+  /** Modification version for fail-fast.
+   * @see ConcurrentModificationException
+   */
+  private int modification = 0;
+
+  public LightWeightResizableGSet() {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+  }
+
+  /**
+   * @param initialCapacity the initial length of the internal array,
+   *        rounded up to a power of two
+   * @param loadFactor the maximum ratio of the size to the array length
+   */
+  public LightWeightResizableGSet(int initialCapacity, float loadFactor) {
+    if (initialCapacity < 0 || !(loadFactor > 0)) {
+      throw new HadoopIllegalArgumentException("initialCapacity="
+          + initialCapacity + ", loadFactor=" + loadFactor);
+    }
+    int length = 1;
+    while (length < initialCapacity && length < MAX_ARRAY_LENGTH) {
+      length <<= 1;
+    }
+    this.loadFactor = loadFactor;
+    this.entries = new LinkedElement[length];
+    this.threshold = (int)Math.min(length * loadFactor, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  private static int getIndex(final Object key, final int length) {
+    return key.hashCode() & (length - 1);
+  }
+
+  private E convert(final LinkedElement e){
+    @SuppressWarnings("unchecked")
+    final E r = (E)e;
+    return r;
+  }
+
+  @Override
+  public E get(final K key) {
+    //validate key
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+
+    //find element
+    final int index = getIndex(key, entries.length);
+    for(LinkedElement e = entries[index]; e != null; e = e.getNext()) {
+      if (e.equals(key)) {
+        return convert(e);
+      }
+    }
+    //element not found
+    return null;
+  }
+
+  @Override
+  public boolean contains(final K key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public E put(final E element) {
+    //validate element
+    if (element == null) {
+      throw new NullPointerException("Null element is not supported.");
+    }
+    if (!(element instanceof LinkedElement)) {
+      throw new HadoopIllegalArgumentException(
+          "!(element instanceof LinkedElement), element.getClass()="
+          + element.getClass());
+    }
+    final LinkedElement e = (LinkedElement)element;
+
+    //remove if it already exists
+    final int index = getIndex(element, entries.length);
+    final E existing = remove(index, element);
+
+    //insert the element to the head of the linked list
+    modification++;
+    size++;
+    e.setNext(entries[index]);
+    entries[index] = e;
+
+    if (size > threshold && entries.length < MAX_ARRAY_LENGTH) {
+      resize(entries.length << 1);
+    }
+    return existing;
+  }
+
+  /** Move the elements to a new array of the given length. */
+  private void resize(final int length) {
+    final LinkedElement[] newEntries = new LinkedElement[length];
+    for (int i = 0; i < entries.length; i++) {
+      for (LinkedElement e = entries[i]; e != null; ) {
+        final LinkedElement next = e.getNext();
+        final int index = getIndex(e, length);
+        e.setNext(newEntries[index]);
+        newEntries[index] = e;
+        e = next;
+      }
+    }
+    entries = newEntries;
+    threshold = (int)Math.min(length * loadFactor, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Remove the element corresponding to the key,
+   * given key.hashCode() == index.
+   *
+   * @return If such element exists, return it.
+   *         Otherwise, return null.
+   */
+  private E remove(final int index, final Object key) {
+    LinkedElement prev = null;
+    for(LinkedElement curr = entries[index]; curr != null;
+        prev = curr, curr = curr.getNext()) {
+      if (curr.equals(key)) {
+        //found the element, remove it
+        modification++;
+        size--;
+        if (prev == null) {
+          entries[index] = curr.getNext();
+        } else {
+          prev.setNext(curr.getNext());
+        }
+        curr.setNext(null);
+        return convert(curr);
+      }
+    }
+    //element not found
+    return null;
+  }
+
+  @Override
+  public E remove(final K key) {
+    //validate key
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    return remove(getIndex(key, entries.length), key);
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new SetIterator();
+  }
+
+  /**
+   * Copy the elements of the rows of the entry array starting at the given
+   * row, until at least the given number of elements are copied, so that a
+   * caller can visit the set in batches and release its lock in between.
+   * Elements added or removed between two batches may or may not be
+   * copied, and a resize between two batches may copy an element twice.
+   *
+   * @param row the row to start from, 0 for the first batch
+   * @param max the number of elements after which to stop
+   * @param out the collection to which the elements are added
+   * @return the row to continue from, or -1 if all the rows were copied
+   */
+  public int copyElements(int row, int max, Collection<? super E> out) {
+    int copied = 0;
+    for (; row < entries.length && copied < max; row++) {
+      for (LinkedElement e = entries[row]; e != null; e = e.getNext()) {
+        out.add(convert(e));
+        copied++;
+      }
+    }
+    return row < entries.length ? row : -1;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder(getClass().getSimpleName());
+    b.append("(size=").append(size)
+     .append(", modification=").append(modification)
+     .append(", entries.length=").append(entries.length)
+     .append(")");
+    return b.toString();
+  }
+
+  private class SetIterator implements Iterator<E> {
+    /** The expected modification for fail-fast. */
+    private int expectedModification = modification;
+    /** The current index of the entry array. */
+    private int index = -1;
+    /** The element last returned, null if it has been removed. */
+    private LinkedElement current;
+    /** The next element to return. */
+    private LinkedElement next = nextNonemptyEntry();
+
+    /** Find the next nonempty entry starting at (index + 1). */
+    private LinkedElement nextNonemptyEntry() {
+      for(index++; index < entries.length && entries[index] == null; index++);
+      return index < entries.length? entries[index]: null;
+    }
+
+    private void checkModification() {
+      if (modification != expectedModification) {
+        throw new ConcurrentModificationException("modification="
+            + modification + " != expectedModification = "
+            + expectedModification);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public E next() {
+      checkModification();
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      current = next;
+
+      //find the next element
+      final LinkedElement n = next.getNext();
+      next = n != null? n: nextNonemptyEntry();
+
+      return convert(current);
+    }
+
+    @Override
+    public void remove() {
+      checkModification();
+      if (current == null) {
+        throw new IllegalStateException("next() has not been called");
+      }
+      LightWeightResizableGSet.this.remove(
+          getIndex(current, entries.length), current);
+      current = null;
+      expectedModification = modification;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A pure-java implementation of the CRC32C checksum, which uses the
+ * Castagnoli polynomial instead of the polynomial of {@link
+ * java.util.zip.CRC32}.  It has better error detection properties,
+ * and is computed eight bytes at a time with the slicing-by-8 tables.
+ */
+@InterfaceAudience.Private
+public class PureJavaCrc32C implements Checksum {
+  /** The reversed Castagnoli polynomial */
+  private static final int POLY = 0x82F63B78;
+
+  /** T[k][i] is the crc of the byte i followed by k zero bytes */
+  private static final int[] T0 = new int[256];
+  private static final int[] T1 = new int[256];
+  private static final int[] T2 = new int[256];
+  private static final int[] T3 = new int[256];
+  private static final int[] T4 = new int[256];
+  private static final int[] T5 = new int[256];
+  private static final int[] T6 = new int[256];
+  private static final int[] T7 = new int[256];
+
+  static {
+    final int[][] t = {T0, T1, T2, T3, T4, T5, T6, T7};
+    for (int i = 0; i < 256; i++) {
+      int c = i;
+      for (int j = 0; j < 8; j++) {
+        c = (c & 1) != 0? (c >>> 1) ^ POLY: c >>> 1;
+      }
+      T0[i] = c;
+    }
+    for (int k = 1; k < t.length; k++) {
+      for (int i = 0; i < 256; i++) {
+        final int c = t[k - 1][i];
+        t[k][i] = (c >>> 8) ^ T0[c & 0xff];
+      }
+    }
+  }
+
+  /** the current CRC value, bit-flipped */
+  private int crc;
+
+  public PureJavaCrc32C() {
+    reset();
+  }
+
+  @Override
+  public long getValue() {
+    return (~crc) & 0xffffffffL;
+  }
+
+  @Override
+  public void reset() {
+    crc = 0xffffffff;
+  }
+
+  @Override
+  public void update(byte[] b, int off, int len) {
+    int localCrc = crc;
+    while (len > 7) {
+      final int c0 = (b[off] ^ localCrc) & 0xff;
+      final int c1 = (b[off + 1] ^ (localCrc >>> 8)) & 0xff;
+      final int c2 = (b[off + 2] ^ (localCrc >>> 16)) & 0xff;
+      final int c3 = (b[off + 3] ^ (localCrc >>> 24)) & 0xff;
+      localCrc = T7[c0] ^ T6[c1] ^ T5[c2] ^ T4[c3]
+          ^ T3[b[off + 4] & 0xff] ^ T2[b[off + 5] & 0xff]
+          ^ T1[b[off + 6] & 0xff] ^ T0[b[off + 7] & 0xff];
+      off += 8;
+      len -= 8;
+    }
+    for (; len > 0; len--) {
+      localCrc = (localCrc >>> 8) ^ T0[(localCrc ^ b[off++]) & 0xff];
+    }
+    crc = localCrc;
+  }
+
+  @Override
+  public void update(int b) {
+    crc = (crc >>> 8) ^ T0[(crc ^ b) & 0xff];
+  }
+}
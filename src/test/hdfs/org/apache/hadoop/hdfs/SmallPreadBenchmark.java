@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Measures the rate of small positional reads from a datanode
+ * with and without the client socket cache.
+ *
+ * Each positional read opens a block reader; without the socket cache
+ * every read makes a new TCP connection to the datanode, and the
+ * datanode starts a new xceiver thread for it.
+ *
+ * Usage: SmallPreadBenchmark [-reads N] [-size BYTES]
+ */
+public class SmallPreadBenchmark {
+  private static final long FILE_SIZE = 16L << 20;
+
+  private final int numReads;
+  private final int readSize;
+
+  SmallPreadBenchmark(int numReads, int readSize) {
+    this.numReads = numReads;
+    this.readSize = readSize;
+  }
+
+  /** @return positional reads per second with the given cache capacity */
+  double run(int cacheCapacity) throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_CAPACITY_KEY,
+        cacheCapacity);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/smallPreadBenchmark");
+      DFSTestUtil.createFile(fs, file, FILE_SIZE, (short)1, 0L);
+
+      Random random = new Random(0L);
+      byte[] buf = new byte[readSize];
+      FSDataInputStream in = fs.open(file);
+      try {
+        // warm up the JIT and the datanode
+        for (int i = 0; i < numReads / 10; i++) {
+          in.readFully(random.nextInt((int)(FILE_SIZE - readSize)), buf);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < numReads; i++) {
+          in.readFully(random.nextInt((int)(FILE_SIZE - readSize)), buf);
+        }
+        return numReads * 1e9 / (System.nanoTime() - start);
+      } finally {
+        in.close();
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: SmallPreadBenchmark [-reads N] [-size BYTES]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numReads = 10000;
+    int readSize = 512;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-reads")) {
+        numReads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-size")) {
+        readSize = Integer.parseInt(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    SmallPreadBenchmark bench = new SmallPreadBenchmark(numReads, readSize);
+    double uncached = bench.run(0);
+    double cached = bench.run(
+        DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_CAPACITY_DEFAULT);
+    System.out.println(String.format("%20s %20s", "socket cache", "preads/s"));
+    System.out.println(String.format("%20s %20.0f", "disabled", uncached));
+    System.out.println(String.format("%20s %20.0f", "enabled", cached));
+  }
+}
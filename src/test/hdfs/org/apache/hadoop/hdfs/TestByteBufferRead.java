@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test reading from a DFSInputStream into ByteBuffers.
+ */
+public class TestByteBufferRead {
+  static final int BLOCK_SIZE = 4096;
+  static final int FILE_SIZE = 3 * BLOCK_SIZE + 100;
+  static final long SEED = 0xDEADBEEFL;
+  static final Path FILE = new Path("/testByteBufferRead");
+
+  private static MiniDFSCluster cluster;
+  private static DistributedFileSystem fs;
+  private static byte[] data;
+
+  @BeforeClass
+  public static void setupCluster() throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_BYTES_PER_CHECKSUM_KEY, 512);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = (DistributedFileSystem)cluster.getFileSystem();
+    data = AppendTestUtil.randomBytes(SEED, FILE_SIZE);
+    FSDataOutputStream out = fs.create(FILE, true, 4096, (short)1,
+        BLOCK_SIZE);
+    out.write(data);
+    out.close();
+  }
+
+  @AfterClass
+  public static void shutdownCluster() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static void checkData(ByteBuffer actual, int from, String message) {
+    for (int i = 0; actual.hasRemaining(); i++) {
+      assertEquals(message + " byte " + (from + i) + " differs",
+          data[from + i], actual.get());
+    }
+  }
+
+  /** Read the whole file into buffers of the given size. */
+  private void readFile(boolean direct, boolean verifyChecksum, int size)
+      throws IOException {
+    DFSInputStream in = fs.dfs.open(FILE.toString(), 4096, verifyChecksum);
+    try {
+      int nread = 0;
+      while (nread < FILE_SIZE) {
+        ByteBuffer buf = direct? ByteBuffer.allocateDirect(size)
+            : ByteBuffer.allocate(size);
+        int n = in.read(buf);
+        assertTrue("unexpected end of file at " + nread, n > 0);
+        assertEquals(n, buf.position());
+        buf.flip();
+        checkData(buf, nread, "read of size " + size);
+        nread += n;
+      }
+      assertEquals(-1, in.read(ByteBuffer.allocate(size)));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testReadDirect() throws IOException {
+    for (int size : new int[] {1, 511, 512, 1000, 4096, 10000}) {
+      readFile(true, true, size);
+    }
+    readFile(true, false, 777);
+  }
+
+  @Test
+  public void testReadHeap() throws IOException {
+    for (int size : new int[] {1, 513, 4096, 10000}) {
+      readFile(false, true, size);
+    }
+  }
+
+  /** Reads into arrays and into buffers can be mixed on one stream. */
+  @Test
+  public void testMixedReads() throws IOException {
+    DFSInputStream in = fs.dfs.open(FILE.toString());
+    try {
+      // a buffer read first, then an array read from the same packet
+      in.seek(100);
+      ByteBuffer buf = ByteBuffer.allocateDirect(300);
+      assertEquals(300, in.read(buf));
+      buf.flip();
+      checkData(buf, 100, "buffer read");
+      byte[] b = new byte[1000];
+      assertEquals(1000, in.read(b, 0, b.length));
+      checkData(ByteBuffer.wrap(b), 400, "array read");
+
+      // an array read first, then a buffer read
+      in.seek(BLOCK_SIZE + 3);
+      assertEquals(10, in.read(b, 0, 10));
+      checkData(ByteBuffer.wrap(b, 0, 10), BLOCK_SIZE + 3, "array read");
+      buf = ByteBuffer.allocateDirect(2000);
+      int n = in.read(buf);
+      assertTrue(n > 0);
+      buf.flip();
+      checkData(buf, BLOCK_SIZE + 13, "buffer read");
+
+      // a read only fills the buffer up to its limit
+      in.seek(2 * BLOCK_SIZE - 50);
+      buf = ByteBuffer.allocateDirect(200);
+      buf.position(10).limit(110);
+      assertEquals(50, in.read(buf));
+      assertEquals(60, buf.position());
+      buf.flip().position(10);
+      checkData(buf, 2 * BLOCK_SIZE - 50, "buffer read");
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testDataInputStream() throws IOException {
+    DFSClient.DFSDataInputStream in =
+        (DFSClient.DFSDataInputStream)fs.open(FILE);
+    try {
+      in.seek(FILE_SIZE - 150);
+      ByteBuffer buf = ByteBuffer.allocateDirect(1000);
+      assertEquals(150, in.read(buf));
+      buf.flip();
+      checkData(buf, FILE_SIZE - 150, "buffer read");
+      buf.clear();
+      assertEquals(-1, in.read(buf));
+    } finally {
+      in.close();
+    }
+  }
+
+  /** A corrupt replica is detected by the bulk checksum verification. */
+  @Test
+  public void testCorruptReplica() throws Exception {
+    Path file = new Path("/testCorruptReplica");
+    DFSTestUtil.createFile(fs, file, BLOCK_SIZE, (short)1, SEED);
+    assertTrue(MiniDFSCluster.corruptBlockOnDataNode(0,
+        DFSTestUtil.getFirstBlock(fs, file)));
+    DFSInputStream in = fs.dfs.open(file.toString());
+    try {
+      ByteBuffer buf = ByteBuffer.allocateDirect(BLOCK_SIZE);
+      in.read(buf);
+      fail("read of a corrupt replica succeeded");
+    } catch (IOException e) {
+      // the only replica is corrupt
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.hadoop.hdfs;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.URI;
 import java.net.URL;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -30,10 +31,12 @@ import java.util.Random;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.MiniDFSCluster.DataNodeProperties;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.hadoop.hdfs.protocol.FSConstants.DatanodeReportType;
+import org.apache.hadoop.hdfs.server.datanode.DataNodeTestUtils;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IOUtils;
@@ -142,6 +145,22 @@ public class TestDatanodeBlockScanner extends TestCase {
     cluster.shutdown();
   }
 
+  /**
+   * Restart a datanode without its block scanner state, so that the
+   * block scanner verifies all its replicas again.
+   */
+  private static void restartDataNodeWithNewScan(MiniDFSCluster cluster,
+      int i) throws IOException {
+    final String bpid = cluster.getNamesystem().getBlockPoolId();
+    final DataNodeProperties dnprop = cluster.stopDataNode(i);
+    for (String dir : dnprop.conf.getTrimmedStrings(
+        DFSConfigKeys.DFS_DATANODE_DATA_DIR_KEY)) {
+      DataNodeTestUtils.deleteBlockScannerState(new File(URI.create(dir)),
+          bpid);
+    }
+    cluster.restartDataNode(dnprop);
+  }
+
   public static boolean corruptReplica(ExtendedBlock blk, int replica) throws IOException {
     return MiniDFSCluster.corruptBlockOnDataNode(replica, blk);
   }
@@ -181,7 +200,7 @@ public class TestDatanodeBlockScanner extends TestCase {
     assertTrue(corruptReplica(block, rand));
 
     // Restart the datanode hoping the corrupt block to be reported
-    cluster.restartDataNode(rand);
+    restartDataNodeWithNewScan(cluster, rand);
 
     // We have 2 good replicas and block is not corrupt
     do {
@@ -304,7 +323,7 @@ public class TestDatanodeBlockScanner extends TestCase {
     // Restart the datanodes containing corrupt replicas 
     // so they would be reported to namenode and re-replicated
     for (int i =0; i < numCorruptReplicas; i++) 
-     cluster.restartDataNode(corruptReplicasDNIDs[i]);
+     restartDataNodeWithNewScan(cluster, corruptReplicasDNIDs[i]);
 
     // Loop until all corrupt replicas are reported
     int corruptReplicaSize = cluster.getNamesystem().
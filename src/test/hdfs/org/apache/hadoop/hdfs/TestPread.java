@@ -40,6 +40,11 @@ public class TestPread extends TestCase {
   boolean simulatedStorage = false;
 
   private void writeFile(FileSystem fileSys, Path name) throws IOException {
+    writeFile(fileSys, name, (short)1);
+  }
+
+  private void writeFile(FileSystem fileSys, Path name, short replication)
+      throws IOException {
     // create and write a file that contains three blocks of data
     DataOutputStream stm = fileSys.create(name, true, 4096, (short)1,
                                           (long)blockSize);
@@ -61,7 +66,7 @@ public class TestPread extends TestCase {
       assertTrue("Cannot delete file", false);
     
     // now create the real file
-    stm = fileSys.create(name, true, 4096, (short)1, (long)blockSize);
+    stm = fileSys.create(name, true, 4096, replication, (long)blockSize);
     Random rand = new Random(seed);
     rand.nextBytes(buffer);
     stm.write(buffer);
@@ -225,6 +230,35 @@ public class TestPread extends TestCase {
     }
   }
   
+  /**
+   * Tests hedged positional read in DFS. The threshold is zero,
+   * so nearly every read is hedged to a second replica.
+   */
+  public void testHedgedPreadDFS() throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, 4096);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_READ_PREFETCH_SIZE_KEY, 4096);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY, 5);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY, 0);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(3).build();
+    DistributedFileSystem fileSys = (DistributedFileSystem)cluster.getFileSystem();
+    DFSHedgedReadMetrics metrics = fileSys.getClient().getHedgedReadMetrics();
+    long hedgedReadOps = metrics.getHedgedReadOps();
+    try {
+      Path file1 = new Path("hedgedpreadtest.dat");
+      writeFile(fileSys, file1, (short)3);
+      DFSTestUtil.waitReplication(fileSys, file1, (short)3);
+      pReadFile(fileSys, file1);
+      assertTrue(metrics.getHedgedReadOps() > hedgedReadOps);
+      assertTrue(metrics.getHedgedReadWins() <= metrics.getHedgedReadOps());
+      datanodeRestartTest(cluster, fileSys, file1);
+      cleanupFile(fileSys, file1);
+    } finally {
+      fileSys.close();
+      cluster.shutdown();
+    }
+  }
+
   public void testPreadDFSSimulated() throws IOException {
     simulatedStorage = true;
     testPreadDFS();
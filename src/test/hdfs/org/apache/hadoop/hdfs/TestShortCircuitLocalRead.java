@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
+import org.apache.hadoop.hdfs.protocol.ClientDatanodeProtocol;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+import org.apache.hadoop.hdfs.server.datanode.DataNodeTestUtils;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.Test;
+
+/**
+ * Test reading the replicas stored on the local host directly
+ * from the local file system.
+ */
+public class TestShortCircuitLocalRead {
+  static final int BLOCK_SIZE = 4096;
+  static final int FILE_SIZE = 3 * BLOCK_SIZE + 100;
+  static final long SEED = 0xDEADBEEFL;
+
+  private static Configuration newConf(boolean skipChecksum)
+      throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_KEY, true);
+    conf.setBoolean(
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
+        skipChecksum);
+    conf.set(DFSConfigKeys.DFS_BLOCK_LOCAL_PATH_ACCESS_USER_KEY,
+        UserGroupInformation.getCurrentUser().getShortUserName());
+    return conf;
+  }
+
+  private static byte[] writeFile(FileSystem fs, Path name)
+      throws IOException {
+    final byte[] data = AppendTestUtil.randomBytes(SEED, FILE_SIZE);
+    FSDataOutputStream out = fs.create(name, true, 4096, (short)1,
+        BLOCK_SIZE);
+    out.write(data);
+    out.close();
+    return data;
+  }
+
+  private static void checkData(byte[] actual, int from, byte[] expected,
+      String message) {
+    for (int i = 0; i < actual.length; i++) {
+      assertEquals(message + " byte " + (from + i) + " differs",
+          expected[from + i], actual[i]);
+    }
+  }
+
+  /** Read the file sequentially and with positional reads. */
+  private static void checkFileContent(FileSystem fs, Path name,
+      byte[] expected) throws IOException {
+    FSDataInputStream in = fs.open(name);
+    try {
+      // sequential reads of odd sizes, which cross the block boundaries
+      byte[] actual = new byte[expected.length];
+      int nread = 0;
+      while (nread < actual.length) {
+        int n = in.read(actual, nread,
+            Math.min(1021, actual.length - nread));
+        assertTrue("unexpected end of file at " + nread, n > 0);
+        nread += n;
+      }
+      checkData(actual, 0, expected, "sequential read");
+      assertEquals(-1, in.read());
+
+      // seek into the middle of a chunk
+      in.seek(BLOCK_SIZE + 77);
+      actual = new byte[1000];
+      in.readFully(actual);
+      checkData(actual, BLOCK_SIZE + 77, expected, "read after seek");
+
+      // positional reads not aligned with the chunks
+      for (int pos = 3; pos + 600 < expected.length; pos += 1500) {
+        actual = new byte[600];
+        in.readFully(pos, actual);
+        checkData(actual, pos, expected, "pread");
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void doTestShortCircuitRead(boolean skipChecksum)
+      throws Exception {
+    Configuration conf = newConf(skipChecksum);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/testShortCircuitRead");
+      byte[] data = writeFile(fs, file);
+      checkFileContent(fs, file, data);
+
+      // the allowed user gets the paths of the replica files
+      DataNode dn = cluster.getDataNodes().get(0);
+      LocatedBlock lb = DFSClient.callGetBlockLocations(
+          cluster.getNameNode(), file.toString(), 0, FILE_SIZE)
+          .getLocatedBlocks().get(0);
+      ClientDatanodeProtocol proxy =
+        DFSClient.createClientDatanodeProtocolProxy(dn.getDatanodeId(),
+            conf, 60000);
+      try {
+        BlockLocalPathInfo info = proxy.getBlockLocalPathInfo(
+            lb.getBlock(), lb.getBlockToken());
+        assertEquals(BLOCK_SIZE, new File(info.getBlockPath()).length());
+        assertTrue(new File(info.getMetaPath()).exists());
+      } finally {
+        RPC.stopProxy(proxy);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  @Test
+  public void testShortCircuitRead() throws Exception {
+    doTestShortCircuitRead(false);
+  }
+
+  @Test
+  public void testShortCircuitReadSkipChecksum() throws Exception {
+    doTestShortCircuitRead(true);
+  }
+
+  /**
+   * Only the configured users may get the local paths of the replicas,
+   * the others still read the data through the data-node.
+   */
+  @Test
+  public void testDeniedUser() throws Exception {
+    Configuration conf = newConf(false);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      final FileSystem fs = cluster.getFileSystem();
+      final Path file = new Path("/testDeniedUser");
+      final byte[] data = writeFile(fs, file);
+
+      final DataNode dn = cluster.getDataNodes().get(0);
+      final LocatedBlock lb = DFSClient.callGetBlockLocations(
+          cluster.getNameNode(), file.toString(), 0, FILE_SIZE)
+          .getLocatedBlocks().get(0);
+      final Configuration clientConf = new Configuration(conf);
+      UserGroupInformation denied = UserGroupInformation.createUserForTesting(
+          "notallowed", new String[] {"supergroup"});
+      denied.doAs(new PrivilegedExceptionAction<Void>() {
+        @Override
+        public Void run() throws Exception {
+          ClientDatanodeProtocol proxy =
+            DFSClient.createClientDatanodeProtocolProxy(dn.getDatanodeId(),
+                clientConf, 60000);
+          try {
+            BlockLocalPathInfo info = proxy.getBlockLocalPathInfo(
+                lb.getBlock(), lb.getBlockToken());
+            fail("getBlockLocalPathInfo succeeded: " + info);
+          } catch (RemoteException e) {
+            assertEquals(AccessControlException.class.getName(),
+                e.getClassName());
+          } finally {
+            RPC.stopProxy(proxy);
+          }
+
+          // the client falls back to reading through the data-node
+          FileSystem deniedFs = FileSystem.newInstance(fs.getUri(),
+              clientConf);
+          try {
+            checkFileContent(deniedFs, file, data);
+          } finally {
+            deniedFs.close();
+          }
+          return null;
+        }
+      });
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * A local positional read which fails part way through falls back to
+   * reading the same replica through the data-node, which is not marked
+   * dead for it.
+   */
+  @Test
+  public void testPreadFallsBackToDataNode() throws Exception {
+    Configuration conf = newConf(false);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/testPreadFallsBackToDataNode");
+      byte[] data = writeFile(fs, file);
+
+      FSDataInputStream in = fs.open(file);
+      try {
+        // the local read caches the paths of the replica files
+        byte[] actual = new byte[600];
+        in.readFully(3, actual);
+        checkData(actual, 3, data, "local pread");
+
+        // the data-node serves a copy of the replica from now on, and the
+        // cached block file is truncated, so the local read fails once
+        // it has opened the files
+        LocatedBlock lb = DFSClient.callGetBlockLocations(
+            cluster.getNameNode(), file.toString(), 0, FILE_SIZE)
+            .getLocatedBlocks().get(0);
+        File blockFile = DataNodeTestUtils.copyReplicaTo(
+            cluster.getDataNodes().get(0), lb.getBlock(),
+            new File(MiniDFSCluster.getBaseDirectory(), "moved"));
+        new FileOutputStream(blockFile).close();
+        assertEquals(0, blockFile.length());
+
+        actual = new byte[1000];
+        in.readFully(BLOCK_SIZE - 1100, actual);
+        checkData(actual, BLOCK_SIZE - 1100, data, "pread after truncate");
+      } finally {
+        in.close();
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+/**
+ * Test that the block readers of a client reuse the connections
+ * to the datanodes.
+ */
+public class TestSocketCache {
+  static final int BLOCK_SIZE = 4096;
+  static final int FILE_SIZE = 3 * BLOCK_SIZE;
+  static final long SEED = 0xDEADBEEFL;
+
+  private static byte[] writeFile(DistributedFileSystem fs, Path name)
+      throws IOException {
+    final byte[] data = AppendTestUtil.randomBytes(SEED, FILE_SIZE);
+    FSDataOutputStream out = fs.create(name, true, 4096, (short)1,
+        BLOCK_SIZE);
+    out.write(data);
+    out.close();
+    return data;
+  }
+
+  /** Read a range with a positional read and check its content. */
+  private static void pread(DFSInputStream in, long pos, int len,
+      byte[] expected) throws IOException {
+    final byte[] actual = new byte[len];
+    int nread = 0;
+    while (nread < len) {
+      int n = in.read(pos + nread, actual, nread, len - nread);
+      assertTrue("unexpected end of file at " + (pos + nread), n > 0);
+      nread += n;
+    }
+    for (int i = 0; i < len; i++) {
+      assertEquals("byte " + (pos + i) + " differs",
+          expected[(int)pos + i], actual[i]);
+    }
+  }
+
+  /**
+   * Positional reads of one datanode use a single connection,
+   * which goes back to the cache after each read.
+   */
+  @Test
+  public void testReadsReuseConnection() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+      Path file = new Path("/testReadsReuseConnection");
+      byte[] data = writeFile(fs, file);
+
+      DFSClient client = fs.dfs;
+      DFSInputStream in = client.open(file.toString());
+      try {
+        assertEquals(0, client.socketCache.size());
+        for (int pos = 0; pos + 100 <= FILE_SIZE; pos += 777) {
+          pread(in, pos, 100, data);
+          assertEquals(1, client.socketCache.size());
+        }
+
+        // a sequential read takes the connection out of the cache
+        // and gives it back when the stream is closed
+        in.seek(10);
+        byte[] buf = new byte[BLOCK_SIZE - 10];
+        assertEquals(buf.length, in.read(buf, 0, buf.length));
+        assertEquals(0, client.socketCache.size());
+        in.close();
+        assertEquals(1, client.socketCache.size());
+      } finally {
+        in.close();
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * A cached connection closed by the datanode after its keep-alive
+   * timeout is replaced by a new connection.
+   */
+  @Test
+  public void testDatanodeClosesIdleConnection() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_KEY, 100);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_EXPIRY_MSEC_KEY,
+        60000);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+      Path file = new Path("/testDatanodeClosesIdleConnection");
+      byte[] data = writeFile(fs, file);
+
+      DFSClient client = fs.dfs;
+      DFSInputStream in = client.open(file.toString());
+      try {
+        pread(in, 0, 100, data);
+        assertEquals(1, client.socketCache.size());
+
+        // let the datanode close its side of the cached connection
+        Thread.sleep(1000);
+        pread(in, BLOCK_SIZE + 5, 1000, data);
+        pread(in, 2 * BLOCK_SIZE, 1000, data);
+        assertEquals(1, client.socketCache.size());
+      } finally {
+        in.close();
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /** With a capacity of zero the connections are closed after each read. */
+  @Test
+  public void testCacheDisabled() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_SOCKET_CACHE_CAPACITY_KEY, 0);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+      Path file = new Path("/testCacheDisabled");
+      byte[] data = writeFile(fs, file);
+
+      DFSClient client = fs.dfs;
+      DFSInputStream in = client.open(file.toString());
+      try {
+        for (int pos = 0; pos + 100 <= FILE_SIZE; pos += 2000) {
+          pread(in, pos, 100, data);
+          assertEquals(0, client.socketCache.size());
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -19,12 +19,18 @@
 
 package org.apache.hadoop.hdfs.server.datanode;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.common.Storage;
 import org.apache.hadoop.hdfs.server.datanode.DataNode.BPOfferService;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeProtocol;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
+import org.apache.hadoop.io.IOUtils;
 
 /**
  * Utility class for accessing package-private DataNode information during tests.
@@ -64,4 +70,42 @@ public class DataNodeTestUtils {
       bpos.setupBPStorage();
     }
   }
+
+  /**
+   * Delete the block scanner state of a block pool on a storage directory,
+   * so that the block scanner verifies all the replicas of the block pool
+   * there again when the datanode restarts.  The datanode must be stopped.
+   * @param storageDir the storage directory of a datanode
+   * @param bpid block pool Id
+   * @return true if the state was there and has been deleted
+   */
+  public static boolean deleteBlockScannerState(File storageDir,
+      String bpid) {
+    final File bpDir = new File(new File(storageDir,
+        Storage.STORAGE_DIR_CURRENT), bpid);
+    return new File(bpDir, BlockPoolSliceScanner.SCAN_STATE_FILE).delete();
+  }
+
+  /**
+   * Copy the block and meta files of a replica to another directory,
+   * and let the datanode serve the replica from the copies.
+   * The original files are left where they were.
+   * @param dn the datanode storing the replica
+   * @param b the block
+   * @param dir the directory to copy the files to
+   * @return the original block file
+   */
+  public static File copyReplicaTo(DataNode dn, ExtendedBlock b, File dir)
+      throws IOException {
+    ReplicaInfo replica = ((FSDataset)dn.data).fetchReplicaInfo(
+        b.getBlockPoolId(), b.getBlockId());
+    File blockFile = replica.getBlockFile();
+    dir.mkdirs();
+    for (File f : new File[] {blockFile, replica.getMetaFile()}) {
+      IOUtils.copyBytes(new FileInputStream(f),
+          new FileOutputStream(new File(dir, f.getName())), 4096, true);
+    }
+    replica.setDir(dir);
+    return blockFile;
+  }
 }
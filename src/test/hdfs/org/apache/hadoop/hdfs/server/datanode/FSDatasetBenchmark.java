@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.hadoop.hdfs.util.ChunkedChecksum;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Measures the rate of replica writes and reads through the
+ * {@link FSDatasetInterface} of a datanode by several threads at once.
+ *
+ * Every thread creates, writes and finalizes its own blocks, then reads
+ * them back, so the threads only contend on the locks of the dataset
+ * and on the disks.
+ *
+ * Usage: FSDatasetBenchmark [-threads N] [-blocks N] [-size BYTES]
+ */
+public class FSDatasetBenchmark {
+  static final int BYTES_PER_CHECKSUM = 512;
+  private static final long GENERATION_STAMP = 1000L;
+
+  /**
+   * Create an RBW replica of the block, write the data and its
+   * checksums to the replica and finalize it.
+   */
+  static void writeBlock(FSDatasetInterface dataset, ExtendedBlock b,
+      byte[] data) throws IOException {
+    final DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_CRC32, BYTES_PER_CHECKSUM);
+    final ChunkedChecksum sums = new ChunkedChecksum(checksum);
+    final byte[] sumBuf = new byte[((data.length - 1) / BYTES_PER_CHECKSUM
+        + 1) * sums.getChecksumSize()];
+    sums.calculate(data, 0, data.length, sumBuf, 0);
+
+    b.setNumBytes(0);
+    final ReplicaInPipelineInterface replica = dataset.createRbw(b);
+    final BlockWriteStreams streams = replica.createStreams(true,
+        BYTES_PER_CHECKSUM, sums.getChecksumSize());
+    try {
+      DataOutputStream checksumOut = new DataOutputStream(
+          streams.checksumOut);
+      BlockMetadataHeader.writeHeader(checksumOut, checksum);
+      checksumOut.write(sumBuf);
+      checksumOut.flush();
+      streams.dataOut.write(data);
+    } finally {
+      streams.close();
+    }
+    replica.setNumBytes(data.length);
+    replica.setBytesAcked(data.length);
+    b.setNumBytes(data.length);
+    dataset.finalizeBlock(b);
+  }
+
+  /** Read a finalized replica and check its length. */
+  static void readBlock(FSDatasetInterface dataset, ExtendedBlock b,
+      byte[] buf) throws IOException {
+    final long length = dataset.getReplicaVisibleLength(b);
+    if (length != buf.length) {
+      throw new IOException("Unexpected length " + length + " of " + b);
+    }
+    final InputStream in = dataset.getBlockInputStream(b, 0);
+    try {
+      IOUtils.readFully(in, buf, 0, buf.length);
+    } finally {
+      in.close();
+    }
+  }
+
+  private final int numThreads;
+  private final int blocksPerThread;
+  private final int blockSize;
+
+  FSDatasetBenchmark(int numThreads, int blocksPerThread, int blockSize) {
+    this.numThreads = numThreads;
+    this.blocksPerThread = blocksPerThread;
+    this.blockSize = blockSize;
+  }
+
+  /** Run the operation on the blocks of each thread in parallel. */
+  private abstract class Phase {
+    abstract void run(FSDatasetInterface dataset, ExtendedBlock b,
+        byte[] buf) throws IOException;
+
+    /** @return operations per second */
+    double run(final FSDatasetInterface dataset,
+        final ExtendedBlock[][] blocks) throws Exception {
+      final List<Thread> threads = new ArrayList<Thread>();
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      for (int t = 0; t < blocks.length; t++) {
+        final ExtendedBlock[] mine = blocks[t];
+        threads.add(new Thread() {
+          @Override
+          public void run() {
+            final byte[] buf = new byte[blockSize];
+            try {
+              for (ExtendedBlock b : mine) {
+                Phase.this.run(dataset, b, buf);
+              }
+            } catch (Throwable e) {
+              synchronized (errors) {
+                errors.add(e);
+              }
+            }
+          }
+        });
+      }
+      final long start = System.nanoTime();
+      for (Thread t : threads) {
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      final long elapsed = System.nanoTime() - start;
+      if (!errors.isEmpty()) {
+        throw new IOException(errors.size() + " threads failed",
+            errors.get(0));
+      }
+      return (double)blocks.length * blocksPerThread * 1e9 / elapsed;
+    }
+  }
+
+  /** @return the write and the read rate in operations per second */
+  double[] run() throws Exception {
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(
+        new HdfsConfiguration()).numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      final String bpid = cluster.getNamesystem().getBlockPoolId();
+      final FSDatasetInterface dataset = cluster.getDataNodes().get(0).data;
+
+      final ExtendedBlock[][] blocks =
+        new ExtendedBlock[numThreads][blocksPerThread];
+      long blockId = 1;
+      for (int t = 0; t < numThreads; t++) {
+        for (int i = 0; i < blocksPerThread; i++) {
+          blocks[t][i] = new ExtendedBlock(bpid, blockId++, 0,
+              GENERATION_STAMP);
+        }
+      }
+
+      double writes = new Phase() {
+        @Override
+        void run(FSDatasetInterface dataset, ExtendedBlock b, byte[] buf)
+            throws IOException {
+          writeBlock(dataset, b, buf);
+        }
+      }.run(dataset, blocks);
+      double reads = new Phase() {
+        @Override
+        void run(FSDatasetInterface dataset, ExtendedBlock b, byte[] buf)
+            throws IOException {
+          readBlock(dataset, b, buf);
+        }
+      }.run(dataset, blocks);
+      return new double[] {writes, reads};
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  static void printUsage() {
+    System.err.println(
+        "Usage: FSDatasetBenchmark [-threads N] [-blocks N] [-size BYTES]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numThreads = 16;
+    int blocksPerThread = 200;
+    int blockSize = 64 << 10;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-threads")) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-blocks")) {
+        blocksPerThread = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-size")) {
+        blockSize = Integer.parseInt(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    System.out.println(String.format("%10s %20s %20s",
+        "threads", "writes/s", "reads/s"));
+    for (int threads = 1; threads <= numThreads; threads *= 2) {
+      double[] rates = new FSDatasetBenchmark(threads, blocksPerThread,
+          blockSize).run();
+      System.out.println(String.format("%10d %20.0f %20.0f",
+          threads, rates[0], rates[1]));
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures the heap used per replica in the {@link ReplicasMap} of a
+ * datanode, with the replicas spread over the subdir directories of a
+ * volume like the replicas loaded at datanode startup.
+ *
+ * Usage: ReplicasMapMemoryBenchmark [-replicas N]
+ */
+public class ReplicasMapMemoryBenchmark {
+  private static final String BPID = "BP-1234567890-127.0.0.1-1300000000000";
+  /** The number of subdirs per directory, as dfs.datanode.numblocks. */
+  private static final int SUBDIRS = 64;
+
+  private static long usedHeap() throws InterruptedException {
+    final Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: ReplicasMapMemoryBenchmark [-replicas N]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numReplicas = 1000000;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-replicas")) {
+        numReplicas = Integer.parseInt(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+
+    final File finalized = new File("/data/1/dfs/dn/current/" + BPID
+        + "/current/finalized");
+    final Random random = new Random(0L);
+    final long before = usedHeap();
+    final ReplicasMap map = new ReplicasMap(new Object());
+    for (int i = 0; i < numReplicas; i++) {
+      // a new File per replica, as File#getParentFile() at startup
+      final File dir = new File(finalized.getPath() + File.separator
+          + DataStorage.BLOCK_SUBDIR_PREFIX + random.nextInt(SUBDIRS)
+          + File.separator
+          + DataStorage.BLOCK_SUBDIR_PREFIX + random.nextInt(SUBDIRS));
+      map.add(BPID, new FinalizedReplica(random.nextLong(),
+          random.nextInt(128 << 20), 1000L + i, null, dir));
+    }
+    final long after = usedHeap();
+    System.out.println(String.format("%d replicas, %.1f bytes per replica",
+        map.size(BPID), (double)(after - before) / map.size(BPID)));
+  }
+}
@@ -22,8 +22,12 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
@@ -32,6 +36,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.DFSTestUtil;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.MiniDFSCluster.DataNodeProperties;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.ReplicaState;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
@@ -68,6 +73,136 @@ public class TestDatanodeRestart {
     }
   }
   
+  // test the dfs usage is kept or recomputed across DataNode restarts
+  @Test public void testDfsUsed() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, 1024L);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_KEY, 512);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).build();
+    cluster.waitActive();
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      final String TopDir = "/test";
+      DFSTestUtil util = new DFSTestUtil("TestDfsUsed", 5, 3, 8*1024);
+      util.createFiles(fs, TopDir, (short)1);
+      util.waitReplication(fs, TopDir, (short)1);
+      String bpid = cluster.getNamesystem().getBlockPoolId();
+      FSDataset data = (FSDataset)cluster.getDataNodes().get(0).data;
+      final long used = getFinalizedBytes(data, bpid);
+      Assert.assertTrue(used > 0);
+      Assert.assertEquals(used, data.getBlockPoolUsed(bpid));
+
+      // the usage saved at shutdown is used by the next startup
+      List<File> saved = new ArrayList<File>();
+      for (FSVolume volume : data.volumes.getVolumes()) {
+        saved.add(new File(volume.getBlockPoolSlice(bpid).getCurrentDir(),
+            FSDataset.DFS_USED_FILE));
+      }
+      DataNodeProperties dnprop = cluster.stopDataNode(0);
+      for (File f : saved) {
+        Assert.assertTrue(f.exists());
+      }
+      cluster.restartDataNode(dnprop);
+      cluster.waitActive();
+      data = (FSDataset)cluster.getDataNodes().get(0).data;
+      Assert.assertEquals(used, data.getBlockPoolUsed(bpid));
+      for (File f : saved) {
+        Assert.assertFalse(f.exists());
+      }
+
+      // without a saved usage, it is counted while loading the replicas
+      dnprop = cluster.stopDataNode(0);
+      for (File f : saved) {
+        Assert.assertTrue(f.delete());
+      }
+      cluster.restartDataNode(dnprop);
+      cluster.waitActive();
+      data = (FSDataset)cluster.getDataNodes().get(0).data;
+      Assert.assertEquals(used, data.getBlockPoolUsed(bpid));
+      util.checkFiles(fs, TopDir);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  // test the finalized replicas saved at shutdown are loaded at startup
+  @Test public void testReplicaCache() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, 1024L);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_KEY, 512);
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_NUMBLOCKS_KEY, 4);
+    conf.setBoolean(DFSConfigKeys.DFS_DATANODE_REPLICA_CACHE_ENABLED_KEY, true);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).build();
+    cluster.waitActive();
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      final String TopDir = "/test";
+      DFSTestUtil util = new DFSTestUtil("TestReplicaCache", 10, 3, 8*1024);
+      util.createFiles(fs, TopDir, (short)1);
+      util.waitReplication(fs, TopDir, (short)1);
+      String bpid = cluster.getNamesystem().getBlockPoolId();
+      FSDataset data = (FSDataset)cluster.getDataNodes().get(0).data;
+      final Map<Long, String> replicas = getReplicas(data, bpid);
+      final long used = data.getBlockPoolUsed(bpid);
+
+      List<File> saved = new ArrayList<File>();
+      List<File> savedUsed = new ArrayList<File>();
+      for (FSVolume volume : data.volumes.getVolumes()) {
+        File dir = volume.getBlockPoolSlice(bpid).getCurrentDir();
+        saved.add(new File(dir, FSDataset.REPLICA_CACHE_FILE));
+        savedUsed.add(new File(dir, FSDataset.DFS_USED_FILE));
+      }
+      DataNodeProperties dnprop = cluster.stopDataNode(0);
+      for (File f : saved) {
+        Assert.assertTrue(f.exists());
+      }
+      cluster.restartDataNode(dnprop);
+      cluster.waitActive();
+      data = (FSDataset)cluster.getDataNodes().get(0).data;
+      Assert.assertEquals(replicas, getReplicas(data, bpid));
+      Assert.assertEquals(used, data.getBlockPoolUsed(bpid));
+      for (File f : saved) {
+        Assert.assertFalse(f.exists());
+      }
+      util.checkFiles(fs, TopDir);
+
+      // the saved replicas are not used without the saved dfs usage
+      dnprop = cluster.stopDataNode(0);
+      for (File f : savedUsed) {
+        Assert.assertTrue(f.delete());
+      }
+      cluster.restartDataNode(dnprop);
+      cluster.waitActive();
+      data = (FSDataset)cluster.getDataNodes().get(0).data;
+      Assert.assertEquals(replicas, getReplicas(data, bpid));
+      Assert.assertEquals(used, data.getBlockPoolUsed(bpid));
+      for (File f : saved) {
+        Assert.assertFalse(f.exists());
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /** @return the block file path and length of the replicas by block id */
+  private static Map<Long, String> getReplicas(FSDataset data, String bpid) {
+    Map<Long, String> replicas = new HashMap<Long, String>();
+    for (ReplicaInfo r : data.volumeMap.replicas(bpid)) {
+      replicas.put(r.getBlockId(), r.getBlockFile() + " "
+          + r.getGenerationStamp() + " " + r.getNumBytes());
+    }
+    return replicas;
+  }
+
+  private static long getFinalizedBytes(FSDataset data, String bpid) {
+    long bytes = 0;
+    for (ReplicaInfo r : data.volumeMap.replicas(bpid)) {
+      Assert.assertEquals(ReplicaState.FINALIZED, r.getState());
+      bytes += r.getBlockFile().length() + r.getMetaFile().length();
+    }
+    return bytes;
+  }
+
   // test rbw replicas persist across DataNode restarts
   public void testRbwReplicas() throws IOException {
     Configuration conf = new HdfsConfiguration();
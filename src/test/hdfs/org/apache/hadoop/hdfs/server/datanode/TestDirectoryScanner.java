@@ -71,7 +71,7 @@ public class TestDirectoryScanner extends TestCase {
 
   /** Truncate a block file */
   private long truncateBlockFile() throws IOException {
-    synchronized (fds) {
+    synchronized (fds.volumeMap.getMutext()) {
       for (ReplicaInfo b : fds.volumeMap.replicas(bpid)) {
         File f = b.getBlockFile();
         File mf = b.getMetaFile();
@@ -90,7 +90,7 @@ public class TestDirectoryScanner extends TestCase {
 
   /** Delete a block file */
   private long deleteBlockFile() {
-    synchronized(fds) {
+    synchronized(fds.volumeMap.getMutext()) {
       for (ReplicaInfo b : fds.volumeMap.replicas(bpid)) {
         File f = b.getBlockFile();
         File mf = b.getMetaFile();
@@ -106,7 +106,7 @@ public class TestDirectoryScanner extends TestCase {
 
   /** Delete block meta file */
   private long deleteMetaFile() {
-    synchronized(fds) {
+    synchronized(fds.volumeMap.getMutext()) {
       for (ReplicaInfo b : fds.volumeMap.replicas(bpid)) {
         File file = b.getMetaFile();
         // Delete a metadata file
@@ -344,6 +344,78 @@ public class TestDirectoryScanner extends TestCase {
     }
   }
 
+  public void testIncrementalScan() throws Exception {
+    Configuration conf = new HdfsConfiguration(CONF);
+    conf.setBoolean(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_INCREMENTAL_KEY,
+        true);
+    cluster = new MiniDFSCluster.Builder(conf).build();
+    try {
+      cluster.waitActive();
+      bpid = cluster.getNamesystem().getBlockPoolId();
+      fds = (FSDataset) cluster.getDataNodes().get(0).getFSDataset();
+      scanner = new DirectoryScanner(fds, conf);
+      scanner.setRetainDiffs(true);
+
+      // Add files with 100 blocks
+      createFile("/tmp/t1", 10000);
+      long totalBlocks = 100;
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+
+      // Directories modified just before they were listed are listed again
+      Thread.sleep(2500);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+      assertTrue(scanner.stats.get(bpid).listedDirs > 0);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+      assertEquals(0, scanner.stats.get(bpid).listedDirs);
+
+      // A new scanner starts with the saved digests
+      scanner.shutdown();
+      scanner = new DirectoryScanner(fds, conf);
+      scanner.setRetainDiffs(true);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+      assertEquals(0, scanner.stats.get(bpid).listedDirs);
+
+      // block metafile is missing
+      long blockId = deleteMetaFile();
+      scan(totalBlocks, 1, 1, 0, 0, 1);
+      verifyGenStamp(blockId, GenerationStamp.GRANDFATHER_GENERATION_STAMP);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+
+      // block file is missing
+      blockId = deleteBlockFile();
+      scan(totalBlocks, 1, 0, 1, 0, 0);
+      totalBlocks--;
+      verifyDeletion(blockId);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+
+      // A block file exists for which there is no metafile and
+      // a block in memory
+      blockId = createBlockFile();
+      totalBlocks++;
+      scan(totalBlocks, 1, 1, 0, 1, 0);
+      verifyAddition(blockId, GenerationStamp.GRANDFATHER_GENERATION_STAMP, 0);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+
+      // A metafile exists for which there is no block file and
+      // a block in memory
+      blockId = createMetaFile();
+      scan(totalBlocks+1, 1, 0, 1, 1, 0);
+      assertTrue(!new File(getMetaFile(blockId)).exists());
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+
+      // A block file and metafile exists for which there is no block in
+      // memory
+      blockId = createBlockMetaFile();
+      totalBlocks++;
+      scan(totalBlocks, 1, 0, 0, 1, 0);
+      verifyAddition(blockId, DEFAULT_GEN_STAMP, 0);
+      scan(totalBlocks, 0, 0, 0, 0, 0);
+    } finally {
+      scanner.shutdown();
+      cluster.shutdown();
+    }
+  }
+
   private void verifyAddition(long blockId, long genStamp, long size) {
     final ReplicaInfo replicainfo;
     replicainfo = fds.fetchReplicaInfo(bpid, blockId);
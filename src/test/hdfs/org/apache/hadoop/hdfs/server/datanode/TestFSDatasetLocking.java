@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.common.HdfsConstants.ReplicaState;
+import org.junit.Test;
+
+/**
+ * Test that replicas of different blocks are written in parallel
+ * while block reports are generated, and that a disk check started
+ * by a replica operation does not deadlock on the dataset lock.
+ */
+public class TestFSDatasetLocking {
+  static final int NUM_THREADS = 8;
+  static final int BLOCKS_PER_THREAD = 25;
+  static final int BLOCK_SIZE = 3 * FSDatasetBenchmark.BYTES_PER_CHECKSUM
+      + 100;
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(
+        new HdfsConfiguration()).numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      final String bpid = cluster.getNamesystem().getBlockPoolId();
+      final FSDataset dataset = (FSDataset)cluster.getDataNodes().get(0).data;
+
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      final List<Thread> writers = new ArrayList<Thread>();
+      for (int t = 0; t < NUM_THREADS; t++) {
+        final long firstId = 1 + t * BLOCKS_PER_THREAD;
+        writers.add(new Thread() {
+          @Override
+          public void run() {
+            final byte[] buf = new byte[BLOCK_SIZE];
+            try {
+              for (long id = firstId; id < firstId + BLOCKS_PER_THREAD; id++) {
+                ExtendedBlock b = new ExtendedBlock(bpid, id, 0, 1000L);
+                FSDatasetBenchmark.writeBlock(dataset, b, buf);
+                FSDatasetBenchmark.readBlock(dataset, b, buf);
+              }
+            } catch (Throwable e) {
+              synchronized (errors) {
+                errors.add(e);
+              }
+            }
+          }
+        });
+      }
+      for (Thread t : writers) {
+        t.start();
+      }
+      // block reports iterate the replicas map while it changes
+      boolean running = true;
+      while (running) {
+        dataset.getBlockReport(bpid);
+        running = false;
+        for (Thread t : writers) {
+          running |= t.isAlive();
+        }
+      }
+      for (Thread t : writers) {
+        t.join();
+      }
+      assertTrue("writers failed: " + errors, errors.isEmpty());
+
+      List<Block> finalized = dataset.getFinalizedBlocks(bpid);
+      assertEquals(NUM_THREADS * BLOCKS_PER_THREAD, finalized.size());
+      for (Block b : finalized) {
+        ReplicaInfo r = dataset.fetchReplicaInfo(bpid, b.getBlockId());
+        assertEquals(ReplicaState.FINALIZED, r.getState());
+        assertEquals(BLOCK_SIZE, r.getNumBytes());
+        assertTrue(r.getBlockFile().exists());
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Remove the volume of a replica, and check that looking up its file
+   * fails, removing the failed volume, instead of hanging.
+   */
+  @Test
+  public void testGetBlockFileOnFailedVolume() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    // a data-node has two volumes, one of them may fail
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_FAILED_VOLUMES_TOLERATED_KEY, 1);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    File volumeDir = null;
+    try {
+      cluster.waitActive();
+      final String bpid = cluster.getNamesystem().getBlockPoolId();
+      final FSDataset dataset = (FSDataset)cluster.getDataNodes().get(0).data;
+      final ExtendedBlock b = new ExtendedBlock(bpid, 1, 0, 1000L);
+      FSDatasetBenchmark.writeBlock(dataset, b, new byte[BLOCK_SIZE]);
+      assertEquals(2, dataset.volumes.getVolumes().size());
+
+      // replace the volume directory with a file, so that it cannot be
+      // recreated and the disk check finds the volume failed
+      volumeDir = dataset.fetchReplicaInfo(bpid, 1).getVolume()
+          .getCurrentDir();
+      assertTrue(FileUtil.fullyDelete(volumeDir));
+      assertTrue(volumeDir.createNewFile());
+
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      Thread reader = new Thread() {
+        @Override
+        public void run() {
+          try {
+            dataset.getBlockFile(b);
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      };
+      reader.start();
+      reader.join(60000);
+      assertFalse("getBlockFile hangs", reader.isAlive());
+      assertEquals(1, errors.size());
+      assertTrue(errors.toString(), errors.get(0) instanceof IOException);
+      // the replicas of the failed volume are removed
+      assertEquals(1, dataset.volumes.getVolumes().size());
+      assertNull(dataset.fetchReplicaInfo(bpid, 1));
+    } finally {
+      cluster.shutdown();
+      if (volumeDir != null) {
+        volumeDir.delete();
+      }
+    }
+  }
+}
@@ -17,6 +17,13 @@
  */
 package org.apache.hadoop.hdfs.server.datanode;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.hadoop.hdfs.protocol.Block;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
@@ -103,4 +110,83 @@ public class TestReplicasMap {
     map.add(bpid, new FinalizedReplica(block, null, null));
     assertNotNull(map.remove(bpid, block.getBlockId()));
   }
+
+  @Test
+  public void testManyReplicas() {
+    final ReplicasMap m = new ReplicasMap(new Object());
+    final String pool = "BP-MANY";
+    final int n = 10000;
+    for (long id = 1; id <= n; id++) {
+      assertNull(m.add(pool, new FinalizedReplica(id, id, 1000L, null, null)));
+    }
+    assertEquals(n, m.size(pool));
+    for (long id = 1; id <= n; id++) {
+      assertEquals(id, m.get(pool, id).getNumBytes());
+    }
+
+    // remove the replicas of even block ids while iterating
+    int count = 0;
+    for (Iterator<ReplicaInfo> i = m.replicas(pool).iterator(); i.hasNext(); ) {
+      count++;
+      if (i.next().getBlockId() % 2 == 0) {
+        i.remove();
+      }
+    }
+    assertEquals(n, count);
+    assertEquals(n / 2, m.size(pool));
+    for (long id = 1; id <= n; id++) {
+      assertEquals(id % 2 == 1, m.get(pool, id) != null);
+    }
+  }
+
+  /**
+   * Copying the replicas in batches copies each of them once,
+   * with no batch much larger than asked for.
+   */
+  @Test
+  public void testCopyReplicas() {
+    final ReplicasMap m = new ReplicasMap(new Object());
+    final String pool = "BP-BATCH";
+    final int n = 10000;
+    for (long id = 1; id <= n; id++) {
+      m.add(pool, new FinalizedReplica(id, id, 1000L, null, null));
+    }
+    final Set<Long> copied = new HashSet<Long>();
+    final List<ReplicaInfo> batch = new ArrayList<ReplicaInfo>();
+    int numBatches = 0;
+    for (int position = 0; position >= 0; numBatches++) {
+      batch.clear();
+      position = m.copyReplicas(pool, position, 100, batch);
+      assertTrue(batch.size() < 200);
+      for (ReplicaInfo r : batch) {
+        assertTrue(copied.add(r.getBlockId()));
+      }
+    }
+    assertEquals(n, copied.size());
+    assertTrue(numBatches >= n / 200);
+    assertEquals(-1, m.copyReplicas("BP-NONE", 0, 100, batch));
+  }
+
+  /**
+   * A replica keeps its directory as a base directory and subdir numbers.
+   */
+  @Test
+  public void testReplicaDir() {
+    final File base = new File("/data/1/current/BP-1/current/finalized");
+    final File[] dirs = {
+        base,
+        new File(base, "subdir3"),
+        new File(base, "subdir3" + File.separator + "subdir63"),
+        new File(base, "subdir07"),
+        new File("/data/1/current/BP-1/current/rbw"),
+    };
+    for (File dir : dirs) {
+      ReplicaInfo r = new FinalizedReplica(block, null, dir);
+      assertEquals(dir, r.getDir());
+      assertEquals(new File(dir, block.getBlockName()), r.getBlockFile());
+      r.setDir(base);
+      assertEquals(base, r.getDir());
+    }
+    assertNull(new FinalizedReplica(block, null, null).getDir());
+  }
 }
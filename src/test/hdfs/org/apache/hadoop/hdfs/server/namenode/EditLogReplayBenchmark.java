@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.DeprecatedUTF8;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.Storage;
+import org.apache.hadoop.io.ArrayWritable;
+
+/**
+ * Measures the rate at which edits are replayed, in operations per second,
+ * for edits with numeric fields in binary, as written since layout version
+ * -33, and for edits with numeric fields as strings, as written before.
+ *
+ * The benchmark writes the same operations in each encoding with
+ * {@link CreateEditsLog}: a create and a close of each of the given number
+ * of files, each with the given number of blocks, and a directory for every
+ * 100 files. It then loads each edits file into an empty namespace.
+ *
+ * Usage: EditLogReplayBenchmark [-files N] [-blocksPerFile B] [-dir DIR]
+ */
+public class EditLogReplayBenchmark {
+  /** The last layout version with numeric fields written as strings */
+  static final int TEXT_LAYOUT_VERSION = -32;
+  private static final short REPLICATION = 3;
+
+  private final Configuration conf;
+  private final int numFiles;
+  private final int blocksPerFile;
+
+  EditLogReplayBenchmark(Configuration conf, int numFiles,
+      int blocksPerFile) {
+    this.conf = conf;
+    this.numFiles = numFiles;
+    this.blocksPerFile = blocksPerFile;
+  }
+
+  /**
+   * Write the edits to the current directory under the given directory.
+   * @param text whether to write numeric fields as strings
+   * @return the edits file
+   */
+  File writeEdits(File dir, boolean text) throws IOException {
+    new File(dir, Storage.STORAGE_DIR_CURRENT).mkdirs();
+    FSImage fsImage = new FSImage(dir.getAbsoluteFile().toURI());
+    File editsFile = fsImage.getStorage().getFsEditName();
+    FSEditLog editLog = text ?
+        new TextEditLog(fsImage.getStorage()) : fsImage.getEditLog();
+    editLog.createEditLogFile(editsFile);
+    editLog.open();
+    CreateEditsLog.addFiles(editLog, numFiles, REPLICATION, blocksPerFile, 1,
+        new FileNameGenerator(CreateEditsLog.BASE_PATH, 100));
+    editLog.logSync();
+    editLog.close();
+    if (text) {
+      RandomAccessFile raf = new RandomAccessFile(editsFile, "rw");
+      try {
+        raf.writeInt(TEXT_LAYOUT_VERSION);
+      } finally {
+        raf.close();
+      }
+    }
+    return editsFile;
+  }
+
+  /** @return the operations replayed per second */
+  double replay(File editsFile, int numOps) throws IOException {
+    FSNamesystem fsn = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      long start = System.nanoTime();
+      new FSEditLogLoader(fsn).loadFSEdits(
+          new EditLogFileInputStream(editsFile), true);
+      long elapsed = System.nanoTime() - start;
+      return numOps * 1e9 / elapsed;
+    } finally {
+      fsn.close();
+    }
+  }
+
+  /**
+   * An edit log that writes the records {@link CreateEditsLog} writes
+   * as they were written before layout version -33.
+   */
+  static class TextEditLog extends FSEditLog {
+    TextEditLog(NNStorage storage) {
+      super(storage);
+    }
+
+    @Override
+    public void logOpenFile(String path, INodeFileUnderConstruction newNode) {
+      logEdit(FSEditLogOpCodes.OP_ADD,
+          new ArrayWritable(DeprecatedUTF8.class, fields(path, newNode)),
+          new ArrayWritable(Block.class, newNode.getBlocks()),
+          newNode.getPermissionStatus(),
+          new DeprecatedUTF8(newNode.getClientName()),
+          new DeprecatedUTF8(newNode.getClientMachine()));
+    }
+
+    @Override
+    public void logCloseFile(String path, INodeFile newNode) {
+      logEdit(FSEditLogOpCodes.OP_CLOSE,
+          new ArrayWritable(DeprecatedUTF8.class, fields(path, newNode)),
+          new ArrayWritable(Block.class, newNode.getBlocks()),
+          newNode.getPermissionStatus());
+    }
+
+    @Override
+    public void logMkDir(String path, INode newNode) {
+      DeprecatedUTF8 info[] = new DeprecatedUTF8[] {
+          new DeprecatedUTF8(path),
+          new DeprecatedUTF8(Long.toString(newNode.getModificationTime())),
+          new DeprecatedUTF8(Long.toString(newNode.getAccessTime()))};
+      logEdit(FSEditLogOpCodes.OP_MKDIR,
+          new ArrayWritable(DeprecatedUTF8.class, info),
+          newNode.getPermissionStatus());
+    }
+
+    private static DeprecatedUTF8[] fields(String path, INodeFile node) {
+      return new DeprecatedUTF8[] {
+          new DeprecatedUTF8(path),
+          new DeprecatedUTF8(Short.toString(node.getReplication())),
+          new DeprecatedUTF8(Long.toString(node.getModificationTime())),
+          new DeprecatedUTF8(Long.toString(node.getAccessTime())),
+          new DeprecatedUTF8(Long.toString(node.getPreferredBlockSize()))};
+    }
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: EditLogReplayBenchmark"
+        + " [-files N] [-blocksPerFile B] [-dir DIR]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numFiles = 100000;
+    int blocksPerFile = 2;
+    File dir = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-files")) {
+        numFiles = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-blocksPerFile")) {
+        blocksPerFile = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-dir")) {
+        dir = new File(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    if (dir == null) {
+      dir = new File(System.getProperty("java.io.tmpdir"),
+          "EditLogReplayBenchmark");
+    }
+
+    Configuration conf = new HdfsConfiguration();
+    EditLogReplayBenchmark bench = new EditLogReplayBenchmark(conf,
+        numFiles, blocksPerFile);
+    try {
+      File binary = bench.writeEdits(new File(dir, "binary"), false);
+      File text = bench.writeEdits(new File(dir, "text"), true);
+      // a directory for every 100 files, the base directory,
+      // and a create and a close of each file
+      int numOps = (numFiles + 99) / 100 + 1 + 2 * numFiles;
+      System.out.println("files = " + numFiles + ", blocksPerFile = "
+          + blocksPerFile + ", operations = " + numOps);
+
+      // warm up the JIT with a replay of each
+      bench.replay(binary, numOps);
+      bench.replay(text, numOps);
+      print("text", text, bench.replay(text, numOps));
+      print("binary", binary, bench.replay(binary, numOps));
+    } finally {
+      FileUtil.fullyDelete(dir);
+    }
+  }
+
+  private static void print(String encoding, File editsFile,
+      double opsPerSecond) {
+    System.out.println(String.format(
+        "encoding = %-6s: %10.0f operations per second, edits size = %d",
+        encoding, opsPerSecond, editsFile.length()));
+  }
+}
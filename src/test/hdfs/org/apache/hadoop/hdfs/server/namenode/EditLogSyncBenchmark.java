@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.io.LongWritable;
+
+/**
+ * Measures the latency of the syncs of an edits file, which is what the
+ * Syncs metric of the name-node reports, for a given preallocation size.
+ *
+ * The benchmark writes the given number of batches of edits to an
+ * {@link EditLogFileOutputStream}, and syncs each batch as
+ * {@link FSEditLog#logSync()} does. It reports the average and maximum
+ * time of a sync. Comparing the default preallocation size with a size
+ * close to the batch size, which extends the file on every sync, shows
+ * the cost of the syncs that also update the file size.
+ *
+ * Usage: EditLogSyncBenchmark [-syncs N] [-editsPerSync E]
+ *                             [-preallocate BYTES] [-dir DIR]
+ */
+public class EditLogSyncBenchmark {
+  private final int numSyncs;
+  private final int editsPerSync;
+  private final int preallocateSize;
+
+  EditLogSyncBenchmark(int numSyncs, int editsPerSync, int preallocateSize) {
+    this.numSyncs = numSyncs;
+    this.editsPerSync = editsPerSync;
+    this.preallocateSize = preallocateSize;
+  }
+
+  /**
+   * Write and sync the edits to a new edits file in the given directory.
+   * @return the latency of each sync in nanoseconds
+   */
+  long[] run(File dir) throws IOException {
+    dir.mkdirs();
+    File editsFile = new File(dir, "edits");
+    long[] latencies = new long[numSyncs];
+    EditLogFileOutputStream out =
+      new EditLogFileOutputStream(editsFile, 512*1024, preallocateSize);
+    try {
+      out.create();
+      long genstamp = 0;
+      for (int i = 0; i < numSyncs; i++) {
+        for (int j = 0; j < editsPerSync; j++) {
+          out.write(FSEditLogOpCodes.OP_SET_GENSTAMP.getOpCode(),
+              new LongWritable(++genstamp));
+        }
+        out.setReadyToFlush();
+        long start = System.nanoTime();
+        out.flush();
+        latencies[i] = System.nanoTime() - start;
+      }
+    } finally {
+      out.close();
+      editsFile.delete();
+    }
+    return latencies;
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: EditLogSyncBenchmark [-syncs N]"
+        + " [-editsPerSync E] [-preallocate BYTES] [-dir DIR]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numSyncs = 10000;
+    int editsPerSync = 10;
+    int preallocateSize =
+      DFSConfigKeys.DFS_NAMENODE_EDITS_PREALLOCATE_SIZE_DEFAULT;
+    File dir = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-syncs")) {
+        numSyncs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-editsPerSync")) {
+        editsPerSync = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-preallocate")) {
+        preallocateSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-dir")) {
+        dir = new File(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    if (dir == null) {
+      dir = new File(System.getProperty("java.io.tmpdir"),
+          "EditLogSyncBenchmark");
+    }
+
+    EditLogSyncBenchmark bench =
+      new EditLogSyncBenchmark(numSyncs, editsPerSync, preallocateSize);
+    long[] latencies = bench.run(dir);
+    long total = 0;
+    long max = 0;
+    for (long l : latencies) {
+      total += l;
+      max = Math.max(max, l);
+    }
+    System.out.println(String.format("syncs = %d, editsPerSync = %d,"
+        + " preallocate = %d: avg sync = %.1f us, max sync = %.1f us",
+        numSyncs, editsPerSync, preallocateSize,
+        total / 1e3 / numSyncs, max / 1e3));
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Measures the heap used by the in-memory namespace per inode.
+ *
+ * The benchmark builds a synthetic namespace of the given number of files,
+ * each with the given number of blocks, in directories of the given size,
+ * the same way the image loader does: inodes are added to their parent
+ * directories in sorted order. It then reports the heap taken by the tree
+ * per inode, with and without the blocks. Finally it saves the namespace
+ * with blocks to an image file, and reports the heap taken per inode by
+ * a name-system loaded from that image, which includes the blocks map.
+ *
+ * Usage: INodeMemoryBenchmark [-files N] [-filesPerDir P] [-blocksPerFile B]
+ *                             [-dir DIR]
+ *
+ * Run it with a heap large enough to hold the namespace, and with
+ * the same JVM options as the NameNode, since the result depends on
+ * the object layout of the JVM.
+ */
+public class INodeMemoryBenchmark {
+  private static final short REPLICATION = 3;
+  private static final long BLOCK_SIZE = 64*1024*1024;
+
+  private final int numFiles;
+  private final int filesPerDir;
+  private final int blocksPerFile;
+  private int numDirs = 0;
+
+  INodeMemoryBenchmark(int numFiles, int filesPerDir, int blocksPerFile) {
+    this.numFiles = numFiles;
+    this.filesPerDir = filesPerDir;
+    this.blocksPerFile = blocksPerFile;
+  }
+
+  /**
+   * Build the namespace.
+   * @param withBlocks whether to attach blocks to the files
+   */
+  INodeDirectory buildNamespace(boolean withBlocks) {
+    PermissionStatus perm = new PermissionStatus("user", "group",
+        new FsPermission((short)0755));
+    long now = System.currentTimeMillis();
+    INodeDirectoryWithQuota root = new INodeDirectoryWithQuota(
+        INodeDirectory.ROOT_NAME, perm, Integer.MAX_VALUE, -1);
+    numDirs = 1;
+    INodeDirectory dir = null;
+    long blockId = 0;
+    for (int i = 0; i < numFiles; i++) {
+      if (i % filesPerDir == 0) {
+        dir = new INodeDirectory(
+            DFSUtil.string2Bytes(String.format("dir%08d", numDirs)), perm, now);
+        root.addChild(dir, false, false);
+        numDirs++;
+      }
+      INodeFile file = new INodeFile(perm,
+          withBlocks ? blocksPerFile : 0, REPLICATION, now, now, BLOCK_SIZE);
+      file.setLocalName(String.format("part-%08d", i));
+      for (int j = 0; withBlocks && j < blocksPerFile; j++) {
+        BlockInfo b = new BlockInfo(
+            new Block(++blockId, BLOCK_SIZE, 1001L), REPLICATION);
+        b.setINode(file);
+        file.setBlock(j, b);
+      }
+      dir.addChild(file, false, false);
+    }
+    root.trimChildrenToSize();
+    return root;
+  }
+
+  static long usedHeap() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /**
+   * @return bytes of heap per inode taken by the namespace
+   */
+  double measure(boolean withBlocks) throws InterruptedException {
+    long before = usedHeap();
+    INodeDirectory root = buildNamespace(withBlocks);
+    long after = usedHeap();
+    // keep the tree reachable until it has been measured
+    if (root.getChildren().isEmpty() && numFiles > 0) {
+      throw new IllegalStateException("empty namespace");
+    }
+    return (double)(after - before) / (numFiles + numDirs);
+  }
+
+  /**
+   * Save the namespace with blocks to an image file.
+   */
+  void saveImage(Configuration conf, File imageFile) throws IOException {
+    FSNamesystem fsn = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      FSDirectory fsDir = fsn.dir;
+      for (INode dir : buildNamespace(true).getChildren()) {
+        fsDir.addToParent(dir.getLocalNameBytes(), fsDir.rootDir, dir, false);
+      }
+      fsDir.updateCountForINodeWithQuota();
+      new FSImageFormat.Saver(conf).save(imageFile, fsn,
+          FSImageCompression.createCompression(conf));
+    } finally {
+      fsn.close();
+    }
+  }
+
+  /**
+   * @return bytes of heap per inode taken by a name-system
+   *         loaded from the given image
+   */
+  double measureLoad(Configuration conf, File imageFile)
+      throws IOException, InterruptedException {
+    long before = usedHeap();
+    FSNamesystem fsn = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      new FSImageFormat.Loader(conf, fsn).load(imageFile);
+      // as after loading the edits
+      fsn.dir.updateCountForINodeWithQuota();
+      long after = usedHeap();
+      if (fsn.dir.rootDir.numItemsInTree() != numFiles + numDirs) {
+        throw new IllegalStateException("loaded "
+            + fsn.dir.rootDir.numItemsInTree() + " inodes, expected "
+            + (numFiles + numDirs));
+      }
+      return (double)(after - before) / (numFiles + numDirs);
+    } finally {
+      fsn.close();
+    }
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: INodeMemoryBenchmark"
+        + " [-files N] [-filesPerDir P] [-blocksPerFile B] [-dir DIR]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numFiles = 1000000;
+    int filesPerDir = 100;
+    int blocksPerFile = 1;
+    File dir = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-files")) {
+        numFiles = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-filesPerDir")) {
+        filesPerDir = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-blocksPerFile")) {
+        blocksPerFile = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-dir")) {
+        dir = new File(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    INodeMemoryBenchmark bench =
+      new INodeMemoryBenchmark(numFiles, filesPerDir, blocksPerFile);
+    double inodesOnly = bench.measure(false);
+    double withBlocks = bench.measure(true);
+
+    if (dir == null) {
+      dir = new File(System.getProperty("java.io.tmpdir"),
+          "INodeMemoryBenchmark");
+    }
+    dir.mkdirs();
+    File imageFile = new File(dir, "fsimage");
+    Configuration conf = new HdfsConfiguration();
+    double loaded;
+    try {
+      bench.saveImage(conf, imageFile);
+      loaded = bench.measureLoad(conf, imageFile);
+    } finally {
+      imageFile.delete();
+    }
+    System.out.println("files = " + numFiles
+        + ", directories = " + bench.numDirs
+        + ", blocks per file = " + blocksPerFile);
+    System.out.println(String.format(
+        "bytes/inode without blocks = %.1f", inodesOnly));
+    System.out.println(String.format(
+        "bytes/inode with blocks = %.1f", withBlocks));
+    System.out.println(String.format(
+        "bytes/inode loaded from image = %.1f", loaded));
+  }
+}
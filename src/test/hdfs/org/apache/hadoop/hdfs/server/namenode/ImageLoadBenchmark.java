@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Measures the time to load an image, in seconds per million inodes.
+ *
+ * The benchmark builds a synthetic namespace of the given number of files,
+ * each with the given number of blocks, in directories of the given size,
+ * saves it to an image file, and then loads the image with one thread and
+ * with the given number of loader threads.
+ *
+ * Usage: ImageLoadBenchmark [-files N] [-filesPerDir P] [-blocksPerFile B]
+ *                           [-threads T] [-compress] [-image FILE]
+ *
+ * Run it with a heap large enough to hold two copies of the namespace.
+ */
+public class ImageLoadBenchmark {
+  private static final short REPLICATION = 3;
+  private static final long BLOCK_SIZE = 64*1024*1024;
+
+  private final Configuration conf;
+  private final int numFiles;
+  private final int filesPerDir;
+  private final int blocksPerFile;
+
+  ImageLoadBenchmark(Configuration conf, int numFiles, int filesPerDir,
+      int blocksPerFile) {
+    this.conf = conf;
+    this.numFiles = numFiles;
+    this.filesPerDir = filesPerDir;
+    this.blocksPerFile = blocksPerFile;
+  }
+
+  /** Build the namespace and save it to the image file. */
+  void saveImage(File imageFile) throws IOException {
+    FSNamesystem fsn = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      PermissionStatus perm = new PermissionStatus("user", "group",
+          new FsPermission((short)0755));
+      long now = System.currentTimeMillis();
+      INodeDirectory dir = null;
+      long blockId = 0;
+      for (int i = 0; i < numFiles; i++) {
+        if (i % filesPerDir == 0) {
+          dir = new INodeDirectory(perm, now);
+          fsn.dir.addToParent(DFSUtil.string2Bytes(
+              String.format("dir%08d", i / filesPerDir)),
+              fsn.dir.rootDir, dir, false);
+        }
+        INodeFile file = new INodeFile(perm, blocksPerFile, REPLICATION,
+            now, now, BLOCK_SIZE);
+        for (int j = 0; j < blocksPerFile; j++) {
+          file.setBlock(j, new BlockInfo(
+              new Block(++blockId, BLOCK_SIZE, 1001L), REPLICATION));
+        }
+        fsn.dir.addToParent(DFSUtil.string2Bytes(
+            String.format("part-%08d", i)), dir, file, false);
+      }
+      FSImageFormat.Saver saver = new FSImageFormat.Saver(conf);
+      saver.save(imageFile, fsn, FSImageCompression.createCompression(conf));
+    } finally {
+      fsn.close();
+    }
+  }
+
+  /** @return the seconds to load the image per million inodes */
+  double loadImage(File imageFile, int numThreads) throws IOException {
+    Configuration loadConf = new Configuration(conf);
+    loadConf.setInt(DFSConfigKeys.DFS_IMAGE_LOAD_THREADS_KEY, numThreads);
+    FSNamesystem fsn = new FSNamesystem(new FSImage(loadConf), loadConf);
+    try {
+      long start = System.currentTimeMillis();
+      new FSImageFormat.Loader(loadConf, fsn).load(imageFile);
+      long elapsed = System.currentTimeMillis() - start;
+      return elapsed / 1000.0 * 1000000 / fsn.dir.rootDir.numItemsInTree();
+    } finally {
+      fsn.close();
+    }
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: ImageLoadBenchmark"
+        + " [-files N] [-filesPerDir P] [-blocksPerFile B]"
+        + " [-threads T] [-compress] [-image FILE]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numFiles = 1000000;
+    int filesPerDir = 1000;
+    int blocksPerFile = 2;
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    boolean compress = false;
+    File imageFile = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-compress")) {
+        compress = true;
+        continue;
+      }
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-files")) {
+        numFiles = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-filesPerDir")) {
+        filesPerDir = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-blocksPerFile")) {
+        blocksPerFile = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-threads")) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-image")) {
+        imageFile = new File(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    if (imageFile == null) {
+      imageFile = File.createTempFile("fsimage", null);
+    }
+    imageFile.deleteOnExit();
+
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_IMAGE_COMPRESS_KEY, compress);
+    ImageLoadBenchmark bench = new ImageLoadBenchmark(conf,
+        numFiles, filesPerDir, blocksPerFile);
+    bench.saveImage(imageFile);
+    System.out.println("files = " + numFiles + ", filesPerDir = "
+        + filesPerDir + ", blocksPerFile = " + blocksPerFile
+        + ", compress = " + compress
+        + ", image size = " + imageFile.length());
+
+    // warm up the JIT with a load of each
+    bench.loadImage(imageFile, 1);
+    bench.loadImage(imageFile, numThreads);
+    print(1, bench.loadImage(imageFile, 1));
+    if (numThreads > 1) {
+      print(numThreads, bench.loadImage(imageFile, numThreads));
+    }
+    imageFile.delete();
+  }
+
+  private static void print(int numThreads, double secondsPerMillion) {
+    System.out.println(String.format(
+        "threads = %3d: %6.2f seconds per million inodes",
+        numThreads, secondsPerMillion));
+  }
+}
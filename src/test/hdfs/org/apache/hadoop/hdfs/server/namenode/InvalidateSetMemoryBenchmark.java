@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Measures the heap and the GC time taken by the per datanode sets of
+ * blocks to be invalidated, as after a large delete: the blocks are added
+ * to the sets of the datanodes, which are then drained in batches the size
+ * of an invalidate command.
+ *
+ * The benchmark compares the HashSet and TreeSet of blocks used before
+ * with {@link CompactBlockSet}.
+ *
+ * Usage: InvalidateSetMemoryBenchmark [-blocks N] [-datanodes D] [-batch B]
+ *
+ * Run it with a heap large enough to hold the sets, and with the same
+ * JVM options as the NameNode.
+ */
+public class InvalidateSetMemoryBenchmark {
+  private static final long GEN_STAMP = 1001L;
+
+  private final int numBlocks;
+  private final int numDatanodes;
+  private final int batchSize;
+
+  InvalidateSetMemoryBenchmark(int numBlocks, int numDatanodes,
+      int batchSize) {
+    this.numBlocks = numBlocks;
+    this.numDatanodes = numDatanodes;
+    this.batchSize = batchSize;
+  }
+
+  /** The sets being measured. */
+  static abstract class Sets {
+    abstract void add(int datanode, Block b);
+    /** @return the number of blocks drained */
+    abstract int drain(int datanode, int max);
+  }
+
+  static class CollectionSets extends Sets {
+    private final List<Collection<Block>> sets =
+      new ArrayList<Collection<Block>>();
+
+    CollectionSets(int numDatanodes, boolean tree) {
+      for (int i = 0; i < numDatanodes; i++) {
+        sets.add(tree ? new TreeSet<Block>() : new HashSet<Block>());
+      }
+    }
+
+    void add(int datanode, Block b) {
+      sets.get(datanode).add(b);
+    }
+
+    int drain(int datanode, int max) {
+      final List<Block> drained = new ArrayList<Block>(max);
+      final Iterator<Block> i = sets.get(datanode).iterator();
+      for (; drained.size() < max && i.hasNext(); ) {
+        drained.add(i.next());
+        i.remove();
+      }
+      return drained.size();
+    }
+  }
+
+  static class CompactSets extends Sets {
+    private final List<CompactBlockSet> sets = new ArrayList<CompactBlockSet>();
+
+    CompactSets(int numDatanodes) {
+      for (int i = 0; i < numDatanodes; i++) {
+        sets.add(new CompactBlockSet());
+      }
+    }
+
+    void add(int datanode, Block b) {
+      sets.get(datanode).add(b);
+    }
+
+    int drain(int datanode, int max) {
+      return sets.get(datanode).poll(max).size();
+    }
+  }
+
+  static long gcTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean gc
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return time;
+  }
+
+  /**
+   * @return bytes of heap per block, and the GC and elapsed milliseconds
+   *         of adding and draining the blocks
+   */
+  double[] measure(Sets sets) throws InterruptedException {
+    final Random r = new Random(0);
+    final long before = INodeMemoryBenchmark.usedHeap();
+    final long gcStart = gcTime();
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < numBlocks; i++) {
+      // the deleted blocks are no longer in the blocks map, so the sets
+      // are all that keeps them
+      sets.add(r.nextInt(numDatanodes),
+          new Block(r.nextLong(), 0, GEN_STAMP));
+    }
+    final long fillTime = System.currentTimeMillis() - start;
+    final long fillGcTime = gcTime() - gcStart;
+    final long after = INodeMemoryBenchmark.usedHeap();
+
+    final long drainStart = System.currentTimeMillis();
+    final long drainGcStart = gcTime();
+    for (int remaining = numBlocks; remaining > 0; ) {
+      for (int d = 0; d < numDatanodes; d++) {
+        remaining -= sets.drain(d, batchSize);
+      }
+    }
+    return new double[] {
+        (double)(after - before) / numBlocks,
+        fillGcTime + gcTime() - drainGcStart,
+        fillTime + System.currentTimeMillis() - drainStart};
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: InvalidateSetMemoryBenchmark"
+        + " [-blocks N] [-datanodes D] [-batch B]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numBlocks = 10000000;
+    int numDatanodes = 100;
+    int batchSize = 1000;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-blocks")) {
+        numBlocks = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-datanodes")) {
+        numDatanodes = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-batch")) {
+        batchSize = Integer.parseInt(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    final InvalidateSetMemoryBenchmark bench =
+      new InvalidateSetMemoryBenchmark(numBlocks, numDatanodes, batchSize);
+    System.out.println("blocks = " + numBlocks
+        + ", datanodes = " + numDatanodes + ", batch = " + batchSize);
+    print("HashSet", bench.measure(new CollectionSets(numDatanodes, false)));
+    print("TreeSet", bench.measure(new CollectionSets(numDatanodes, true)));
+    print("compact", bench.measure(new CompactSets(numDatanodes)));
+  }
+
+  private static void print(String name, double[] result) {
+    System.out.println(String.format(
+        "%-8s bytes/block = %5.1f, gc = %6d ms, elapsed = %6d ms",
+        name, result[0], (long)result[1], (long)result[2]));
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSUtil;
+
+/**
+ * Measures the rate of child creations and deletions in a directory
+ * as a function of the directory size.
+ *
+ * For every size the benchmark fills a directory with that many files,
+ * and then alternately creates and deletes files with random names,
+ * which keeps the size of the directory constant.
+ * The rate of {@link INodeDirectory#addChild} and
+ * {@link INodeDirectory#removeChild} is compared with the rate of the same
+ * updates of a sorted {@link ArrayList}, which is how the children of
+ * a directory were stored before {@link INodeDirectory} switched to
+ * chunked storage for large directories.
+ *
+ * Usage: LargeDirectoryBenchmark [-sizes N1,N2,...] [-ops K]
+ */
+public class LargeDirectoryBenchmark {
+  private static final PermissionStatus PERM = new PermissionStatus(
+      "user", "group", new FsPermission((short)0644));
+
+  private final int numOps;
+  private final Random random = new Random();
+
+  LargeDirectoryBenchmark(int numOps) {
+    this.numOps = numOps;
+  }
+
+  private static INodeFile newFile(long id) {
+    INodeFile file = new INodeFile(PERM, 0, (short)3, 0L, 0L, 1024L);
+    file.setLocalName(String.format("file-%016x", id));
+    return file;
+  }
+
+  /** Fill the directory in name order, as the image loader does. */
+  private static INodeDirectory fillDirectory(int size) {
+    INodeDirectory dir = new INodeDirectory(
+        DFSUtil.string2Bytes("dir"), PERM, 0L);
+    for (int i = 0; i < size; i++) {
+      // ids spread evenly over the positive longs
+      dir.addChild(newFile(i * (Long.MAX_VALUE / size)), false, false);
+    }
+    return dir;
+  }
+
+  /** @return creations and deletions per second on the directory */
+  double runDirectory(int size) {
+    INodeDirectory dir = fillDirectory(size);
+    INodeFile[] created = new INodeFile[numOps];
+    for (int i = 0; i < numOps; i++) {
+      created[i] = newFile(random.nextLong() & Long.MAX_VALUE);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < numOps; i++) {
+      if (dir.addChild(created[i], false, false) != null) {
+        dir.removeChild(created[i]);
+      }
+    }
+    return 2.0 * numOps * 1e9 / (System.nanoTime() - start);
+  }
+
+  /** @return creations and deletions per second on a sorted array list */
+  double runArrayList(int size) {
+    List<INode> children = new ArrayList<INode>(
+        fillDirectory(size).getChildren());
+    INodeFile[] created = new INodeFile[numOps];
+    for (int i = 0; i < numOps; i++) {
+      created[i] = newFile(random.nextLong() & Long.MAX_VALUE);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < numOps; i++) {
+      int low = Collections.binarySearch(children, created[i].name);
+      if (low < 0) {
+        children.add(-low - 1, created[i]);
+        children.remove(-low - 1);
+      }
+    }
+    return 2.0 * numOps * 1e9 / (System.nanoTime() - start);
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: LargeDirectoryBenchmark"
+        + " [-sizes N1,N2,...] [-ops K]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String sizes = "1000,10000,100000,1000000";
+    int numOps = 100000;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-sizes")) {
+        sizes = args[++i];
+      } else if (args[i].equals("-ops")) {
+        numOps = Integer.parseInt(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    LargeDirectoryBenchmark bench = new LargeDirectoryBenchmark(numOps);
+    System.out.println(String.format("%12s %20s %20s",
+        "size", "directory ops/s", "array list ops/s"));
+    for (String s : sizes.split(",")) {
+      int size = Integer.parseInt(s.trim());
+      // run each once to warm up the JIT
+      bench.runDirectory(size);
+      bench.runArrayList(size);
+      System.out.println(String.format("%12d %20.0f %20.0f", size,
+          bench.runDirectory(size), bench.runArrayList(size)));
+    }
+  }
+}
@@ -46,6 +46,7 @@ import org.apache.hadoop.hdfs.server.protocol.DatanodeCommand;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeProtocol;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
+import org.apache.hadoop.hdfs.server.protocol.ReceivedDeletedBlockInfo;
 import org.apache.hadoop.hdfs.HdfsConfiguration;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.io.EnumSetWritable;
@@ -79,6 +80,13 @@ import org.apache.log4j.LogManager;
  * every G operations, which purges the name-node's user group cache.
  * By default the refresh is never called.</li>
  * <li>-keepResults do not clean up the name-space after execution.</li>
+ * <li>-saveNamespace save the name-space concurrently with the operations,
+ * once a quarter of them is executed, and report the time of the save
+ * and the longest operation.</li>
+ * <li>-pathLockStripes S run the name-node with S path lock stripes,
+ * so that the scaling of create, mkdirs and rename with the number of
+ * threads can be compared with and without path scoped locking.
+ * By default path locking is off.</li>
  * <li>-useExisting do not recreate the name-space, use existing data.</li>
  * </ol>
  * 
@@ -95,7 +103,8 @@ public class NNThroughputBenchmark {
   private static final Log LOG = LogFactory.getLog(NNThroughputBenchmark.class);
   private static final int BLOCK_SIZE = 16;
   private static final String GENERAL_OPTIONS_USAGE = 
-    "     [-keepResults] | [-logLevel L] | [-UGCacheRefreshCount G]";
+    "     [-keepResults] | [-logLevel L] | [-UGCacheRefreshCount G]" +
+    " | [-saveNamespace] | [-pathLockStripes S]";
 
   static Configuration config;
   static NameNode nameNode;
@@ -152,10 +161,13 @@ public class NNThroughputBenchmark {
     protected int  numOpsRequired = 0;    // number of operations requested
     protected int  numOpsExecuted = 0;    // number of operations executed
     protected long cumulativeTime = 0;    // sum of times for each op
+    protected long maxTime = 0;           // longest time of an op
     protected long elapsedTime = 0;       // time from start to finish
     protected boolean keepResults = false;// don't clean base directory on exit
     protected Level logLevel;             // logging level, ERROR by default
     protected int ugcRefreshCount = 0;    // user group cache refresh count
+    protected boolean saveNamespace = false; // save name-space during the ops
+    protected long saveNamespaceTime = -1;   // time of the save, -1 if none
 
     protected List<StatsDaemon> daemons;
 
@@ -221,6 +233,8 @@ public class NNThroughputBenchmark {
       try {
         numOpsExecuted = 0;
         cumulativeTime = 0;
+        maxTime = 0;
+        saveNamespaceTime = -1;
         if(numThreads < 1)
           return;
         int tIdx = 0; // thread index < nrThreads
@@ -246,10 +260,14 @@ public class NNThroughputBenchmark {
       } finally {
         while(isInPorgress()) {
           // try {Thread.sleep(500);} catch (InterruptedException e) {}
+          if(saveNamespace && saveNamespaceTime < 0
+              && getLocalNumOpsExecuted() >= numOpsRequired / 4)
+            saveNamespaceTime = timeSaveNamespace();
         }
         elapsedTime = System.currentTimeMillis() - start;
         for(StatsDaemon d : daemons) {
           incrementStats(d.localNumOpsExecuted, d.localCumulativeTime);
+          maxTime = Math.max(maxTime, d.localMaxTime);
           // System.out.println(d.toString() + ": ops Exec = " + d.localNumOpsExecuted);
         }
       }
@@ -262,6 +280,30 @@ public class NNThroughputBenchmark {
       return false;
     }
 
+    private int getLocalNumOpsExecuted() {
+      int ops = 0;
+      for(StatsDaemon d : daemons)
+        ops += d.localNumOpsExecuted;
+      return ops;
+    }
+
+    /**
+     * Save the name-space while the daemons execute operations.
+     * @return time of the save
+     */
+    private long timeSaveNamespace() {
+      LOG.info("Saving name-space after " + getLocalNumOpsExecuted()
+          + " " + getOpName() + "(s).");
+      long start = System.currentTimeMillis();
+      try {
+        nameNode.saveNamespace();
+      } catch(IOException e) {
+        LOG.error("saveNamespace failed: \n"
+            + StringUtils.stringifyException(e));
+      }
+      return System.currentTimeMillis() - start;
+    }
+
     void cleanUp() throws IOException {
       nameNode.setSafeMode(FSConstants.SafeModeAction.SAFEMODE_LEAVE);
       if(!keepResults)
@@ -321,6 +363,12 @@ public class NNThroughputBenchmark {
         args.remove(krIndex);
       }
 
+      int snIndex = args.indexOf("-saveNamespace");
+      saveNamespace = (snIndex >= 0);
+      if(saveNamespace) {
+        args.remove(snIndex);
+      }
+
       int llIndex = args.indexOf("-logLevel");
       if(llIndex >= 0) {
         if(args.size() <= llIndex + 1)
@@ -356,6 +404,9 @@ public class NNThroughputBenchmark {
       LOG.info("Elapsed Time: " + getElapsedTime());
       LOG.info(" Ops per sec: " + getOpsPerSecond());
       LOG.info("Average Time: " + getAverageTime());
+      LOG.info("    Max Time: " + maxTime);
+      if(saveNamespaceTime >= 0)
+        LOG.info("   Save Time: " + saveNamespaceTime);
     }
   }
 
@@ -368,6 +419,7 @@ public class NNThroughputBenchmark {
     private String arg1;      // argument passed to executeOp()
     private volatile int  localNumOpsExecuted = 0;
     private volatile long localCumulativeTime = 0;
+    private volatile long localMaxTime = 0;
     private OperationStatsBase statsOp;
 
     StatsDaemon(int daemonId, int nrOps, OperationStatsBase op) {
@@ -380,6 +432,7 @@ public class NNThroughputBenchmark {
     public void run() {
       localNumOpsExecuted = 0;
       localCumulativeTime = 0;
+      localMaxTime = 0;
       arg1 = statsOp.getExecutionArgument(daemonId);
       try {
         benchmarkOne();
@@ -400,6 +453,8 @@ public class NNThroughputBenchmark {
         long stat = statsOp.executeOp(daemonId, idx, arg1);
         localNumOpsExecuted++;
         localCumulativeTime += stat;
+        if(stat > localMaxTime)
+          localMaxTime = stat;
       }
     }
 
@@ -572,6 +627,40 @@ public class NNThroughputBenchmark {
     }
   }
 
+  /**
+   * Directory creation statistics.
+   * 
+   * Measure how many mkdirs calls the name-node can handle per second.
+   * Directory names are generated the same way as file names
+   * for {@link CreateFileStats}.
+   */
+  class MkdirsStats extends CreateFileStats {
+    // Operation types
+    static final String OP_MKDIRS_NAME = "mkdirs";
+    static final String OP_MKDIRS_USAGE = 
+      "-op " + OP_MKDIRS_NAME + " [-threads T] [-files N] [-filesPerDir P]";
+
+    MkdirsStats(List<String> args) {
+      super(args);
+    }
+
+    String getOpName() {
+      return OP_MKDIRS_NAME;
+    }
+
+    /**
+     * Do directory create.
+     */
+    long executeOp(int daemonId, int inputIdx, String ignore) 
+    throws IOException {
+      long start = System.currentTimeMillis();
+      nameNode.mkdirs(fileNames[daemonId][inputIdx],
+                      FsPermission.getDefault(), true);
+      long end = System.currentTimeMillis();
+      return end-start;
+    }
+  }
+
   /**
    * Open file statistics.
    * 
@@ -876,10 +965,10 @@ public class NNThroughputBenchmark {
           receivedDNReg.setStorageInfo(
                           new DataStorage(nsInfo, dnInfo.getStorageID()));
           receivedDNReg.setInfoPort(dnInfo.getInfoPort());
-          nameNode.blockReceived( receivedDNReg, 
-                                  nameNode.getNamesystem().getBlockPoolId(),
-                                  new Block[] {blocks[i]},
-                                  new String[] {DataNode.EMPTY_DEL_HINT});
+          ReceivedDeletedBlockInfo[] rdBlocks = {
+            new ReceivedDeletedBlockInfo(blocks[i], DataNode.EMPTY_DEL_HINT) };
+          nameNode.blockReceivedAndDeleted(receivedDNReg,
+              nameNode.getNamesystem().getBlockPoolId(), rdBlocks);
         }
       }
       return blocks.length;
@@ -991,11 +1080,10 @@ public class NNThroughputBenchmark {
         for(DatanodeInfo dnInfo : loc.getLocations()) {
           int dnIdx = Arrays.binarySearch(datanodes, dnInfo.getName());
           datanodes[dnIdx].addBlock(loc.getBlock().getLocalBlock());
-          nameNode.blockReceived(
-              datanodes[dnIdx].dnRegistration, 
-              loc.getBlock().getBlockPoolId(),
-              new Block[] {loc.getBlock().getLocalBlock()},
-              new String[] {""});
+          ReceivedDeletedBlockInfo[] rdBlocks = {
+            new ReceivedDeletedBlockInfo(loc.getBlock().getLocalBlock(), "") };
+          nameNode.blockReceivedAndDeleted(datanodes[dnIdx].dnRegistration,
+              loc.getBlock().getBlockPoolId(), rdBlocks);
         }
       }
       return prevBlock;
@@ -1196,6 +1284,7 @@ public class NNThroughputBenchmark {
     System.err.println("Usage: NNThroughputBenchmark"
         + "\n\t"    + OperationStatsBase.OP_ALL_USAGE
         + " | \n\t" + CreateFileStats.OP_CREATE_USAGE
+        + " | \n\t" + MkdirsStats.OP_MKDIRS_USAGE
         + " | \n\t" + OpenFileStats.OP_OPEN_USAGE
         + " | \n\t" + DeleteFileStats.OP_DELETE_USAGE
         + " | \n\t" + FileStatusStats.OP_FILE_STATUS_USAGE
@@ -1222,12 +1311,29 @@ public class NNThroughputBenchmark {
     NNThroughputBenchmark bench = null;
     List<OperationStatsBase> ops = new ArrayList<OperationStatsBase>();
     OperationStatsBase opStat = null;
+    if(args.contains("-saveNamespace"))
+      conf.setBoolean(
+          DFSConfigKeys.DFS_NAMENODE_SAVENAMESPACE_CONCURRENT_KEY, true);
+    // configures the name-node rather than the operations
+    int plsIndex = args.indexOf("-pathLockStripes");
+    if(plsIndex >= 0) {
+      if(args.size() <= plsIndex + 1)
+        printUsage();
+      conf.setInt(DFSConfigKeys.DFS_NAMENODE_PATH_LOCK_STRIPES_KEY,
+          Integer.parseInt(args.get(plsIndex+1)));
+      args.remove(plsIndex+1);
+      args.remove(plsIndex);
+    }
     try {
       bench = new NNThroughputBenchmark(conf);
       if(runAll || CreateFileStats.OP_CREATE_NAME.equals(type)) {
         opStat = bench.new CreateFileStats(args);
         ops.add(opStat);
       }
+      if(runAll || MkdirsStats.OP_MKDIRS_NAME.equals(type)) {
+        opStat = bench.new MkdirsStats(args);
+        ops.add(opStat);
+      }
       if(runAll || OpenFileStats.OP_OPEN_NAME.equals(type)) {
         opStat = bench.new OpenFileStats(args);
         ops.add(opStat);
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Builds synthetic namespaces directly in an {@link FSDirectory}, and
+ * compares inode trees, for the tests that save and load the namespace.
+ */
+class NamespaceTestUtil {
+  static final PermissionStatus PERM = new PermissionStatus(
+      "user", "group", new FsPermission((short)0755));
+  static final short REPLICATION = 3;
+  static final long BLOCK_SIZE = 1024;
+
+  private long blockId = 0;
+
+  /**
+   * Build a namespace with a directory "/large" of the given number of
+   * files, large enough to span many image sections, and a path
+   * "/dir0/dir1/..." of the given depth, with 10 files in each directory.
+   * @param withExtras whether every third directory of the path has a
+   *        quota, and each has a symlink and an empty directory
+   */
+  void buildNamespace(FSDirectory fsDir, int numLargeFiles, int depth,
+      boolean withExtras) throws IOException {
+    INodeDirectory large = addDirectory(fsDir, fsDir.rootDir, "large", false);
+    for (int i = 0; i < numLargeFiles; i++) {
+      addFile(fsDir, large, "file" + i, i % 3);
+    }
+
+    INodeDirectory dir = fsDir.rootDir;
+    for (int d = 0; d < depth; d++) {
+      dir = addDirectory(fsDir, dir, "dir" + d, withExtras && d % 3 == 0);
+      for (int i = 0; i < 10; i++) {
+        addFile(fsDir, dir, "file" + i, i);
+      }
+      if (withExtras) {
+        fsDir.addToParent(DFSUtil.string2Bytes("link"), dir,
+            new INodeSymlink("/large/file" + d, 0, 0, PERM), false);
+        addDirectory(fsDir, dir, "empty", false);
+      }
+    }
+  }
+
+  static INodeDirectory addDirectory(FSDirectory fsDir,
+      INodeDirectory parent, String name, boolean withQuota)
+      throws IOException {
+    INodeDirectory dir = withQuota ?
+        new INodeDirectoryWithQuota(PERM, name.length(), 1000, 1L << 40) :
+        new INodeDirectory(PERM, name.length());
+    fsDir.addToParent(DFSUtil.string2Bytes(name), parent, dir, false);
+    return dir;
+  }
+
+  void addFile(FSDirectory fsDir, INodeDirectory parent, String name,
+      int numBlocks) throws IOException {
+    INodeFile file = new INodeFile(PERM, numBlocks, REPLICATION,
+        blockId, blockId + 1, BLOCK_SIZE);
+    for (int i = 0; i < numBlocks; i++) {
+      blockId++;
+      file.setBlock(i, new BlockInfo(
+          new Block(blockId, blockId % BLOCK_SIZE, 1000 + blockId),
+          REPLICATION));
+    }
+    fsDir.addToParent(DFSUtil.string2Bytes(name), parent, file, false);
+  }
+
+  /**
+   * Assert that two inode trees have the same names, attributes, quotas,
+   * symlink values and blocks, and that the blocks belong to their files.
+   */
+  static void assertEqualTrees(INode expected, INode actual) {
+    final String path = expected.getLocalName();
+    assertEquals(path, actual.getLocalName());
+    assertEquals(path, expected.getClass(), actual.getClass());
+    assertEquals(path, expected.getModificationTime(),
+        actual.getModificationTime());
+    assertEquals(path, expected.getAccessTime(), actual.getAccessTime());
+    assertEquals(path, expected.getPermissionStatus().toString(),
+        actual.getPermissionStatus().toString());
+    assertEquals(path, expected.getNsQuota(), actual.getNsQuota());
+    assertEquals(path, expected.getDsQuota(), actual.getDsQuota());
+
+    if (expected instanceof INodeSymlink) {
+      assertEquals(path, ((INodeSymlink)expected).getLinkValue(),
+          ((INodeSymlink)actual).getLinkValue());
+    } else if (expected instanceof INodeFile) {
+      INodeFile expectedFile = (INodeFile)expected;
+      INodeFile actualFile = (INodeFile)actual;
+      assertEquals(path, expectedFile.getReplication(),
+          actualFile.getReplication());
+      assertEquals(path, expectedFile.getPreferredBlockSize(),
+          actualFile.getPreferredBlockSize());
+      BlockInfo[] expectedBlocks = expectedFile.getBlocks();
+      BlockInfo[] actualBlocks = actualFile.getBlocks();
+      assertEquals(path, expectedBlocks.length, actualBlocks.length);
+      for (int i = 0; i < expectedBlocks.length; i++) {
+        assertEquals(path, expectedBlocks[i], actualBlocks[i]);
+        assertEquals(path, expectedBlocks[i].getNumBytes(),
+            actualBlocks[i].getNumBytes());
+        assertEquals(path, expectedBlocks[i].getGenerationStamp(),
+            actualBlocks[i].getGenerationStamp());
+        assertSame(path, actualFile, actualBlocks[i].getINode());
+      }
+    } else {
+      List<INode> expectedChildren = ((INodeDirectory)expected).getChildren();
+      List<INode> actualChildren = ((INodeDirectory)actual).getChildren();
+      assertEquals(path, expectedChildren.size(), actualChildren.size());
+      for (int i = 0; i < expectedChildren.size(); i++) {
+        assertEqualTrees(expectedChildren.get(i), actualChildren.get(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests {@link CompactBlockSet} against a {@link HashMap}.
+ */
+public class TestCompactBlockSet extends TestCase {
+  private static final Random RAN = new Random();
+
+  public void testRandomUpdates() {
+    final long seed = RAN.nextLong();
+    System.out.println("seed = " + seed);
+    final Random r = new Random(seed);
+
+    final Map<Long, Long> expected = new HashMap<Long, Long>();
+    final CompactBlockSet set = new CompactBlockSet();
+    for (int i = 0; i < 50000; i++) {
+      // small ids collide often; grow for a while, then shrink
+      final long id = r.nextBoolean() ? r.nextInt(5000) : r.nextLong();
+      final Block b = new Block(id, 0, 1000 + r.nextInt(10));
+      if (r.nextInt(10) < (i < 30000 ? 7 : 2)) {
+        assertEquals(!expected.containsKey(id), set.add(b));
+        if (!expected.containsKey(id)) {
+          expected.put(id, b.getGenerationStamp());
+        }
+      } else {
+        assertEquals(expected.remove(id) != null, set.remove(b));
+      }
+      assertEquals(expected.size(), set.size());
+      if (i % 1000 == 0) {
+        for (Long e : expected.keySet()) {
+          assertTrue(set.contains(new Block(e)));
+        }
+      }
+    }
+
+    // drain the set a part at a time
+    while (!set.isEmpty()) {
+      final int max = 1 + r.nextInt(1000);
+      final int size = set.size();
+      final List<Block> polled = set.poll(max);
+      assertEquals(Math.min(max, size), polled.size());
+      assertEquals(size - polled.size(), set.size());
+      for (Block b : polled) {
+        assertFalse(set.contains(b));
+        assertEquals(expected.remove(b.getBlockId()),
+            Long.valueOf(b.getGenerationStamp()));
+      }
+    }
+    assertTrue(expected.isEmpty());
+    assertTrue(set.poll(10).isEmpty());
+  }
+
+  public void testPollAll() {
+    final CompactBlockSet set = new CompactBlockSet();
+    for (int i = 0; i < 100; i++) {
+      assertTrue(set.add(new Block(i, i, 1000 + i)));
+    }
+    assertFalse(set.add(new Block(5, 0, 2000)));
+    assertTrue(set.contains(new Block(5)));
+
+    final List<Block> polled = set.poll(100);
+    assertEquals(100, polled.size());
+    assertTrue(set.isEmpty());
+    for (Block b : polled) {
+      assertEquals(1000 + b.getBlockId(), b.getGenerationStamp());
+    }
+    assertEquals("[]", set.toString());
+    set.add(new Block(7, 0, 1001));
+    assertEquals("[blk_7_1001]", set.toString());
+  }
+}
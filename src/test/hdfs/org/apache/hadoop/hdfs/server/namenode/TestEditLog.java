@@ -22,12 +22,15 @@ import java.io.*;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.*;
 
@@ -38,9 +41,12 @@ import org.apache.hadoop.hdfs.server.common.Storage.StorageDirectory;
 import org.apache.hadoop.hdfs.server.namenode.NNStorage.NameNodeDirType;
 import org.apache.hadoop.hdfs.server.namenode.NNStorage.NameNodeFile;
 import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
  
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  * This class tests the creation and validation of a checkpoint.
@@ -87,18 +93,28 @@ public class TestEditLog extends TestCase {
    * Tests transaction logging in dfs.
    */
   public void testEditLog() throws IOException {
-    testEditLog(2048);
+    testEditLog(2048, false);
     // force edit buffer to automatically sync on each log of edit log entry
-    testEditLog(1);
+    testEditLog(1, false);
+  }
+
+  /**
+   * Tests transaction logging with syncs done by the sync thread.
+   */
+  public void testEditLogWithSyncThread() throws IOException {
+    testEditLog(2048, true);
+    testEditLog(1, true);
   }
   
   /**
    * Test edit log with different initial buffer size
    * 
    * @param initialSize initial edit log buffer size
+   * @param useSyncThread whether the edits are synced by the sync thread
    * @throws IOException
    */
-  private void testEditLog(int initialSize) throws IOException {
+  private void testEditLog(int initialSize, boolean useSyncThread)
+      throws IOException {
 
     // start a cluster 
     Configuration conf = new HdfsConfiguration();
@@ -121,6 +137,7 @@ public class TestEditLog extends TestCase {
   
       // set small size of flush buffer
       editLog.setBufferCapacity(initialSize);
+      editLog.setUseSyncThread(useSyncThread);
       editLog.close();
       editLog.open();
     
@@ -192,6 +209,16 @@ public class TestEditLog extends TestCase {
     }).get();
   }
 
+  private void doCallLogSync(ExecutorService exec, final FSEditLog log,
+      int timeoutSeconds) throws Exception {
+    exec.submit(new Callable<Void>() {
+      public Void call() {
+        log.logSync();
+        return null;
+      }
+    }).get(timeoutSeconds, TimeUnit.SECONDS);
+  }
+
   private void doCallLogSyncAll(ExecutorService exec, final FSEditLog log)
     throws Exception
   {
@@ -257,6 +284,53 @@ public class TestEditLog extends TestCase {
     }
   }
   
+  /**
+   * An Error in a sync done by the sync thread stops the thread, and the
+   * threads calling logSync afterwards sync their edits themselves
+   * instead of waiting for it forever.
+   */
+  public void testErrorInSyncThread() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = null;
+    ExecutorService threadA = Executors.newSingleThreadExecutor();
+    try {
+      cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+      cluster.waitActive();
+      final FSEditLog editLog =
+        cluster.getNamesystem().getFSImage().getEditLog();
+      editLog.setUseSyncThread(true);
+      editLog.close();
+      editLog.open();
+
+      // the first flush of the edits fails with an Error
+      final List<String> failedIn = new ArrayList<String>();
+      ArrayList<EditLogOutputStream> streams = editLog.getEditStreams();
+      EditLogOutputStream spy = Mockito.spy(streams.get(0));
+      Mockito.doAnswer(new Answer<Void>() {
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          if (failedIn.isEmpty()) {
+            failedIn.add(Thread.currentThread().getName());
+            throw new Error("Injected fault: flush");
+          }
+          invocation.callRealMethod();
+          return null;
+        }
+      }).when(spy).flush();
+      streams.set(0, spy);
+
+      doLogEdit(threadA, editLog, "thread-a 1");
+      doCallLogSync(threadA, editLog, 30);
+      assertEquals("[EditLogSyncThread]", failedIn.toString());
+
+      doLogEdit(threadA, editLog, "thread-a 2");
+      doCallLogSync(threadA, editLog, 30);
+      assertEquals(2, editLog.getSyncTxId());
+    } finally {
+      threadA.shutdown();
+      if(cluster != null) cluster.shutdown();
+    }
+  }
+
   /**
    * Test what happens with the following sequence:
    *
@@ -339,4 +413,98 @@ public class TestEditLog extends TestCase {
       // expected
     }
   }
+
+  /**
+   * Test that an edits file is preallocated with end-of-log markers,
+   * and that the edits of a file that was not closed are loaded up to
+   * the preallocated tail.
+   */
+  public void testPreallocatedTail() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    File dir = new File(MiniDFSCluster.getBaseDirectory(), "TestEditLog");
+    dir.mkdirs();
+    File editFile = new File(dir, "edits");
+    final int preallocateSize = 8192;
+    final int numEdits = 1000;
+
+    EditLogFileOutputStream out =
+      new EditLogFileOutputStream(editFile, 1024, preallocateSize);
+    out.create();
+    for (int i = 1; i <= numEdits; i++) {
+      out.write(FSEditLogOpCodes.OP_SET_GENSTAMP.getOpCode(),
+          new LongWritable(i));
+      if (i % 100 == 0) {
+        out.setReadyToFlush();
+        out.flush();
+      }
+    }
+    long validLength = out.length() + Integer.SIZE / Byte.SIZE;
+    assertTrue(editFile.length() > validLength);
+    // the tail is filled with end-of-log markers
+    RandomAccessFile raf = new RandomAccessFile(editFile, "r");
+    try {
+      raf.seek(validLength);
+      while (raf.getFilePointer() < raf.length()) {
+        assertEquals(FSEditLogOpCodes.OP_INVALID.getOpCode(), raf.readByte());
+      }
+    } finally {
+      raf.close();
+    }
+
+    FSNamesystem namesystem = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      FSEditLogLoader loader = new FSEditLogLoader(namesystem);
+      assertEquals(numEdits,
+          loader.loadFSEdits(new EditLogFileInputStream(editFile)));
+      assertEquals(numEdits, namesystem.getGenerationStamp());
+      // so that the image is saved and the tail is dropped
+      assertTrue(loader.hasPreallocatedTail());
+
+      out.close();
+      assertEquals(validLength, editFile.length());
+      loader = new FSEditLogLoader(namesystem);
+      assertEquals(numEdits,
+          loader.loadFSEdits(new EditLogFileInputStream(editFile)));
+      assertFalse(loader.hasPreallocatedTail());
+    } finally {
+      namesystem.close();
+      editFile.delete();
+    }
+  }
+
+  /**
+   * Test that edits with numeric fields in binary load into the same
+   * namespace as the same edits with numeric fields as strings, as written
+   * before layout version -33, and that they are smaller.
+   */
+  public void testBinaryAndTextEncodings() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    File dir = new File(MiniDFSCluster.getBaseDirectory(), "TestEditLog");
+    final int numFiles = 250;
+    EditLogReplayBenchmark bench =
+      new EditLogReplayBenchmark(conf, numFiles, 2);
+    FSNamesystem fromBinary = new FSNamesystem(new FSImage(conf), conf);
+    FSNamesystem fromText = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      File binary = bench.writeEdits(new File(dir, "binary"), false);
+      File text = bench.writeEdits(new File(dir, "text"), true);
+      assertTrue(binary.length() < text.length());
+
+      int numEdits = new FSEditLogLoader(fromBinary).loadFSEdits(
+          new EditLogFileInputStream(binary));
+      // a directory for every 100 files and the base directory,
+      // and a create and a close of each file
+      assertEquals(3 + 1 + 2 * numFiles, numEdits);
+      // one more for the old version, so that the image is saved
+      assertEquals(numEdits + 1, new FSEditLogLoader(fromText).loadFSEdits(
+          new EditLogFileInputStream(text)));
+      assertEquals(fromText.getBlocksTotal(), fromBinary.getBlocksTotal());
+      NamespaceTestUtil.assertEqualTrees(fromText.dir.rootDir,
+          fromBinary.dir.rootDir);
+    } finally {
+      fromBinary.close();
+      fromText.close();
+      FileUtil.fullyDelete(dir);
+    }
+  }
 }
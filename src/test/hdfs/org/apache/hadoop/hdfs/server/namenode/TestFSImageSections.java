@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.apache.hadoop.hdfs.server.namenode.NamespaceTestUtil.BLOCK_SIZE;
+import static org.apache.hadoop.hdfs.server.namenode.NamespaceTestUtil.PERM;
+import static org.apache.hadoop.hdfs.server.namenode.NamespaceTestUtil.REPLICATION;
+import static org.apache.hadoop.hdfs.server.namenode.NamespaceTestUtil.assertEqualTrees;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that an image saved in many small sections is loaded
+ * back into the same namespace, with and without compression and with
+ * one or more loader threads, and that an image saved to several files at
+ * once is saved to each of them even if one fails.
+ */
+public class TestFSImageSections extends TestCase {
+  private static final String OPEN_FILE = "/dir0/dir1/open";
+  private static final String HOLDER = "client";
+
+  private final File imageFile = new File(MiniDFSCluster.getBaseDirectory(),
+      "TestFSImageSections.fsimage");
+
+  public void testSingleThread() throws Exception {
+    checkSaveAndLoad(false, 1);
+  }
+
+  public void testParallelLoad() throws Exception {
+    checkSaveAndLoad(false, 4);
+  }
+
+  public void testParallelLoadCompressed() throws Exception {
+    checkSaveAndLoad(true, 4);
+  }
+
+  public void testSaveToSeveralFiles() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_IMAGE_SECTION_SIZE_KEY, 512);
+    File dir = new File(MiniDFSCluster.getBaseDirectory(),
+        "TestFSImageSections");
+    dir.mkdirs();
+    File[] files = new File[3];
+    List<FileOutputStream> streams = new ArrayList<FileOutputStream>();
+    for (int i = 0; i < files.length; i++) {
+      files[i] = new File(dir, "fsimage" + i);
+      if (i == 1) {
+        // the second file fails part way through the image
+        streams.add(new FileOutputStream(files[i]) {
+          private int written = 0;
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+            if (written > 4096) {
+              throw new IOException("Injected fault: write " + written);
+            }
+            super.write(b, off, len);
+          }
+        });
+      } else {
+        streams.add(new FileOutputStream(files[i]));
+      }
+    }
+
+    FSNamesystem source = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      new NamespaceTestUtil().buildNamespace(source.dir, 5000, 20, true);
+      FSImageFormat.Saver saver = new FSImageFormat.Saver(conf);
+      saver.save(streams, source, FSImageCompression.createCompression(conf));
+
+      assertNotNull(saver.getFailure(1));
+      assertNull(saver.getSavedDigest(1));
+      for (int i : new int[] {0, 2}) {
+        assertNull(saver.getFailure(i));
+        assertEquals(saver.getSavedDigest(), saver.getSavedDigest(i));
+
+        FSNamesystem loaded = new FSNamesystem(new FSImage(conf), conf);
+        try {
+          FSImageFormat.Loader loader = new FSImageFormat.Loader(conf, loaded);
+          loader.load(files[i]);
+          assertEquals(saver.getSavedDigest(i), loader.getLoadedImageMd5());
+          assertEqualTrees(source.dir.rootDir, loaded.dir.rootDir);
+        } finally {
+          loaded.close();
+        }
+      }
+    } finally {
+      source.close();
+      for (File f : files) {
+        f.delete();
+      }
+    }
+  }
+
+  private void checkSaveAndLoad(boolean compress, int numThreads)
+      throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_IMAGE_COMPRESS_KEY, compress);
+    // small sections, so that directories span sections
+    conf.setInt(DFSConfigKeys.DFS_IMAGE_SECTION_SIZE_KEY, 512);
+    conf.setInt(DFSConfigKeys.DFS_IMAGE_LOAD_THREADS_KEY, numThreads);
+    imageFile.getParentFile().mkdirs();
+
+    FSNamesystem source = new FSNamesystem(new FSImage(conf), conf);
+    FSNamesystem loaded = null;
+    try {
+      new NamespaceTestUtil().buildNamespace(source.dir, 5000, 20, true);
+      addFileUnderConstruction(source);
+      FSImageFormat.Saver saver = new FSImageFormat.Saver(conf);
+      saver.save(imageFile, source,
+          FSImageCompression.createCompression(conf));
+
+      loaded = new FSNamesystem(new FSImage(conf), conf);
+      FSImageFormat.Loader loader = new FSImageFormat.Loader(conf, loaded);
+      loader.load(imageFile);
+      assertEquals(saver.getSavedDigest(), loader.getLoadedImageMd5());
+
+      assertEquals(source.dir.rootDir.numItemsInTree(),
+          loaded.dir.rootDir.numItemsInTree());
+      assertEquals(source.getBlocksTotal(), loaded.getBlocksTotal());
+      assertEqualTrees(source.dir.rootDir, loaded.dir.rootDir);
+
+      // the file under construction is applied after all the inodes
+      LeaseManager.Lease lease = loaded.leaseManager.getLeaseByPath(OPEN_FILE);
+      assertNotNull(lease);
+      assertEquals(HOLDER, lease.getHolder());
+      assertEquals(1, loaded.leaseManager.countPath());
+      INodeFileUnderConstruction cons =
+        (INodeFileUnderConstruction)loaded.dir.getFileINode(OPEN_FILE);
+      assertEquals(HOLDER, cons.getClientName());
+      assertEquals("localhost", cons.getClientMachine());
+    } finally {
+      source.close();
+      if (loaded != null) {
+        loaded.close();
+      }
+      imageFile.delete();
+    }
+  }
+
+  /**
+   * Add a file under construction with two blocks, and its lease,
+   * to the namespace built by {@link NamespaceTestUtil#buildNamespace}.
+   */
+  private static void addFileUnderConstruction(FSNamesystem fsn)
+      throws IOException {
+    final long blockId = 1L << 40; // unlike those of the other files
+    BlockInfo[] blocks = new BlockInfo[] {
+        new BlockInfo(new Block(blockId, BLOCK_SIZE, 1000), REPLICATION),
+        new BlockInfo(new Block(blockId + 1, 10, 1000), REPLICATION)};
+    INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
+        DFSUtil.string2Bytes("open"), REPLICATION, 0, BLOCK_SIZE, blocks,
+        PERM, HOLDER, "localhost", null);
+    INodeDirectory parent =
+      (INodeDirectory)fsn.dir.rootDir.getNode("/dir0/dir1", false);
+    fsn.dir.addToParent(DFSUtil.string2Bytes("open"), parent, cons, false);
+    fsn.leaseManager.addLease(HOLDER, OPEN_FILE);
+  }
+}
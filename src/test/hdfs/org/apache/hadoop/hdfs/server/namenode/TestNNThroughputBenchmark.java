@@ -17,6 +17,7 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.apache.hadoop.conf.Configuration;
@@ -40,4 +41,21 @@ public class TestNNThroughputBenchmark {
     String[] args = new String[] {"-op", "all"};
     NNThroughputBenchmark.runBenchmark(conf, Arrays.asList(args));
   }
+
+  /**
+   * This test runs create, mkdirs and rename with path locking enabled.
+   */
+  @Test
+  public void testNNThroughputWithPathLocks() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    FileSystem.setDefaultUri(conf, "hdfs://localhost:" + 0);
+    conf.set(DFSConfigKeys.DFS_NAMENODE_HTTP_ADDRESS_KEY, "0.0.0.0:0");
+    GenericTestUtils.formatNamenode(conf);
+    for (String op : new String[] {"create", "mkdirs", "rename"}) {
+      String[] args = new String[] {"-op", op, "-threads", "4",
+          "-pathLockStripes", "16"};
+      NNThroughputBenchmark.runBenchmark(conf,
+          new ArrayList<String>(Arrays.asList(args)));
+    }
+  }
 }
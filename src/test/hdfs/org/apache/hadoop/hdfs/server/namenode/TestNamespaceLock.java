@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.Test;
+
+/**
+ * Test path scoped locking of the namespace by {@link NamespaceLock}.
+ */
+public class TestNamespaceLock {
+  static final int NUM_THREADS = 8;
+  static final int NUM_DIRS = 20;
+
+  /**
+   * Path locks on different directories do not exclude each other,
+   * while the exclusive lock excludes all of them.
+   */
+  @Test
+  public void testPathLocks() throws Exception {
+    final NamespaceLock lock = new NamespaceLock(1024);
+    assertTrue(lock.isPathLockingEnabled());
+    // find two directories guarded by different stripes
+    String dir1 = "/d0";
+    String dir2 = null;
+    for (int i = 1; dir2 == null; i++) {
+      if (lock.getStripeIndex(dir1 + "/f") != lock.getStripeIndex("/d" + i + "/f"))
+        dir2 = "/d" + i;
+    }
+    assertEquals(lock.getStripeIndex(dir1 + "/a"),
+                 lock.getStripeIndex(dir1 + "/b"));
+
+    NamespaceLock.PathLock pl1 = lock.lockPath(dir1 + "/f");
+    assertFalse(pl1.isExclusive());
+    final String path2 = dir2 + "/f";
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread t = new Thread() {
+      public void run() {
+        NamespaceLock.PathLock pl2 = lock.lockPath(path2);
+        locked.countDown();
+        pl2.unlock();
+      }
+    };
+    t.start();
+    assertTrue("lock on another directory should not block",
+               locked.await(10, TimeUnit.SECONDS));
+    t.join();
+
+    final CountDownLatch exclusive = new CountDownLatch(1);
+    t = new Thread() {
+      public void run() {
+        NamespaceLock.PathLock pl = lock.lockExclusive();
+        exclusive.countDown();
+        pl.unlock();
+      }
+    };
+    t.start();
+    assertFalse("exclusive lock should wait for the path lock",
+                exclusive.await(500, TimeUnit.MILLISECONDS));
+    pl1.unlock();
+    assertTrue(exclusive.await(10, TimeUnit.SECONDS));
+    t.join();
+  }
+
+  /**
+   * Without stripes path locks fall back to the exclusive lock.
+   */
+  @Test
+  public void testPathLockingDisabled() throws Exception {
+    NamespaceLock lock = new NamespaceLock(0);
+    assertFalse(lock.isPathLockingEnabled());
+    NamespaceLock.PathLock pl = lock.lockPath("/a/b");
+    assertTrue(pl.isExclusive());
+    assertTrue(lock.hasWriteLock());
+    pl.unlock();
+    assertFalse(lock.hasWriteLock());
+  }
+
+  /**
+   * Create directories and files concurrently from several threads
+   * and verify that the edits log replays the same namespace.
+   */
+  @Test
+  public void testConcurrentCreates() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_PATH_LOCK_STRIPES_KEY, 64);
+    MiniDFSCluster cluster = null;
+    try {
+      cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+      cluster.waitActive();
+      final FSNamesystem namesystem = cluster.getNamesystem();
+      final PermissionStatus p = namesystem.createFsOwnerPermissions(
+          new FsPermission((short)0777));
+      final AtomicReference<Throwable> caught =
+        new AtomicReference<Throwable>();
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < NUM_THREADS; t++) {
+        final int id = t;
+        threads.add(new Thread() {
+          public void run() {
+            try {
+              for (int i = 0; i < NUM_DIRS; i++) {
+                // directories are shared by all threads,
+                // files are created by one thread only
+                namesystem.mkdirs("/top/dir" + i + "/sub" + id, p, true);
+                namesystem.startFile("/top/dir" + i + "/file" + id, p,
+                    "client" + id, "localhost", EnumSet.of(CreateFlag.CREATE),
+                    true, (short)1, 1024);
+              }
+            } catch (Throwable e) {
+              caught.compareAndSet(null, e);
+            }
+          }
+        });
+      }
+      for (Thread t : threads) {
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      if (caught.get() != null) {
+        throw new AssertionError(caught.get());
+      }
+      verifyNamespace(namesystem);
+
+      // replay the edits log
+      cluster.restartNameNode(0);
+      verifyNamespace(cluster.getNamesystem());
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Create a file and a directory below the same path concurrently.
+   * The two operations hold different stripes, and exactly one of them
+   * succeeds; a create which loses fails as the path is a directory.
+   */
+  @Test
+  public void testConcurrentCreateAndMkdirs() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_PATH_LOCK_STRIPES_KEY, 64);
+    MiniDFSCluster cluster = null;
+    try {
+      cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+      cluster.waitActive();
+      final FSNamesystem namesystem = cluster.getNamesystem();
+      final PermissionStatus p = namesystem.createFsOwnerPermissions(
+          new FsPermission((short)0777));
+      final int numPaths = 200;
+      final Throwable[] createFailures = new Throwable[numPaths];
+      final Throwable[] mkdirsFailures = new Throwable[numPaths];
+      final CyclicBarrier barrier = new CyclicBarrier(2);
+
+      Thread creator = new Thread() {
+        public void run() {
+          for (int i = 0; i < numPaths; i++) {
+            try {
+              barrier.await();
+              namesystem.startFile("/race/path" + i, p, "client",
+                  "localhost", EnumSet.of(CreateFlag.CREATE), true,
+                  (short)1, 1024);
+            } catch (Throwable e) {
+              createFailures[i] = e;
+            }
+          }
+        }
+      };
+      Thread mkdirs = new Thread() {
+        public void run() {
+          for (int i = 0; i < numPaths; i++) {
+            try {
+              barrier.await();
+              namesystem.mkdirs("/race/path" + i + "/dir", p, true);
+            } catch (Throwable e) {
+              mkdirsFailures[i] = e;
+            }
+          }
+        }
+      };
+      creator.start();
+      mkdirs.start();
+      creator.join();
+      mkdirs.join();
+
+      for (int i = 0; i < numPaths; i++) {
+        boolean isDir = namesystem.getFileInfo("/race/path" + i, false)
+            .isDir();
+        if (isDir) {
+          assertNull(mkdirsFailures[i]);
+          assertTrue("" + createFailures[i],
+              createFailures[i] instanceof FileAlreadyExistsException);
+        } else {
+          assertNull(createFailures[i]);
+          assertNotNull(mkdirsFailures[i]);
+        }
+      }
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+  }
+
+  private void verifyNamespace(FSNamesystem namesystem) throws Exception {
+    for (int i = 0; i < NUM_DIRS; i++) {
+      for (int t = 0; t < NUM_THREADS; t++) {
+        assertTrue(namesystem.getFileInfo("/top/dir" + i + "/sub" + t, false)
+                   .isDir());
+        assertFalse(namesystem.getFileInfo("/top/dir" + i + "/file" + t, false)
+                    .isDir());
+      }
+    }
+  }
+}
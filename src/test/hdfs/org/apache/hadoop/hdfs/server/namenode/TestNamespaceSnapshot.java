@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.apache.hadoop.hdfs.server.namenode.NamespaceTestUtil.BLOCK_SIZE;
+import static org.apache.hadoop.hdfs.server.namenode.NamespaceTestUtil.PERM;
+import static org.apache.hadoop.hdfs.server.namenode.NamespaceTestUtil.REPLICATION;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options.Rename;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.MD5Hash;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that an image saved from a snapshot of the namespace
+ * is the image of the namespace when the snapshot was opened, however the
+ * namespace is modified while the image is saved, and that the name-node
+ * saves its namespace this way while clients keep modifying it.
+ */
+public class TestNamespaceSnapshot extends TestCase {
+  private final File dir = new File(MiniDFSCluster.getBaseDirectory(),
+      "TestNamespaceSnapshot");
+
+  public void testSaveFromSnapshot() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    // small sections, so that directories span sections
+    conf.setInt(DFSConfigKeys.DFS_IMAGE_SECTION_SIZE_KEY, 512);
+    dir.mkdirs();
+    File before = new File(dir, "fsimage.before");
+    File snapshotImage = new File(dir, "fsimage.snapshot");
+
+    FSNamesystem fsn = new FSNamesystem(new FSImage(conf), conf);
+    try {
+      FSDirectory fsDir = fsn.dir;
+      new NamespaceTestUtil().buildNamespace(fsDir, 2000, 10, false);
+      FSImageFormat.Saver saver = new FSImageFormat.Saver(conf);
+      saver.save(before, fsn, FSImageCompression.createCompression(conf));
+      MD5Hash expected = saver.getSavedDigest();
+
+      NamespaceSnapshot snapshot;
+      fsn.writeLock();
+      try {
+        snapshot = fsDir.openSnapshot(fsn);
+      } finally {
+        fsn.writeUnlock();
+      }
+      long now = System.currentTimeMillis();
+      fsDir.unprotectedMkdir("/large/newdir", PERM, now);
+      fsDir.unprotectedAddFile("/dir0/newfile", PERM, new BlockInfo[0],
+          REPLICATION, now, now, BLOCK_SIZE);
+      assertTrue(fsDir.unprotectedRenameTo("/dir0/dir1", "/moved", now));
+      // overwrite a file without blocks
+      fsDir.unprotectedRenameTo("/large/file1", "/large/file3", now,
+          Rename.OVERWRITE);
+      fsDir.unprotectedDelete("/large/file2", new ArrayList<Block>(), now);
+      fsDir.unprotectedDelete("/moved/dir2", new ArrayList<Block>(), now);
+      fsDir.unprotectedSetPermission("/dir0",
+          new FsPermission((short)0700));
+      fsDir.unprotectedSetOwner("/large/file4", "other", "others");
+      fsDir.unprotectedSetReplication("/large/file5", (short)1, null);
+      fsDir.unprotectedSetTimes("/large/file6", now, now, true);
+      fsDir.unprotectedConcat("/large/file7",
+          new String[] {"/large/file8", "/large/file10"});
+      // replace a directory with one with quota, and back
+      fsDir.unprotectedSetQuota("/dir0", 1000, 1L << 40);
+      fsDir.unprotectedMkdir("/dir0/withquota", PERM, now);
+      fsDir.unprotectedSetQuota("/dir0", -1, -1);
+      fsDir.unprotectedMkdir("/dir0/withoutquota", PERM, now);
+      assertTrue(snapshot.getNumPreserved() > 0);
+
+      saver = new FSImageFormat.Saver(conf);
+      saver.save(Collections.singletonList(new FileOutputStream(snapshotImage)),
+          fsn, FSImageCompression.createCompression(conf), snapshot);
+      fsDir.closeSnapshot();
+      // the same image as that of the namespace before the modifications
+      assertEquals(expected, saver.getSavedDigest());
+
+      FSNamesystem loaded = new FSNamesystem(new FSImage(conf), conf);
+      try {
+        new FSImageFormat.Loader(conf, loaded).load(snapshotImage);
+        assertEquals(snapshot.getNumItems(),
+            loaded.dir.rootDir.numItemsInTree());
+        assertNotNull(loaded.dir.rootDir.getNode("/dir0/dir1/dir2", false));
+        assertNotNull(loaded.dir.rootDir.getNode("/large/file8", false));
+        assertNull(loaded.dir.rootDir.getNode("/moved", false));
+        assertNull(loaded.dir.rootDir.getNode("/large/newdir", false));
+      } finally {
+        loaded.close();
+      }
+    } finally {
+      fsn.close();
+      before.delete();
+      snapshotImage.delete();
+    }
+  }
+
+  /**
+   * Save the namespace while a client creates directories, and check that
+   * all of them are there after a restart.
+   */
+  public void testSaveNamespaceConcurrently() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(
+        DFSConfigKeys.DFS_NAMENODE_SAVENAMESPACE_CONCURRENT_KEY, true);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      final FileSystem fs = cluster.getFileSystem();
+      for (int i = 0; i < 100; i++) {
+        DFSTestUtil.createFile(fs, new Path("/before/file" + i),
+            BLOCK_SIZE, (short)1, i);
+      }
+
+      final List<IOException> errors = new ArrayList<IOException>();
+      Thread client = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 1000; i++) {
+              fs.mkdirs(new Path("/during/dir" + i));
+              if (i % 10 == 0) {
+                fs.delete(new Path("/before/file" + i / 10), true);
+              }
+            }
+          } catch (IOException e) {
+            errors.add(e);
+          }
+        }
+      };
+      client.start();
+      // not in safe mode
+      cluster.getNameNode().saveNamespace();
+      client.join();
+      assertTrue(errors.toString(), errors.isEmpty());
+
+      FSImage fsImage = cluster.getNamesystem().getFSImage();
+      assertEquals(FSImage.CheckpointStates.START, fsImage.ckptState);
+      // the edits are rolled again by the next save
+      cluster.getNameNode().saveNamespace();
+
+      cluster.restartNameNode(0);
+      FileSystem restarted = cluster.getFileSystem();
+      for (int i = 0; i < 1000; i++) {
+        assertTrue(restarted.exists(new Path("/during/dir" + i)));
+      }
+      for (int i = 0; i < 100; i++) {
+        assertFalse(restarted.exists(new Path("/before/file" + i)));
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -17,7 +17,6 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
-import java.io.File;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
@@ -59,24 +58,17 @@ public class TestOverReplicatedBlocks extends TestCase {
       ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, fileName);
       TestDatanodeBlockScanner.corruptReplica(block, 0);
       DataNodeProperties dnProps = cluster.stopDataNode(0);
-      // remove block scanner log to trigger block scanning
-      File scanLog = new File(MiniDFSCluster.getFinalizedDir(
-          MiniDFSCluster.getStorageDir(0, 0),
-          cluster.getNamesystem().getBlockPoolId()).getParent().toString()
-          + "/../dncp_block_verification.log.prev");
-      //wait for one minute for deletion to succeed;
-      for(int i=0; !scanLog.delete(); i++) {
-        assertTrue("Could not delete log file in one minute", i < 60);
-        try {
-          Thread.sleep(1000);
-        } catch (InterruptedException ignored) {}
-      }
+      // remove the block scanner state to trigger block scanning
+      String blockPoolId = cluster.getNamesystem().getBlockPoolId();
+      DataNodeTestUtils.deleteBlockScannerState(
+          MiniDFSCluster.getStorageDir(0, 0), blockPoolId);
+      DataNodeTestUtils.deleteBlockScannerState(
+          MiniDFSCluster.getStorageDir(0, 1), blockPoolId);
       
       // restart the datanode so the corrupt replica will be detected
       cluster.restartDataNode(dnProps);
       DFSTestUtil.waitReplication(fs, fileName, (short)2);
       
-      String blockPoolId = cluster.getNamesystem().getBlockPoolId();
       final DatanodeID corruptDataNode = 
         DataNodeTestUtils.getDNRegistrationForBP(
             cluster.getDataNodes().get(2), blockPoolId);
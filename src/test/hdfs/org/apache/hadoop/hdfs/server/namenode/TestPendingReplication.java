@@ -21,6 +21,7 @@ import junit.framework.TestCase;
 import java.lang.System;
 
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
 
 /**
  * This class tests the internals of PendingReplicationBlocks.java
@@ -114,4 +115,60 @@ public class TestPendingReplication extends TestCase {
     }
     pendingReplications.stop();
   }
+
+  /**
+   * Test the counts of the replications pending to each target.
+   */
+  public void testPendingTargets() {
+    PendingReplicationBlocks pendingReplications =
+      new PendingReplicationBlocks(TIMEOUT * 1000);
+    DatanodeDescriptor[] dns = new DatanodeDescriptor[3];
+    for (int i = 0; i < dns.length; i++) {
+      dns[i] = new DatanodeDescriptor(new DatanodeID("h" + i + ":5020"));
+    }
+
+    // blocks 0-4 go to dn0 and dn1, blocks 5-9 to dn1 and dn2
+    for (int i = 0; i < 10; i++) {
+      pendingReplications.add(new Block(i, i, 0), i < 5 ?
+          new DatanodeDescriptor[]{dns[0], dns[1]} :
+          new DatanodeDescriptor[]{dns[1], dns[2]});
+    }
+    assertEquals(5, pendingReplications.getNumPendingTo(dns[0]));
+    assertEquals(10, pendingReplications.getNumPendingTo(dns[1]));
+    assertEquals(5, pendingReplications.getNumPendingTo(dns[2]));
+
+    // dn1 received block 0
+    Block blk = new Block(0, 0, 0);
+    pendingReplications.remove(blk, dns[1]);
+    assertEquals(1, pendingReplications.getNumReplicas(blk));
+    assertEquals(5, pendingReplications.getNumPendingTo(dns[0]));
+    assertEquals(9, pendingReplications.getNumPendingTo(dns[1]));
+
+    // a node which is not a target received block 0: nothing is pending
+    // for the block any more
+    pendingReplications.remove(blk, dns[2]);
+    assertEquals(0, pendingReplications.getNumReplicas(blk));
+    assertEquals(4, pendingReplications.getNumPendingTo(dns[0]));
+    assertEquals(5, pendingReplications.getNumPendingTo(dns[2]));
+
+    // the pending counts are released when the replications time out
+    pendingReplications.start();
+    try {
+      int loop = 0;
+      while (pendingReplications.size() > 0) {
+        try {
+          Thread.sleep(1000);
+        } catch (Exception e) {
+        }
+        assertTrue("Timed out waiting for the replications to time out",
+            ++loop < 5 * TIMEOUT);
+      }
+      assertEquals(9, pendingReplications.getTimedOutBlocks().length);
+      for (DatanodeDescriptor dn : dns) {
+        assertEquals(0, pendingReplications.getNumPendingTo(dn));
+      }
+    } finally {
+      pendingReplications.stop();
+    }
+  }
 }
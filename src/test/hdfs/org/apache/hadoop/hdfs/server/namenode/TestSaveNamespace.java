@@ -18,15 +18,19 @@
 package org.apache.hadoop.hdfs.server.namenode;
 
 import static org.apache.hadoop.hdfs.server.common.Util.fileAsURI;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.spy;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -54,12 +58,13 @@ import org.mockito.stubbing.Answer;
  * <li>Recover from failure while moving lastcheckpoint.tmp into
  * previous.checkpoint</li>
  * <li>Recover from failure while rolling edits file</li>
+ * <li>Save again after a save from a snapshot failed</li>
  * </ol>
  */
 public class TestSaveNamespace {
   private static final Log LOG = LogFactory.getLog(TestSaveNamespace.class);
 
-  private static class FaultySaveImage implements Answer<Void> {
+  private static class FaultySaveImage implements Answer<FileOutputStream> {
     int count = 0;
     boolean exceptionType = true;
 
@@ -73,20 +78,21 @@ public class TestSaveNamespace {
       this.exceptionType = etype;
     }
 
-    public Void answer(InvocationOnMock invocation) throws Throwable {
+    public FileOutputStream answer(InvocationOnMock invocation)
+        throws Throwable {
       Object[] args = invocation.getArguments();
       File f = (File)args[0];
 
       if (count++ == 1) {
         LOG.info("Injecting fault for file: " + f);
         if (exceptionType) {
-          throw new RuntimeException("Injected fault: saveFSImage second time");
+          throw new RuntimeException("Injected fault: openImageFile second time");
         } else {
-          throw new IOException("Injected fault: saveFSImage second time");
+          throw new IOException("Injected fault: openImageFile second time");
         }
       }
       LOG.info("Not injecting fault for file: " + f);
-      return (Void)invocation.callRealMethod();
+      return (FileOutputStream)invocation.callRealMethod();
     }
   }
 
@@ -121,7 +127,7 @@ public class TestSaveNamespace {
     case SAVE_FSIMAGE:
       // The spy throws a RuntimeException when writing to the second directory
       doAnswer(new FaultySaveImage()).
-        when(spyImage).saveFSImage((File)anyObject());
+        when(spyImage).openImageFile((File)anyObject());
       break;
     case MOVE_CURRENT:
       // The spy throws a RuntimeException when calling moveCurrent()
@@ -196,7 +202,7 @@ public class TestSaveNamespace {
     // inject fault
     // The spy throws a IOException when writing to the second directory
     doAnswer(new FaultySaveImage(false)).
-      when(spyImage).saveFSImage((File)anyObject());
+      when(spyImage).openImageFile((File)anyObject());
 
     try {
       doAnEdit(fsn, 1);
@@ -308,6 +314,68 @@ public class TestSaveNamespace {
     }
   }
 
+  /**
+   * Test that a save from a snapshot that fails leaves edits.new to the
+   * next save, and that the next save succeeds.
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testConcurrentSaveAfterFailure() throws Exception {
+    Configuration conf = getConf();
+    conf.setBoolean(
+        DFSConfigKeys.DFS_NAMENODE_SAVENAMESPACE_CONCURRENT_KEY, true);
+    NameNode.initMetrics(conf, NamenodeRole.ACTIVE);
+    GenericTestUtils.formatNamenode(conf);
+    FSNamesystem fsn = new FSNamesystem(conf);
+
+    // Replace the FSImage with a spy
+    final FSImage originalImage = fsn.dir.fsImage;
+    FSImage spyImage = spy(originalImage);
+    fsn.dir.fsImage = spyImage;
+    // the first save fails
+    doAnswer(new Answer<Boolean>() {
+      private int count = 0;
+
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        if (count++ == 0) {
+          throw new RuntimeException("Injected fault: saveCheckpoint");
+        }
+        return (Boolean)invocation.callRealMethod();
+      }
+    }).when(spyImage).saveCheckpoint((NamespaceSnapshot)anyObject(),
+          (List<StorageDirectory>)anyObject());
+
+    try {
+      doAnEdit(fsn, 1);
+      try {
+        fsn.saveNamespace();
+        fail("The first save should fail");
+      } catch (RuntimeException e) {
+        LOG.info("Test caught expected exception", e);
+      }
+      // logged to the edits.new of the failed save
+      doAnEdit(fsn, 2);
+
+      fsn.saveNamespace();
+      assertEquals(FSImage.CheckpointStates.START, spyImage.ckptState);
+      doAnEdit(fsn, 3);
+
+      // Now shut down and restart the namesystem
+      originalImage.close();
+      fsn.close();
+      fsn = null;
+
+      fsn = new FSNamesystem(conf);
+      checkEditExists(fsn, 1);
+      checkEditExists(fsn, 2);
+      checkEditExists(fsn, 3);
+    } finally {
+      if (fsn != null) {
+        fsn.close();
+      }
+    }
+  }
+
   private void doAnEdit(FSNamesystem fsn, int id) throws IOException {
     // Make an edit
     fsn.mkdirs(
@@ -17,13 +17,17 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FsShell;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.DFSTestUtil;
 import org.apache.hadoop.hdfs.HdfsConfiguration;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 
 import junit.framework.TestCase;
@@ -59,4 +63,80 @@ public class TestUnderReplicatedBlocks extends TestCase {
     
   }
 
+  /**
+   * Test that the replication work computed by several threads
+   * replicates the blocks of many files.
+   */
+  public void testParallelReplicationWork() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_WORK_THREADS_KEY, 3);
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_INTERVAL_KEY, 1);
+    final int numFiles = 20;
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(4).build();
+    try {
+      final FileSystem fs = cluster.getFileSystem();
+      for (int i = 0; i < numFiles; i++) {
+        DFSTestUtil.createFile(fs, new Path("/file" + i), 1L, (short)1, i);
+      }
+      for (int i = 0; i < numFiles; i++) {
+        fs.setReplication(new Path("/file" + i), (short)3);
+      }
+      for (int i = 0; i < numFiles; i++) {
+        DFSTestUtil.waitReplication(fs, new Path("/file" + i), (short)3);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Test that choosing blocks resumes at the cursor of every level and
+   * starts over once all the levels are exhausted.
+   */
+  public void testChooseUnderReplicatedBlocks() {
+    final UnderReplicatedBlocks queues = new UnderReplicatedBlocks();
+    for (int i = 0; i < 10; i++) {
+      // one replica out of three: priority 0
+      assertTrue(queues.add(new Block(i), 1, 0, 3));
+      // two replicas out of three: priority 2
+      assertTrue(queues.add(new Block(10 + i), 2, 0, 3));
+    }
+    assertEquals(20, queues.size());
+
+    List<List<Block>> chosen = queues.chooseUnderReplicatedBlocks(5);
+    assertChosen(chosen.get(0), 0, 5);
+    assertEquals(0, chosen.get(2).size());
+
+    chosen = queues.chooseUnderReplicatedBlocks(10);
+    assertChosen(chosen.get(0), 5, 10);
+    assertChosen(chosen.get(2), 10, 15);
+
+    // a block moved to another level is added after the cursor
+    queues.update(new Block(3), 2, 0, 3, 1, 0);
+    assertEquals(20, queues.size());
+
+    // priority 0 is exhausted, priority 2 has 6 blocks left before the
+    // cursors start over from the beginning
+    chosen = queues.chooseUnderReplicatedBlocks(30);
+    assertEquals(9, chosen.get(0).size());
+    assertEquals(11, chosen.get(2).size());
+    assertChosen(chosen.get(2).subList(0, 5), 15, 20);
+    assertEquals(new Block(3), chosen.get(2).get(5));
+    assertChosen(chosen.get(2).subList(6, 11), 10, 15);
+
+    // removing blocks does not disturb the cursors
+    for (int i = 0; i < 10; i++) {
+      assertTrue(queues.remove(new Block(i), 0));
+    }
+    assertEquals(10, queues.size());
+    chosen = queues.chooseUnderReplicatedBlocks(3);
+    assertChosen(chosen.get(2), 15, 18);
+  }
+
+  private static void assertChosen(List<Block> blocks, int from, int to) {
+    assertEquals(to - from, blocks.size());
+    for (int i = from; i < to; i++) {
+      assertEquals(new Block(i), blocks.get(i - from));
+    }
+  }
 }
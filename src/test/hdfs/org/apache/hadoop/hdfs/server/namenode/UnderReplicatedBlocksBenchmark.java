@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Compares {@link UnderReplicatedBlocks} with the TreeSet based queues it
+ * replaced, which chose the blocks to replicate by skipping a global index
+ * from the start of the highest priority queue.
+ *
+ * The benchmark adds the given number of blocks with random priorities,
+ * moves each of them to another level, and then runs rounds of the
+ * replication monitor: choose the given number of blocks, remove half of
+ * them as scheduled and add as many new blocks.
+ *
+ * Usage: UnderReplicatedBlocksBenchmark [-blocks N] [-choose C] [-rounds R]
+ */
+public class UnderReplicatedBlocksBenchmark {
+  /** Live and expected replicas which give a block each priority. */
+  private static final int[] REPLICAS = {1, 2, 2, 3, 0};
+  private static final int[] EXPECTED = {3, 10, 3, 3, 3};
+
+  /** The queues before indexing: a TreeSet per level and a global index. */
+  static class TreeSetQueues {
+    private final List<TreeSet<Block>> queues = new ArrayList<TreeSet<Block>>();
+    private int replIndex = 0;
+
+    TreeSetQueues() {
+      for (int i = 0; i < UnderReplicatedBlocks.LEVEL; i++) {
+        queues.add(new TreeSet<Block>());
+      }
+    }
+
+    int size() {
+      int size = 0;
+      for (TreeSet<Block> q : queues) {
+        size += q.size();
+      }
+      return size;
+    }
+
+    void add(Block b, int priority) {
+      queues.get(priority).add(b);
+    }
+
+    void remove(Block b, int priority) {
+      if (queues.get(priority).remove(b)) {
+        replIndex--;
+      }
+    }
+
+    void move(Block b, int from, int to) {
+      queues.get(from).remove(b);
+      queues.get(to).add(b);
+    }
+
+    private Iterator<Block> iterator(final int[] level) {
+      level[0] = 0;
+      return new Iterator<Block>() {
+        Iterator<Block> i = queues.get(0).iterator();
+
+        public boolean hasNext() {
+          while (!i.hasNext() && level[0] < queues.size() - 1) {
+            i = queues.get(++level[0]).iterator();
+          }
+          return i.hasNext();
+        }
+
+        public Block next() {
+          hasNext();
+          return i.next();
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    List<List<Block>> choose(int blocksToProcess) {
+      final List<List<Block>> chosen = new ArrayList<List<Block>>();
+      for (int i = 0; i < UnderReplicatedBlocks.LEVEL; i++) {
+        chosen.add(new ArrayList<Block>());
+      }
+      final int[] level = new int[1];
+      Iterator<Block> it = iterator(level);
+      for (int i = 0; i < replIndex && it.hasNext(); i++) {
+        it.next();
+      }
+      blocksToProcess = Math.min(blocksToProcess, size());
+      for (int blkCnt = 0; blkCnt < blocksToProcess; blkCnt++, replIndex++) {
+        if (!it.hasNext()) {
+          replIndex = 0;
+          it = iterator(level);
+        }
+        final Block b = it.next();
+        chosen.get(level[0]).add(b);
+      }
+      return chosen;
+    }
+  }
+
+  private final int numBlocks;
+  private final int blocksToChoose;
+  private final int numRounds;
+
+  UnderReplicatedBlocksBenchmark(int numBlocks, int blocksToChoose,
+      int numRounds) {
+    this.numBlocks = numBlocks;
+    this.blocksToChoose = blocksToChoose;
+    this.numRounds = numRounds;
+  }
+
+  /** @return the elapsed milliseconds of adding, moving and choosing */
+  long[] runTreeSet(long seed) {
+    final Random r = new Random(seed);
+    final TreeSetQueues queues = new TreeSetQueues();
+    final Block[] blocks = new Block[numBlocks];
+    final int[] priorities = new int[numBlocks];
+    final long[] elapsed = new long[3];
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = new Block(r.nextLong());
+      priorities[i] = r.nextInt(UnderReplicatedBlocks.LEVEL);
+      queues.add(blocks[i], priorities[i]);
+    }
+    elapsed[0] = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < numBlocks; i++) {
+      final int to = r.nextInt(UnderReplicatedBlocks.LEVEL);
+      queues.move(blocks[i], priorities[i], to);
+      priorities[i] = to;
+    }
+    elapsed[1] = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int round = 0; round < numRounds; round++) {
+      final List<List<Block>> chosen = queues.choose(blocksToChoose);
+      for (int p = 0; p < chosen.size(); p++) {
+        final List<Block> level = chosen.get(p);
+        for (int i = 0; i < level.size(); i += 2) {
+          queues.remove(level.get(i), p);
+          queues.add(new Block(r.nextLong()),
+              r.nextInt(UnderReplicatedBlocks.LEVEL));
+        }
+      }
+    }
+    elapsed[2] = System.currentTimeMillis() - start;
+    return elapsed;
+  }
+
+  /** @return the elapsed milliseconds of adding, moving and choosing */
+  long[] runIndexed(long seed) {
+    final Random r = new Random(seed);
+    final UnderReplicatedBlocks queues = new UnderReplicatedBlocks();
+    final Block[] blocks = new Block[numBlocks];
+    final int[] priorities = new int[numBlocks];
+    final long[] elapsed = new long[3];
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = new Block(r.nextLong());
+      priorities[i] = r.nextInt(UnderReplicatedBlocks.LEVEL);
+      add(queues, blocks[i], priorities[i]);
+    }
+    elapsed[0] = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < numBlocks; i++) {
+      final int from = priorities[i];
+      final int to = r.nextInt(UnderReplicatedBlocks.LEVEL);
+      queues.update(blocks[i], REPLICAS[to], 0, EXPECTED[to],
+          REPLICAS[to] - REPLICAS[from], EXPECTED[to] - EXPECTED[from]);
+      priorities[i] = to;
+    }
+    elapsed[1] = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int round = 0; round < numRounds; round++) {
+      final List<List<Block>> chosen =
+        queues.chooseUnderReplicatedBlocks(blocksToChoose);
+      for (int p = 0; p < chosen.size(); p++) {
+        final List<Block> level = chosen.get(p);
+        for (int i = 0; i < level.size(); i += 2) {
+          queues.remove(level.get(i), p);
+          add(queues, new Block(r.nextLong()),
+              r.nextInt(UnderReplicatedBlocks.LEVEL));
+        }
+      }
+    }
+    elapsed[2] = System.currentTimeMillis() - start;
+    return elapsed;
+  }
+
+  private static void add(UnderReplicatedBlocks queues, Block b,
+      int priority) {
+    queues.add(b, REPLICAS[priority], 0, EXPECTED[priority]);
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: UnderReplicatedBlocksBenchmark"
+        + " [-blocks N] [-choose C] [-rounds R]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) {
+    int numBlocks = 1000000;
+    int blocksToChoose = 2000;
+    int numRounds = 1000;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-blocks")) {
+        numBlocks = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-choose")) {
+        blocksToChoose = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-rounds")) {
+        numRounds = Integer.parseInt(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    final UnderReplicatedBlocksBenchmark bench =
+      new UnderReplicatedBlocksBenchmark(numBlocks, blocksToChoose, numRounds);
+    final long seed = new Random().nextLong();
+    // warm up the JIT with a small run of each
+    new UnderReplicatedBlocksBenchmark(numBlocks / 10 + 1, blocksToChoose,
+        numRounds / 10 + 1).runTreeSet(seed);
+    new UnderReplicatedBlocksBenchmark(numBlocks / 10 + 1, blocksToChoose,
+        numRounds / 10 + 1).runIndexed(seed);
+
+    System.out.println("blocks = " + numBlocks
+        + ", choose = " + blocksToChoose + ", rounds = " + numRounds);
+    print("TreeSet", bench.runTreeSet(seed));
+    print("indexed", bench.runIndexed(seed));
+  }
+
+  private static void print(String name, long[] elapsed) {
+    System.out.println(String.format(
+        "%-8s add = %6d ms, move = %6d ms, choose = %6d ms",
+        name, elapsed[0], elapsed[1], elapsed[2]));
+  }
+}
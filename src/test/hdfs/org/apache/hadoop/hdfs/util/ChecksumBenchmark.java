@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.Random;
+
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Measures the single-threaded throughput of verifying the checksums
+ * of packets, i.e. the verify throughput per core.
+ *
+ * The verification chunk by chunk through {@link DataChecksum}, which
+ * the datanode did before, is compared with {@link ChunkedChecksum}
+ * for CRC32 and CRC32C.
+ *
+ * Usage: ChecksumBenchmark [-packet BYTES] [-bpc BYTES] [-mb N]
+ */
+public class ChecksumBenchmark {
+  private final int packetSize;
+  private final int bytesPerChecksum;
+  private final long totalBytes;
+  private final byte[] data;
+  private final byte[] sums;
+
+  ChecksumBenchmark(int packetSize, int bytesPerChecksum, long totalBytes) {
+    this.packetSize = packetSize;
+    this.bytesPerChecksum = bytesPerChecksum;
+    this.totalBytes = totalBytes;
+    this.data = new byte[packetSize];
+    new Random().nextBytes(data);
+    this.sums = new byte[(packetSize / bytesPerChecksum + 1) * 4];
+  }
+
+  /** @return MB/s verified chunk by chunk with {@link DataChecksum} */
+  double runDataChecksum() {
+    final DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_CRC32, bytesPerChecksum);
+    new ChunkedChecksum(checksum).calculate(data, 0, packetSize, sums, 0);
+    final long start = System.nanoTime();
+    for (long done = 0; done < totalBytes; done += packetSize) {
+      int sumOff = 0;
+      for (int off = 0; off < packetSize; off += bytesPerChecksum) {
+        checksum.reset();
+        checksum.update(data, off, Math.min(bytesPerChecksum,
+            packetSize - off));
+        if (!checksum.compare(sums, sumOff)) {
+          throw new IllegalStateException("checksum mismatch");
+        }
+        sumOff += checksum.getChecksumSize();
+      }
+    }
+    return totalBytes * 1e9 / (System.nanoTime() - start) / (1 << 20);
+  }
+
+  /** @return MB/s verified with {@link ChunkedChecksum} */
+  double runChunked(int type) {
+    final ChunkedChecksum chunked = new ChunkedChecksum(type,
+        bytesPerChecksum);
+    chunked.calculate(data, 0, packetSize, sums, 0);
+    final long start = System.nanoTime();
+    for (long done = 0; done < totalBytes; done += packetSize) {
+      if (chunked.verify(data, 0, packetSize, sums, 0) >= 0) {
+        throw new IllegalStateException("checksum mismatch");
+      }
+    }
+    return totalBytes * 1e9 / (System.nanoTime() - start) / (1 << 20);
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: ChecksumBenchmark"
+        + " [-packet BYTES] [-bpc BYTES] [-mb N]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) {
+    int packetSize = 64 * 1024;
+    int bytesPerChecksum = 512;
+    long totalMB = 1024;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length) {
+        printUsage();
+      }
+      if (args[i].equals("-packet")) {
+        packetSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-bpc")) {
+        bytesPerChecksum = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-mb")) {
+        totalMB = Long.parseLong(args[++i]);
+      } else {
+        printUsage();
+      }
+    }
+    ChecksumBenchmark bench = new ChecksumBenchmark(packetSize,
+        bytesPerChecksum, totalMB << 20);
+    // run each once to warm up the JIT
+    bench.runDataChecksum();
+    bench.runChunked(ChunkedChecksum.CHECKSUM_CRC32);
+    bench.runChunked(ChunkedChecksum.CHECKSUM_CRC32C);
+    System.out.println(String.format("%30s %12s", "verify", "MB/s"));
+    System.out.println(String.format("%30s %12.0f",
+        "DataChecksum CRC32 per chunk", bench.runDataChecksum()));
+    System.out.println(String.format("%30s %12.0f",
+        "ChunkedChecksum CRC32",
+        bench.runChunked(ChunkedChecksum.CHECKSUM_CRC32)));
+    System.out.println(String.format("%30s %12.0f",
+        "ChunkedChecksum CRC32C",
+        bench.runChunked(ChunkedChecksum.CHECKSUM_CRC32C)));
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestChunkedArrayList {
+  private static final Random ran = new Random();
+
+  /**
+   * Apply the same random updates to an {@link ArrayList} and to a
+   * {@link ChunkedArrayList} and compare the results.
+   */
+  @Test
+  public void testRandomUpdates() {
+    final long seed = ran.nextLong();
+    System.out.println("seed = " + seed);
+    final Random r = new Random(seed);
+
+    final List<Integer> expected = new ArrayList<Integer>();
+    final ChunkedArrayList<Integer> list = new ChunkedArrayList<Integer>(8);
+    for (int i = 0; i < 10000; i++) {
+      // grow for a while, then shrink
+      final boolean add = expected.isEmpty()
+          || r.nextInt(10) < (i < 6000 ? 7 : 3);
+      if (add) {
+        final int index = r.nextInt(expected.size() + 1);
+        final Integer value = r.nextInt();
+        expected.add(index, value);
+        list.add(index, value);
+      } else {
+        final int index = r.nextInt(expected.size());
+        Assert.assertEquals(expected.remove(index), list.remove(index));
+      }
+      if (!expected.isEmpty() && r.nextInt(10) == 0) {
+        final int index = r.nextInt(expected.size());
+        final Integer value = r.nextInt();
+        Assert.assertEquals(expected.set(index, value), list.set(index, value));
+      }
+      Assert.assertEquals(expected.size(), list.size());
+      if (i % 100 == 0) {
+        Assert.assertEquals(expected, list);
+        Assert.assertEquals(list, expected);
+      }
+    }
+    Assert.assertEquals(expected, list);
+  }
+
+  @Test
+  public void testBinarySearch() {
+    final List<Integer> sorted = new ArrayList<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      sorted.add(2*i);
+    }
+    final ChunkedArrayList<Integer> list
+      = new ChunkedArrayList<Integer>(sorted, 16);
+    Assert.assertEquals(1000/16 + 1, list.getNumChunks());
+    for (int i = 0; i < 2000; i++) {
+      Assert.assertEquals(Collections.binarySearch(sorted, i),
+                          Collections.binarySearch(list, i));
+    }
+    // keep the list sorted while inserting the odd numbers
+    for (int i = 1; i < 2000; i += 2) {
+      final int low = Collections.binarySearch(list, i);
+      Assert.assertTrue(low < 0);
+      list.add(-low - 1, i);
+    }
+    for (int i = 0; i < 2000; i++) {
+      Assert.assertEquals(i, list.get(i).intValue());
+      Assert.assertEquals(i, Collections.binarySearch(list, i));
+    }
+  }
+
+  @Test
+  public void testIterator() {
+    final ChunkedArrayList<Integer> list = new ChunkedArrayList<Integer>(4);
+    for (int i = 0; i < 100; i++) {
+      list.add(i);
+    }
+    int expected = 0;
+    for (Integer i : list) {
+      Assert.assertEquals(expected++, i.intValue());
+    }
+    Assert.assertEquals(100, expected);
+
+    // remove the odd numbers through the iterator
+    for (Iterator<Integer> i = list.iterator(); i.hasNext(); ) {
+      if (i.next() % 2 == 1) {
+        i.remove();
+      }
+    }
+    Assert.assertEquals(50, list.size());
+    for (int i = 0; i < list.size(); i++) {
+      Assert.assertEquals(2*i, list.get(i).intValue());
+    }
+
+    // fail fast on concurrent modification
+    final Iterator<Integer> i = list.iterator();
+    i.next();
+    list.remove(0);
+    try {
+      i.next();
+      Assert.fail();
+    } catch(ConcurrentModificationException e) {
+      System.out.println("GOOD: getting " + e);
+    }
+  }
+
+  @Test
+  public void testExceptionCases() {
+    try {
+      new ChunkedArrayList<Integer>(1);
+      Assert.fail();
+    } catch(IllegalArgumentException e) {
+      System.out.println("GOOD: getting " + e);
+    }
+    final ChunkedArrayList<Integer> list = new ChunkedArrayList<Integer>(4);
+    try {
+      list.get(0);
+      Assert.fail();
+    } catch(IndexOutOfBoundsException e) {
+      System.out.println("GOOD: getting " + e);
+    }
+    try {
+      list.add(1, 1);
+      Assert.fail();
+    } catch(IndexOutOfBoundsException e) {
+      System.out.println("GOOD: getting " + e);
+    }
+  }
+}
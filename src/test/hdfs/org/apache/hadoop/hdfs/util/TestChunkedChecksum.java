@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.Random;
+
+import org.apache.hadoop.util.DataChecksum;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestChunkedChecksum {
+  private static final Random ran = new Random();
+
+  /** Known values of CRC32C, from RFC 3720 and the usual check string. */
+  @Test
+  public void testCrc32CKnownValues() throws Exception {
+    final PureJavaCrc32C crc = new PureJavaCrc32C();
+    final byte[] check = "123456789".getBytes("US-ASCII");
+    crc.update(check, 0, check.length);
+    Assert.assertEquals(0xE3069283L, crc.getValue());
+
+    crc.reset();
+    crc.update(new byte[32], 0, 32);
+    Assert.assertEquals(0x8A9136AAL, crc.getValue());
+
+    final byte[] ones = new byte[32];
+    java.util.Arrays.fill(ones, (byte)0xff);
+    crc.reset();
+    crc.update(ones, 0, ones.length);
+    Assert.assertEquals(0x62A8AB43L, crc.getValue());
+  }
+
+  /** Updates of any length give the same value as bytewise updates. */
+  @Test
+  public void testCrc32CUpdates() {
+    final long seed = ran.nextLong();
+    System.out.println("seed = " + seed);
+    final Random r = new Random(seed);
+    final byte[] data = new byte[1000];
+    r.nextBytes(data);
+
+    final PureJavaCrc32C bytewise = new PureJavaCrc32C();
+    for (byte b : data) {
+      bytewise.update(b);
+    }
+    final PureJavaCrc32C crc = new PureJavaCrc32C();
+    for (int off = 0; off < data.length; ) {
+      final int len = Math.min(r.nextInt(20), data.length - off);
+      crc.update(data, off, len);
+      off += len;
+    }
+    Assert.assertEquals(bytewise.getValue(), crc.getValue());
+  }
+
+  /** The CRC32 checksums agree with {@link DataChecksum}. */
+  @Test
+  public void testSameAsDataChecksum() {
+    final DataChecksum checksum =
+        DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512);
+    final ChunkedChecksum chunked = new ChunkedChecksum(checksum);
+    Assert.assertEquals(checksum.getChecksumSize(),
+        chunked.getChecksumSize());
+
+    final byte[] data = new byte[3 * 512 + 100];
+    ran.nextBytes(data);
+    final byte[] sums = new byte[4 * checksum.getChecksumSize()];
+    chunked.calculate(data, 0, data.length, sums, 0);
+    for (int i = 0; i < 4; i++) {
+      checksum.reset();
+      checksum.update(data, i * 512, Math.min(512, data.length - i * 512));
+      Assert.assertTrue("chunk " + i,
+          checksum.compare(sums, i * checksum.getChecksumSize()));
+    }
+  }
+
+  private static void checkVerify(int type) {
+    final int bytesPerChecksum = 512;
+    final ChunkedChecksum chunked = new ChunkedChecksum(type,
+        bytesPerChecksum);
+    final int numChunks = 8;
+    final int dataLen = numChunks * bytesPerChecksum - 7;
+    // a packet with its checksums in front of its data
+    final int sumsLen = numChunks * chunked.getChecksumSize();
+    final byte[] packet = new byte[sumsLen + dataLen];
+    ran.nextBytes(packet);
+    chunked.calculate(packet, sumsLen, dataLen, packet, 0);
+    Assert.assertEquals(-1,
+        chunked.verify(packet, sumsLen, dataLen, packet, 0));
+
+    // corrupt one byte of the data
+    final int corrupt = ran.nextInt(dataLen);
+    packet[sumsLen + corrupt] ^= 1;
+    Assert.assertEquals(corrupt / bytesPerChecksum * bytesPerChecksum,
+        chunked.verify(packet, sumsLen, dataLen, packet, 0));
+    packet[sumsLen + corrupt] ^= 1;
+
+    // corrupt a checksum
+    packet[chunked.getChecksumSize() * 3] ^= 0x10;
+    Assert.assertEquals(3 * bytesPerChecksum,
+        chunked.verify(packet, sumsLen, dataLen, packet, 0));
+  }
+
+  @Test
+  public void testVerifyCrc32() {
+    checkVerify(ChunkedChecksum.CHECKSUM_CRC32);
+  }
+
+  @Test
+  public void testVerifyCrc32C() {
+    checkVerify(ChunkedChecksum.CHECKSUM_CRC32C);
+  }
+}
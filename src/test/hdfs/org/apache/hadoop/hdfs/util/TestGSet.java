@@ -166,6 +166,42 @@ public class TestGSet {
     check(new GSetTestCase(255, 1 << 10, 65537));
   }
 
+  @Test
+  public void testResizableGSet() {
+    //The parameters are: initial table length, data size, modulus.
+    check(new GSetTestCase(1, 1 << 4, 65537, true));
+    check(new GSetTestCase(17, 1 << 16, 17, true));
+    check(new GSetTestCase(1, 1 << 16, 65537, true));
+  }
+
+  @Test
+  public void testResizableGSetIteratorRemove() {
+    final GSet<IntElement, IntElement> gset
+      = new LightWeightResizableGSet<IntElement, IntElement>(1, 0.75f);
+    final IntData data = new IntData(1 << 10, 1 << 20);
+    for(IntElement i : data.integers) {
+      gset.put(i);
+    }
+    final int size = gset.size();
+
+    //remove the elements with odd values while iterating
+    int count = 0;
+    int removed = 0;
+    for(Iterator<IntElement> i = gset.iterator(); i.hasNext(); ) {
+      count++;
+      if (i.next().value % 2 == 1) {
+        i.remove();
+        removed++;
+      }
+    }
+    Assert.assertEquals(size, count);
+    Assert.assertEquals(size - removed, gset.size());
+    for(IntElement i : gset) {
+      Assert.assertEquals(0, i.value % 2);
+      Assert.assertSame(i, gset.get(i));
+    }
+  }
+
   /**
    * A long test,
    * which may take ~5 hours,
@@ -264,16 +300,25 @@ public class TestGSet {
     int contain_count = 0;
 
     GSetTestCase(int tablelength, int datasize, int modulus) {
+      this(tablelength, datasize, modulus, false);
+    }
+
+    GSetTestCase(int tablelength, int datasize, int modulus,
+        boolean resizable) {
       denominator = Math.min((datasize >> 7) + 1, 1 << 16);
       info = getClass().getSimpleName()
           + ": tablelength=" + tablelength
           + ", datasize=" + datasize
           + ", modulus=" + modulus
+          + ", resizable=" + resizable
           + ", denominator=" + denominator;
       println(info);
 
       data  = new IntData(datasize, modulus);
-      gset = new LightWeightGSet<IntElement, IntElement>(tablelength);
+      gset = resizable
+          ? new LightWeightResizableGSet<IntElement, IntElement>(tablelength,
+              LightWeightResizableGSet.DEFAULT_LOAD_FACTOR)
+          : new LightWeightGSet<IntElement, IntElement>(tablelength);
 
       Assert.assertEquals(0, gset.size());
     }
@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLightWeightHashSet {
+  private static final Random ran = new Random();
+
+  /**
+   * Apply the same random updates to a {@link java.util.HashSet} and to a
+   * {@link LightWeightHashSet} and compare the results.
+   */
+  @Test
+  public void testRandomUpdates() {
+    final long seed = ran.nextLong();
+    System.out.println("seed = " + seed);
+    final Random r = new Random(seed);
+
+    final Set<Integer> expected = new HashSet<Integer>();
+    final LightWeightHashSet<Integer> set = new LightWeightHashSet<Integer>();
+    for (int i = 0; i < 20000; i++) {
+      // grow for a while, then shrink
+      final Integer value = r.nextInt(4000);
+      if (r.nextInt(10) < (i < 12000 ? 7 : 2)) {
+        Assert.assertEquals(expected.add(value), set.add(value));
+      } else {
+        Assert.assertEquals(expected.remove(value), set.remove(value));
+      }
+      Assert.assertEquals(expected.size(), set.size());
+      if (i % 500 == 0) {
+        Assert.assertEquals(expected, new HashSet<Integer>(set));
+        for (int k = 0; k < 100; k++) {
+          final Integer key = r.nextInt(4000);
+          Assert.assertEquals(expected.contains(key), set.contains(key));
+        }
+      }
+    }
+    Assert.assertEquals(expected, new HashSet<Integer>(set));
+    set.clear();
+    Assert.assertTrue(set.isEmpty());
+    Assert.assertFalse(set.iterator().hasNext());
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    final LightWeightHashSet<Integer> set = new LightWeightHashSet<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      set.add(i);
+    }
+    // removing every element through the iterator must not resize the
+    // array under the iterator
+    int n = 0;
+    for (Iterator<Integer> i = set.iterator(); i.hasNext(); n++) {
+      i.next();
+      i.remove();
+    }
+    Assert.assertEquals(1000, n);
+    Assert.assertTrue(set.isEmpty());
+
+    set.add(1);
+    set.add(2);
+    final Iterator<Integer> i = set.iterator();
+    i.next();
+    set.add(3);
+    try {
+      i.next();
+      Assert.fail();
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Apply the same random updates to a {@link LinkedHashSet} and to a
+   * {@link LightWeightLinkedSet} and compare the orders.
+   */
+  @Test
+  public void testInsertionOrder() {
+    final long seed = ran.nextLong();
+    System.out.println("seed = " + seed);
+    final Random r = new Random(seed);
+
+    final Set<Integer> expected = new LinkedHashSet<Integer>();
+    final LightWeightLinkedSet<Integer> set =
+      new LightWeightLinkedSet<Integer>();
+    for (int i = 0; i < 10000; i++) {
+      final Integer value = r.nextInt(2000);
+      if (r.nextInt(10) < 6) {
+        Assert.assertEquals(expected.add(value), set.add(value));
+      } else {
+        Assert.assertEquals(expected.remove(value), set.remove(value));
+      }
+      if (i % 500 == 0) {
+        Assert.assertEquals(new ArrayList<Integer>(expected),
+            new ArrayList<Integer>(set));
+      }
+    }
+    Assert.assertEquals(new ArrayList<Integer>(expected),
+        new ArrayList<Integer>(set));
+
+    final Iterator<Integer> i = expected.iterator();
+    while (!set.isEmpty()) {
+      Assert.assertEquals(i.next(), set.first());
+      Assert.assertEquals(set.first(), set.pollFirst());
+    }
+    Assert.assertNull(set.pollFirst());
+  }
+
+  @Test
+  public void testCursor() {
+    final LightWeightLinkedSet<Integer> set =
+      new LightWeightLinkedSet<Integer>();
+    for (int i = 0; i < 10; i++) {
+      set.add(i);
+    }
+    Assert.assertEquals(Integer.valueOf(0), set.advanceCursor());
+    Assert.assertEquals(Integer.valueOf(1), set.advanceCursor());
+
+    // removing the element at the cursor resumes after it
+    set.remove(1);
+    Assert.assertEquals(Integer.valueOf(2), set.advanceCursor());
+    // removing elements before the cursor does not move it
+    set.remove(0);
+    Assert.assertEquals(Integer.valueOf(3), set.advanceCursor());
+
+    final List<Integer> rest = new ArrayList<Integer>();
+    for (Integer e; (e = set.advanceCursor()) != null; ) {
+      rest.add(e);
+    }
+    Assert.assertEquals(6, rest.size());
+    Assert.assertNull(set.advanceCursor());
+
+    // an element added after the cursor reached the end is returned next
+    set.add(10);
+    Assert.assertEquals(Integer.valueOf(10), set.advanceCursor());
+    // removing the last elements moves the cursor back
+    set.remove(10);
+    set.remove(9);
+    set.add(11);
+    Assert.assertEquals(Integer.valueOf(11), set.advanceCursor());
+
+    set.resetCursor();
+    Assert.assertEquals(Integer.valueOf(2), set.advanceCursor());
+    set.clear();
+    Assert.assertNull(set.advanceCursor());
+  }
+}